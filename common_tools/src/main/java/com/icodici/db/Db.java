@@ -13,8 +13,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 
@@ -51,15 +56,17 @@ public class Db implements Cloneable, AutoCloseable {
     public void close() {
         synchronized (connectionString) {
             if (connection != null) {
-                for (PreparedStatement s : cachedStatements.values()) {
-                    try {
-                        s.close();
-                    } catch (SQLException e) {
-                        // connection is closed, we ignore it
+                synchronized (connection) {
+                    for (CachedStatement s : cachedStatements.values()) {
+                        try {
+                            s.statement.close();
+                        } catch (SQLException e) {
+                            // connection is closed, we ignore it
 //                        log.d("failure closing statemment: " + e);
+                        }
                     }
+                    cachedStatements.clear();
                 }
-                cachedStatements.clear();
                 try {
                     connection.close();
                 } catch (SQLException e) {
@@ -75,6 +82,20 @@ public class Db implements Cloneable, AutoCloseable {
         return connection == null;
     }
 
+    /**
+     * Check that the connection is still alive, see {@link Connection#isValid(int)}.
+     *
+     * @param timeoutSeconds max time to wait for the check
+     * @return true if the connection is usable
+     */
+    boolean isValid(int timeoutSeconds) {
+        try {
+            return connection != null && connection.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         close();
@@ -273,21 +294,55 @@ public class Db implements Cloneable, AutoCloseable {
         createDB(migrationsResource);
     }
 
-    private HashMap<String, PreparedStatement> cachedStatements = new HashMap<>();
+    /**
+     * Max number of prepared statements cached by the connection, least recently used ones are closed.
+     */
+    static public final int MAX_CACHED_STATEMENTS = 64;
+
+    private boolean useStatementCache = true;
+
+    // guarded by connection
+    private final LinkedHashMap<String, CachedStatement> cachedStatements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+            if (size() <= MAX_CACHED_STATEMENTS)
+                return false;
+            eldest.getValue().evict();
+            return true;
+        }
+    };
 
+    /**
+     * Get the prepared statement for the sql text with parameters set. The statement is taken from the connection
+     * cache, so it must be closed (or its result set must be closed if {@link PreparedStatement#closeOnCompletion()}
+     * is used) to be reused; closing returns it to the cache. If the cached statement for the same sql text is still
+     * in use, e.g. with a nested query, a new uncached statement is prepared.
+     *
+     * @param sqlText sql text string with '?' for parameters
+     * @param args    statement parameters
+     *
+     * @return prepared statement
+     *
+     * @throws SQLException
+     */
     public PreparedStatement statement(String sqlText, Object... args) throws SQLException {
 //        log.d("statement: |" + sqlText + "|  " + Arrays.toString(args));
 //        System.out.println("statement: |" + sqlText + "|  " + Arrays.toString(args));
-//        PreparedStatement statement = cachedStatements.get(sqlText);
         PreparedStatement statement = null;
-//        if (statement == null) {
         synchronized (connection) {
-            statement = connection.prepareStatement(sqlText);
+            if (useStatementCache) {
+                CachedStatement cached = cachedStatements.get(sqlText);
+                if (cached == null || cached.isBroken()) {
+                    if (cached != null)
+                        cached.evict();
+                    cached = new CachedStatement(connection.prepareStatement(sqlText));
+                    cachedStatements.put(sqlText, cached);
+                }
+                statement = cached.checkout();
+            }
+            if (statement == null)
+                statement = connection.prepareStatement(sqlText);
         }
-//            cachedStatements.put(sqlText, statement);
-//        } else {
-//            statement.clearParameters();
-//        }
         int index = 1;
         for (Object arg : args) {
             statement.setObject(index, arg);
@@ -296,6 +351,176 @@ public class Db implements Cloneable, AutoCloseable {
         return statement;
     }
 
+    /**
+     * Enable or disable prepared statements caching, see {@link #statement(String, Object...)}. Use it in tests only,
+     * in production it should always be enabled.
+     *
+     * @param enable if true, statements are cached
+     */
+    public void enableStatementCache(boolean enable) {
+        synchronized (connection) {
+            useStatementCache = enable;
+            if (!enable) {
+                for (CachedStatement s : cachedStatements.values())
+                    s.evict();
+                cachedStatements.clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of statements in the connection cache
+     */
+    public int getCachedStatementsCount() {
+        synchronized (connection) {
+            return cachedStatements.size();
+        }
+    }
+
+    /**
+     * Cached statement handed out as a proxy: closing the proxy (or its result set, if close on completion is set)
+     * returns the statement to the cache instead of closing it.
+     */
+    private class CachedStatement implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final PreparedStatement proxy;
+        private boolean inUse;
+        private boolean evicted;
+        private boolean closeOnCompletion;
+        private ResultSet resultSet;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+            proxy = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[]{PreparedStatement.class}, this);
+        }
+
+        // all methods below are called holding the connection lock
+
+        private PreparedStatement checkout() throws SQLException {
+            if (inUse)
+                return null;
+            statement.clearParameters();
+            statement.clearBatch();
+            inUse = true;
+            closeOnCompletion = false;
+            return proxy;
+        }
+
+        private boolean isBroken() {
+            try {
+                return statement.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        private void evict() {
+            evicted = true;
+            if (!inUse)
+                closeQuietly();
+        }
+
+        private void release() {
+            if (!inUse)
+                return;
+            inUse = false;
+            closeResultSet();
+            if (evicted)
+                closeQuietly();
+        }
+
+        private void closeResultSet() {
+            if (resultSet != null) {
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                    // statement will be prepared again if it is broken
+                }
+                resultSet = null;
+            }
+        }
+
+        private void closeQuietly() {
+            closeResultSet();
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // connection is closed, we ignore it
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (connection) {
+                        release();
+                    }
+                    return null;
+                case "isClosed":
+                    synchronized (connection) {
+                        return !inUse;
+                    }
+                case "closeOnCompletion":
+                    // the driver would close the cached statement itself, so the proxy does it instead: closing any
+                    // result set it returned releases the statement, as a real one would be closed
+                    synchronized (connection) {
+                        if (!inUse)
+                            throw new SQLException("statement is closed");
+                        closeOnCompletion = true;
+                    }
+                    return null;
+                case "isCloseOnCompletion":
+                    synchronized (connection) {
+                        if (!inUse)
+                            throw new SQLException("statement is closed");
+                        return closeOnCompletion;
+                    }
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "cached:" + statement;
+            }
+            if (!inUse)
+                throw new SQLException("statement is closed");
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result != null && (method.getName().equals("executeQuery") || method.getName().equals("getResultSet")))
+                return wrapResultSet((ResultSet) result);
+            return result;
+        }
+
+        private ResultSet wrapResultSet(ResultSet result) {
+            synchronized (connection) {
+                resultSet = result;
+            }
+            return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ResultSet.class},
+                    (rsProxy, rsMethod, rsArgs) -> {
+                        if (rsMethod.getName().equals("getStatement"))
+                            return this.proxy;
+                        try {
+                            Object r = rsMethod.invoke(result, rsArgs);
+                            if (rsMethod.getName().equals("close")) {
+                                synchronized (connection) {
+                                    if (closeOnCompletion && resultSet == result)
+                                        release();
+                                }
+                            }
+                            return r;
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+    }
+
     public PreparedStatement statementReturningKeys(String sqlText, Object... args) throws SQLException {
         PreparedStatement statement = null;
         synchronized (connection) {
@@ -317,8 +542,8 @@ public class Db implements Cloneable, AutoCloseable {
         if (rs.next()) {
             return rs;
         } else {
-            if (sqlite)
-                s.close();
+            // nobody will close the result set, so the statement should be closed here
+            s.close();
             return null;
         }
     }
@@ -383,6 +608,22 @@ public class Db implements Cloneable, AutoCloseable {
         }
     }
 
+    /**
+     * Execute sql text without parameters bypassing the statement cache, e.g. DDL statements that are built once.
+     *
+     * @param sqlText to execute
+     *
+     * @throws SQLException
+     */
+    public void execute(String sqlText) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sqlText);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
     public void executeFile(String name) {
         StringBuilder sb = new StringBuilder();
         int counter = 0;
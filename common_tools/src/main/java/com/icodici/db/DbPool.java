@@ -1,15 +1,68 @@
 package com.icodici.db;
 
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.LatencyHistogram;
+
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Pool of {@link PooledDb} connections. Connections are created on demand up to the maximum, connections idle for
+ * longer than {@link #setIdleTimeout(long) idle timeout} are closed down to the minimum. Connections that were idle for
+ * a while are validated before they are given out. If all the connections are in use, {@link #db()} waits for the
+ * {@link #setAcquireTimeout(long) acquire timeout} and then fails.
+ */
 public class DbPool implements AutoCloseable {
 
+    /**
+     * Default time to wait for a free connection, milliseconds.
+     */
+    static public final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Default time after which idle connections above the minimum are closed, milliseconds.
+     */
+    static public final long DEFAULT_IDLE_TIMEOUT_MILLIS = 600000;
+
+    /**
+     * Connections idle for longer than this are validated before use, milliseconds.
+     */
+    static public final long VALIDATION_INTERVAL_MILLIS = 30000;
+
+    /**
+     * Max time of the connection validation, seconds.
+     */
+    static public final int VALIDATION_TIMEOUT_SECONDS = 5;
+
     private final String connectionString;
     private final Properties properties;
+    private final int minimumConnections;
     private final int maximumConnections;
-    private volatile int total = 0;
+    private volatile long acquireTimeoutMillis = DEFAULT_ACQUIRE_TIMEOUT_MILLIS;
+    private volatile long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final LatencyHistogram acquireLatency = new LatencyHistogram();
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setName("db-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> eviction;
 
     /**
      * This the per-thread cache of the DB connection.
@@ -18,11 +71,19 @@ public class DbPool implements AutoCloseable {
      */
     private ThreadLocal<PooledDb> threadDb = new ThreadLocal<>();
 
+    // most recently returned connections first, so the idle ones gather at the end
+    private final LinkedBlockingDeque<PooledDb> pool = new LinkedBlockingDeque<>();
+
     @Override
     public void close() throws Exception {
         threadDb.set(null);
-        while( !pool.isEmpty())
-            pool.take().destroy();
+        synchronized (this) {
+            if (eviction != null)
+                eviction.cancel(false);
+        }
+        PooledDb db;
+        while ((db = pool.pollFirst()) != null)
+            destroy(db);
     }
 
     public interface DbConsumer<R> {
@@ -34,50 +95,184 @@ public class DbPool implements AutoCloseable {
     }
 
     public DbPool(String connectionString, Properties properties, int maxConnections) throws SQLException {
+        this(connectionString, properties, 0, maxConnections);
+    }
+
+    public DbPool(String connectionString, Properties properties, int minConnections, int maxConnections) throws SQLException {
+        if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections)
+            throw new IllegalArgumentException("bad pool size: " + minConnections + ".." + maxConnections);
         this.connectionString = connectionString;
         this.properties = properties;
+        this.minimumConnections = minConnections;
         this.maximumConnections = maxConnections;
+        scheduleEviction();
     }
 
-    private LinkedBlockingQueue<PooledDb> pool = new LinkedBlockingQueue<>();
+    /**
+     * Set the max time {@link #db()} waits for a free connection when all of them are in use.
+     *
+     * @param millis timeout, milliseconds
+     */
+    public void setAcquireTimeout(long millis) {
+        acquireTimeoutMillis = millis;
+    }
+
+    /**
+     * Set the time after which idle connections above the minimum are closed.
+     *
+     * @param millis timeout, milliseconds
+     */
+    public void setIdleTimeout(long millis) {
+        idleTimeoutMillis = millis;
+        scheduleEviction();
+    }
+
+    private synchronized void scheduleEviction() {
+        if (eviction != null)
+            eviction.cancel(false);
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        eviction = evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
 
     public PooledDb db() throws SQLException {
-        try {
-            PooledDb db = threadDb.get();
-            // One thread - one connection, e.g. transactions work with the same db and
-            // all other calls in the same thread use same pooled instance
-            if( db != null ) {
-                // TODO: uncomment the next assert line to spot every transaction-inside-transaction.
-                // This will definitely break some unit tests until the code is change to never cause
-                // transaction-inside-transaction DB access!
-                // assert !db.isInTransaction;
-                return db;
-            }
+        PooledDb db = threadDb.get();
+        // One thread - one connection, e.g. transactions work with the same db and
+        // all other calls in the same thread use same pooled instance
+        if( db != null ) {
+            // TODO: uncomment the next assert line to spot every transaction-inside-transaction.
+            // This will definitely break some unit tests until the code is change to never cause
+            // transaction-inside-transaction DB access!
+            // assert !db.isInTransaction;
+            return db;
+        }
 
-            PooledDb pdb = total >= maximumConnections ? pool.take() : pool.poll();
-            if( pdb != null ) {
-//                System.out.println("take left " + pool.size() + " total " + total + " cached " + cached);
-            } else {
-                pdb = new PooledDb(this, connectionString, properties);
-                total++;
-//                System.out.println("new  left " + pool.size() + " total " + total + " cached " + cached);
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        try {
+            while (true) {
+                PooledDb pdb = pool.pollFirst();
+                if (pdb == null) {
+                    if (total.incrementAndGet() <= maximumConnections) {
+                        try {
+                            pdb = new PooledDb(this, connectionString, properties);
+                        } catch (Exception e) {
+                            total.decrementAndGet();
+                            throw e;
+                        }
+                    } else {
+                        total.decrementAndGet();
+                        waiters.incrementAndGet();
+                        try {
+                            pdb = pool.pollFirst(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        } finally {
+                            waiters.decrementAndGet();
+                        }
+                        if (pdb == null) {
+                            timeouts.incrementAndGet();
+                            throw new SQLException("no free connection in " + acquireTimeoutMillis + "ms, all " +
+                                    maximumConnections + " connections are in use");
+                        }
+                    }
+                }
+                if (!isValid(pdb)) {
+                    invalid.incrementAndGet();
+                    destroy(pdb);
+                    continue;
+                }
+                acquireLatency.record(System.nanoTime() - started);
+                threadDb.set(pdb);
+                return pdb;
             }
-            threadDb.set(pdb);
-            return pdb;
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new SQLException("Pooled operation interrupted");
+        } catch (SQLException e) {
+            throw e;
         } catch (Exception e) {
             throw new SQLException("Pooled operation interrupted: " + e.getMessage());
         }
     }
 
+    // connections that were not used for a while could be closed by the server or the network
+    private boolean isValid(PooledDb db) {
+        long idle = System.currentTimeMillis() - db.returnedAt;
+        return db.returnedAt == 0 || idle < VALIDATION_INTERVAL_MILLIS || db.isValid(VALIDATION_TIMEOUT_SECONDS);
+    }
+
     void returnToPool(PooledDb db) {
         if(db.equals(threadDb.get())) {
             threadDb.set(null);
-            pool.add(db);
+            db.returnedAt = System.currentTimeMillis();
+            pool.addFirst(db);
         }
     }
 
+    private void destroy(PooledDb db) {
+        total.decrementAndGet();
+        try {
+            db.destroy();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void evictIdle() {
+        long idleSince = System.currentTimeMillis() - idleTimeoutMillis;
+        Iterator<PooledDb> it = pool.descendingIterator();
+        while (it.hasNext() && total.get() > minimumConnections) {
+            PooledDb db = it.next();
+            if (db.returnedAt >= idleSince)
+                break;
+            // it could be taken concurrently, then it is not idle
+            if (pool.removeLastOccurrence(db)) {
+                evicted.incrementAndGet();
+                destroy(db);
+            }
+        }
+    }
+
+    /**
+     * @return number of open connections, in use and idle
+     */
+    public int getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @return number of idle connections
+     */
+    public int getIdle() {
+        return pool.size();
+    }
+
+    /**
+     * @return number of connections in use
+     */
+    public int getActive() {
+        return Math.max(0, total.get() - pool.size());
+    }
+
+    /**
+     * @return number of threads waiting for a free connection
+     */
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "total", getTotal(),
+                "active", getActive(),
+                "idle", getIdle(),
+                "waiters", getWaiters(),
+                "min", minimumConnections,
+                "max", maximumConnections,
+                "timeouts", timeouts.get(),
+                "evicted", evicted.get(),
+                "invalid", invalid.get(),
+                "acquireLatency", acquireLatency.getStats()
+        );
+    }
 
     public <T> T execute(DbConsumer<T> consumer) throws Exception {
         try (PooledDb pdb = db()) { return consumer.accept(pdb); }
@@ -7,6 +7,8 @@ import java.util.concurrent.Callable;
 public class PooledDb extends Db implements AutoCloseable {
     private final DbPool dbPool;
     volatile boolean isInTransaction = false;
+    // time it was returned to the pool, 0 if it was never used
+    volatile long returnedAt = 0;
 
     private static final boolean assertionsEnabled;
     static {
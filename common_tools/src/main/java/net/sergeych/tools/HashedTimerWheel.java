@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package net.sergeych.tools;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hashed timing wheel for many coarse timers that are mostly cancelled or rescheduled before they fire, like the
+ * polling timers of the items being processed. Timers are kept in the ring of buckets by their deadline tick, so
+ * scheduling and cancelling take constant time whatever the number of timers. The single wheel thread wakes up once
+ * a tick, fires the due timers of the current bucket and passes their tasks to the executors given on scheduling, so
+ * the tasks never delay other timers.
+ * <p>
+ * Timers fire up to one tick late, the time from the deadline to handing the task to the executor is reported as the
+ * lag, see {@link #getStats()}.
+ */
+public class HashedTimerWheel {
+
+    /**
+     * Default number of buckets, must be a power of two.
+     */
+    static public final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Scheduled timer.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private final Executor executor;
+        private final long deadlineNanos;
+        private final long deadlineTick;
+        private final Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        // scheduled, fired or cancelled, guarded by the bucket
+        private int state;
+
+        private Timeout(Runnable task, Executor executor, long deadlineNanos, long deadlineTick, Bucket bucket) {
+            this.task = task;
+            this.executor = executor;
+            this.deadlineNanos = deadlineNanos;
+            this.deadlineTick = deadlineTick;
+            this.bucket = bucket;
+        }
+
+        /**
+         * Cancel the timer if it is not fired yet.
+         *
+         * @return true if the timer is cancelled by this call
+         */
+        public boolean cancel() {
+            synchronized (bucket) {
+                if (state != SCHEDULED)
+                    return false;
+                state = CANCELLED;
+                bucket.remove(this);
+            }
+            cancelled.increment();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            synchronized (bucket) {
+                return state == CANCELLED;
+            }
+        }
+
+        public boolean isExpired() {
+            synchronized (bucket) {
+                return state == EXPIRED;
+            }
+        }
+    }
+
+    private static final int SCHEDULED = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    // doubly linked list of timers, guarded by itself
+    private static final class Bucket {
+        private Timeout head;
+        // last tick the bucket was processed at, later ticks only are scheduled here
+        private long processedTick = -1;
+
+        void add(Timeout t) {
+            t.next = head;
+            if (head != null)
+                head.prev = t;
+            head = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null)
+                t.prev.next = t.next;
+            else
+                head = t.next;
+            if (t.next != null)
+                t.next.prev = t.prev;
+            t.prev = t.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] buckets;
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean shutdown;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LatencyHistogram lag = new LatencyHistogram();
+
+    public HashedTimerWheel(long tick, TimeUnit unit, String threadName) {
+        this(tick, unit, DEFAULT_WHEEL_SIZE, threadName);
+    }
+
+    /**
+     * Start the wheel thread.
+     *
+     * @param tick       the precision of the timers, the longer it is the less the wheel thread wakes up
+     * @param unit       of the tick
+     * @param wheelSize  number of buckets, a power of two. Timers longer than wheelSize ticks stay in the buckets
+     *                   for several rounds
+     * @param threadName of the wheel thread
+     */
+    public HashedTimerWheel(long tick, TimeUnit unit, int wheelSize, String threadName) {
+        if (tick <= 0)
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        if (wheelSize < 1 || Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("wheel size must be a power of two: " + wheelSize);
+        tickNanos = unit.toNanos(tick);
+        mask = wheelSize - 1;
+        buckets = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++)
+            buckets[i] = new Bucket();
+        thread = new Thread(this::work, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedule the task.
+     *
+     * @param task     to run
+     * @param delay    from now
+     * @param unit     of the delay
+     * @param executor to run the task in when the timer fires
+     * @return the timer to cancel
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit, Executor executor) {
+        if (shutdown)
+            throw new RejectedExecutionException("timer wheel is shut down");
+        long deadlineNanos = System.nanoTime() + unit.toNanos(Math.max(0, delay));
+        // rounded up, the timer never fires early
+        long deadlineTick = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        Bucket bucket = buckets[(int) (deadlineTick & mask)];
+        Timeout timeout = new Timeout(task, executor, deadlineNanos, deadlineTick, bucket);
+        scheduled.increment();
+        boolean due;
+        synchronized (bucket) {
+            // the wheel has passed the tick already
+            due = deadlineTick <= bucket.processedTick;
+            if (due)
+                timeout.state = EXPIRED;
+            else
+                bucket.add(timeout);
+        }
+        if (due)
+            fire(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        long tick = 0;
+        while (!shutdown) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (shutdown)
+                        break;
+                    continue;
+                }
+            }
+            Bucket bucket = buckets[(int) (tick & mask)];
+            Timeout due = null;
+            synchronized (bucket) {
+                bucket.processedTick = tick;
+                Timeout t = bucket.head;
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.deadlineTick <= tick) {
+                        bucket.remove(t);
+                        t.state = EXPIRED;
+                        t.next = due;
+                        due = t;
+                    }
+                    t = next;
+                }
+            }
+            while (due != null) {
+                Timeout next = due.next;
+                due.next = null;
+                fire(due);
+                due = next;
+            }
+            tick++;
+        }
+    }
+
+    private void fire(Timeout timeout) {
+        expired.increment();
+        lag.record(System.nanoTime() - timeout.deadlineNanos);
+        try {
+            timeout.executor.execute(timeout.task);
+        } catch (RejectedExecutionException e) {
+            // the executor is shut down, the task is not needed anymore
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of timers that are neither fired nor cancelled
+     */
+    public long getPending() {
+        return scheduled.sum() - expired.sum() - cancelled.sum();
+    }
+
+    /**
+     * Stop the wheel thread, pending timers never fire.
+     */
+    public void shutdown() {
+        shutdown = true;
+        thread.interrupt();
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "tickMillis", TimeUnit.NANOSECONDS.toMillis(tickNanos),
+                "pending", getPending(),
+                "scheduled", scheduled.sum(),
+                "cancelled", cancelled.sum(),
+                "expired", expired.sum(),
+                "lag", lag.getStats()
+        );
+    }
+}
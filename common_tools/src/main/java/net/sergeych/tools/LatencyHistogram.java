@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package net.sergeych.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power-of-two microsecond buckets: bucket 0 counts latencies below 1 µs, bucket
+ * N counts latencies in [2^(N-1), 2^N) µs, the last bucket also counts everything above.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets, the last one starts at about 1 minute.
+     */
+    static public final int BUCKETS = 28;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while ((max = maxMicros.get()) < micros && !maxMicros.compareAndSet(max, micros)) ;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getAverageMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / n;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Estimate the given percentile as the upper bound of the bucket it falls into.
+     *
+     * @param percentile is value between 0 and 100
+     * @return latency in microseconds
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long threshold = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold)
+                return i == BUCKETS - 1 ? getMaxMicros() : 1L << i;
+        }
+        return getMaxMicros();
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "count", getCount(),
+                "avgMicros", getAverageMicros(),
+                "p50Micros", getPercentileMicros(50),
+                "p99Micros", getPercentileMicros(99),
+                "maxMicros", getMaxMicros()
+        );
+    }
+}
@@ -7,6 +7,7 @@
 package net.sergeych.tools;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -18,6 +19,10 @@ public class RunnableWithDynamicPeriod implements Runnable {
     private int waitsCount = 0;
     private ScheduledFuture<?> future;
     private ScheduledExecutorService es;
+    private HashedTimerWheel wheel;
+    private Executor executor;
+    private HashedTimerWheel.Timeout timeout;
+    private volatile boolean cancelled = false;
 
     public RunnableWithDynamicPeriod(Runnable lambda, List<Integer> periods, ScheduledExecutorService es) {
         this.lambda = lambda;
@@ -25,20 +30,41 @@ public class RunnableWithDynamicPeriod implements Runnable {
         this.es = es;
     }
 
+    /**
+     * Schedule the runs on the timer wheel, they are executed by the executor.
+     */
+    public RunnableWithDynamicPeriod(Runnable lambda, List<Integer> periods, HashedTimerWheel wheel, Executor executor) {
+        this.lambda = lambda;
+        this.periods = periods;
+        this.wheel = wheel;
+        this.executor = executor;
+    }
+
     @Override
     public void run() {
+        if (cancelled)
+            return;
         if (waitsCount > 0)
             lambda.run();
+        // the lambda could have cancelled it
+        if (cancelled)
+            return;
         int l = periods.get(periods.size()-1);
         if (waitsCount < periods.size()-1)
             l = periods.get(waitsCount);
-        future = es.schedule(this, l, TimeUnit.MILLISECONDS);
+        if (wheel != null)
+            timeout = wheel.schedule(this, l, TimeUnit.MILLISECONDS, executor);
+        else
+            future = es.schedule(this, l, TimeUnit.MILLISECONDS);
         waitsCount += 1;
     }
 
     public void cancel(boolean b) {
+        cancelled = true;
         if (future != null)
             future.cancel(b);
+        if (timeout != null)
+            timeout.cancel();
     }
 
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.db;
+
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DbPoolTest {
+
+    // takes a connection in another thread and holds it until the latch is released
+    private CompletableFuture<Void> holdConnection(DbPool pool, CountDownLatch release) throws Exception {
+        CountDownLatch taken = new CountDownLatch(1);
+        CompletableFuture<Void> done = CompletableFuture.runAsync(() -> {
+            try (PooledDb db = pool.db()) {
+                taken.countDown();
+                release.await();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        return done;
+    }
+
+    @Test
+    public void acquireTimeout() throws Exception {
+        try (DbPool pool = new DbPool("jdbc:sqlite:", null, 2)) {
+            pool.setAcquireTimeout(200);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Void> first = holdConnection(pool, release);
+            CompletableFuture<Void> second = holdConnection(pool, release);
+            assertEquals(2, pool.getActive());
+            assertEquals(0, pool.getIdle());
+
+            long started = System.currentTimeMillis();
+            try {
+                pool.db();
+                fail("must time out");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().contains("no free connection"));
+            }
+            assertTrue(System.currentTimeMillis() - started >= 190);
+
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+            try (PooledDb db = pool.db()) {
+                assertEquals(1, (int) db.<Integer>queryOne("select 1"));
+            }
+            Binder stats = pool.getStats();
+            assertEquals(2, stats.getIntOrThrow("total"));
+            assertEquals(2, stats.getIntOrThrow("idle"));
+            assertEquals(1, stats.getLongOrThrow("timeouts"));
+            assertEquals(3, stats.getBinderOrThrow("acquireLatency").getLongOrThrow("count"));
+        }
+    }
+
+    @Test
+    public void waiterGetsReturnedConnection() throws Exception {
+        try (DbPool pool = new DbPool("jdbc:sqlite:", null, 1)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Void> holder = holdConnection(pool, release);
+            CompletableFuture<Void> waiter = CompletableFuture.runAsync(() -> {
+                try (PooledDb db = pool.db()) {
+                    db.queryOne("select 1");
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            for (int i = 0; i < 50 && pool.getWaiters() == 0; i++)
+                Thread.sleep(10);
+            assertEquals(1, pool.getWaiters());
+            release.countDown();
+            waiter.get(5, TimeUnit.SECONDS);
+            holder.get(5, TimeUnit.SECONDS);
+            assertEquals(0, pool.getWaiters());
+            assertEquals(1, pool.getTotal());
+        }
+    }
+
+    @Test
+    public void idleEviction() throws Exception {
+        try (DbPool pool = new DbPool("jdbc:sqlite:", null, 1, 4)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<?>[] holders = new CompletableFuture<?>[3];
+            for (int i = 0; i < holders.length; i++)
+                holders[i] = holdConnection(pool, release);
+            release.countDown();
+            CompletableFuture.allOf(holders).get(5, TimeUnit.SECONDS);
+            assertEquals(3, pool.getIdle());
+
+            pool.setIdleTimeout(100);
+            for (int i = 0; i < 50 && pool.getTotal() > 1; i++)
+                Thread.sleep(100);
+            // idle connections are closed down to the minimum
+            assertEquals(1, pool.getTotal());
+            assertEquals(2, pool.getStats().getLongOrThrow("evicted"));
+        }
+    }
+}
@@ -7,11 +7,16 @@
 
 package com.icodici.db;
 
+import org.junit.Ignore;
 import org.junit.Test;
 import org.sqlite.SQLiteConfig;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
 
 public class DbTest {
 
@@ -49,4 +54,150 @@ public class DbTest {
         assertEquals("fubar", t.getStringParam("test2", "nope"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void statementCache() throws Exception {
+        Db t = new Db("jdbc:sqlite:", null, "/com/icodici/db/migrate_");
+        t.setIntParam("a", 1);
+        t.setIntParam("b", 2);
+
+        PreparedStatement s1 = t.statement("SELECT ivalue FROM vars WHERE name=?", "a");
+        try (ResultSet rs = s1.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            assertSame(s1, rs.getStatement());
+
+            // nested use of the same sql gets its own statement
+            try (PreparedStatement s2 = t.statement("SELECT ivalue FROM vars WHERE name=?", "b");
+                 ResultSet rs2 = s2.executeQuery()) {
+                assertNotSame(s1, s2);
+                assertTrue(rs2.next());
+                assertEquals(2, rs2.getInt(1));
+            }
+            // and the outer result set is still fine
+            assertEquals(1, rs.getInt(1));
+        }
+        s1.close();
+        assertTrue(s1.isClosed());
+        try {
+            s1.executeQuery();
+            fail("closed statement must not be used");
+        } catch (SQLException e) {
+        }
+
+        // closed statement is reused with the parameters cleared
+        PreparedStatement s3 = t.statement("SELECT ivalue FROM vars WHERE name=?", "b");
+        assertSame(s1, s3);
+        try (ResultSet rs = s3.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals(2, rs.getInt(1));
+        }
+        s3.close();
+
+        // closing result set returns statement with close on completion
+        try (ResultSet rs = t.queryRow("SELECT ivalue FROM vars WHERE name=?", "a")) {
+            assertEquals(1, rs.getInt(1));
+        }
+        assertSame(s1, t.statement("SELECT ivalue FROM vars WHERE name=?", "a"));
+        t.close();
+    }
+
+    @Test
+    public void statementCacheCloseOnCompletion() throws Exception {
+        Db t = new Db("jdbc:sqlite:", null, "/com/icodici/db/migrate_");
+        t.setIntParam("a", 1);
+
+        PreparedStatement s1 = t.statement("SELECT ivalue FROM vars WHERE name=?", "a");
+        assertFalse(s1.isCloseOnCompletion());
+        s1.closeOnCompletion();
+        assertTrue(s1.isCloseOnCompletion());
+        ResultSet rs = s1.executeQuery();
+        assertTrue(rs.next());
+        assertFalse(s1.isClosed());
+        rs.close();
+        assertTrue(s1.isClosed());
+        try {
+            s1.isCloseOnCompletion();
+            fail("closed statement must not be used");
+        } catch (SQLException e) {
+        }
+
+        // result set of execute() completes the statement too, and the flag is reset for the next user
+        PreparedStatement s2 = t.statement("SELECT ivalue FROM vars WHERE name=?", "a");
+        assertSame(s1, s2);
+        assertFalse(s2.isCloseOnCompletion());
+        s2.closeOnCompletion();
+        assertTrue(s2.execute());
+        try (ResultSet rs2 = s2.getResultSet()) {
+            assertSame(s2, rs2.getStatement());
+            assertTrue(rs2.next());
+            assertEquals(1, rs2.getInt(1));
+        }
+        assertTrue(s2.isClosed());
+
+        // without close on completion the statement stays open
+        PreparedStatement s3 = t.statement("SELECT ivalue FROM vars WHERE name=?", "a");
+        s3.executeQuery().close();
+        assertFalse(s3.isClosed());
+        s3.close();
+        t.close();
+    }
+
+    @Test
+    public void statementCacheIsBounded() throws Exception {
+        Db t = new Db("jdbc:sqlite:", null, "/com/icodici/db/migrate_");
+        for (int i = 0; i < Db.MAX_CACHED_STATEMENTS * 2; i++)
+            assertNull(t.queryOne("SELECT ivalue FROM vars WHERE name='x" + i + "'"));
+        assertEquals(Db.MAX_CACHED_STATEMENTS, t.getCachedStatementsCount());
+        t.enableStatementCache(false);
+        assertEquals(0, t.getCachedStatementsCount());
+        assertNull(t.queryOne("SELECT ivalue FROM vars WHERE name=?", "x"));
+        assertEquals(0, t.getCachedStatementsCount());
+        t.close();
+    }
+
+    /**
+     * Throughput of ledger-like lookups and updates (PostgresLedger.getRecord and save issue these) with and without
+     * prepared statements cache.
+     */
+    @Ignore("benchmark, run it explicitly")
+    @Test
+    public void statementCacheBenchmark() throws Exception {
+        File file = File.createTempFile("db_benchmark", ".sqlite");
+        file.deleteOnExit();
+        Db t = new Db("jdbc:sqlite:" + file.getPath());
+        t.update("create table ledger(id integer primary key, hash blob, state integer, expires_at integer, locked_by_id integer)");
+        t.update("create unique index ix_ledger_hash on ledger(hash)");
+        int nRecords = 1000;
+        t.transaction(() -> {
+            for (int i = 0; i < nRecords; i++)
+                t.update("insert into ledger(hash,state,expires_at,locked_by_id) values(?,?,?,?)", hash(i), 1, 0, 0);
+            return null;
+        });
+
+        for (boolean cache : new boolean[]{false, true, false, true}) {
+            t.enableStatementCache(cache);
+            int n = 20000;
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                try (ResultSet rs = t.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", hash(i % nRecords))) {
+                    assertNotNull(rs);
+                }
+            }
+            long getRecord = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                t.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?", i % 5, i, 0, i % nRecords + 1);
+            long save = System.nanoTime() - start;
+            System.out.println("statement cache " + (cache ? "on " : "off") +
+                    ": getRecord " + n * 1000_000_000L / getRecord + "/s, save " + n * 1000_000_000L / save + "/s");
+        }
+        t.close();
+    }
+
+    private static byte[] hash(int i) {
+        byte[] hash = new byte[64];
+        hash[0] = (byte) i;
+        hash[1] = (byte) (i >> 8);
+        return hash;
+    }
+}
@@ -0,0 +1,127 @@
+package net.sergeych.tools;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedTimerWheelTest {
+
+    private static final Runnable nothing = () -> {};
+
+    @Test
+    public void firesNotEarlier() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 8, "test-timers");
+        try {
+            int count = 50;
+            CountDownLatch done = new CountDownLatch(count);
+            AtomicInteger early = new AtomicInteger();
+            for (int i = 0; i < count; i++) {
+                // longer than the wheel round for some of them
+                long delay = 5 + i * 5;
+                long started = System.nanoTime();
+                wheel.schedule(() -> {
+                    if (System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(delay))
+                        early.incrementAndGet();
+                    done.countDown();
+                }, delay, TimeUnit.MILLISECONDS, Runnable::run);
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, early.get());
+            Binder stats = wheel.getStats();
+            assertEquals(count, stats.getLongOrThrow("expired"));
+            assertEquals(0, stats.getLongOrThrow("pending"));
+            assertEquals(count, stats.getBinderOrThrow("lag").getLongOrThrow("count"));
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, "test-timers");
+        try {
+            AtomicInteger fired = new AtomicInteger();
+            HashedTimerWheel.Timeout t = wheel.schedule(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS,
+                    Runnable::run);
+            assertEquals(1, wheel.getPending());
+            assertTrue(t.cancel());
+            assertFalse(t.cancel());
+            assertTrue(t.isCancelled());
+            assertEquals(0, wheel.getPending());
+            Thread.sleep(150);
+            assertEquals(0, fired.get());
+            assertFalse(t.isExpired());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public void dynamicPeriodOnWheel() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(5, TimeUnit.MILLISECONDS, "test-timers");
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            List<Long> ticks = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(4);
+            RunnableWithDynamicPeriod r = new RunnableWithDynamicPeriod(() -> {
+                ticks.add(System.nanoTime());
+                done.countDown();
+            }, Arrays.asList(20, 20, 40), wheel, executor);
+            long started = System.nanoTime();
+            r.run();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            r.cancel(true);
+            long[] expected = {20, 40, 80, 120};
+            for (int i = 0; i < expected.length; i++) {
+                long dt = TimeUnit.NANOSECONDS.toMillis(ticks.get(i) - started);
+                assertTrue("tick " + i + " at " + dt + "ms", dt >= expected[i] && dt < expected[i] + 100);
+            }
+            Thread.sleep(100);
+            assertEquals(4, ticks.size());
+            assertEquals(0, wheel.getPending());
+        } finally {
+            wheel.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Ignore("benchmark, run it explicitly")
+    @Test
+    public void scheduleCancelBenchmark() throws Exception {
+        // in-flight items, each keeps its polling timer and reschedules it
+        int timers = 100000;
+        HashedTimerWheel wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, "bench-timers");
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+        stpe.setRemoveOnCancelPolicy(true);
+        for (int round = 0; round < 3; round++) {
+            HashedTimerWheel.Timeout[] wt = new HashedTimerWheel.Timeout[timers];
+            ScheduledFuture<?>[] st = new ScheduledFuture<?>[timers];
+            long tWheel = StopWatch.measure(() -> {
+                for (int i = 0; i < timers; i++)
+                    wt[i] = wheel.schedule(nothing, 1000 + i % 60000, TimeUnit.MILLISECONDS, Runnable::run);
+                for (int i = 0; i < timers; i++)
+                    wt[i].cancel();
+            });
+            long tStpe = StopWatch.measure(() -> {
+                for (int i = 0; i < timers; i++)
+                    st[i] = stpe.schedule(nothing, 1000 + i % 60000, TimeUnit.MILLISECONDS);
+                for (int i = 0; i < timers; i++)
+                    st[i].cancel(false);
+            });
+            System.out.println(timers + " timers scheduled and cancelled, wheel: " + tWheel +
+                    "ms, scheduled executor: " + tStpe + "ms");
+        }
+        wheel.shutdown();
+        stpe.shutdown();
+    }
+}
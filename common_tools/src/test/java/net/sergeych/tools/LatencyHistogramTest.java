@@ -0,0 +1,42 @@
+package net.sergeych.tools;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentileMicros(50));
+
+        for (int i = 0; i < 99; i++)
+            h.record(TimeUnit.MICROSECONDS.toNanos(100));
+        h.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, h.getCount());
+        // 100 µs falls into [64, 128) bucket
+        assertEquals(128, h.getPercentileMicros(50));
+        assertEquals(128, h.getPercentileMicros(99));
+        assertEquals(65536, h.getPercentileMicros(100));
+        assertEquals(50000, h.getMaxMicros());
+        assertEquals((99 * 100 + 50000) / 100, h.getAverageMicros());
+
+        Binder stats = h.getStats();
+        assertEquals(100, stats.getLongOrThrow("count"));
+        assertEquals(50000, stats.getLongOrThrow("maxMicros"));
+    }
+
+    @Test
+    public void hugeLatencies() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(TimeUnit.HOURS.toNanos(1));
+        h.record(-1);
+        assertEquals(2, h.getCount());
+        assertEquals(TimeUnit.HOURS.toMicros(1), h.getPercentileMicros(100));
+        assertEquals(1, h.getPercentileMicros(50));
+    }
+}
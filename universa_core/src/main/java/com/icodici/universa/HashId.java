@@ -72,7 +72,13 @@ public class HashId implements Comparable<HashId> {
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(digest);
+        // the digest does not change once set, so the hash is calculated once, like String does
+        int h = hash;
+        if (h == 0 && digest != null) {
+            h = Arrays.hashCode(digest);
+            hash = h;
+        }
+        return h;
     }
 
     /**
@@ -95,6 +101,9 @@ public class HashId implements Comparable<HashId> {
 
     protected byte[] digest;
 
+    // cached hashCode(), 0 if not yet calculated
+    private int hash;
+
     @Override
     public int compareTo(HashId other) {
         if (digest.length != other.digest.length)
@@ -35,6 +35,8 @@ import java.time.ZonedDateTime;
 import java.time.chrono.ChronoZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -92,6 +94,29 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
 
     private static int testQuantaLimit = -1;
 
+    /**
+     * @return true if signatures of sealed contracts are verified in parallel
+     */
+    public static boolean isParallelSignatureVerification() {
+        return parallelSignatureVerification;
+    }
+
+    /**
+     * Turn on or off parallel verification of signatures when the contract is constructed from the sealed binary. In
+     * parallel mode all signatures of the contract, or of all contracts of the transaction pack when it is
+     * deserialized, are verified at once in the shared pool, quanta are charged and errors are reported in the
+     * signatures order anyway.
+     *
+     * @param parallelSignatureVerification is true to verify signatures in parallel
+     */
+    public static void setParallelSignatureVerification(boolean parallelSignatureVerification) {
+        Contract.parallelSignatureVerification = parallelSignatureVerification;
+    }
+
+    private static volatile boolean parallelSignatureVerification = false;
+
+    private static final ForkJoinPool signatureVerificationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     /**
      * Extract contract from v2 or v3 sealed form, getting revokein and new items from the transaction pack supplied. If
      * the transaction pack fails to resove a link, no error will be reported - not sure it's a good idea. If need, the
@@ -230,19 +255,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             });
         });
 
-        for (Object signature : (List) data.getOrThrow("signatures")) {
-            byte[] s = ((Bytes) signature).toArray();
-            Bytes keyId = ExtendedSignature.extractKeyId(s);
-            PublicKey key = keys.get(keyId);
-            if (key != null) {
-                verifySignatureQuantized(key);
-                ExtendedSignature es = ExtendedSignature.verify(key, s, contractBytes);
-                if (es != null) {
-                    sealedByKeys.put(key, es);
-                } else
-                    addError(Errors.BAD_SIGNATURE, "keytag:" + key.info().getBase64Tag(), "the signature is broken");
-            }
-        }
+        verifySealedSignatures((List) data.getOrThrow("signatures"), keys, contractBytes);
     }
 
     public Contract(byte[] data) throws IOException {
@@ -360,19 +373,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             });
         });
 
-        for (Object signature : (List) data.getOrThrow("signatures")) {
-            byte[] s = ((Bytes) signature).toArray();
-            Bytes keyId = ExtendedSignature.extractKeyId(s);
-            PublicKey key = keys.get(keyId);
-            if (key != null) {
-                verifySignatureQuantized(key);
-                ExtendedSignature es = ExtendedSignature.verify(key, s, contractBytes);
-                if (es != null) {
-                    sealedByKeys.put(key, es);
-                } else
-                    addError(Errors.BAD_SIGNATURE, "keytag:" + key.info().getBase64Tag(), "the signature is broken");
-            }
-        }
+        verifySealedSignatures((List) data.getOrThrow("signatures"), keys, contractBytes);
     }
 
 
@@ -2050,6 +2051,82 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
 
     // processes that should be quantized
 
+    /**
+     * Verify signatures of the sealed contract made with known keys and fill {@link #sealedByKeys}. Quanta for all
+     * signatures are charged before verification, so the result does not depend on whether signatures are verified
+     * sequentially or in parallel (see {@link #setParallelSignatureVerification(boolean)}). While the transaction pack
+     * is being deserialized, the signatures are only collected and the pack verifies them together with the
+     * signatures of its other contracts.
+     *
+     * @param signatures    is list of packed {@link ExtendedSignature}
+     * @param keys          is known keys by their key ids
+     * @param contractBytes is signed data
+     * @throws Quantiser.QuantiserException if processing cost limit is got
+     */
+    private void verifySealedSignatures(List signatures, Map<Bytes, PublicKey> keys, byte[] contractBytes) throws Quantiser.QuantiserException {
+        List<SignatureCheck> checks = new ArrayList<>();
+        for (Object signature : signatures) {
+            byte[] s = ((Bytes) signature).toArray();
+            Bytes keyId = ExtendedSignature.extractKeyId(s);
+            PublicKey key = keys.get(keyId);
+            if (key != null) {
+                verifySignatureQuantized(key);
+                checks.add(new SignatureCheck(this, key, s, contractBytes));
+            }
+        }
+
+        if (transactionPack == null || !transactionPack.deferSignatureChecks(checks))
+            verifySignatures(checks);
+    }
+
+    /**
+     * Verify the collected signatures, in parallel if {@link #isParallelSignatureVerification()}, and pass the results
+     * to their contracts. Results of each contract are applied in the order of its signatures.
+     *
+     * @param checks are signatures to verify, of one or many contracts
+     */
+    static void verifySignatures(List<SignatureCheck> checks) {
+        List<ExtendedSignature> results = new ArrayList<>(checks.size());
+        if (parallelSignatureVerification && checks.size() > 1) {
+            List<ForkJoinTask<ExtendedSignature>> tasks = new ArrayList<>(checks.size());
+            for (SignatureCheck check : checks)
+                tasks.add(signatureVerificationPool.submit(
+                        () -> ExtendedSignature.verify(check.key, check.signature, check.data)));
+            for (ForkJoinTask<ExtendedSignature> task : tasks)
+                results.add(task.join());
+        } else {
+            for (SignatureCheck check : checks)
+                results.add(ExtendedSignature.verify(check.key, check.signature, check.data));
+        }
+
+        for (int i = 0; i < checks.size(); i++) {
+            SignatureCheck check = checks.get(i);
+            ExtendedSignature es = results.get(i);
+            if (es != null) {
+                check.contract.sealedByKeys.put(check.key, es);
+            } else
+                check.contract.addError(Errors.BAD_SIGNATURE, "keytag:" + check.key.info().getBase64Tag(),
+                        "the signature is broken");
+        }
+    }
+
+    /**
+     * Signature of the sealed contract made with a known key, waiting for verification.
+     */
+    static final class SignatureCheck {
+        private final Contract contract;
+        private final PublicKey key;
+        private final byte[] signature;
+        private final byte[] data;
+
+        private SignatureCheck(Contract contract, PublicKey key, byte[] signature, byte[] data) {
+            this.contract = contract;
+            this.key = key;
+            this.signature = signature;
+            this.data = data;
+        }
+    }
+
     /**
      * Verify signature, but before quantize this operation.
      * @param key that will be quantized
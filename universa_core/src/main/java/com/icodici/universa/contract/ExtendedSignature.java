@@ -15,6 +15,9 @@ import net.sergeych.tools.Binder;
 import net.sergeych.utils.Bytes;
 
 import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The extended signature signs the resource with sha512, timestamp and 32-byte key id, see {@link #keyId}. The signed
@@ -29,6 +32,74 @@ import java.time.ZonedDateTime;
  */
 public class ExtendedSignature {
 
+    /**
+     * Default max number of successful verifications remembered by {@link #verify(PublicKey, byte[], byte[])}.
+     */
+    static public final int DEFAULT_VERIFY_CACHE_SIZE = 10000;
+
+    private static volatile int verifyCacheSize = DEFAULT_VERIFY_CACHE_SIZE;
+
+    // LRU of successful verifications: keyId + sha512(signature) + sha512(data) -> verified signature. It is split in
+    // stripes by the key hash so parallel verifications do not wait on one lock.
+    private static final int VERIFY_CACHE_STRIPES = 16;
+
+    @SuppressWarnings("unchecked")
+    private static final Map<Bytes, ExtendedSignature>[] verifyCache = new Map[VERIFY_CACHE_STRIPES];
+
+    static {
+        for (int i = 0; i < VERIFY_CACHE_STRIPES; i++)
+            verifyCache[i] = new LinkedHashMap<Bytes, ExtendedSignature>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Bytes, ExtendedSignature> eldest) {
+                    return size() > (verifyCacheSize + VERIFY_CACHE_STRIPES - 1) / VERIFY_CACHE_STRIPES;
+                }
+            };
+    }
+
+    private static final AtomicLong verifyCacheHits = new AtomicLong();
+    private static final AtomicLong verifyCacheMisses = new AtomicLong();
+
+    /**
+     * Get max number of successful verifications kept in the cache, 0 means cache is disabled.
+     *
+     * @return cache size
+     */
+    public static int getVerifyCacheSize() {
+        return verifyCacheSize;
+    }
+
+    /**
+     * Set max number of successful verifications kept in the cache. Use 0 to disable caching; shrinking the cache
+     * drops all remembered verifications.
+     *
+     * @param size is new cache size
+     */
+    public static void setVerifyCacheSize(int size) {
+        boolean shrink = size < verifyCacheSize;
+        verifyCacheSize = size;
+        if (shrink) {
+            for (Map<Bytes, ExtendedSignature> stripe : verifyCache) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of {@link #verify(PublicKey, byte[], byte[])} calls answered from the cache
+     */
+    public static long getVerifyCacheHits() {
+        return verifyCacheHits.get();
+    }
+
+    /**
+     * @return number of {@link #verify(PublicKey, byte[], byte[])} calls that required actual RSA verification
+     */
+    public static long getVerifyCacheMisses() {
+        return verifyCacheMisses.get();
+    }
+
     public Bytes getKeyId() {
         return keyId;
     }
@@ -139,6 +210,32 @@ public class ExtendedSignature {
      * @return null if the signature is invalud, {@link ExtendedSignature} instance on success.
      */
     public static ExtendedSignature verify(PublicKey key, byte[] signature, byte[] data) {
+        if (verifyCacheSize <= 0)
+            return verifyUncached(key, signature, data);
+
+        // signature and data are hashed separately, so a hit means exactly the same pair was already verified
+        Bytes cacheKey = new Bytes(keyId(key).getData(), new Sha512().digest(signature), new Sha512().digest(data));
+        Map<Bytes, ExtendedSignature> stripe = verifyCache[(cacheKey.hashCode() & 0x7FFFFFFF) % VERIFY_CACHE_STRIPES];
+        ExtendedSignature es;
+        synchronized (stripe) {
+            es = stripe.get(cacheKey);
+        }
+        if (es != null) {
+            verifyCacheHits.incrementAndGet();
+            return es;
+        }
+        verifyCacheMisses.incrementAndGet();
+        es = verifyUncached(key, signature, data);
+        // failed verifications are not cached: they are rare and must not displace good ones
+        if (es != null) {
+            synchronized (stripe) {
+                stripe.put(cacheKey, es);
+            }
+        }
+        return es;
+    }
+
+    private static ExtendedSignature verifyUncached(PublicKey key, byte[] signature, byte[] data) {
         try {
             Binder src = Boss.unpack(signature);
             ExtendedSignature es = new ExtendedSignature();
@@ -67,6 +67,8 @@ public class TransactionPack implements BiSerializable {
     private Map<HashId, Contract> referencedItems = new HashMap<>();
     private Set<PublicKey> keysForPack = new HashSet<>();
     private Contract contract;
+    // signatures of the contracts being deserialized, verified together when all of them are constructed
+    private List<Contract.SignatureCheck> deferredSignatureChecks = null;
 
     /**
      * Create a transaction pack and add a contract to it. See {@link TransactionPack#TransactionPack()} and {@link
@@ -103,6 +105,19 @@ public class TransactionPack implements BiSerializable {
     public TransactionPack() {
     }
 
+    /**
+     * Keep signatures of a contract constructed from this pack to verify them later with the rest of the pack.
+     *
+     * @param checks are signatures of the contract
+     * @return false if the pack does not collect signatures now, so the contract should verify them itself
+     */
+    boolean deferSignatureChecks(List<Contract.SignatureCheck> checks) {
+        if (deferredSignatureChecks == null)
+            return false;
+        deferredSignatureChecks.addAll(checks);
+        return true;
+    }
+
     /**
      * Add contract that already includes all its subItems, referenced items and keys. It will be added as a contract
      * per transaction, while its subItems will be added to subItems if not already included and refrenced items and keys too.
@@ -208,108 +223,118 @@ public class TransactionPack implements BiSerializable {
             Quantiser quantiser = new Quantiser();
             quantiser.reset(Contract.getTestQuantaLimit());
 
-            List<Object> keysList = deserializer.deserializeCollection(data.getList("keys", new ArrayList<>()));
-
-            keysForPack = new HashSet<>();
-            if(keysList != null) {
-                for (Object x : keysList) {
-                    if (x instanceof Bytes)
-                        x = ((Bytes) x).toArray();
-                    if (x instanceof byte[]) {
-                        keysForPack.add(new PublicKey((byte[]) x));
-                    } else {
-                        throw new IllegalArgumentException("unsupported key object: " + x.getClass().getName());
+            // with parallel verification, signatures of all contracts of the pack are verified at once in the end
+            if (Contract.isParallelSignatureVerification())
+                deferredSignatureChecks = new ArrayList<>();
+            try {
+                List<Object> keysList = deserializer.deserializeCollection(data.getList("keys", new ArrayList<>()));
+
+                keysForPack = new HashSet<>();
+                if(keysList != null) {
+                    for (Object x : keysList) {
+                        if (x instanceof Bytes)
+                            x = ((Bytes) x).toArray();
+                        if (x instanceof byte[]) {
+                            keysForPack.add(new PublicKey((byte[]) x));
+                        } else {
+                            throw new IllegalArgumentException("unsupported key object: " + x.getClass().getName());
+                        }
                     }
                 }
-            }
 
-            List<Bytes> foreignReferenceBytesList = deserializer.deserializeCollection(
-                    data.getList("referencedItems", new ArrayList<>())
-            );
-            if(foreignReferenceBytesList != null) {
-                for (Bytes b : foreignReferenceBytesList) {
-                    Contract frc = new Contract(b.toArray(), this);
-                    quantiser.addWorkCostFrom(frc.getQuantiser());
-                    referencedItems.put(frc.getId(), frc);
+                List<Bytes> foreignReferenceBytesList = deserializer.deserializeCollection(
+                        data.getList("referencedItems", new ArrayList<>())
+                );
+                if(foreignReferenceBytesList != null) {
+                    for (Bytes b : foreignReferenceBytesList) {
+                        Contract frc = new Contract(b.toArray(), this);
+                        quantiser.addWorkCostFrom(frc.getQuantiser());
+                        referencedItems.put(frc.getId(), frc);
+                    }
                 }
-            }
             
 
-            List<Bytes> subItemsBytesList = deserializer.deserializeCollection(
-                    data.getListOrThrow("subItems")
-            );
+                List<Bytes> subItemsBytesList = deserializer.deserializeCollection(
+                        data.getListOrThrow("subItems")
+                );
 
-            HashMap<ContractDependencies, Bytes> allContractsTrees = new HashMap<>();
-            List<HashId> allContractsHids = new ArrayList<>();
-            ArrayList<Bytes> sortedSubItemsBytesList = new ArrayList<>();
+                HashMap<ContractDependencies, Bytes> allContractsTrees = new HashMap<>();
+                List<HashId> allContractsHids = new ArrayList<>();
+                ArrayList<Bytes> sortedSubItemsBytesList = new ArrayList<>();
 
-            if (subItemsBytesList != null) {
-                // First of all extract contracts dependencies from subItems
-                for (Bytes b : subItemsBytesList) {
-                    ContractDependencies ct = new ContractDependencies(b.toArray());
-                    allContractsTrees.put(ct, b);
-                    allContractsHids.add(ct.id);
-                }
+                if (subItemsBytesList != null) {
+                    // First of all extract contracts dependencies from subItems
+                    for (Bytes b : subItemsBytesList) {
+                        ContractDependencies ct = new ContractDependencies(b.toArray());
+                        allContractsTrees.put(ct, b);
+                        allContractsHids.add(ct.id);
+                    }
 
-                // then recursively from ends of dependencies tree to top go throw it level by level
-                // and add items to subItems on the each level of tree's hierarchy
-                do {
-                    // first add contract from ends of trees, means without own subitems
-                    sortedSubItemsBytesList = new ArrayList<>();
-                    List<ContractDependencies> removingContractDependencies = new ArrayList<>();
-                    for (ContractDependencies ct : allContractsTrees.keySet()) {
-                        if (ct.dependencies.size() == 0) {
-                            sortedSubItemsBytesList.add(allContractsTrees.get(ct));
-                            removingContractDependencies.add(ct);
+                    // then recursively from ends of dependencies tree to top go throw it level by level
+                    // and add items to subItems on the each level of tree's hierarchy
+                    do {
+                        // first add contract from ends of trees, means without own subitems
+                        sortedSubItemsBytesList = new ArrayList<>();
+                        List<ContractDependencies> removingContractDependencies = new ArrayList<>();
+                        for (ContractDependencies ct : allContractsTrees.keySet()) {
+                            if (ct.dependencies.size() == 0) {
+                                sortedSubItemsBytesList.add(allContractsTrees.get(ct));
+                                removingContractDependencies.add(ct);
+                            }
                         }
-                    }
 
-                    // remove found items from tree's list
-                    for (ContractDependencies ct : removingContractDependencies) {
-                        allContractsTrees.remove(ct);
-                    }
+                        // remove found items from tree's list
+                        for (ContractDependencies ct : removingContractDependencies) {
+                            allContractsTrees.remove(ct);
+                        }
 
-                    // then add contract with already exist subitems in the subItems or will never find in the tree
-                    removingContractDependencies = new ArrayList<>();
-                    for (ContractDependencies ct : allContractsTrees.keySet()) {
-                        boolean allDependenciesSafe = true;
-                        for (HashId hid : ct.dependencies) {
-                            if (!subItems.containsKey(hid) && allContractsHids.contains(hid)) {
-                                allDependenciesSafe = false;
+                        // then add contract with already exist subitems in the subItems or will never find in the tree
+                        removingContractDependencies = new ArrayList<>();
+                        for (ContractDependencies ct : allContractsTrees.keySet()) {
+                            boolean allDependenciesSafe = true;
+                            for (HashId hid : ct.dependencies) {
+                                if (!subItems.containsKey(hid) && allContractsHids.contains(hid)) {
+                                    allDependenciesSafe = false;
+                                }
+                            }
+                            if (allDependenciesSafe) {
+                                sortedSubItemsBytesList.add(allContractsTrees.get(ct));
+                                removingContractDependencies.add(ct);
                             }
                         }
-                        if (allDependenciesSafe) {
-                            sortedSubItemsBytesList.add(allContractsTrees.get(ct));
-                            removingContractDependencies.add(ct);
+
+                        // remove found items from tree's list
+                        for (ContractDependencies ct : removingContractDependencies) {
+                            allContractsTrees.remove(ct);
                         }
-                    }
 
-                    // remove found items from tree's list
-                    for (ContractDependencies ct : removingContractDependencies) {
-                        allContractsTrees.remove(ct);
-                    }
+                        // add found binaries on the hierarchy level to subItems
+                        for (int i = 0; i < sortedSubItemsBytesList.size(); i++) {
+                            Contract c = new Contract(sortedSubItemsBytesList.get(i).toArray(), this);
+                            quantiser.addWorkCostFrom(c.getQuantiser());
+                            subItems.put(c.getId(), c);
+                        }
+
+                        // then repeat until we can find hierarchy
+                    } while (sortedSubItemsBytesList.size() != 0);
 
-                    // add found binaries on the hierarchy level to subItems
-                    for (int i = 0; i < sortedSubItemsBytesList.size(); i++) {
-                        Contract c = new Contract(sortedSubItemsBytesList.get(i).toArray(), this);
+                    // finally add not found binaries on the hierarchy levels to subItems
+                    for (Bytes b : allContractsTrees.values()) {
+                        Contract c = new Contract(b.toArray(), this);
                         quantiser.addWorkCostFrom(c.getQuantiser());
                         subItems.put(c.getId(), c);
                     }
+                }
 
-                    // then repeat until we can find hierarchy
-                } while (sortedSubItemsBytesList.size() != 0);
+                byte[] bb = data.getBinaryOrThrow("contract");
+                contract = new Contract(bb, this);
+                quantiser.addWorkCostFrom(contract.getQuantiser());
 
-                // finally add not found binaries on the hierarchy levels to subItems
-                for (Bytes b : allContractsTrees.values()) {
-                    Contract c = new Contract(b.toArray(), this);
-                    quantiser.addWorkCostFrom(c.getQuantiser());
-                    subItems.put(c.getId(), c);
-                }
+                if (deferredSignatureChecks != null)
+                    Contract.verifySignatures(deferredSignatureChecks);
+            } finally {
+                deferredSignatureChecks = null;
             }
-
-            byte[] bb = data.getBinaryOrThrow("contract");
-            contract = new Contract(bb, this);
-            quantiser.addWorkCostFrom(contract.getQuantiser());
         }
     }
 
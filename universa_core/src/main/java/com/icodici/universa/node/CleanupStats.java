@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import net.sergeych.tools.Binder;
+
+/**
+ * Counters of the {@link Ledger#cleanup()} runs: what the last run did and the totals since start.
+ */
+public class CleanupStats {
+
+    private long runs;
+    private long lastRecords;
+    private long lastItems;
+    private long lastMillis;
+    private boolean lastCompleted = true;
+    private long totalRecords;
+    private long totalItems;
+    private long totalMillis;
+    private long droppedPartitions;
+
+    /**
+     * Register the finished run.
+     *
+     * @param records   number of removed ledger records
+     * @param items     number of removed items
+     * @param millis    time spent
+     * @param completed false if the run stopped before all expired rows were removed
+     */
+    public synchronized void add(long records, long items, long millis, boolean completed) {
+        runs++;
+        lastRecords = records;
+        lastItems = items;
+        lastMillis = millis;
+        lastCompleted = completed;
+        totalRecords += records;
+        totalItems += items;
+        totalMillis += millis;
+    }
+
+    /**
+     * Register partitions of expired rows dropped as a whole.
+     *
+     * @param count number of dropped partitions
+     */
+    public synchronized void addDroppedPartitions(long count) {
+        droppedPartitions += count;
+    }
+
+    public synchronized Binder getStats() {
+        return Binder.of(
+                "runs", runs,
+                "lastRecords", lastRecords,
+                "lastItems", lastItems,
+                "lastMillis", lastMillis,
+                "lastCompleted", lastCompleted,
+                "totalRecords", totalRecords,
+                "totalItems", totalItems,
+                "totalMillis", totalMillis,
+                "droppedPartitions", droppedPartitions
+        );
+    }
+}
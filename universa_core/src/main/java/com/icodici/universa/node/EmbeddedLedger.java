@@ -0,0 +1,1262 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.crypto.EncryptionError;
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.db.Db;
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Binder;
+import net.sergeych.utils.LogPrinter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The {@link Ledger} that needs no database server: everything is kept in the given directory as an append-only log of
+ * memory-mapped segment files, and the whole state is indexed in memory by {@link HashId} and record id, so reads do
+ * not touch the disk at all. Every change is appended to the log, and it is forced to the disk before the call
+ * returns, or when the {@link #transaction(Callable)} completes, so a transaction costs one disk sync.
+ * <p>
+ * The log is replayed on start. Entries are checksummed, so a torn tail after a crash is detected and dropped.
+ * Destroyed and overwritten entries stay in the log until {@link #cleanup()} finds that they take more than a half of
+ * it and rewrites the live entries as the next generation of the log.
+ * <p>
+ * Transactions are atomic and durable, but not isolated: other threads can see the changes of a running transaction.
+ * Changes of records and items made in a transaction are written to the log marked with the transaction, between its
+ * begin and commit entries, and replay skips the changes of transactions that have no commit entry. When a transaction
+ * fails, the index gets back the values the records had when the transaction touched them first, unless other threads
+ * have changed them since. Node never changes the same records from different threads concurrently, as it locks items.
+ * <p>
+ * Use "embedded:/path/to/ledger" as the database of the node to run it with this ledger.
+ */
+public class EmbeddedLedger implements Ledger {
+
+    private static LogPrinter log = new LogPrinter("ELDG");
+
+    /**
+     * Prefix of the database connection string that selects this ledger.
+     */
+    static public final String URL_PREFIX = "embedded:";
+
+    /**
+     * Size of one log segment file, bytes. It limits the size of the packed item that could be stored.
+     */
+    static public final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final byte E_RECORD = 1;
+    private static final byte E_DESTROY = 2;
+    private static final byte E_ITEM = 3;
+    private static final byte E_ITEM_REMOVE = 4;
+    private static final byte E_TEST_MARK = 5;
+    private static final byte E_PAYMENT = 6;
+    private static final byte E_NODE = 7;
+    private static final byte E_NODE_REMOVE = 8;
+    private static final byte E_NODES_CLEAR = 9;
+    private static final byte E_LAST_RECORD_ID = 10;
+    private static final byte E_BEGIN = 11;
+    private static final byte E_COMMIT = 12;
+
+    // set in the type of the entry written in a transaction, its payload is prefixed with the transaction id
+    private static final byte TX_FLAG = 0x40;
+
+    // length before the entry and checksum after it
+    private static final int ENTRY_OVERHEAD = 8;
+
+    // the same as in sr_find_or_create
+    private static final long PENDING_RECORD_TTL = 300;
+
+    private static final Pattern GENERATION_MARK = Pattern.compile("ledger\\.(\\d+)\\.ok");
+    private static final Pattern GENERATION_FILE = Pattern.compile("ledger\\.(\\d+)\\.(\\d+\\.log|ok)");
+
+    private final Path dir;
+    private final int segmentSize;
+
+    // guards the log and all the changes of the index
+    private final Object writeLock = new Object();
+    private AppendLog appendLog;
+    private long lastRecordId;
+    private long garbageBytes;
+    private int activeTransactions;
+
+    private final ConcurrentHashMap<HashId, Row> byHash = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Row> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, ItemRef> items = new ConcurrentHashMap<>();
+    private final Set<HashId> testRecords = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Integer, Integer> payments = new ConcurrentHashMap<>();
+    private final TreeMap<Integer, NodeRef> nodes = new TreeMap<>();
+
+    private final StateRecordCache cachedRecords = new StateRecordCache();
+    private final CleanupStats cleanupStats = new CleanupStats();
+    private volatile boolean useCache = true;
+
+    // the transaction running in the thread
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>();
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    public EmbeddedLedger(String directory) throws IOException {
+        this(Paths.get(directory), SEGMENT_SIZE);
+    }
+
+    EmbeddedLedger(Path dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        int generation = findGeneration();
+        if (generation < 0) {
+            generation = 0;
+            deleteGenerations(g -> true);
+            markGeneration(generation);
+        } else {
+            // the leftovers of the compaction that was interrupted or not finished with deletion
+            final int current = generation;
+            deleteGenerations(g -> g != current);
+        }
+        appendLog = new AppendLog(generation);
+        appendLog.replay();
+    }
+
+    @Override
+    public StateRecord getRecord(HashId itemId) {
+        StateRecord sr = getFromCache(itemId);
+        if (sr == null)
+            sr = recordOf(byHash.get(itemId));
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        StateRecord r = new StateRecord(this);
+        r.setState(ItemState.LOCKED_FOR_CREATION);
+        r.setLockedByRecordId(creatorRecordId);
+        r.setId(newItemHashId);
+        try {
+            r.save();
+            return r;
+        } catch (Failure e) {
+            // hash is already in use
+            return null;
+        }
+    }
+
+    @Override
+    public StateRecord getLockOwnerOf(StateRecord rc) {
+        StateRecord sr = useCache ? cachedRecords.getById(rc.getLockedByRecordId()) : null;
+        if (sr == null)
+            sr = recordOf(byId.get(rc.getLockedByRecordId()));
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        StateRecord record = getFromCache(itemId);
+        if (record != null)
+            return record;
+        Row row;
+        synchronized (writeLock) {
+            row = byHash.get(itemId);
+            if (row == null) {
+                long now = Instant.now().getEpochSecond();
+                long recordId = ++lastRecordId;
+                write(E_RECORD, encodeRow(new Row(recordId, itemId, ItemState.PENDING, now,
+                        now + PENDING_RECORD_TTL, 0)));
+                sync();
+                row = byId.get(recordId);
+            }
+        }
+        return recordOf(row);
+    }
+
+    @Override
+    public Map<HashId, StateRecord> findUnfinished() {
+        HashMap<HashId, StateRecord> map = new HashMap<>();
+        for (Row row : byId.values()) {
+            switch (row.state) {
+                case PENDING:
+                case PENDING_POSITIVE:
+                case PENDING_NEGATIVE:
+                case LOCKED:
+                case LOCKED_FOR_CREATION:
+                    StateRecord record = row.toRecord(this);
+                    if (record.isExpired())
+                        record.destroy();
+                    else
+                        map.put(record.getId(), record);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public Approvable getItem(StateRecord record) {
+        return protect(() -> {
+            byte[] packed;
+            synchronized (writeLock) {
+                ItemRef ref = items.get(record.getRecordId());
+                if (ref == null)
+                    return null;
+                packed = itemBytes(ref);
+            }
+            return Contract.fromPackedTransaction(packed);
+        });
+    }
+
+    @Override
+    public void putItem(StateRecord record, Approvable item, Instant keepTill) {
+        if (item instanceof Contract) {
+            byte[] packed = ((Contract) item).getPackedTransaction();
+            synchronized (writeLock) {
+                write(E_ITEM, encodeItem(record.getRecordId(), keepTill.getEpochSecond(), packed));
+                sync();
+            }
+        }
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        if (currentTransaction.get() != null) {
+            // nested transaction is a part of the outer one
+            return protect(callable);
+        }
+        Transaction tx = new Transaction();
+        synchronized (writeLock) {
+            activeTransactions++;
+        }
+        currentTransaction.set(tx);
+        try {
+            T result = callable.call();
+            currentTransaction.remove();
+            synchronized (writeLock) {
+                if (tx.id >= 0)
+                    appendMarker(E_COMMIT, encodeId(tx.id));
+                appendLog.force();
+            }
+            return result;
+        } catch (Exception e) {
+            currentTransaction.remove();
+            rollback(tx);
+            if (e instanceof Db.RollbackException)
+                return null;
+            e.printStackTrace();
+            throw new Failure("Ledger operation failed: " + e.getMessage(), e);
+        } finally {
+            currentTransaction.remove();
+            synchronized (writeLock) {
+                activeTransactions--;
+            }
+        }
+    }
+
+    /**
+     * Restore the index as it was before the transaction. Its entries stay in the log without the commit, so they are
+     * skipped on replay, and nothing has to be written.
+     */
+    private void rollback(Transaction tx) {
+        synchronized (writeLock) {
+            for (Map.Entry<Long, Touched> e : tx.touched.entrySet()) {
+                restoreRow(e.getKey(), e.getValue());
+                restoreItem(e.getKey(), e.getValue());
+            }
+        }
+        // cached instances could have the values of the failed transaction
+        for (Long recordId : tx.touched.keySet())
+            cachedRecords.removeById(recordId);
+    }
+
+    private void restoreRow(long recordId, Touched t) {
+        Row current = byId.get(recordId);
+        // changed by other thread after the transaction
+        if (current != t.rowAfter)
+            return;
+        if (current == null && t.rowBefore != null && byHash.containsKey(t.rowBefore.id))
+            return;
+        if (current != null) {
+            byId.remove(recordId, current);
+            byHash.remove(current.id, current);
+            garbageBytes += current.entrySize;
+        }
+        if (t.rowBefore != null) {
+            byId.put(recordId, t.rowBefore);
+            byHash.put(t.rowBefore.id, t.rowBefore);
+            garbageBytes -= t.rowBefore.entrySize;
+        }
+    }
+
+    private void restoreItem(long recordId, Touched t) {
+        ItemRef current = items.get(recordId);
+        if (current != t.itemAfter)
+            return;
+        if (current != null) {
+            items.remove(recordId, current);
+            garbageBytes += current.entrySize;
+        }
+        if (t.itemBefore != null) {
+            // the log is not compacted while there are transactions, so the old entry stays where it is
+            items.put(recordId, t.itemBefore);
+            garbageBytes -= t.itemBefore.entrySize;
+        }
+    }
+
+    // bulk operations are done in one transaction, so the log is forced once for all of the records
+
+    @Override
+    public Map<HashId, StateRecord> lockToRevoke(StateRecord locker, Collection<HashId> idsToRevoke) {
+        return transaction(() -> Ledger.super.lockToRevoke(locker, idsToRevoke));
+    }
+
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(StateRecord creator, Collection<HashId> newItemIds) {
+        return transaction(() -> Ledger.super.createOutputLockRecords(creator, newItemIds));
+    }
+
+    @Override
+    public void unlockAll(Collection<StateRecord> records) {
+        transaction(() -> {
+            Ledger.super.unlockAll(records);
+            return null;
+        });
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        long recordId = record.getRecordId();
+        if (recordId == 0) {
+            throw new IllegalStateException("can't destroy record without recordId");
+        }
+        synchronized (writeLock) {
+            if (byId.containsKey(recordId) || items.containsKey(recordId)) {
+                write(E_DESTROY, encodeId(recordId));
+                sync();
+            }
+        }
+        cachedRecords.remove(record);
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null) {
+            stateRecord.setLedger(this);
+        } else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with a different ledger (make a copy!)");
+
+        synchronized (writeLock) {
+            long recordId = stateRecord.getRecordId();
+            if (recordId == 0) {
+                if (byHash.containsKey(stateRecord.getId()))
+                    throw new Failure("StateRecord save failed: hash is already in use: " + stateRecord.getId());
+                recordId = ++lastRecordId;
+                write(E_RECORD, encodeRow(new Row(recordId, stateRecord.getId(), stateRecord.getState(),
+                        StateRecord.unixTime(stateRecord.getCreatedAt()),
+                        StateRecord.unixTime(stateRecord.getExpiresAt()),
+                        stateRecord.getLockedByRecordId())));
+                stateRecord.setRecordId(recordId);
+            } else {
+                Row row = byId.get(recordId);
+                // like update of the deleted row, it does nothing
+                if (row == null)
+                    return;
+                write(E_RECORD, encodeRow(new Row(recordId, row.id, stateRecord.getState(), row.createdAt,
+                        StateRecord.unixTime(stateRecord.getExpiresAt()),
+                        stateRecord.getLockedByRecordId())));
+            }
+            sync();
+        }
+        // other instance of the same record could be cached
+        putToCache(stateRecord);
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        Row row = byHash.get(stateRecord.getId());
+        if (row == null)
+            throw new StateRecord.NotFoundException("record not found");
+        row.initRecord(stateRecord);
+    }
+
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            appendLog.force();
+        }
+    }
+
+    @Override
+    public long countRecords() {
+        return byHash.size();
+    }
+
+    @Override
+    public Map<ItemState, Integer> getLedgerSize(ZonedDateTime createdAfter) {
+        long from = createdAfter != null ? createdAfter.toEpochSecond() : 0;
+        Map<ItemState, Integer> result = new HashMap<>();
+        for (Row row : byId.values()) {
+            if (row.createdAt >= from)
+                result.merge(row.state, 1, Integer::sum);
+        }
+        return result;
+    }
+
+    @Override
+    public void savePayment(int amount, ZonedDateTime date) {
+        int day = (int) date.truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+        synchronized (writeLock) {
+            write(E_PAYMENT, pack(out -> {
+                out.writeInt(day);
+                out.writeInt(amount);
+            }));
+            sync();
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> getPayments(ZonedDateTime fromDate) {
+        long from = fromDate.truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+        Map<Integer, Integer> result = new HashMap<>();
+        payments.forEach((date, amount) -> {
+            if (date >= from)
+                result.put(date, amount);
+        });
+        return result;
+    }
+
+    @Override
+    public void markTestRecord(HashId hash) {
+        if (testRecords.contains(hash))
+            return;
+        synchronized (writeLock) {
+            write(E_TEST_MARK, pack(out -> writeBytes(out, hash.getDigest())));
+            sync();
+        }
+    }
+
+    @Override
+    public boolean isTestnet(HashId itemId) {
+        return testRecords.contains(itemId);
+    }
+
+    @Override
+    public void saveConfig(NodeInfo myInfo, NetConfig netConfig, PrivateKey nodeKey) {
+        synchronized (writeLock) {
+            write(E_NODES_CLEAR, new byte[0]);
+            for (NodeInfo nodeInfo : netConfig.toList()) {
+                byte[] key = nodeInfo.getNumber() == myInfo.getNumber() ? nodeKey.pack() : null;
+                write(E_NODE, encodeNode(nodeInfo, key));
+            }
+            sync();
+        }
+    }
+
+    @Override
+    public Object[] loadConfig() {
+        Object[] result = new Object[3];
+        ArrayList<NodeInfo> nodeInfos = new ArrayList<>();
+        try {
+            synchronized (writeLock) {
+                for (NodeRef n : nodes.values()) {
+                    nodeInfos.add(n.info);
+                    if (n.privateKey != null) {
+                        result[0] = n.info;
+                        result[2] = new PrivateKey(n.privateKey);
+                    }
+                }
+            }
+            if (nodeInfos.isEmpty())
+                throw new Exception("config not found");
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failed to load config", e);
+        }
+        result[1] = new NetConfig(nodeInfos);
+        return result;
+    }
+
+    @Override
+    public void addNode(NodeInfo nodeInfo) {
+        synchronized (writeLock) {
+            write(E_NODE, encodeNode(nodeInfo, null));
+            sync();
+        }
+    }
+
+    @Override
+    public void removeNode(NodeInfo nodeInfo) {
+        synchronized (writeLock) {
+            write(E_NODE_REMOVE, pack(out -> out.writeInt(nodeInfo.getNumber())));
+            sync();
+        }
+    }
+
+    /**
+     * Remove expired records and items, then compact the log if most of it is garbage.
+     */
+    @Override
+    public void cleanup() {
+        long started = System.currentTimeMillis();
+        long now = Instant.now().getEpochSecond();
+        long records = 0;
+        long removedItems = 0;
+        List<Long> removedIds = new ArrayList<>();
+        synchronized (writeLock) {
+            for (Row row : byId.values()) {
+                if (row.expiresAt < now) {
+                    write(E_DESTROY, encodeId(row.recordId));
+                    removedIds.add(row.recordId);
+                    records++;
+                }
+            }
+            for (Map.Entry<Long, ItemRef> e : items.entrySet()) {
+                if (e.getValue().keepTill < now) {
+                    write(E_ITEM_REMOVE, encodeId(e.getKey()));
+                    removedItems++;
+                }
+            }
+            appendLog.force();
+            // compaction moves the items that transactions may need to restore
+            if (activeTransactions == 0 && garbageBytes * 2 > appendLog.size)
+                compact();
+        }
+        // cached records of the deleted rows must not be saved again
+        for (Long recordId : removedIds)
+            cachedRecords.removeById(recordId);
+        cleanupStats.add(records, removedItems, System.currentTimeMillis() - started, true);
+    }
+
+    @Override
+    public Binder getCleanupStats() {
+        return cleanupStats.getStats();
+    }
+
+    /**
+     * Enable or disable records caching. USe it in tests only, in production it should always be enabled
+     *
+     * @param enable, if true it is enabling cache
+     */
+    public void enableCache(boolean enable) {
+        if (enable) {
+            this.useCache = true;
+        } else {
+            this.useCache = false;
+            cachedRecords.clear();
+        }
+    }
+
+    public Binder getStats() {
+        synchronized (writeLock) {
+            return Binder.of(
+                    "records", byHash.size(),
+                    "items", items.size(),
+                    "logBytes", appendLog.size,
+                    "garbageBytes", garbageBytes,
+                    "generation", appendLog.generation,
+                    "compactions", compactions.get()
+            );
+        }
+    }
+
+    private <T> T protect(Callable<T> block) {
+        try {
+            return block.call();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw new Failure("Ledger operation failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    private StateRecord getFromCache(HashId itemId) {
+        return useCache ? cachedRecords.get(itemId) : null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache)
+            cachedRecords.put(r);
+    }
+
+    private StateRecord recordOf(Row row) {
+        if (row == null)
+            return null;
+        StateRecord record = row.toRecord(this);
+        putToCache(record);
+        return record;
+    }
+
+    // the rest must be called under writeLock
+
+    private void write(byte type, byte[] payload) {
+        Transaction tx = currentTransaction.get();
+        if (tx == null || !isTransactional(type)) {
+            long position = appendLog.append(type, payload);
+            apply(type, ByteBuffer.wrap(payload), position, entrySize(payload));
+            return;
+        }
+        if (tx.id < 0)
+            tx.id = appendMarker(E_BEGIN, new byte[0]);
+        // all of the transactional entries start with the record id
+        long recordId = ByteBuffer.wrap(payload).getLong();
+        Touched t = tx.touched.get(recordId);
+        if (t == null) {
+            t = new Touched(byId.get(recordId), items.get(recordId));
+            tx.touched.put(recordId, t);
+        }
+        long txId = tx.id;
+        byte[] marked = pack(out -> {
+            out.writeLong(txId);
+            out.write(payload);
+        });
+        long position = appendLog.append((byte) (type | TX_FLAG), marked);
+        apply(type, ByteBuffer.wrap(payload), position, entrySize(marked));
+        t.rowAfter = byId.get(recordId);
+        t.itemAfter = items.get(recordId);
+    }
+
+    private static boolean isTransactional(byte type) {
+        return type == E_RECORD || type == E_DESTROY || type == E_ITEM || type == E_ITEM_REMOVE;
+    }
+
+    /**
+     * Append the begin or commit entry of a transaction. It is garbage for the compaction, the next generation is
+     * written with no transactions in it.
+     *
+     * @return position of the entry, that is the id of the transaction for {@link #E_BEGIN}
+     */
+    private long appendMarker(byte type, byte[] payload) {
+        long position = appendLog.append(type, payload);
+        garbageBytes += entrySize(payload);
+        return position;
+    }
+
+    /**
+     * @return size the entry with the payload takes in the log, see {@link AppendLog#append(byte, byte[])}
+     */
+    private static int entrySize(byte[] payload) {
+        return payload.length + 1 + ENTRY_OVERHEAD;
+    }
+
+    // changes of a transaction are forced to the disk when it completes
+    private void sync() {
+        if (currentTransaction.get() == null)
+            appendLog.force();
+    }
+
+    /**
+     * Apply the entry found in the log on start, skipping the entries of transactions that were not committed.
+     */
+    private void replayEntry(byte type, ByteBuffer p, long position, int entrySize, Set<Long> committed) {
+        if (type == E_BEGIN || type == E_COMMIT) {
+            garbageBytes += entrySize;
+            return;
+        }
+        if ((type & TX_FLAG) != 0) {
+            if (!committed.contains(p.getLong())) {
+                garbageBytes += entrySize;
+                return;
+            }
+            type = (byte) (type & ~TX_FLAG);
+        }
+        apply(type, p, position, entrySize);
+    }
+
+    private byte[] itemBytes(ItemRef ref) {
+        ByteBuffer p = appendLog.payload(ref.position);
+        // skip record id and keepTill
+        p.position(16);
+        byte[] packed = new byte[p.remaining()];
+        p.get(packed);
+        return packed;
+    }
+
+    private void apply(byte type, ByteBuffer p, long position, int entrySize) {
+        switch (type) {
+            case E_RECORD: {
+                Row row = readRow(p, entrySize);
+                Row old = byId.put(row.recordId, row);
+                if (old != null) {
+                    garbageBytes += old.entrySize;
+                    if (!old.id.equals(row.id))
+                        byHash.remove(old.id, old);
+                }
+                Row other = byHash.put(row.id, row);
+                if (other != null && other != old) {
+                    byId.remove(other.recordId, other);
+                    garbageBytes += other.entrySize;
+                }
+                lastRecordId = Math.max(lastRecordId, row.recordId);
+                break;
+            }
+            case E_DESTROY: {
+                long recordId = p.getLong();
+                Row old = byId.remove(recordId);
+                if (old != null) {
+                    byHash.remove(old.id, old);
+                    garbageBytes += old.entrySize;
+                }
+                ItemRef item = items.remove(recordId);
+                if (item != null)
+                    garbageBytes += item.entrySize;
+                garbageBytes += entrySize;
+                break;
+            }
+            case E_ITEM: {
+                long recordId = p.getLong();
+                long keepTill = p.getLong();
+                ItemRef old = items.put(recordId, new ItemRef(position, entrySize, keepTill));
+                if (old != null)
+                    garbageBytes += old.entrySize;
+                break;
+            }
+            case E_ITEM_REMOVE: {
+                ItemRef old = items.remove(p.getLong());
+                if (old != null)
+                    garbageBytes += old.entrySize;
+                garbageBytes += entrySize;
+                break;
+            }
+            case E_TEST_MARK:
+                testRecords.add(HashId.withDigest(readBytes(p)));
+                break;
+            case E_PAYMENT:
+                payments.merge(p.getInt(), p.getInt(), Integer::sum);
+                break;
+            case E_NODE: {
+                NodeRef n = readNode(p, entrySize);
+                NodeRef old = nodes.put(n.info.getNumber(), n);
+                if (old != null)
+                    garbageBytes += old.entrySize;
+                break;
+            }
+            case E_NODE_REMOVE: {
+                NodeRef old = nodes.remove(p.getInt());
+                if (old != null)
+                    garbageBytes += old.entrySize;
+                garbageBytes += entrySize;
+                break;
+            }
+            case E_NODES_CLEAR:
+                for (NodeRef n : nodes.values())
+                    garbageBytes += n.entrySize;
+                nodes.clear();
+                garbageBytes += entrySize;
+                break;
+            case E_LAST_RECORD_ID:
+                lastRecordId = Math.max(lastRecordId, p.getLong());
+                break;
+            default:
+                throw new Failure("unknown ledger log entry type: " + type);
+        }
+    }
+
+    /**
+     * Write the live entries as the next generation of the log and drop the current one.
+     */
+    private void compact() {
+        AppendLog next = new AppendLog(appendLog.generation + 1);
+        // entries are moved with the sizes they have in the new generation
+        Map<Integer, NodeRef> movedNodes = new HashMap<>();
+        Map<Long, Row> movedRows = new HashMap<>();
+        Map<Long, ItemRef> movedItems = new HashMap<>();
+        try {
+            next.deleteFiles();
+            next.replay();
+            // record ids of destroyed records must not be reused
+            long recordId = lastRecordId;
+            next.append(E_LAST_RECORD_ID, pack(out -> out.writeLong(recordId)));
+            for (NodeRef n : nodes.values()) {
+                byte[] payload = encodeNode(n.info, n.privateKey);
+                next.append(E_NODE, payload);
+                movedNodes.put(n.info.getNumber(), new NodeRef(n.info, n.privateKey, entrySize(payload)));
+            }
+            for (Row row : byId.values()) {
+                byte[] payload = encodeRow(row);
+                next.append(E_RECORD, payload);
+                movedRows.put(row.recordId, new Row(row.recordId, row.id, row.state, row.createdAt, row.expiresAt,
+                        row.lockedBy, entrySize(payload)));
+            }
+            for (Map.Entry<Long, ItemRef> e : items.entrySet()) {
+                ItemRef ref = e.getValue();
+                byte[] payload = encodeItem(e.getKey(), ref.keepTill, itemBytes(ref));
+                long position = next.append(E_ITEM, payload);
+                movedItems.put(e.getKey(), new ItemRef(position, entrySize(payload), ref.keepTill));
+            }
+            for (HashId id : testRecords)
+                next.append(E_TEST_MARK, pack(out -> writeBytes(out, id.getDigest())));
+            for (Map.Entry<Integer, Integer> e : payments.entrySet()) {
+                next.append(E_PAYMENT, pack(out -> {
+                    out.writeInt(e.getKey());
+                    out.writeInt(e.getValue());
+                }));
+            }
+            next.force();
+            markGeneration(next.generation);
+        } catch (IOException | RuntimeException e) {
+            log.e("ledger log compaction failed: %s", e);
+            e.printStackTrace();
+            try {
+                next.deleteFiles();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        nodes.putAll(movedNodes);
+        for (Row row : movedRows.values()) {
+            byId.put(row.recordId, row);
+            byHash.put(row.id, row);
+        }
+        items.putAll(movedItems);
+        AppendLog previous = appendLog;
+        appendLog = next;
+        garbageBytes = 0;
+        compactions.incrementAndGet();
+        try {
+            previous.deleteFiles();
+        } catch (IOException e) {
+            // will be deleted on the next start
+            log.e("failed to delete old ledger log: %s", e);
+        }
+    }
+
+    private int findGeneration() throws IOException {
+        int generation = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Matcher m = GENERATION_MARK.matcher(f.getFileName().toString());
+                if (m.matches())
+                    generation = Math.max(generation, Integer.parseInt(m.group(1)));
+            }
+        }
+        return generation;
+    }
+
+    private interface GenerationFilter {
+        boolean accept(int generation);
+    }
+
+    private void deleteGenerations(GenerationFilter filter) throws IOException {
+        List<Path> toDelete = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Matcher m = GENERATION_FILE.matcher(f.getFileName().toString());
+                if (m.matches() && filter.accept(Integer.parseInt(m.group(1))))
+                    toDelete.add(f);
+            }
+        }
+        for (Path f : toDelete)
+            Files.deleteIfExists(f);
+    }
+
+    private Path markPath(int generation) {
+        return dir.resolve("ledger." + generation + ".ok");
+    }
+
+    private void markGeneration(int generation) throws IOException {
+        try (FileChannel ch = FileChannel.open(markPath(generation), CREATE, WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] pack(PayloadWriter writer) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new Failure("failed to pack ledger log entry", e);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(ByteBuffer p) {
+        byte[] data = new byte[p.getInt()];
+        p.get(data);
+        return data;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(ByteBuffer p) {
+        return new String(readBytes(p), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeId(long recordId) {
+        return pack(out -> out.writeLong(recordId));
+    }
+
+    private static byte[] encodeRow(Row row) {
+        return pack(out -> {
+            out.writeLong(row.recordId);
+            writeBytes(out, row.id.getDigest());
+            out.writeInt(row.state.ordinal());
+            out.writeLong(row.createdAt);
+            out.writeLong(row.expiresAt);
+            out.writeLong(row.lockedBy);
+        });
+    }
+
+    private static Row readRow(ByteBuffer p, int entrySize) {
+        return new Row(p.getLong(), HashId.withDigest(readBytes(p)), ItemState.values()[p.getInt()],
+                p.getLong(), p.getLong(), p.getLong(), entrySize);
+    }
+
+    private static byte[] encodeItem(long recordId, long keepTill, byte[] packed) {
+        return pack(out -> {
+            out.writeLong(recordId);
+            out.writeLong(keepTill);
+            out.write(packed);
+        });
+    }
+
+    private static byte[] encodeNode(NodeInfo nodeInfo, byte[] privateKey) {
+        return pack(out -> {
+            out.writeInt(nodeInfo.getNumber());
+            writeString(out, nodeInfo.getName());
+            writeString(out, nodeInfo.getClientAddress().getHostName());
+            writeString(out, nodeInfo.getPublicHost());
+            out.writeInt(nodeInfo.getNodeAddress().getPort());
+            out.writeInt(nodeInfo.getClientAddress().getPort());
+            out.writeInt(nodeInfo.getServerAddress().getPort());
+            writeBytes(out, nodeInfo.getPublicKey().pack());
+            writeBytes(out, privateKey != null ? privateKey : new byte[0]);
+        });
+    }
+
+    private static NodeRef readNode(ByteBuffer p, int entrySize) {
+        int number = p.getInt();
+        String name = readString(p);
+        String host = readString(p);
+        String publicHost = readString(p);
+        int udpPort = p.getInt();
+        int clientPort = p.getInt();
+        int serverPort = p.getInt();
+        byte[] publicKey = readBytes(p);
+        byte[] privateKey = readBytes(p);
+        try {
+            NodeInfo info = new NodeInfo(new PublicKey(publicKey), number, name, host, publicHost,
+                    udpPort, clientPort, serverPort);
+            return new NodeRef(info, privateKey.length > 0 ? privateKey : null, entrySize);
+        } catch (EncryptionError e) {
+            throw new Failure("bad node key in the ledger log", e);
+        }
+    }
+
+    /**
+     * Indexed state of the record, immutable. Times are unix seconds.
+     */
+    private static class Row {
+        private final long recordId;
+        private final HashId id;
+        private final ItemState state;
+        private final long createdAt;
+        private final long expiresAt;
+        private final long lockedBy;
+        private final int entrySize;
+
+        private Row(long recordId, HashId id, ItemState state, long createdAt, long expiresAt, long lockedBy) {
+            this(recordId, id, state, createdAt, expiresAt, lockedBy, 0);
+        }
+
+        private Row(long recordId, HashId id, ItemState state, long createdAt, long expiresAt, long lockedBy,
+                    int entrySize) {
+            this.recordId = recordId;
+            this.id = id;
+            this.state = state;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+            this.lockedBy = lockedBy;
+            this.entrySize = entrySize;
+        }
+
+        private StateRecord toRecord(Ledger ledger) {
+            StateRecord record = new StateRecord(ledger);
+            initRecord(record);
+            return record;
+        }
+
+        private void initRecord(StateRecord record) {
+            record.initFrom(recordId, id, state, createdAt, expiresAt, lockedBy);
+        }
+    }
+
+    private static class ItemRef {
+        private final long position;
+        private final int entrySize;
+        private final long keepTill;
+
+        private ItemRef(long position, int entrySize, long keepTill) {
+            this.position = position;
+            this.entrySize = entrySize;
+            this.keepTill = keepTill;
+        }
+    }
+
+    /**
+     * The transaction running in a thread: id is the position of its begin entry, written with the first change.
+     */
+    private static class Transaction {
+        private long id = -1;
+        private final Map<Long, Touched> touched = new LinkedHashMap<>();
+    }
+
+    /**
+     * Record and item of the record id as they were before the transaction changed them first and after its last
+     * change.
+     */
+    private static class Touched {
+        private final Row rowBefore;
+        private final ItemRef itemBefore;
+        private Row rowAfter;
+        private ItemRef itemAfter;
+
+        private Touched(Row rowBefore, ItemRef itemBefore) {
+            this.rowBefore = rowBefore;
+            this.itemBefore = itemBefore;
+        }
+    }
+
+    private interface EntryVisitor {
+        void visit(byte type, ByteBuffer payload, long position, int entrySize);
+    }
+
+    private static class NodeRef {
+        private final NodeInfo info;
+        private final byte[] privateKey;
+        private final int entrySize;
+
+        private NodeRef(NodeInfo info, byte[] privateKey, int entrySize) {
+            this.info = info;
+            this.privateKey = privateKey;
+            this.entrySize = entrySize;
+        }
+    }
+
+    /**
+     * One generation of the log: numbered segment files of the same size, mapped to memory. An entry is the length of
+     * the type and the payload, the type byte, the payload and CRC32 of the type and the payload. Zero length marks
+     * the end of the segment. Positions of entries are global: segment number times segment size plus offset.
+     */
+    private class AppendLog {
+        private final int generation;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        // write position in the last segment
+        private int offset;
+        private int firstUnforced = -1;
+        private long size;
+
+        private AppendLog(int generation) {
+            this.generation = generation;
+        }
+
+        private Path segmentPath(int number) {
+            return dir.resolve(String.format("ledger.%d.%05d.log", generation, number));
+        }
+
+        private MappedByteBuffer openSegment(int number) throws IOException {
+            try (FileChannel ch = FileChannel.open(segmentPath(number), CREATE, READ, WRITE)) {
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+        }
+
+        /**
+         * Map the existing segments and apply their entries to the index. The first pass finds the committed
+         * transactions, the second applies the entries.
+         */
+        private void replay() throws IOException {
+            Set<Long> committed = new HashSet<>();
+            mapSegments((type, p, position, entrySize) -> {
+                if (type == E_COMMIT)
+                    committed.add(p.getLong());
+            });
+            for (int number = 0; number < segments.size(); number++) {
+                MappedByteBuffer segment = segments.get(number);
+                int pos = 0;
+                while (pos + 4 <= segmentSize) {
+                    int length = segment.getInt(pos);
+                    if (length == 0)
+                        break;
+                    ByteBuffer entry = slice(segment, pos + 4, length);
+                    byte type = entry.get();
+                    replayEntry(type, entry.slice(), position(number, pos), length + ENTRY_OVERHEAD, committed);
+                    pos += length + ENTRY_OVERHEAD;
+                }
+            }
+        }
+
+        /**
+         * Map the existing segments, check the entries and drop the damaged tail.
+         */
+        private void mapSegments(EntryVisitor visitor) throws IOException {
+            int number = 0;
+            while (Files.exists(segmentPath(number))) {
+                MappedByteBuffer segment = openSegment(number);
+                segments.add(segment);
+                int pos = 0;
+                boolean damaged = false;
+                while (pos + 4 <= segmentSize) {
+                    int length = segment.getInt(pos);
+                    if (length == 0)
+                        break;
+                    if (length < 0 || (long) pos + length + ENTRY_OVERHEAD > segmentSize) {
+                        damaged = true;
+                        break;
+                    }
+                    ByteBuffer entry = slice(segment, pos + 4, length);
+                    CRC32 crc = new CRC32();
+                    crc.update(entry.duplicate());
+                    if ((int) crc.getValue() != segment.getInt(pos + 4 + length)) {
+                        damaged = true;
+                        break;
+                    }
+                    byte type = entry.get();
+                    visitor.visit(type, entry.slice(), position(number, pos), length + ENTRY_OVERHEAD);
+                    pos += length + ENTRY_OVERHEAD;
+                    size += length + ENTRY_OVERHEAD;
+                }
+                offset = pos;
+                if (damaged) {
+                    // a torn write of the last entries before the crash
+                    log.e("ledger log %s is damaged at %d, dropping the rest of it", segmentPath(number), pos);
+                    for (int i = pos; i < segmentSize; i++)
+                        segment.put(i, (byte) 0);
+                    segment.force();
+                    int n = number + 1;
+                    while (Files.deleteIfExists(segmentPath(n)))
+                        n++;
+                    break;
+                }
+                number++;
+            }
+            if (segments.isEmpty()) {
+                segments.add(openSegment(0));
+                offset = 0;
+            }
+        }
+
+        private long append(byte type, byte[] payload) {
+            int length = payload.length + 1;
+            int total = length + ENTRY_OVERHEAD;
+            if (total > segmentSize)
+                throw new Failure("ledger log entry is too large: " + total);
+            if (offset + total > segmentSize) {
+                try {
+                    segments.add(openSegment(segments.size()));
+                } catch (IOException e) {
+                    throw new Failure("failed to add ledger log segment: " + e, e);
+                }
+                offset = 0;
+            }
+            int number = segments.size() - 1;
+            ByteBuffer b = segments.get(number).duplicate();
+            b.position(offset + 4);
+            b.put(type);
+            b.put(payload);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            b.putInt((int) crc.getValue());
+            // length goes last: until it is written, the entry reads as the end of the log
+            b.putInt(offset, length);
+            if (firstUnforced < 0)
+                firstUnforced = number;
+            long position = position(number, offset);
+            offset += total;
+            size += total;
+            return position;
+        }
+
+        private void force() {
+            if (firstUnforced < 0)
+                return;
+            for (int i = firstUnforced; i < segments.size(); i++)
+                segments.get(i).force();
+            firstUnforced = -1;
+        }
+
+        /**
+         * @return payload of the entry at the given position, without the type byte and the transaction id
+         */
+        private ByteBuffer payload(long position) {
+            MappedByteBuffer segment = segments.get((int) (position / segmentSize));
+            int pos = (int) (position % segmentSize);
+            int length = segment.getInt(pos);
+            if ((segment.get(pos + 4) & TX_FLAG) != 0)
+                return slice(segment, pos + 13, length - 9);
+            return slice(segment, pos + 5, length - 1);
+        }
+
+        private long position(int number, int offset) {
+            return (long) number * segmentSize + offset;
+        }
+
+        private void deleteFiles() throws IOException {
+            final int g = generation;
+            deleteGenerations(x -> x == g);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int length) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(from);
+        b.limit(from + length);
+        return b.slice();
+    }
+}
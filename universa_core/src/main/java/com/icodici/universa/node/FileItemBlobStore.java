@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+/**
+ * {@link ItemBlobStore} in the local directory. Each item is the file named by the hex digest of its id, in two levels
+ * of subdirectories by the first bytes of the digest so directories stay small. The keepTill of the item is kept as
+ * the modification time of its file, so the store needs no index. Items are written to temporary files and moved in
+ * place, so readers never see partially written items.
+ */
+public class FileItemBlobStore implements ItemBlobStore {
+
+    /**
+     * Temporary files left by failed writes are removed after this time, seconds.
+     */
+    static public final long TEMP_FILE_TIMEOUT_SECONDS = 3600;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+
+    /**
+     * Open the store, creating the directory if needed.
+     *
+     * @param root directory of the store
+     * @throws IOException if the directory could not be created
+     */
+    public FileItemBlobStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public void put(HashId id, InputStream packed, Instant keepTill) throws IOException {
+        Path path = pathOf(id);
+        FileTime time = FileTime.from(keepTill);
+        if (extendKeepTill(path, time))
+            return;
+        Path dir = path.getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, path.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            Files.copy(packed, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(temp, time);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // the item is already stored, only keepTill could change
+    private boolean extendKeepTill(Path path, FileTime time) throws IOException {
+        try {
+            if (Files.getLastModifiedTime(path).compareTo(time) < 0)
+                Files.setLastModifiedTime(path, time);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public InputStream open(HashId id) throws IOException {
+        try {
+            return Files.newInputStream(pathOf(id));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long size(HashId id) throws IOException {
+        try {
+            return Files.size(pathOf(id));
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void remove(HashId id) throws IOException {
+        Files.deleteIfExists(pathOf(id));
+    }
+
+    @Override
+    public long removeExpired(Instant now) throws IOException {
+        FileTime expired = FileTime.from(now);
+        FileTime staleTemp = FileTime.from(now.minusSeconds(TEMP_FILE_TIMEOUT_SECONDS));
+        long removed = 0;
+        try (DirectoryStream<Path> level1 = Files.newDirectoryStream(root)) {
+            for (Path dir1 : level1) {
+                if (!Files.isDirectory(dir1))
+                    continue;
+                try (DirectoryStream<Path> level2 = Files.newDirectoryStream(dir1)) {
+                    for (Path dir2 : level2) {
+                        if (!Files.isDirectory(dir2))
+                            continue;
+                        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir2)) {
+                            for (Path file : files) {
+                                try {
+                                    FileTime limit = file.toString().endsWith(TEMP_SUFFIX) ? staleTemp : expired;
+                                    if (Files.getLastModifiedTime(file).compareTo(limit) < 0 &&
+                                            Files.deleteIfExists(file))
+                                        removed++;
+                                } catch (NoSuchFileException e) {
+                                    // removed concurrently
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Path pathOf(HashId id) {
+        byte[] digest = id.getDigest();
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = hexDigits[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = hexDigits[digest[i] & 0xF];
+        }
+        String name = new String(hex);
+        return root.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+    }
+}
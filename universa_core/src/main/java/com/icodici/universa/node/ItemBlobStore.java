@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+
+/**
+ * Storage of packed items outside of the ledger database, keyed by the item id. Items are written and read as
+ * streams, so they could be served to other nodes and clients without loading them into memory. Items are immutable,
+ * so writing an item that is already stored does nothing but extends its keepTill.
+ */
+public interface ItemBlobStore {
+
+    /**
+     * Store the packed item.
+     *
+     * @param id       of the item
+     * @param packed   packed item, the caller closes it
+     * @param keepTill time after which the item could be removed
+     * @throws IOException if the item could not be written, then nothing is stored
+     */
+    void put(HashId id, InputStream packed, Instant keepTill) throws IOException;
+
+    /**
+     * Open the stored item for reading. The caller must close the stream.
+     *
+     * @param id of the item
+     * @return stream of the packed item or null if it is not stored
+     * @throws IOException if the item could not be opened
+     */
+    InputStream open(HashId id) throws IOException;
+
+    /**
+     * @param id of the item
+     * @return size of the packed item in bytes or -1 if it is not stored
+     * @throws IOException if the store could not be read
+     */
+    long size(HashId id) throws IOException;
+
+    /**
+     * Remove the item if it is stored.
+     *
+     * @param id of the item
+     * @throws IOException if the item could not be removed
+     */
+    void remove(HashId id) throws IOException;
+
+    /**
+     * Remove items that should be kept till the time before the given one.
+     *
+     * @param now time to compare keepTill with
+     * @return number of removed items
+     * @throws IOException if the store could not be read
+     */
+    long removeExpired(Instant now) throws IOException;
+}
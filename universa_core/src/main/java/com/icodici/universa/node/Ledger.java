@@ -11,13 +11,25 @@ import com.icodici.crypto.PrivateKey;
 import com.icodici.db.Db;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Binder;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Local storage for {@link StateRecord} objects, sort of a database. The implementations should not, except where
@@ -117,6 +129,149 @@ public interface Ledger {
      */
     void save(StateRecord stateRecord);
 
+    /**
+     * Save changed records into the ledger together. Implementations may group records of concurrent callers into one
+     * transaction (group commit), but the method returns only when the records are stored. Records that are not
+     * changed are skipped, like {@link StateRecord#save()} does.
+     *
+     * @param records are {@link StateRecord}s to save
+     * @throws Failure if the records could not be saved
+     */
+    default void saveAll(Collection<StateRecord> records) {
+        for (StateRecord r : records)
+            r.save();
+    }
+
+    /**
+     * Asynchronous version of {@link #getRecord(HashId)}. Implementations with blocking storage run the call in their
+     * own I/O threads, so the caller can chain on the result instead of waiting. The default implementation runs it in
+     * the calling thread.
+     *
+     * @param itemId is {@link HashId} to find
+     * @return future of the record or null if it is not found
+     */
+    default CompletableFuture<StateRecord> getRecordAsync(HashId itemId) {
+        CompletableFuture<StateRecord> future = new CompletableFuture<>();
+        try {
+            future.complete(getRecord(itemId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous version of {@link #findOrCreate(HashId)}, see {@link #getRecordAsync(HashId)}.
+     *
+     * @param itemId is {@link HashId} to find or create
+     * @return future of the found or created record
+     */
+    default CompletableFuture<StateRecord> findOrCreateAsync(HashId itemId) {
+        CompletableFuture<StateRecord> future = new CompletableFuture<>();
+        try {
+            future.complete(findOrCreate(itemId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous version of {@link #save(StateRecord)}, see {@link #getRecordAsync(HashId)}. Like {@link
+     * StateRecord#save()}, unchanged records are not saved.
+     *
+     * @param stateRecord is {@link StateRecord} to save
+     * @return future that completes when the record is stored, or exceptionally with {@link Failure}
+     */
+    default CompletableFuture<Void> saveAsync(StateRecord stateRecord) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            if (stateRecord.clearDirty())
+                save(stateRecord);
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous version of {@link #putItem(StateRecord, Approvable, Instant)}, see {@link
+     * #getRecordAsync(HashId)}.
+     *
+     * @param record   of the item
+     * @param item     to store
+     * @param keepTill time to keep the item till
+     * @return future that completes when the item is stored
+     */
+    default CompletableFuture<Void> putItemAsync(StateRecord record, Approvable item, Instant keepTill) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            putItem(record, item, keepTill);
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Lock the records of the items to be revoked by the locker, like {@link StateRecord#lockToRevoke(HashId)} does
+     * for each of them. Implementations could do it with few statements for all the records.
+     *
+     * @param locker      is {@link ItemState#PENDING} record of the revoking item
+     * @param idsToRevoke are ids of the items to lock
+     * @return locked records by item ids, items that could not be locked are not included
+     */
+    default Map<HashId, StateRecord> lockToRevoke(StateRecord locker, Collection<HashId> idsToRevoke) {
+        Map<HashId, StateRecord> locked = new HashMap<>();
+        for (HashId id : idsToRevoke) {
+            StateRecord r = locker.lockToRevoke(id);
+            if (r != null)
+                locked.put(id, r);
+        }
+        return locked;
+    }
+
+    /**
+     * Create output lock records of the new items, like {@link StateRecord#createOutputLockRecord(HashId)} does for
+     * each of them. Implementations could do it with few statements for all the records.
+     *
+     * @param creator    is {@link ItemState#PENDING} record of the item that creates new ones
+     * @param newItemIds are ids of the new items
+     * @return records locked for creation by item ids, items that already exist and are not locked by the creator are
+     * not included
+     */
+    default Map<HashId, StateRecord> createOutputLockRecords(StateRecord creator, Collection<HashId> newItemIds) {
+        Map<HashId, StateRecord> locked = new HashMap<>();
+        for (HashId id : newItemIds) {
+            StateRecord r = creator.createOutputLockRecord(id);
+            if (r != null)
+                locked.put(id, r);
+        }
+        return locked;
+    }
+
+    /**
+     * Release the locks, like {@link StateRecord#unlock()} does for each record, and save the changes. Implementations
+     * could do it with few statements for all the records.
+     *
+     * @param records are locked and locked for creation records
+     */
+    default void unlockAll(Collection<StateRecord> records) {
+        List<StateRecord> changed = new ArrayList<>(records.size());
+        for (StateRecord r : records)
+            changed.add(r.unlock());
+        saveAll(changed);
+    }
+
+    /**
+     * @return statistics of {@link #saveAll(Collection)} commits, if the implementation collects them
+     */
+    default Binder getCommitStats() {
+        return new Binder();
+    }
+
     /**
      * Refresh record.
      *
@@ -179,9 +334,70 @@ public interface Ledger {
     void removeNode(NodeInfo nodeInfo);
     Map<HashId,StateRecord> findUnfinished();
 
+    /**
+     * Find unfinished records like {@link #findUnfinished()} does, but pass them to the consumer in pages as they are
+     * read, so the caller can start processing them before all of them are loaded. Expired records are destroyed and
+     * not passed. Pages come in the order of record ids and from the calling thread.
+     *
+     * @param pageSize max number of records in a page
+     * @param consumer of the pages
+     */
+    default void findUnfinished(int pageSize, Consumer<List<StateRecord>> consumer) {
+        List<StateRecord> page = new ArrayList<>(pageSize);
+        for (StateRecord r : findUnfinished().values()) {
+            page.add(r);
+            if (page.size() >= pageSize) {
+                consumer.accept(page);
+                page = new ArrayList<>(pageSize);
+            }
+        }
+        if (!page.isEmpty())
+            consumer.accept(page);
+    }
+
     Approvable getItem(StateRecord record);
     void putItem(StateRecord record, Approvable item, Instant keepTill);
 
+    /**
+     * Open the packed stored item for reading, to send it to other nodes or clients. Implementations that keep items
+     * in an {@link ItemBlobStore} stream it without loading it into memory, the default implementation packs the item
+     * from {@link #getItem(StateRecord)}. The caller must close the stream.
+     *
+     * @param itemId of the stored item
+     * @return stream of the packed item or null if the item is not stored
+     * @throws IOException if the item could not be read
+     */
+    default InputStream openItem(HashId itemId) throws IOException {
+        StateRecord record = getRecord(itemId);
+        if (record == null)
+            return null;
+        Approvable item = getItem(record);
+        if (!(item instanceof Contract))
+            return null;
+        return new ByteArrayInputStream(((Contract) item).getPackedTransaction());
+    }
+
 
+    /**
+     * Remove expired records and items.
+     */
     void cleanup();
+
+    /**
+     * Limit the load {@link #cleanup()} puts on the storage. Implementations that delete rows in batches use it, others
+     * ignore it.
+     *
+     * @param batchSize        max number of rows to delete at once
+     * @param maxRowsPerSecond max number of rows to delete per second, 0 means no limit
+     * @param maxRunTime       max time of one run, the next run continues the work
+     */
+    default void setCleanupLimits(int batchSize, int maxRowsPerSecond, Duration maxRunTime) {
+    }
+
+    /**
+     * @return statistics of {@link #cleanup()} runs, if the implementation collects them
+     */
+    default Binder getCleanupStats() {
+        return new Binder();
+    }
 }
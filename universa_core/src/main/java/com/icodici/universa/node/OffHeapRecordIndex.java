@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of the ledger records by {@link HashId} kept outside of the Java heap, so tens of millions of records do not
+ * load the garbage collector. It is an open addressing hash table with linear probing in direct buffers, each slot
+ * holds the 96-byte composite digest and the record id, state and expiration packed as primitives, so lookups allocate
+ * nothing.
+ * <p>
+ * Only ids with {@link #KEY_SIZE} bytes digests, that is composite digests of items, are indexed, see
+ * {@link #covers(HashId)}. The index knows nothing about the database: the ledger must put every change to it.
+ */
+class OffHeapRecordIndex {
+
+    /**
+     * Size of the indexed digests.
+     */
+    static public final int KEY_SIZE = 96;
+
+    /**
+     * Size of the slot: key, record id, expiration, state and padding.
+     */
+    static public final int SLOT_SIZE = 128;
+
+    /**
+     * Max number of slots in one direct buffer.
+     */
+    static public final int CHUNK_SLOTS = 1 << 20;
+
+    /**
+     * Max part of the slots used by records and deleted records before the table grows.
+     */
+    static public final double MAX_LOAD = 0.7;
+
+    private static final int RECORD_ID_OFFSET = KEY_SIZE;
+    private static final int EXPIRES_AT_OFFSET = KEY_SIZE + 8;
+    private static final int STATE_OFFSET = KEY_SIZE + 16;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private static final ItemState[] states = ItemState.values();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer[] chunks;
+    private int chunkShift;
+    private int capacity;
+    private int size;
+    private int deleted;
+
+    OffHeapRecordIndex() {
+        this(1024);
+    }
+
+    OffHeapRecordIndex(int expectedSize) {
+        allocate(tableSizeFor((long) (expectedSize / MAX_LOAD) + 1));
+    }
+
+    /**
+     * @param id to check
+     * @return true if the id could be indexed, otherwise the ledger should look for it in the database
+     */
+    public boolean covers(HashId id) {
+        return id.getDigest().length == KEY_SIZE;
+    }
+
+    /**
+     * Put the record to the index or update it.
+     *
+     * @param id        of the record, must be {@link #covers(HashId) covered}
+     * @param recordId  of the record, should be positive
+     * @param state     of the record
+     * @param expiresAt time in unix seconds, or 0 if it never expires
+     */
+    public void put(HashId id, long recordId, ItemState state, long expiresAt) {
+        byte[] key = keyOf(id);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key);
+            if (slot < 0) {
+                if (size + deleted + 1 > capacity * MAX_LOAD) {
+                    // if most of the used slots are deleted, rehashing to the same size is enough
+                    rehash(size + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity);
+                }
+                slot = freeSlot(key);
+                if (recordIdAt(slot) == DELETED)
+                    deleted--;
+                size++;
+                ByteBuffer chunk = chunkOf(slot);
+                int offset = offsetOf(slot);
+                for (int i = 0; i < KEY_SIZE; i++)
+                    chunk.put(offset + i, key[i]);
+            }
+            ByteBuffer chunk = chunkOf(slot);
+            int offset = offsetOf(slot);
+            chunk.putLong(offset + RECORD_ID_OFFSET, recordId);
+            chunk.putLong(offset + EXPIRES_AT_OFFSET, expiresAt);
+            chunk.put(offset + STATE_OFFSET, (byte) state.ordinal());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(HashId id) {
+        if (!covers(id))
+            return;
+        lock.writeLock().lock();
+        try {
+            int slot = find(id.getDigest());
+            if (slot >= 0)
+                markDeleted(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the state of the record that is not expired.
+     *
+     * @param id of the record, must be {@link #covers(HashId) covered}
+     * @return the state or null if there is no such record or it is expired
+     */
+    public ItemState getState(HashId id) {
+        byte[] key = keyOf(id);
+        lock.readLock().lock();
+        try {
+            int slot = find(key);
+            if (slot < 0)
+                return null;
+            ByteBuffer chunk = chunkOf(slot);
+            int offset = offsetOf(slot);
+            long expiresAt = chunk.getLong(offset + EXPIRES_AT_OFFSET);
+            if (expiresAt != 0 && expiresAt * 1000 < System.currentTimeMillis())
+                return null;
+            return states[chunk.get(offset + STATE_OFFSET)];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id of the record, must be {@link #covers(HashId) covered}
+     * @return record id or 0 if the record is not indexed, expired records included
+     */
+    public long getRecordId(HashId id) {
+        byte[] key = keyOf(id);
+        lock.readLock().lock();
+        try {
+            int slot = find(key);
+            return slot < 0 ? 0 : chunkOf(slot).getLong(offsetOf(slot) + RECORD_ID_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            allocate(capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return size of the direct buffers, bytes
+     */
+    public long getMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) capacity * SLOT_SIZE;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "size", size(),
+                "memoryBytes", getMemoryBytes()
+        );
+    }
+
+    private byte[] keyOf(HashId id) {
+        byte[] key = id.getDigest();
+        if (key.length != KEY_SIZE)
+            throw new IllegalArgumentException("only " + KEY_SIZE + " bytes digests could be indexed");
+        return key;
+    }
+
+    // slot of the key or -1
+    private int find(byte[] key) {
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            long recordId = recordIdAt(slot);
+            if (recordId == EMPTY)
+                return -1;
+            if (recordId != DELETED && keyEquals(slot, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // first deleted or empty slot in the probe sequence of the key that is not in the table
+    private int freeSlot(byte[] key) {
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            long recordId = recordIdAt(slot);
+            if (recordId == EMPTY || recordId == DELETED)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void markDeleted(int slot) {
+        chunkOf(slot).putLong(offsetOf(slot) + RECORD_ID_OFFSET, DELETED);
+        size--;
+        deleted++;
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer[] oldChunks = chunks;
+        int oldCapacity = capacity;
+        int oldShift = chunkShift;
+        allocate(newCapacity);
+        byte[] key = new byte[KEY_SIZE];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer chunk = oldChunks[slot >>> oldShift];
+            int offset = (slot & ((1 << oldShift) - 1)) * SLOT_SIZE;
+            long recordId = chunk.getLong(offset + RECORD_ID_OFFSET);
+            if (recordId == EMPTY || recordId == DELETED)
+                continue;
+            for (int i = 0; i < KEY_SIZE; i++)
+                key[i] = chunk.get(offset + i);
+            int newSlot = freeSlot(key);
+            ByteBuffer newChunk = chunkOf(newSlot);
+            int newOffset = offsetOf(newSlot);
+            for (int i = 0; i < SLOT_SIZE; i++)
+                newChunk.put(newOffset + i, chunk.get(offset + i));
+            size++;
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        int chunkSlots = Math.min(newCapacity, CHUNK_SLOTS);
+        chunkShift = Integer.numberOfTrailingZeros(chunkSlots);
+        chunks = new ByteBuffer[newCapacity / chunkSlots];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = ByteBuffer.allocateDirect(chunkSlots * SLOT_SIZE);
+        capacity = newCapacity;
+        size = 0;
+        deleted = 0;
+    }
+
+    private ByteBuffer chunkOf(int slot) {
+        return chunks[slot >>> chunkShift];
+    }
+
+    private int offsetOf(int slot) {
+        return (slot & ((1 << chunkShift) - 1)) * SLOT_SIZE;
+    }
+
+    private long recordIdAt(int slot) {
+        return chunkOf(slot).getLong(offsetOf(slot) + RECORD_ID_OFFSET);
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        ByteBuffer chunk = chunkOf(slot);
+        int offset = offsetOf(slot);
+        for (int i = 0; i < KEY_SIZE; i += 8) {
+            if (chunk.getLong(offset + i) != longAt(key, i))
+                return false;
+        }
+        return true;
+    }
+
+    // big endian, like ByteBuffer
+    private static long longAt(byte[] data, int offset) {
+        long x = 0;
+        for (int i = 0; i < 8; i++)
+            x = (x << 8) | (data[offset + i] & 0xFF);
+        return x;
+    }
+
+    private static int hash(byte[] key) {
+        // digests are uniformly distributed already
+        long h = longAt(key, 0);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(long n) {
+        if (n > 1 << 30)
+            throw new IllegalArgumentException("too many records for the index: " + n);
+        int size = 1024;
+        while (size < n)
+            size <<= 1;
+        return size;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import net.sergeych.tools.Binder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory overlay of the records in the pending states with the sequential write-ahead file. While the network
+ * votes, the state of the record changes several times and is overwritten soon, so the ledger puts such changes here
+ * instead of the database and writes the record to the database when it leaves the pending states. The file only
+ * grows, each change is appended as a fixed size entry with a checksum, and it is rewritten with the current entries
+ * when it gets too large.
+ * <p>
+ * The file survives the crash of the node process, but it is not synced to the disk on each change, so changes could
+ * be lost if the OS crashes. Then the records have the states they had in the database, which the node sanitizes as
+ * usual. Entries read from the file on opening are {@link #recovered()}, the ledger should write them to the
+ * database before it is used.
+ */
+class PendingRecordsJournal implements AutoCloseable {
+
+    /**
+     * Size of the entry: record id, state, expiration, locker id and checksum.
+     */
+    static public final int ENTRY_SIZE = 8 + 4 + 8 + 8 + 4;
+
+    /**
+     * The file is rewritten with the current entries when it is larger than this and mostly holds obsolete entries.
+     */
+    static public final long COMPACT_SIZE = 16 * 1024 * 1024;
+
+    private static final ItemState[] states = ItemState.values();
+
+    /**
+     * The change of the record kept in the journal.
+     */
+    static class Entry {
+        final long recordId;
+        final ItemState state;
+        final long expiresAt;
+        final long lockedByRecordId;
+
+        Entry(long recordId, ItemState state, long expiresAt, long lockedByRecordId) {
+            this.recordId = recordId;
+            this.state = state;
+            this.expiresAt = expiresAt;
+            this.lockedByRecordId = lockedByRecordId;
+        }
+    }
+
+    private final Path path;
+    private FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final Map<Long, Entry> recovered = new LinkedHashMap<>();
+    private long size;
+    private long journaled;
+    private long compactions;
+
+    /**
+     * Open the journal, reading the entries left in the file.
+     *
+     * @param path of the journal file, created if it does not exist
+     * @throws IOException if the file could not be read
+     */
+    PendingRecordsJournal(Path path) throws IOException {
+        this.path = path;
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir != null)
+            Files.createDirectories(dir);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // the entry written partially when the process crashed ends the journal
+        while (true) {
+            buffer.clear();
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+            if (buffer.hasRemaining())
+                break;
+            buffer.flip();
+            Entry entry = decode();
+            if (entry == null)
+                break;
+            recovered.put(entry.recordId, entry);
+            size += ENTRY_SIZE;
+        }
+        channel.truncate(size);
+        channel.position(size);
+    }
+
+    /**
+     * @param record to check
+     * @return true if changes of the record should be kept in the journal instead of the database
+     */
+    static boolean accepts(StateRecord record) {
+        return record.getRecordId() != 0 && record.getState().isPending();
+    }
+
+    /**
+     * @return entries read from the file when the journal was opened, last change of each record
+     */
+    synchronized Collection<Entry> recovered() {
+        return new ArrayList<>(recovered.values());
+    }
+
+    /**
+     * Write the change of the {@link #accepts(StateRecord) accepted} record.
+     *
+     * @param record to write
+     * @throws IOException if the change could not be written, then it should be saved to the database
+     */
+    synchronized void put(StateRecord record) throws IOException {
+        Entry entry = new Entry(record.getRecordId(), record.getState(), StateRecord.unixTime(record.getExpiresAt()),
+                record.getLockedByRecordId());
+        write(channel, entry);
+        size += ENTRY_SIZE;
+        journaled++;
+        entries.put(entry.recordId, entry);
+        if (size > COMPACT_SIZE && size > 4L * entries.size() * ENTRY_SIZE)
+            compact();
+    }
+
+    /**
+     * Forget the record, when its state is saved to the database or it is destroyed. The entries already written stay
+     * in the file till the next compaction, so the recovered entries should only be applied to the records that are
+     * still pending in the database.
+     *
+     * @param recordId of the record
+     */
+    synchronized void remove(long recordId) {
+        entries.remove(recordId);
+    }
+
+    /**
+     * Update the record read from the database with the change kept in the journal, if any.
+     *
+     * @param record to update
+     * @return the same record
+     */
+    synchronized StateRecord apply(StateRecord record) {
+        Entry entry = entries.get(record.getRecordId());
+        if (entry != null) {
+            record.setState(entry.state);
+            if (entry.expiresAt != 0)
+                record.setExpiresAt(StateRecord.getTime(entry.expiresAt));
+            record.setLockedByRecordId(entry.lockedByRecordId);
+            record.clearDirty();
+        }
+        return record;
+    }
+
+    /**
+     * @return changes that are not saved to the database
+     */
+    synchronized Collection<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Rewrite the file with the current entries only, the recovered entries are forgotten.
+     *
+     * @throws IOException if the file could not be written, then the old one is left
+     */
+    synchronized void compact() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Entry entry : entries.values())
+                write(out, entry);
+            out.force(true);
+        }
+        channel.close();
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        size = channel.size();
+        channel.position(size);
+        recovered.clear();
+        compactions++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    synchronized Binder getStats() {
+        return Binder.of(
+                "pending", entries.size(),
+                "journaled", journaled,
+                "fileBytes", size,
+                "compactions", compactions
+        );
+    }
+
+    private void write(FileChannel out, Entry entry) throws IOException {
+        buffer.clear();
+        buffer.putLong(entry.recordId);
+        buffer.putInt(entry.state.ordinal());
+        buffer.putLong(entry.expiresAt);
+        buffer.putLong(entry.lockedByRecordId);
+        crc.reset();
+        crc.update(buffer.array(), 0, ENTRY_SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    // the entry in the buffer or null if it is corrupted
+    private Entry decode() {
+        crc.reset();
+        crc.update(buffer.array(), 0, ENTRY_SIZE - 4);
+        if (buffer.getInt(ENTRY_SIZE - 4) != (int) crc.getValue())
+            return null;
+        long recordId = buffer.getLong();
+        int state = buffer.getInt();
+        if (state < 0 || state >= states.length)
+            return null;
+        return new Entry(recordId, states[state], buffer.getLong(), buffer.getLong());
+    }
+}
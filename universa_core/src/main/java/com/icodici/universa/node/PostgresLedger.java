@@ -19,16 +19,34 @@ import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.biserializer.BiSerializer;
 import net.sergeych.biserializer.DefaultBiMapper;
 import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+import net.sergeych.tools.LatencyHistogram;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 
-import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The basic SQL-based ledger.
@@ -40,23 +58,94 @@ import java.util.concurrent.Callable;
 public class PostgresLedger implements Ledger {
 
     private final static int MAX_CONNECTIONS = 64;
+    private final static int MIN_CONNECTIONS = 4;
 
     private final DbPool dbPool;
 
     private boolean sqlite = false;
 
-    private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
-    private Map<Long, WeakReference<StateRecord>> cachedRecordsById = new WeakHashMap<>();
-    private boolean useCache = true;
+    private final StateRecordCache cachedRecords = new StateRecordCache();
+    private volatile boolean useCache = true;
+
+    // off-heap index of all the records, if enabled
+    private volatile OffHeapRecordIndex recordIndex;
+    // indexed ids changed by the transaction running in the thread, to index them again if it fails
+    private final ThreadLocal<Set<HashId>> transactionIndexed = new ThreadLocal<>();
+
+    // changes of the pending records kept out of the database, if enabled
+    private volatile PendingRecordsJournal pendingJournal;
+    // depth of the transactions running in the thread, the changes they make go to the database to be rolled back
+    private final ThreadLocal<int[]> transactionDepth = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * Max time the group commit writer waits for records of other callers before the transaction, milliseconds.
+     */
+    static public final int GROUP_COMMIT_DELAY_MILLIS = 2;
+
+    /**
+     * Max number of records the group commit writer saves in one transaction.
+     */
+    static public final int GROUP_COMMIT_MAX_RECORDS = 1000;
+
+    /**
+     * Default max number of rows {@link #cleanup()} deletes with one statement.
+     */
+    static public final int CLEANUP_BATCH_SIZE = 1000;
+
+    /**
+     * Range of keepTill of one items partition, seconds.
+     */
+    static public final long ITEMS_PARTITION_SECONDS = 3600;
+
+    /**
+     * Number of items partitions kept created ahead of the current time. Items with keepTill beyond them go to the
+     * default partition and are removed by deletes.
+     */
+    static public final int ITEMS_PARTITIONS_AHEAD = 24;
+
+    private static final Pattern itemsPartitionName = Pattern.compile("items_(\\d+)_(\\d+)");
+
+    // items are partitioned by keepTill, see migrate_14.sql
+    private volatile boolean itemsPartitioned = false;
+
+    private final Object cleanupLock = new Object();
+    private volatile int cleanupBatchSize = CLEANUP_BATCH_SIZE;
+    private volatile int cleanupRate = 0;
+    private volatile Duration cleanupMaxRunTime = Duration.ofMinutes(10);
+    // expiration time the interrupted cleanup run stopped at, records that expired before it are removed
+    private long cleanupFrom = 0;
+    private final CleanupStats cleanupStats = new CleanupStats();
+
+    // packed items are kept here instead of the items table, if set
+    private volatile ItemBlobStore itemBlobStore;
+
+    /**
+     * Number of threads running asynchronous ledger calls.
+     */
+    static public final int IO_THREADS = 16;
+
+    /**
+     * Max number of asynchronous calls waiting for the I/O threads. When it is reached, the caller runs the call itself,
+     * which slows it down instead of piling up the calls.
+     */
+    static public final int IO_QUEUE_SIZE = 10000;
+
+    private final ThreadPoolExecutor ioExecutor = createIoExecutor();
+
+    private final LinkedBlockingQueue<CommitRequest> commitQueue = new LinkedBlockingQueue<>();
+    private Thread commitWriter;
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final AtomicLong groupCommits = new AtomicLong();
+    private final AtomicLong groupCommittedRecords = new AtomicLong();
 
     public PostgresLedger(String connectionString, Properties properties) throws SQLException {
-        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
+        dbPool = new DbPool(connectionString, properties, MIN_CONNECTIONS, MAX_CONNECTIONS);
         init(dbPool);
     }
 
     public PostgresLedger(String connectionString) throws SQLException {
         Properties properties = new Properties();
-        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
+        dbPool = new DbPool(connectionString, properties, MIN_CONNECTIONS, MAX_CONNECTIONS);
         init(dbPool);
     }
 
@@ -68,6 +157,17 @@ public class PostgresLedger implements Ledger {
         } catch (Exception e) {
             throw new SQLException("Failed to migrate", e);
         }
+
+        try (PooledDb db = dbPool.db()) {
+            itemsPartitioned = "p".equals(db.queryOne("select relkind::text from pg_class where oid = to_regclass('items')"));
+            if (itemsPartitioned)
+                createItemsPartitions(db, Instant.now().getEpochSecond());
+        }
+
+        commitWriter = new Thread(this::groupCommitLoop);
+        commitWriter.setName("ledger-group-commit");
+        commitWriter.setDaemon(true);
+        commitWriter.start();
     }
 
     /**
@@ -90,9 +190,13 @@ public class PostgresLedger implements Ledger {
             StateRecord cached = getFromCache(itemId);
             if (cached != null)
                 return cached;
+            // only records missing from the index are skipped: expired ones are still loaded below to be destroyed
+            OffHeapRecordIndex index = recordIndex;
+            if (index != null && index.covers(itemId) && index.getRecordId(itemId) == 0)
+                return null;
             try (ResultSet rs = inPool(db -> db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest()))) {
                 if (rs != null) {
-                    StateRecord record = new StateRecord(this, rs);
+                    StateRecord record = withJournal(new StateRecord(this, rs));
                     putToCache(record);
                     return record;
                 }
@@ -110,48 +214,197 @@ public class PostgresLedger implements Ledger {
     }
 
     private StateRecord getFromCache(HashId itemId) {
-        if (useCache) {
-            synchronized (cachedRecords) {
-                WeakReference<StateRecord> ref = cachedRecords.get(itemId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecords.remove(itemId);
-                    return null;
-                }
-                return r;
-            }
-        } else
-            return null;
+        return useCache ? cachedRecords.get(itemId) : null;
     }
 
     private StateRecord getFromCacheById(long recordId) {
-        if (useCache) {
-            synchronized (cachedRecordsById) {
-                WeakReference<StateRecord> ref = cachedRecordsById.get(recordId);
-                if (ref == null)
-                    return null;
-                StateRecord r = ref.get();
-                if (r == null) {
-                    cachedRecordsById.remove(recordId);
-                    return null;
-                }
-                return r;
-            }
-        } else
-            return null;
+        return useCache ? cachedRecords.getById(recordId) : null;
     }
 
     private void putToCache(StateRecord r) {
-        if (useCache) {
-            synchronized (cachedRecords) {
-                cachedRecords.put(r.getId(), new WeakReference<StateRecord>(r));
-            }
-            synchronized (cachedRecordsById) {
-                cachedRecordsById.put(r.getRecordId(), new WeakReference<StateRecord>(r));
+        if (useCache)
+            cachedRecords.put(r);
+    }
+
+    private void indexRecord(StateRecord r) {
+        OffHeapRecordIndex index = recordIndex;
+        if (index != null && index.covers(r.getId())) {
+            index.put(r.getId(), r.getRecordId(), r.getState(), StateRecord.unixTime(r.getExpiresAt()));
+            Set<HashId> changed = transactionIndexed.get();
+            if (changed != null)
+                changed.add(r.getId());
+        }
+    }
+
+    private void unindexRecord(HashId id) {
+        OffHeapRecordIndex index = recordIndex;
+        if (index != null && index.covers(id)) {
+            index.remove(id);
+            Set<HashId> changed = transactionIndexed.get();
+            if (changed != null)
+                changed.add(id);
+        }
+    }
+
+    /**
+     * Build the off-heap index of all the records and keep it up to date from now on, so {@link #isApproved(HashId)},
+     * {@link #isConsensusFound(HashId)} and {@link #getRecord(HashId)} of missing items need no database query. Only
+     * items ids are indexed, see {@link OffHeapRecordIndex#covers(HashId)}. Call it before the ledger is used, as
+     * records changed while the index is being built could be indexed with old values.
+     *
+     * @throws SQLException if the records could not be read
+     */
+    public void enableRecordIndex() throws SQLException {
+        try (PooledDb db = dbPool.db()) {
+            long count = ((Number) db.queryOne("SELECT COUNT(*) FROM ledger")).longValue();
+            OffHeapRecordIndex index = new OffHeapRecordIndex((int) Math.min(count, Integer.MAX_VALUE / 2));
+            // the driver fetches rows with a cursor only in a transaction
+            db.transaction(() -> {
+                try (PreparedStatement statement = db.statement("SELECT hash, id, state, expires_at FROM ledger")) {
+                    statement.setFetchSize(10000);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            byte[] hash = rs.getBytes(1);
+                            if (hash.length == OffHeapRecordIndex.KEY_SIZE)
+                                index.put(HashId.withDigest(hash), rs.getLong(2),
+                                        ItemState.values()[rs.getInt(3)], rs.getLong(4));
+                        }
+                    }
+                }
+                return null;
+            });
+            recordIndex = index;
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("failed to build the record index", e);
+        }
+    }
+
+    /**
+     * @return statistics of the record index or null if it is not enabled
+     */
+    public Binder getRecordIndexStats() {
+        OffHeapRecordIndex index = recordIndex;
+        return index == null ? null : index.getStats();
+    }
+
+    /**
+     * Keep changes of the records in the pending states in the journal file instead of the database, so the changes
+     * made while the network votes are not written to the database, see {@link PendingRecordsJournal}. Changes left
+     * in the journal by the crashed node are written to the database first. Call it before the ledger is used and
+     * before {@link #enableRecordIndex()}.
+     *
+     * @param path of the journal file
+     * @throws IOException if the journal could not be read
+     * @throws SQLException if the recovered changes could not be saved
+     */
+    public void enablePendingJournal(Path path) throws IOException, SQLException {
+        PendingRecordsJournal journal = new PendingRecordsJournal(path);
+        Collection<PendingRecordsJournal.Entry> recovered = journal.recovered();
+        try {
+            saveJournalEntries(recovered);
+            journal.compact();
+        } catch (Exception e) {
+            journal.close();
+            if (e instanceof IOException)
+                throw (IOException) e;
+            if (e instanceof SQLException)
+                throw (SQLException) e;
+            throw new SQLException("failed to recover the pending records", e);
+        }
+        recovered.forEach(entry -> cachedRecords.removeById(entry.recordId));
+        pendingJournal = journal;
+    }
+
+    /**
+     * @return statistics of the pending records journal or null if it is not enabled
+     */
+    public Binder getPendingJournalStats() {
+        PendingRecordsJournal journal = pendingJournal;
+        return journal == null ? null : journal.getStats();
+    }
+
+    // entries of the records that left the pending states in the database are obsolete
+    private void saveJournalEntries(Collection<PendingRecordsJournal.Entry> entries) throws Exception {
+        if (entries.isEmpty())
+            return;
+        try (PooledDb db = dbPool.db()) {
+            db.transaction(() -> {
+                try (PreparedStatement update = db.statement(
+                        "update ledger set state=?, expires_at=?, locked_by_id=? where id=? and state in (?, ?, ?)")) {
+                    for (PendingRecordsJournal.Entry entry : entries) {
+                        update.setInt(1, entry.state.ordinal());
+                        update.setLong(2, entry.expiresAt);
+                        update.setLong(3, entry.lockedByRecordId);
+                        update.setLong(4, entry.recordId);
+                        update.setInt(5, ItemState.PENDING.ordinal());
+                        update.setInt(6, ItemState.PENDING_POSITIVE.ordinal());
+                        update.setInt(7, ItemState.PENDING_NEGATIVE.ordinal());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+                return null;
+            });
+        }
+    }
+
+    // keep the change of the pending record in the journal instead of the database, if possible
+    private boolean saveToJournal(StateRecord r) {
+        PendingRecordsJournal journal = pendingJournal;
+        if (journal == null)
+            return false;
+        if (PendingRecordsJournal.accepts(r) && transactionDepth.get()[0] == 0) {
+            try {
+                journal.put(r);
+                putToCache(r);
+                indexRecord(r);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        return false;
+    }
+
+    // the record is stored in the database, the change kept in the journal is obsolete
+    private void removeFromJournal(StateRecord r) {
+        PendingRecordsJournal journal = pendingJournal;
+        if (journal != null && r.getRecordId() != 0)
+            journal.remove(r.getRecordId());
+    }
+
+    // the record read from the database with the change from the journal
+    private StateRecord withJournal(StateRecord r) {
+        PendingRecordsJournal journal = pendingJournal;
+        return journal == null ? r : journal.apply(r);
+    }
+
+    /**
+     * Check the record using the record index if it is enabled, so it needs no query.
+     */
+    @Override
+    public boolean isApproved(HashId id) {
+        OffHeapRecordIndex index = recordIndex;
+        if (index != null && index.covers(id)) {
+            ItemState state = index.getState(id);
+            return state != null && state.isApproved();
+        }
+        return Ledger.super.isApproved(id);
+    }
+
+    /**
+     * Check the record using the record index if it is enabled, so it needs no query.
+     */
+    @Override
+    public boolean isConsensusFound(HashId id) {
+        OffHeapRecordIndex index = recordIndex;
+        if (index != null && index.covers(id)) {
+            ItemState state = index.getState(id);
+            return state != null && state.isConsensusFound();
+        }
+        return Ledger.super.isConsensusFound(id);
     }
 
 
@@ -184,7 +437,7 @@ public class PostgresLedger implements Ledger {
                     try (ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE id = ? limit 1", rc.getLockedByRecordId())) {
                         if (rs == null)
                             return null;
-                        StateRecord r = new StateRecord(this, rs);
+                        StateRecord r = withJournal(new StateRecord(this, rs));
                         putToCache(r);
                         return r;
                     } catch (Exception e) {
@@ -208,8 +461,9 @@ public class PostgresLedger implements Ledger {
             StateRecord record = getFromCache(itemId);
             if (record == null) {
                 try (ResultSet rs = inPool(db -> db.queryRow("select * from sr_find_or_create(?)", itemId.getDigest()))) {
-                    record = new StateRecord(this, rs);
+                    record = withJournal(new StateRecord(this, rs));
                     putToCache(record);
+                    indexRecord(record);
                 } catch (Exception e) {
                     e.printStackTrace();
                     throw e;
@@ -227,7 +481,7 @@ public class PostgresLedger implements Ledger {
                 try (ResultSet rs = inPool(db -> db.queryRow("select * from sr_find_unfinished()"))) {
                     if (rs != null) {
                         do {
-                            StateRecord record = new StateRecord(this, rs);
+                            StateRecord record = withJournal(new StateRecord(this, rs));
                             if (record.isExpired()) {
                                 record.destroy();
                             } else {
@@ -244,9 +498,72 @@ public class PostgresLedger implements Ledger {
             });
     }
 
+    /**
+     * Read unfinished records with one query through a cursor, so the pages come while the rest of the rows are
+     * fetched and all of them are never kept in memory by the ledger.
+     */
+    @Override
+    public void findUnfinished(int pageSize, Consumer<List<StateRecord>> consumer) {
+        List<StateRecord> expired = new ArrayList<>();
+        protect(() -> {
+            try (PooledDb db = dbPool.db()) {
+                // the driver fetches rows with a cursor only in a transaction
+                db.transaction(() -> {
+                    // the same rows as sr_find_unfinished() returns, but the function would collect all of them first
+                    try (PreparedStatement statement = db.statement(
+                            "select * from ledger where state in (?, ?, ?, ?, ?) order by id",
+                            ItemState.PENDING.ordinal(), ItemState.PENDING_POSITIVE.ordinal(),
+                            ItemState.PENDING_NEGATIVE.ordinal(), ItemState.LOCKED.ordinal(),
+                            ItemState.LOCKED_FOR_CREATION.ordinal())) {
+                        statement.setFetchSize(pageSize);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            List<StateRecord> page = new ArrayList<>(pageSize);
+                            while (rs.next()) {
+                                StateRecord record = withJournal(new StateRecord(this, rs));
+                                if (record.isExpired()) {
+                                    expired.add(record);
+                                } else {
+                                    page.add(record);
+                                    if (page.size() >= pageSize) {
+                                        consumer.accept(page);
+                                        page = new ArrayList<>(pageSize);
+                                    }
+                                }
+                            }
+                            if (!page.isEmpty())
+                                consumer.accept(page);
+                        }
+                    }
+                    return null;
+                });
+            }
+            return null;
+        });
+        for (StateRecord record : expired)
+            record.destroy();
+    }
+
+    /**
+     * Keep packed items in the given store instead of the items table, so they are written and served to other nodes
+     * as streams. Items stored in the table before are still read from it. The store removes expired items itself
+     * on {@link #cleanup()}.
+     *
+     * @param store to keep items in
+     */
+    public void setItemBlobStore(ItemBlobStore store) {
+        itemBlobStore = store;
+    }
+
     @Override
     public Approvable getItem(final StateRecord record) {
             return protect(() -> {
+                ItemBlobStore store = itemBlobStore;
+                if (store != null) {
+                    try (InputStream in = store.open(record.getId())) {
+                        if (in != null)
+                            return Contract.fromPackedTransaction(Do.read(in));
+                    }
+                }
                 try (ResultSet rs = inPool(db -> db.queryRow("select * from items where id = ?", record.getRecordId()))) {
                     if (rs == null)
                         return null;
@@ -260,7 +577,15 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void putItem(StateRecord record, Approvable item, Instant keepTill) {
-        if (item instanceof Contract) {
+        ItemBlobStore store = itemBlobStore;
+        if (store != null && item instanceof Contract) {
+            try (InputStream in = new ByteArrayInputStream(((Contract) item).getPackedTransaction())) {
+                store.put(record.getId(), in, keepTill);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new Failure("item save failed:" + e);
+            }
+        } else if (item instanceof Contract) {
             try (PooledDb db = dbPool.db()) {
                 try (
                         PreparedStatement statement =
@@ -285,6 +610,17 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    @Override
+    public InputStream openItem(HashId itemId) throws IOException {
+        ItemBlobStore store = itemBlobStore;
+        if (store != null) {
+            InputStream in = store.open(itemId);
+            if (in != null)
+                return in;
+        }
+        return Ledger.super.openItem(itemId);
+    }
+
     private <T> T protect(Callable<T> block) {
         try {
             return block.call();
@@ -296,6 +632,31 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public void close() {
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitWriter.interrupt();
+        try {
+            commitWriter.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingRecordsJournal journal = pendingJournal;
+        if (journal != null) {
+            // the journal is not needed to restart when the changes are in the database
+            try {
+                Collection<PendingRecordsJournal.Entry> entries = journal.entries();
+                saveJournalEntries(entries);
+                entries.forEach(entry -> journal.remove(entry.recordId));
+                journal.compact();
+                journal.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
         try {
             dbPool.close();
         } catch (Exception e) {
@@ -353,14 +714,53 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public <T> T transaction(Callable<T> callable) {
+        if (recordIndex == null || transactionIndexed.get() != null)
+            return transactionInDb(callable);
+        Set<HashId> changed = new HashSet<>();
+        transactionIndexed.set(changed);
+        boolean[] completed = {false};
+        boolean committed = false;
+        try {
+            T result = transactionInDb(() -> {
+                T r = callable.call();
+                completed[0] = true;
+                return r;
+            });
+            committed = completed[0];
+            return result;
+        } finally {
+            transactionIndexed.remove();
+            if (!committed)
+                reindex(changed);
+        }
+    }
+
+    private void reindex(Set<HashId> ids) {
+        for (HashId id : ids) {
+            try (ResultSet rs = inPool(db -> db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", id.getDigest()))) {
+                if (rs == null)
+                    unindexRecord(id);
+                else
+                    indexRecord(new StateRecord(this, rs));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private <T> T transactionInDb(Callable<T> callable) {
         return protect(() -> {
             // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
             // rethrow unchecked exceotions and return null on rollback.
+            int[] depth = transactionDepth.get();
+            depth[0]++;
             try (Db db = dbPool.db()) {
                 return db.transaction(() -> callable.call());
             } catch (Exception e) {
                 e.printStackTrace();
                 throw e;
+            } finally {
+                depth[0]--;
             }
         });
     }
@@ -371,6 +771,10 @@ public class PostgresLedger implements Ledger {
                 db.update("truncate ledger;");
                 return null;
             });
+            cachedRecords.clear();
+            OffHeapRecordIndex index = recordIndex;
+            if (index != null)
+                index.clear();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -388,12 +792,14 @@ public class PostgresLedger implements Ledger {
                 d.update("DELETE FROM ledger WHERE id = ?", recordId);
                 return null;
             });
-            synchronized (cachedRecords) {
-                cachedRecords.remove(record.getId());
-            }
-            synchronized (cachedRecordsById) {
-                cachedRecordsById.remove(record.getRecordId());
-            }
+            cachedRecords.remove(record);
+            unindexRecord(record.getId());
+            PendingRecordsJournal journal = pendingJournal;
+            if (journal != null)
+                journal.remove(recordId);
+            ItemBlobStore store = itemBlobStore;
+            if (store != null)
+                store.remove(record.getId());
             return null;
         });
     }
@@ -438,32 +844,15 @@ public class PostgresLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with a different ledger (make a copy!)");
 
+        if (stateRecord.getRecordId() != 0 && saveToJournal(stateRecord))
+            return;
+
         // TODO: probably, it should take a PooledDb as an argument and reuse it
         try (PooledDb db = dbPool.db()) {
             if (stateRecord.getRecordId() == 0) {
-                try (
-                        PreparedStatement statement =
-                                db.statementReturningKeys(
-                                        "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);"
-                                )
-                ) {
-                    statement.setBytes(1, stateRecord.getId().getDigest());
-                    statement.setInt(2, stateRecord.getState().ordinal());
-                    statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
-                    statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
-                    statement.setLong(5, stateRecord.getLockedByRecordId());
-                    db.updateWithStatement(statement);
-                    try (ResultSet keys = statement.getGeneratedKeys()) {
-                        if (!keys.next())
-                            throw new RuntimeException("generated keys are not supported");
-                        long id = keys.getLong(1);
-                        stateRecord.setRecordId(id);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw e;
-                }
+                insertRecord(db, stateRecord);
                 putToCache(stateRecord);
+                indexRecord(stateRecord);
             } else {
                 db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
                         stateRecord.getState().ordinal(),
@@ -471,6 +860,10 @@ public class PostgresLedger implements Ledger {
                         stateRecord.getLockedByRecordId(),
                         stateRecord.getRecordId()
                 );
+                removeFromJournal(stateRecord);
+                // other instance of the same record could be cached
+                putToCache(stateRecord);
+                indexRecord(stateRecord);
             }
         } catch (SQLException se) {
             se.printStackTrace();
@@ -481,6 +874,479 @@ public class PostgresLedger implements Ledger {
     }
 
 
+    private void insertRecord(PooledDb db, StateRecord stateRecord) throws SQLException {
+        try (
+                PreparedStatement statement =
+                        db.statementReturningKeys(
+                                "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);"
+                        )
+        ) {
+            statement.setBytes(1, stateRecord.getId().getDigest());
+            statement.setInt(2, stateRecord.getState().ordinal());
+            statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
+            statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
+            statement.setLong(5, stateRecord.getLockedByRecordId());
+            db.updateWithStatement(statement);
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                if (!keys.next())
+                    throw new RuntimeException("generated keys are not supported");
+                long id = keys.getLong(1);
+                stateRecord.setRecordId(id);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Save records using group commit: records of all callers that come during {@link #GROUP_COMMIT_DELAY_MILLIS} are
+     * written by the writer thread in one transaction with batched updates. Blocks until the records are stored.
+     *
+     * @param records are {@link StateRecord}s to save
+     * @throws Failure if the records could not be saved
+     */
+    @Override
+    public void saveAll(Collection<StateRecord> records) {
+        CompletableFuture<Void> done = enqueueCommit(records);
+        if (done == null)
+            return;
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Failure("interrupted while waiting for group commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Failure)
+                throw (Failure) e.getCause();
+            throw new Failure("group commit failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Save the record with the next group commit without waiting for it, see {@link #saveAll(Collection)}.
+     */
+    @Override
+    public CompletableFuture<Void> saveAsync(StateRecord stateRecord) {
+        try {
+            CompletableFuture<Void> done = enqueueCommit(Collections.singletonList(stateRecord));
+            return done != null ? done : CompletableFuture.completedFuture(null);
+        } catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    // future of the group commit of the changed records or null if there are no changes
+    private CompletableFuture<Void> enqueueCommit(Collection<StateRecord> records) {
+        List<StateRecord> changed = new ArrayList<>(records.size());
+        for (StateRecord r : records) {
+            if (r.getLedger() == null) {
+                r.setLedger(this);
+            } else if (r.getLedger() != this)
+                throw new IllegalStateException("can't save with a different ledger (make a copy!)");
+            // the dirty flag is cleared when the record is stored, so it is saved again if the commit fails, and only
+            // if the record was not changed after it was taken
+            if (!r.isDirty())
+                continue;
+            int modifications = r.getModifications();
+            if (saveToJournal(r))
+                r.clearDirty(modifications);
+            else
+                changed.add(r);
+        }
+        if (changed.isEmpty())
+            return null;
+
+        if (!commitWriter.isAlive())
+            throw new Failure("ledger is closed");
+        CommitRequest request = new CommitRequest(changed);
+        commitQueue.add(request);
+        return request.done;
+    }
+
+    @Override
+    public CompletableFuture<StateRecord> getRecordAsync(HashId itemId) {
+        return CompletableFuture.supplyAsync(() -> getRecord(itemId), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<StateRecord> findOrCreateAsync(HashId itemId) {
+        return CompletableFuture.supplyAsync(() -> findOrCreate(itemId), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> putItemAsync(StateRecord record, Approvable item, Instant keepTill) {
+        return CompletableFuture.runAsync(() -> putItem(record, item, keepTill), ioExecutor);
+    }
+
+    private static ThreadPoolExecutor createIoExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(IO_QUEUE_SIZE),
+                r -> {
+                    Thread thread = new Thread(r);
+                    thread.setName("ledger-io-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return statistics of the connection pool, see {@link DbPool#getStats()}
+     */
+    public Binder getDbPoolStats() {
+        return dbPool.getStats();
+    }
+
+    /**
+     * @return statistics of the I/O threads running asynchronous calls
+     */
+    public Binder getIoStats() {
+        return Binder.of(
+                "active", ioExecutor.getActiveCount(),
+                "queued", ioExecutor.getQueue().size(),
+                "completed", ioExecutor.getCompletedTaskCount()
+        );
+    }
+
+    private void groupCommitLoop() {
+        List<CommitRequest> group = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                CommitRequest request = commitQueue.take();
+                int size = 0;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GROUP_COMMIT_DELAY_MILLIS);
+                // collect records of the concurrently committing callers
+                while (request != null) {
+                    group.add(request);
+                    size += request.records.size();
+                    if (size >= GROUP_COMMIT_MAX_RECORDS)
+                        break;
+                    request = commitQueue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                commitGroup(group);
+                group.clear();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        // requests collected before the interruption and not yet taken ones
+        Failure failure = new Failure("ledger is closed");
+        group.forEach(r -> r.done.completeExceptionally(failure));
+        commitQueue.forEach(r -> r.done.completeExceptionally(failure));
+    }
+
+    private void commitGroup(List<CommitRequest> group) {
+        try {
+            writeGroup(group);
+            completeGroup(group);
+            return;
+        } catch (Exception e) {
+            if (group.size() == 1) {
+                e.printStackTrace();
+                group.get(0).done.completeExceptionally(new Failure("StateRecord group commit failed:" + e, e));
+                return;
+            }
+        }
+        // one bad request should not fail everybody: retry them one by one
+        for (CommitRequest request : group) {
+            List<CommitRequest> single = Collections.singletonList(request);
+            try {
+                writeGroup(single);
+                completeGroup(single);
+            } catch (Exception e) {
+                e.printStackTrace();
+                request.done.completeExceptionally(new Failure("StateRecord group commit failed:" + e, e));
+            }
+        }
+    }
+
+    // writes the records of the requests in one transaction, new records get their ids only if it commits
+    private void writeGroup(List<CommitRequest> group) throws Exception {
+        List<StateRecord> inserted = new ArrayList<>();
+        try (PooledDb db = dbPool.db()) {
+            db.transaction(() -> {
+                try (PreparedStatement update = db.statement("update ledger set state=?, expires_at=?, locked_by_id=? where id=?")) {
+                    for (CommitRequest request : group) {
+                        for (StateRecord r : request.records) {
+                            if (r.getRecordId() == 0) {
+                                insertRecord(db, r);
+                                inserted.add(r);
+                            } else {
+                                update.setInt(1, r.getState().ordinal());
+                                update.setLong(2, StateRecord.unixTime(r.getExpiresAt()));
+                                update.setLong(3, r.getLockedByRecordId());
+                                update.setLong(4, r.getRecordId());
+                                update.addBatch();
+                            }
+                        }
+                    }
+                    update.executeBatch();
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // the rows are rolled back, so are their ids
+            inserted.forEach(StateRecord::resetRecordId);
+            throw e;
+        }
+    }
+
+    private void completeGroup(List<CommitRequest> group) {
+        long now = System.nanoTime();
+        groupCommits.incrementAndGet();
+        for (CommitRequest request : group) {
+            for (int i = 0; i < request.records.size(); i++) {
+                StateRecord r = request.records.get(i);
+                r.clearDirty(request.modifications[i]);
+                // a pending record changed again while committing has the newer change in the journal
+                if (!PendingRecordsJournal.accepts(r))
+                    removeFromJournal(r);
+            }
+            request.records.forEach(this::putToCache);
+            request.records.forEach(this::indexRecord);
+            groupCommittedRecords.addAndGet(request.records.size());
+            commitLatency.record(now - request.createdAt);
+            request.done.complete(null);
+        }
+    }
+
+    /**
+     * Lock all the records with one statement. The conditions of {@link StateRecord#lockToRevoke(HashId)} are checked
+     * by the database: the record must be approved, locked by the locker, or locked by an expired, declined or
+     * discarded record.
+     */
+    @Override
+    public Map<HashId, StateRecord> lockToRevoke(StateRecord locker, Collection<HashId> idsToRevoke) {
+        if (locker.getState() != ItemState.PENDING)
+            throw new IllegalStateException("only pending records are allowed to lock others");
+        Map<HashId, StateRecord> locked = new HashMap<>();
+        forEachChunk(idsToRevoke, ids -> {
+            long now = Instant.now().getEpochSecond();
+            List<Object> args = new ArrayList<>();
+            args.add(ItemState.LOCKED.ordinal());
+            args.add(locker.getRecordId());
+            args.addAll(digestsOf(ids));
+            args.add(now);
+            args.add(ItemState.APPROVED.ordinal());
+            args.add(ItemState.LOCKED.ordinal());
+            args.add(locker.getRecordId());
+            args.add(now);
+            args.add(ItemState.DECLINED.ordinal());
+            args.add(ItemState.DISCARDED.ordinal());
+            String sql = "update ledger set state = ?, locked_by_id = ? " +
+                    "where hash in (" + placeholders(ids.size()) + ") and expires_at >= ? " +
+                    "and (state = ? or state = ? and (locked_by_id = ? or not exists (" +
+                    "select 1 from ledger o where o.id = ledger.locked_by_id and o.expires_at >= ? and o.state not in (?, ?)" +
+                    "))) returning *";
+            try (PooledDb db = dbPool.db();
+                 PreparedStatement statement = db.statement(sql, args.toArray());
+                 ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    StateRecord r = adoptRecord(rs);
+                    locked.put(r.getId(), r);
+                }
+            }
+        });
+        return locked;
+    }
+
+    /**
+     * Create all the records with two statements: one drops expired records with the same ids, the other inserts the
+     * records that do not exist and returns them with the records already locked for creation by the creator.
+     */
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(StateRecord creator, Collection<HashId> newItemIds) {
+        if (creator.getRecordId() == 0)
+            throw new IllegalStateException("the record must be created");
+        if (creator.getState() != ItemState.PENDING)
+            throw new IllegalStateException("wrong state to createOutputLockRecord: " + creator.getState());
+        Map<HashId, StateRecord> locked = new HashMap<>();
+        forEachChunk(newItemIds, ids -> {
+            for (HashId id : ids) {
+                StateRecord cached = getFromCache(id);
+                if (cached != null && cached.isExpired())
+                    cachedRecords.remove(cached);
+            }
+            long now = Instant.now().getEpochSecond();
+            List<Object> digests = digestsOf(ids);
+            List<Object> args = new ArrayList<>(digests);
+            args.add(now);
+            try (PooledDb db = dbPool.db()) {
+                db.update("with expired as (delete from ledger where hash in (" + placeholders(ids.size()) +
+                        ") and expires_at < ? returning id) delete from items where id in (select id from expired)",
+                        args.toArray());
+
+                args.clear();
+                StringBuilder values = new StringBuilder();
+                for (Object digest : digests) {
+                    if (values.length() > 0)
+                        values.append(",");
+                    values.append("(?,?,?,?,?)");
+                    args.add(digest);
+                    args.add(ItemState.LOCKED_FOR_CREATION.ordinal());
+                    args.add(now);
+                    args.add(now + 300);
+                    args.add(creator.getRecordId());
+                }
+                args.addAll(digests);
+                args.add(ItemState.LOCKED_FOR_CREATION.ordinal());
+                args.add(creator.getRecordId());
+                // the select does not see the rows inserted by the same statement, so they are not returned twice
+                String sql = "with created as (" +
+                        "insert into ledger(hash, state, created_at, expires_at, locked_by_id) values " + values +
+                        " on conflict (hash) do nothing returning *) " +
+                        "select * from created union all select * from ledger " +
+                        "where hash in (" + placeholders(ids.size()) + ") and state = ? and locked_by_id = ?";
+                try (PreparedStatement statement = db.statement(sql, args.toArray());
+                     ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        StateRecord r = adoptRecord(rs);
+                        locked.put(r.getId(), r);
+                    }
+                }
+            }
+        });
+        return locked;
+    }
+
+    /**
+     * Release all the locks with two statements: one approves locked records, the other destroys records locked for
+     * creation.
+     */
+    @Override
+    public void unlockAll(Collection<StateRecord> records) {
+        List<StateRecord> locked = new ArrayList<>();
+        List<StateRecord> lockedForCreation = new ArrayList<>();
+        for (StateRecord r : records) {
+            if (r.getState() == ItemState.LOCKED)
+                locked.add(r);
+            else if (r.getState() == ItemState.LOCKED_FOR_CREATION && r.getRecordId() != 0)
+                lockedForCreation.add(r);
+        }
+        forEachChunk(locked, chunk -> {
+            List<Object> args = new ArrayList<>();
+            args.add(ItemState.APPROVED.ordinal());
+            args.addAll(recordIdsOf(chunk));
+            try (PooledDb db = dbPool.db()) {
+                db.update("update ledger set state = ?, locked_by_id = 0 where id in (" +
+                        placeholders(chunk.size()) + ")", args.toArray());
+            }
+            for (StateRecord r : chunk) {
+                boolean wasDirty = r.isDirty();
+                r.setState(ItemState.APPROVED);
+                r.setLockedByRecordId(0);
+                // only the values set here are stored, the changes made before are left to be saved
+                if (!wasDirty)
+                    r.clearDirty();
+                putToCache(r);
+                indexRecord(r);
+            }
+        });
+        forEachChunk(lockedForCreation, chunk -> {
+            try (PooledDb db = dbPool.db()) {
+                db.update("with destroyed as (delete from ledger where id in (" + placeholders(chunk.size()) +
+                        ") returning id) delete from items where id in (select id from destroyed)",
+                        recordIdsOf(chunk).toArray());
+            }
+            for (StateRecord r : chunk) {
+                cachedRecords.remove(r);
+                unindexRecord(r.getId());
+            }
+        });
+    }
+
+    /**
+     * Max number of records in one statement of the bulk operations.
+     */
+    static public final int BULK_CHUNK_SIZE = 512;
+
+    private interface ChunkConsumer<T> {
+        void accept(List<T> chunk) throws Exception;
+    }
+
+    // the chunk size is rounded up to the power of two repeating the last value, so there are only a few different
+    // statements to prepare and cache
+    private <T> void forEachChunk(Collection<T> values, ChunkConsumer<T> consumer) {
+        List<T> all = new ArrayList<>(new LinkedHashSet<>(values));
+        for (int from = 0; from < all.size(); from += BULK_CHUNK_SIZE) {
+            List<T> chunk = new ArrayList<>(all.subList(from, Math.min(all.size(), from + BULK_CHUNK_SIZE)));
+            int size = Integer.highestOneBit(chunk.size());
+            if (size < chunk.size())
+                size <<= 1;
+            T last = chunk.get(chunk.size() - 1);
+            while (chunk.size() < size)
+                chunk.add(last);
+            protect(() -> {
+                consumer.accept(chunk);
+                return null;
+            });
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++)
+            sb.append(i == 0 ? "?" : ",?");
+        return sb.toString();
+    }
+
+    private static List<Object> digestsOf(List<HashId> ids) {
+        List<Object> digests = new ArrayList<>(ids.size());
+        ids.forEach(id -> digests.add(id.getDigest()));
+        return digests;
+    }
+
+    private static List<Object> recordIdsOf(List<StateRecord> records) {
+        List<Object> recordIds = new ArrayList<>(records.size());
+        records.forEach(r -> recordIds.add(r.getRecordId()));
+        return recordIds;
+    }
+
+    // the cached instance of the record is updated, so everybody holding it sees the change
+    private StateRecord adoptRecord(ResultSet rs) throws Exception {
+        StateRecord r = getFromCacheById(rs.getLong("id"));
+        if (r != null) {
+            r.initFrom(rs);
+            withJournal(r);
+        } else {
+            r = withJournal(new StateRecord(this, rs));
+            putToCache(r);
+        }
+        indexRecord(r);
+        return r;
+    }
+
+    @Override
+    public Binder getCommitStats() {
+        return Binder.of(
+                "groupCommits", groupCommits.get(),
+                "records", groupCommittedRecords.get(),
+                "latency", commitLatency.getStats()
+        );
+    }
+
+    private static class CommitRequest {
+        private final List<StateRecord> records;
+        // changes counters of the records when they were enqueued, see StateRecord.clearDirty(int)
+        private final int[] modifications;
+        private final long createdAt = System.nanoTime();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private CommitRequest(List<StateRecord> records) {
+            this.records = records;
+            modifications = new int[records.size()];
+            for (int i = 0; i < modifications.length; i++)
+                modifications[i] = records.get(i).getModifications();
+        }
+    }
+
+
     @Override
     public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
         try {
@@ -493,6 +1359,7 @@ public class PostgresLedger implements Ledger {
                 if (rs == null)
                     throw new StateRecord.NotFoundException("record not found");
                 stateRecord.initFrom(rs);
+                withJournal(stateRecord);
             } catch (Exception e) {
                 e.printStackTrace();
                 throw e;
@@ -514,7 +1381,6 @@ public class PostgresLedger implements Ledger {
         } else {
             this.useCache = false;
             cachedRecords.clear();
-            cachedRecordsById.clear();
         }
     }
 
@@ -676,25 +1542,182 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    /**
+     * Remove expired records and items in batches of {@link #setCleanupLimits(int, int, Duration) limited} size,
+     * records in the order of expiration. Each batch is a separate statement, so it holds locks for a short time. If
+     * the run takes too long it stops, and the next run continues from the expiration time it reached.
+     */
     public void cleanup() {
-        try (PooledDb db = dbPool.db()) {
-
+        synchronized (cleanupLock) {
+            long started = System.currentTimeMillis();
+            long deadline = started + cleanupMaxRunTime.toMillis();
             long now = Instant.now().getEpochSecond();
-            String sqlText = "delete from items where id in (select id from ledger where expires_at < ?);";
-            db.update(sqlText, now);
+            long records = 0;
+            long items = 0;
+            boolean completed = false;
+            try {
+                if (itemsPartitioned) {
+                    try (PooledDb db = dbPool.db()) {
+                        cleanupStats.addDroppedPartitions(dropExpiredItemsPartitions(db, now));
+                        createItemsPartitions(db, now);
+                    }
+                }
+                while (true) {
+                    long[] removed = removeExpiredRecords(cleanupFrom, now);
+                    records += removed[0];
+                    if (removed[0] > 0)
+                        cleanupFrom = removed[1];
+                    if (removed[0] < cleanupBatchSize)
+                        break;
+                    if (!throttleCleanup(started, deadline, records + items))
+                        return;
+                }
+                // rows expired in the past could be added after the interrupted run, start from the beginning next time
+                cleanupFrom = 0;
+                while (true) {
+                    int removed = removeOldItems(now);
+                    items += removed;
+                    if (removed < cleanupBatchSize)
+                        break;
+                    if (!throttleCleanup(started, deadline, records + items))
+                        return;
+                }
+                ItemBlobStore store = itemBlobStore;
+                if (store != null)
+                    items += store.removeExpired(Instant.ofEpochSecond(now));
+                completed = true;
+            } catch (SQLException | IOException se) {
+                se.printStackTrace();
+                throw new Failure("cleanup failed:" + se);
+            } finally {
+                cleanupStats.add(records, items, System.currentTimeMillis() - started, completed);
+            }
+        }
+    }
 
-            sqlText = "delete from ledger where expires_at < ?;";
-            db.update(sqlText, now);
+    // from and to of the existing items partitions, except the default one
+    private List<long[]> itemsPartitions(Db db) throws SQLException {
+        List<long[]> partitions = new ArrayList<>();
+        try (PreparedStatement statement = db.statement(
+                "select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid " +
+                        "where i.inhparent = to_regclass('items')");
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                Matcher m = itemsPartitionName.matcher(rs.getString(1));
+                if (m.matches())
+                    partitions.add(new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2))});
+            }
+        }
+        return partitions;
+    }
+
+    private void createItemsPartitions(Db db, long now) throws SQLException {
+        Set<Long> existing = new HashSet<>();
+        for (long[] p : itemsPartitions(db))
+            existing.add(p[0]);
+        long start = now - now % ITEMS_PARTITION_SECONDS;
+        for (int i = 0; i <= ITEMS_PARTITIONS_AHEAD; i++) {
+            long from = start + i * ITEMS_PARTITION_SECONDS;
+            if (existing.contains(from))
+                continue;
+            long to = from + ITEMS_PARTITION_SECONDS;
+            String name = "items_" + from + "_" + to;
+            try {
+                // items of the range could be in the default partition already, they are moved before attaching, as
+                // the new partition can't be attached while the default one has rows for it
+                db.transaction(() -> {
+                    db.execute("create table " + name + " (like items including defaults)");
+                    db.update("with moved as (delete from items_default where keepTill >= ? and keepTill < ? " +
+                            "returning *) insert into " + name + " select * from moved", from, to);
+                    db.execute("alter table items attach partition " + name +
+                            " for values from (" + from + ") to (" + to + ")");
+                    return null;
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new SQLException("failed to create items partition " + name, e);
+            }
+        }
+    }
 
-            sqlText = "delete from items where keepTill < ?;";
-            db.update(sqlText, now);
+    // items partitions that are entirely expired are detached and dropped without deleting rows one by one
+    private int dropExpiredItemsPartitions(Db db, long now) throws SQLException {
+        int dropped = 0;
+        for (long[] p : itemsPartitions(db)) {
+            if (p[1] <= now) {
+                String name = "items_" + p[0] + "_" + p[1];
+                db.execute("alter table items detach partition " + name);
+                db.execute("drop table " + name);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
 
+    // returns the number of removed records and the last expiration time
+    private long[] removeExpiredRecords(long from, long now) throws SQLException {
+        try (PooledDb db = dbPool.db();
+             PreparedStatement statement = db.statement(
+                     "with expired as (select id from ledger where expires_at >= ? and expires_at < ? " +
+                             "order by expires_at limit ?), " +
+                             "removed_items as (delete from items where id in (select id from expired)), " +
+                             "removed as (delete from ledger where id in (select id from expired) " +
+                             "returning id, expires_at, hash) " +
+                             "select id, expires_at, hash from removed",
+                     from, now, cleanupBatchSize);
+             ResultSet rs = statement.executeQuery()) {
+            long count = 0;
+            long maxExpiresAt = 0;
+            while (rs.next()) {
+                // cached records of the deleted rows must not be saved again
+                cachedRecords.removeById(rs.getLong(1));
+                // the index is cleaned by the batch too, with no scan of the whole table
+                unindexRecord(HashId.withDigest(rs.getBytes(3)));
+                maxExpiresAt = Math.max(maxExpiresAt, rs.getLong(2));
+                count++;
+            }
+            return new long[]{count, maxExpiresAt};
+        }
+    }
 
-        } catch (SQLException se) {
-            se.printStackTrace();
-            throw new Failure("cleanup failed:" + se);
+    private int removeOldItems(long now) throws SQLException {
+        try (PooledDb db = dbPool.db();
+             PreparedStatement statement = db.statement(
+                     "delete from items where id in (select id from items where keepTill < ? limit ?)",
+                     now, cleanupBatchSize)) {
+            return statement.executeUpdate();
+        }
+    }
 
+    // sleep to keep the rate limit, false if the run should stop
+    private boolean throttleCleanup(long started, long deadline, long removed) {
+        int rate = cleanupRate;
+        if (rate > 0) {
+            long pause = started + removed * 1000 / rate - System.currentTimeMillis();
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
+        return System.currentTimeMillis() < deadline;
+    }
+
+    @Override
+    public void setCleanupLimits(int batchSize, int maxRowsPerSecond, Duration maxRunTime) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("cleanup batch size must be positive");
+        cleanupBatchSize = batchSize;
+        cleanupRate = Math.max(0, maxRowsPerSecond);
+        cleanupMaxRunTime = maxRunTime;
+    }
+
+    @Override
+    public Binder getCleanupStats() {
+        return cleanupStats.getStats();
     }
 
     public void savePayment(int amount, ZonedDateTime date) {
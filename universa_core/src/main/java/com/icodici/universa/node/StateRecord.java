@@ -32,6 +32,8 @@ public class StateRecord implements HashIdentifiable {
 
     private Ledger ledger;
     private boolean dirty;
+    // incremented with every change, so a ledger saving the record asynchronously knows it was changed meanwhile
+    private volatile int modifications;
     private long recordId;
     private long lockedByRecordId;
 
@@ -60,6 +62,20 @@ public class StateRecord implements HashIdentifiable {
         lockedByRecordId = rs.getInt("locked_by_id");
     }
 
+    /**
+     * Init from the values stored by a ledger that does not use SQL, times are in unix seconds like in SQL ledgers.
+     */
+    void initFrom(long recordId, HashId id, ItemState state, long createdAt, long expiresAt, long lockedByRecordId) {
+        this.recordId = recordId;
+        this.id = id;
+        this.state = state;
+        this.createdAt = getTime(createdAt);
+        this.expiresAt = getTime(expiresAt);
+        if (this.expiresAt == null)
+            this.expiresAt = this.createdAt.plusMonths(3);
+        this.lockedByRecordId = lockedByRecordId;
+    }
+
     public StateRecord(Ledger ledger) {
         this.ledger = ledger;
         createdAt = ZonedDateTime.now();
@@ -79,6 +95,38 @@ public class StateRecord implements HashIdentifiable {
         return dirty;
     }
 
+    /**
+     * Clear the dirty flag if it was set, for the ledgers that save records bypassing {@link #save()}.
+     *
+     * @return true if the record was dirty
+     */
+    boolean clearDirty() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    /**
+     * @return the counter of changes, to pass to {@link #clearDirty(int)} when the stored values are taken
+     */
+    int getModifications() {
+        return modifications;
+    }
+
+    /**
+     * Clear the dirty flag unless the record was changed after the given {@link #getModifications()}, so the change
+     * made while the record was being stored is saved next time.
+     *
+     * @param modifications value of {@link #getModifications()} when the record was taken to be stored
+     * @return true if the flag was cleared
+     */
+    boolean clearDirty(int modifications) {
+        if (this.modifications != modifications)
+            return false;
+        dirty = false;
+        return true;
+    }
+
     public StateRecord(HashId id) {
         this.id = id;
     }
@@ -95,6 +143,7 @@ public class StateRecord implements HashIdentifiable {
 
     protected void setDirty() {
         dirty = true;
+        modifications++;
     }
 
     public final StateRecord setState(ItemState newState) {
@@ -185,6 +234,13 @@ public class StateRecord implements HashIdentifiable {
         this.recordId = recordId;
     }
 
+    /**
+     * Forget the recordId assigned by the insert that was rolled back, so the record is inserted again next time.
+     */
+    void resetRecordId() {
+        this.recordId = 0;
+    }
+
     private void checkLedgerExists() {
         if (ledger == null)
             throw new IllegalStateException("connect to ledger to set recordId");
@@ -197,7 +253,7 @@ public class StateRecord implements HashIdentifiable {
     public void setLockedByRecordId(long lockedByRecordId) {
         if (lockedByRecordId != this.lockedByRecordId) {
             this.lockedByRecordId = lockedByRecordId;
-            dirty = true;
+            setDirty();
         }
     }
 
@@ -206,7 +262,7 @@ public class StateRecord implements HashIdentifiable {
             if (this.id != null)
                 throw new IllegalStateException("can't change id of StateRecord");
             this.id = id;
-            dirty = true;
+            setDirty();
         }
     }
 
@@ -370,7 +426,7 @@ public class StateRecord implements HashIdentifiable {
     public StateRecord setExpiresAt(@NonNull ZonedDateTime expiresAt) {
         if( !this.expiresAt.equals(expiresAt) ) {
             this.expiresAt = expiresAt;
-            dirty = true;
+            setDirty();
         }
         return this;
     }
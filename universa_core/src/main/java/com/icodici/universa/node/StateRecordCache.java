@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded concurrent cache of {@link StateRecord}s used by the SQL ledgers. Records are accessible both by item id and
+ * by record id, reads do not lock. When the cache is full, the records are evicted with the CLOCK algorithm
+ * (approximate LRU): records read since the last pass of the clock hand get a second chance.
+ * <p>
+ * Evicted records are kept weakly until they are collected, and a lookup brings them back. So while a record is used
+ * somewhere, e.g. by an item processor, the ledger finds the same instance and never makes a second one.
+ * <p>
+ * Records are held strongly, so the ledger must {@link #remove(StateRecord)} them explicitly when they are destroyed,
+ * and {@link #removeById(long)} the records changed or deleted by SQL.
+ */
+class StateRecordCache {
+
+    /**
+     * Default max number of cached records.
+     */
+    static public final int DEFAULT_MAX_SIZE = 100000;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<HashId, Entry> byHash = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Entry> byId = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+    // entries removed from the maps but still sitting in the clock queue
+    private final AtomicInteger staleEntries = new AtomicInteger();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private final ConcurrentHashMap<HashId, EvictedEntry> evictedByHash = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, EvictedEntry> evictedById = new ConcurrentHashMap<>();
+    private final ReferenceQueue<StateRecord> collected = new ReferenceQueue<>();
+
+    StateRecordCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    StateRecordCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public StateRecord get(HashId itemId) {
+        Entry e = byHash.get(itemId);
+        return e != null ? record(e) : revive(evictedByHash.get(itemId));
+    }
+
+    public StateRecord getById(long recordId) {
+        Entry e = byId.get(recordId);
+        return e != null ? record(e) : revive(evictedById.get(recordId));
+    }
+
+    // the evicted record still in use goes back to the cache
+    private StateRecord revive(EvictedEntry evicted) {
+        if (evicted == null)
+            return null;
+        StateRecord r = evicted.get();
+        if (r != null)
+            put(r);
+        return r;
+    }
+
+    private StateRecord record(Entry e) {
+        if (e == null)
+            return null;
+        e.referenced = true;
+        return e.record;
+    }
+
+    /**
+     * Put the record to the cache, replacing any other instance cached with the same item or record id.
+     *
+     * @param r is {@link StateRecord} to cache
+     */
+    public void put(StateRecord r) {
+        HashId hash = r.getId();
+        long recordId = r.getRecordId();
+        purgeCollected();
+        forgetEvicted(hash, recordId);
+        Entry current = byHash.get(hash);
+        if (current != null && current.record == r && current.recordId == recordId) {
+            // already there, e.g. saved again
+            current.referenced = true;
+            return;
+        }
+        Entry e = new Entry(r, hash, recordId);
+        Entry old = byHash.put(hash, e);
+        if (old != null)
+            unlink(old, false);
+        if (recordId != 0) {
+            old = byId.put(recordId, e);
+            if (old != null)
+                unlink(old, true);
+        }
+        clock.offer(e);
+        evictIfNeeded();
+        compactIfNeeded();
+    }
+
+    /**
+     * Remove the record from the cache, if it is there.
+     *
+     * @param r is {@link StateRecord} to remove
+     */
+    public void remove(StateRecord r) {
+        Entry e = byHash.get(r.getId());
+        if (e != null)
+            remove(e);
+        e = byId.get(r.getRecordId());
+        if (e != null)
+            remove(e);
+        forgetEvicted(r.getId(), r.getRecordId());
+    }
+
+    /**
+     * Remove the record with the given record id from the cache, if it is there. Used when the row was changed or
+     * deleted by SQL, so the cached instance is obsolete.
+     *
+     * @param recordId is id of the record to remove
+     */
+    public void removeById(long recordId) {
+        Entry e = byId.get(recordId);
+        if (e != null)
+            remove(e);
+        EvictedEntry evicted = evictedById.remove(recordId);
+        if (evicted != null)
+            evictedByHash.remove(evicted.hash, evicted);
+    }
+
+    public void clear() {
+        byHash.clear();
+        byId.clear();
+        clock.clear();
+        staleEntries.set(0);
+        evictedByHash.clear();
+        evictedById.clear();
+    }
+
+    public int size() {
+        return byHash.size();
+    }
+
+    private boolean remove(Entry e) {
+        if (byHash.remove(e.hash, e)) {
+            if (e.recordId != 0)
+                byId.remove(e.recordId, e);
+            staleEntries.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // drops the replaced entry from the other map too
+    private void unlink(Entry old, boolean fromHash) {
+        if (fromHash) {
+            if (byHash.remove(old.hash, old))
+                staleEntries.incrementAndGet();
+        } else {
+            if (old.recordId != 0)
+                byId.remove(old.recordId, old);
+            staleEntries.incrementAndGet();
+        }
+    }
+
+    private void evictIfNeeded() {
+        while (byHash.size() > maxSize) {
+            Entry e = clock.poll();
+            if (e == null)
+                break;
+            if (byHash.get(e.hash) != e) {
+                staleEntries.decrementAndGet();
+            } else if (e.referenced) {
+                e.referenced = false;
+                clock.offer(e);
+            } else if (remove(e)) {
+                staleEntries.decrementAndGet();
+                EvictedEntry evicted = new EvictedEntry(e, collected);
+                evictedByHash.put(e.hash, evicted);
+                if (e.recordId != 0)
+                    evictedById.put(e.recordId, evicted);
+            }
+        }
+    }
+
+    private void forgetEvicted(HashId hash, long recordId) {
+        EvictedEntry evicted = evictedByHash.remove(hash);
+        if (evicted != null && evicted.recordId != 0)
+            evictedById.remove(evicted.recordId, evicted);
+        if (recordId != 0) {
+            evicted = evictedById.remove(recordId);
+            if (evicted != null)
+                evictedByHash.remove(evicted.hash, evicted);
+        }
+    }
+
+    private void purgeCollected() {
+        EvictedEntry evicted;
+        while ((evicted = (EvictedEntry) collected.poll()) != null) {
+            evictedByHash.remove(evicted.hash, evicted);
+            if (evicted.recordId != 0)
+                evictedById.remove(evicted.recordId, evicted);
+        }
+    }
+
+    private void compactIfNeeded() {
+        // amortized: the queue is compacted only when most of it is garbage
+        if (staleEntries.get() > byHash.size() && compacting.compareAndSet(false, true)) {
+            try {
+                Iterator<Entry> it = clock.iterator();
+                while (it.hasNext()) {
+                    Entry e = it.next();
+                    if (byHash.get(e.hash) != e) {
+                        it.remove();
+                        staleEntries.decrementAndGet();
+                    }
+                }
+            } finally {
+                compacting.set(false);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final StateRecord record;
+        private final HashId hash;
+        private final long recordId;
+        private volatile boolean referenced;
+
+        private Entry(StateRecord record, HashId hash, long recordId) {
+            this.record = record;
+            this.hash = hash;
+            this.recordId = recordId;
+        }
+    }
+
+    private static class EvictedEntry extends WeakReference<StateRecord> {
+        private final HashId hash;
+        private final long recordId;
+
+        private EvictedEntry(Entry e, ReferenceQueue<StateRecord> queue) {
+            super(e.record, queue);
+            this.hash = e.hash;
+            this.recordId = e.recordId;
+        }
+    }
+}
@@ -11,6 +11,7 @@ import net.sergeych.tools.Binder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Interface for generic HTTP server implementation to be used in the Universa project.
@@ -143,6 +144,15 @@ public interface BasicHTTPService extends AutoCloseable {
          */
         void setBody(byte[] bodyAsBytes);
 
+        /**
+         * Set the body to be streamed from the given source, so it is not loaded into memory. The stream is closed
+         * when the response is sent.
+         *
+         * @param bodyAsStream body in the form of stream.
+         *                     if the mime-type header was not set, set it to application/octet-stream
+         */
+        void setBody(InputStream bodyAsStream);
+
         /**
          * Set the HTTP response code to specific value.
          *
@@ -19,6 +19,7 @@ import org.nanohttpd.protocols.http.response.IStatus;
 import org.nanohttpd.protocols.http.response.Status;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -194,6 +195,9 @@ public class MicroHTTPDService implements BasicHTTPService {
         @NonNull
         byte[] body = new byte[0];
 
+        @Nullable
+        InputStream bodyStream = null;
+
         @Nullable
         String error = null;
 
@@ -227,6 +231,13 @@ public class MicroHTTPDService implements BasicHTTPService {
         public void setBody(byte[] bodyAsBytes) {
             assert bodyAsBytes != null;
             this.body = bodyAsBytes;
+            this.bodyStream = null;
+        }
+
+        @Override
+        public void setBody(InputStream bodyAsStream) {
+            assert bodyAsStream != null;
+            this.bodyStream = bodyAsStream;
         }
 
         @Override
@@ -327,11 +338,18 @@ public class MicroHTTPDService implements BasicHTTPService {
                 // Let's create the final response.
                 byte[] body = responsePlaceholder.body;
 
-                final org.nanohttpd.protocols.http.response.Response response = org.nanohttpd.protocols.http.response.Response.newFixedLengthResponse(
-                        Status.lookup(responsePlaceholder.responseCode),
-                        "application/octet-stream",
-                        body
-                );
+                // streamed bodies are sent chunked, nanohttpd closes the stream when the response is sent
+                final org.nanohttpd.protocols.http.response.Response response = responsePlaceholder.bodyStream != null ?
+                        org.nanohttpd.protocols.http.response.Response.newChunkedResponse(
+                                Status.lookup(responsePlaceholder.responseCode),
+                                "application/octet-stream",
+                                responsePlaceholder.bodyStream
+                        ) :
+                        org.nanohttpd.protocols.http.response.Response.newFixedLengthResponse(
+                                Status.lookup(responsePlaceholder.responseCode),
+                                "application/octet-stream",
+                                body
+                        );
 
                 // Let's add the headers from the constructed response
                 for (Map.Entry<String, Object> entry : responsePlaceholder.getHeaders().entrySet()) {
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of the node in-memory caches. Records are bounded by the total size in bytes and expire after the given age.
+ * <p>
+ * Expiration uses a hashed timer wheel: each record is put to the slot of its expiration tick, and the cleaner visits
+ * only slots whose ticks have passed, so expiration does not scan the whole cache. When the size budget is exceeded,
+ * records are evicted with the CLOCK algorithm (approximate LRU): records that were read since the last pass of the
+ * clock hand get a second chance.
+ *
+ * @param <T> type of the cached objects
+ */
+abstract class BoundedCache<T> {
+
+    /**
+     * Default size budget of the cache, bytes.
+     */
+    static public final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Size accounted for each record in addition to its own size, bytes.
+     */
+    static public final int RECORD_OVERHEAD = 256;
+
+    /**
+     * Number of slots in the expiration timer wheel.
+     */
+    static public final int WHEEL_SLOTS = 512;
+
+    private final Duration maxAge;
+    private final long maxBytes;
+    private final long tickMillis;
+    private final Timer cleanerTimer;
+
+    private final ConcurrentHashMap<HashId, Record> records = new ConcurrentHashMap<>();
+    private final List<ConcurrentLinkedQueue<Record>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private final ConcurrentLinkedQueue<Record> clock = new ConcurrentLinkedQueue<>();
+    private long lastTick;
+
+    private final AtomicLong bytes = new AtomicLong();
+    // records removed from the map but still sitting in the clock queue
+    private final AtomicInteger staleClockRecords = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    protected BoundedCache(String name, Duration maxAge, long maxBytes) {
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        tickMillis = Math.max(1, Math.min(1000, maxAge.toMillis() / 8));
+        for (int i = 0; i < WHEEL_SLOTS; i++)
+            wheel.add(new ConcurrentLinkedQueue<>());
+        lastTick = System.currentTimeMillis() / tickMillis;
+
+        long period = Math.max(tickMillis, 100);
+        cleanerTimer = new Timer(name, true);
+        cleanerTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                cleanUp();
+            }
+        }, period, period);
+    }
+
+    /**
+     * @param object is cached object
+     * @return id the object is cached by
+     */
+    protected abstract HashId idOf(T object);
+
+    /**
+     * @param object is cached object
+     * @return estimated size of the object, bytes
+     */
+    protected abstract long sizeOf(T object);
+
+    /**
+     * Remove expired records. Visits the timer wheel slots for all ticks passed since the previous call.
+     */
+    final synchronized void cleanUp() {
+        long now = System.currentTimeMillis();
+        long nowTick = now / tickMillis;
+        // after a long pause every slot should be visited once
+        long fromTick = Math.max(lastTick + 1, nowTick - WHEEL_SLOTS + 1);
+        for (long tick = fromTick; tick <= nowTick; tick++) {
+            Iterator<Record> it = wheel.get(slotOf(tick)).iterator();
+            while (it.hasNext()) {
+                Record r = it.next();
+                if (records.get(r.id) != r) {
+                    // replaced or evicted
+                    it.remove();
+                } else if (r.expiresAt <= now) {
+                    it.remove();
+                    if (remove(r))
+                        expirations.incrementAndGet();
+                }
+                // else: expires at one of the next wheel turns
+            }
+        }
+        lastTick = Math.max(lastTick, nowTick);
+        compactClock();
+    }
+
+    public void shutdown() {
+        cleanerTimer.cancel();
+        cleanerTimer.purge();
+    }
+
+    protected @Nullable T getObject(HashId id) {
+        Record r = records.get(id);
+        if (r == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (r.object == null)
+            throw new RuntimeException("cache: record with empty item");
+        r.referenced = true;
+        hits.incrementAndGet();
+        return r.object;
+    }
+
+    protected void putObject(T object) {
+        long size = sizeOf(object) + RECORD_OVERHEAD;
+        // never could be kept within the budget
+        if (size > maxBytes)
+            return;
+        Record r = new Record(idOf(object), object, size, System.currentTimeMillis() + maxAge.toMillis());
+        // this will plainly override current if any
+        Record old = records.put(r.id, r);
+        bytes.addAndGet(size);
+        if (old != null) {
+            bytes.addAndGet(-old.size);
+            staleClockRecords.incrementAndGet();
+        }
+        clock.offer(r);
+        wheel.get(slotOf((r.expiresAt + tickMillis - 1) / tickMillis)).offer(r);
+        evictIfNeeded();
+    }
+
+    private void evictIfNeeded() {
+        while (bytes.get() > maxBytes) {
+            Record r = clock.poll();
+            if (r == null)
+                break;
+            if (records.get(r.id) != r) {
+                staleClockRecords.decrementAndGet();
+            } else if (r.referenced) {
+                r.referenced = false;
+                clock.offer(r);
+            } else if (remove(r)) {
+                staleClockRecords.decrementAndGet();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean remove(Record r) {
+        if (records.remove(r.id, r)) {
+            bytes.addAndGet(-r.size);
+            staleClockRecords.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void compactClock() {
+        // amortized: the queue is compacted only when most of it is garbage
+        if (staleClockRecords.get() > records.size()) {
+            Iterator<Record> it = clock.iterator();
+            while (it.hasNext()) {
+                Record r = it.next();
+                if (records.get(r.id) != r) {
+                    it.remove();
+                    staleClockRecords.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private int slotOf(long tick) {
+        return (int) (tick % WHEEL_SLOTS);
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return estimated size of all cached records, bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of records removed to fit the size budget
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of records removed by age
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "size", size(),
+                "bytes", getBytes(),
+                "hits", getHits(),
+                "misses", getMisses(),
+                "evictions", getEvictions(),
+                "expirations", getExpirations()
+        );
+    }
+
+    private class Record {
+        private final HashId id;
+        private final T object;
+        private final long size;
+        private final long expiresAt;
+        private volatile boolean referenced;
+
+        private Record(HashId id, T object, long size, long expiresAt) {
+            this.id = id;
+            this.object = object;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -36,6 +36,14 @@ public class Config {
         config.maxDownloadOnApproveTime = maxDownloadOnApproveTime;
         config.declinedItemExpiration = declinedItemExpiration;
         config.maxCacheAge = maxCacheAge;
+        config.maxCacheSize = maxCacheSize;
+        config.ledgerCleanupBatchSize = ledgerCleanupBatchSize;
+        config.ledgerCleanupRate = ledgerCleanupRate;
+        config.ledgerCleanupMaxRunTime = ledgerCleanupMaxRunTime;
+        config.processorEventLoops = processorEventLoops;
+        config.virtualThreads = virtualThreads;
+        config.timerTick = timerTick;
+        config.pollAggregationPeriod = pollAggregationPeriod;
         config.maxGetItemTime = maxGetItemTime;
         synchronized (this) {
             config.negativeConsensus = negativeConsensus;
@@ -108,7 +116,15 @@ public class Config {
 
     private Duration declinedItemExpiration = Duration.ofDays(10);
     private Duration maxCacheAge = Duration.ofMinutes(20);
+    private long maxCacheSize = ItemCache.DEFAULT_MAX_BYTES;
     private Duration maxDiskCacheAge = Duration.ofMinutes(40);
+    private int ledgerCleanupBatchSize = 1000;
+    private int ledgerCleanupRate = 20000;
+    private Duration ledgerCleanupMaxRunTime = Duration.ofMinutes(10);
+    private int processorEventLoops = 0;
+    private boolean virtualThreads = false;
+    private Duration timerTick = Duration.ofMillis(10);
+    private Duration pollAggregationPeriod = null;
     private Duration statsIntervalSmall = Duration.ofSeconds(30);
     private Duration statsIntervalBig = Duration.ofSeconds(3600);
     private Duration maxGetItemTime = Duration.ofSeconds(30);
@@ -209,6 +225,97 @@ public class Config {
         this.maxCacheAge = maxCacheAge;
     }
 
+    /**
+     * @return size budget of each of the node item and parcel caches, bytes
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(long maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * @return max number of rows the ledger cleanup deletes with one statement
+     */
+    public int getLedgerCleanupBatchSize() {
+        return ledgerCleanupBatchSize;
+    }
+
+    public void setLedgerCleanupBatchSize(int ledgerCleanupBatchSize) {
+        this.ledgerCleanupBatchSize = ledgerCleanupBatchSize;
+    }
+
+    /**
+     * @return max number of rows the ledger cleanup deletes per second, 0 means no limit
+     */
+    public int getLedgerCleanupRate() {
+        return ledgerCleanupRate;
+    }
+
+    public void setLedgerCleanupRate(int ledgerCleanupRate) {
+        this.ledgerCleanupRate = ledgerCleanupRate;
+    }
+
+    /**
+     * @return max time of one ledger cleanup run, the next run continues where it stopped
+     */
+    public Duration getLedgerCleanupMaxRunTime() {
+        return ledgerCleanupMaxRunTime;
+    }
+
+    public void setLedgerCleanupMaxRunTime(Duration ledgerCleanupMaxRunTime) {
+        this.ledgerCleanupMaxRunTime = ledgerCleanupMaxRunTime;
+    }
+
+    /**
+     * @return number of single-threaded loops the item and parcel processors are pinned to by their ids, 0 means
+     * processors run on the shared thread pool
+     */
+    public int getProcessorEventLoops() {
+        return processorEventLoops;
+    }
+
+    public void setProcessorEventLoops(int processorEventLoops) {
+        this.processorEventLoops = processorEventLoops;
+    }
+
+    /**
+     * @return true to run the blocking work of the node (downloads, parcel processing, client registrations) on
+     * virtual threads instead of the thread pools, when the JVM supports them
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @return precision of the polling, consensus and resync timers of the item processors
+     */
+    public Duration getTimerTick() {
+        return timerTick;
+    }
+
+    public void setTimerTick(Duration timerTick) {
+        this.timerTick = timerTick;
+    }
+
+    /**
+     * @return how often the votes and poll requests collected for each peer are sent together, null means each one
+     * is sent separately. All the nodes of the network should have it set
+     */
+    public Duration getPollAggregationPeriod() {
+        return pollAggregationPeriod;
+    }
+
+    public void setPollAggregationPeriod(Duration pollAggregationPeriod) {
+        this.pollAggregationPeriod = pollAggregationPeriod;
+    }
+
     public Duration getMaxGetItemTime() {
         return maxGetItemTime;
     }
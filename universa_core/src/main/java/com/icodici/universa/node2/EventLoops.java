@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed set of single-threaded event loops. Each id is pinned to one of the loops by its hash, so all the tasks of
+ * the id run one after another in the same thread and never compete for its locks. Tasks of different ids share the
+ * loop, so they must not block for long: waiting for the network or for other ids belongs to the shared thread pool.
+ */
+public class EventLoops {
+
+    private final ScheduledThreadPoolExecutor[] loops;
+
+    /**
+     * Start the loops.
+     *
+     * @param count      number of loops, usually the number of cores
+     * @param namePrefix of the loop threads, the number of the loop is added to it
+     */
+    public EventLoops(int count, String namePrefix) {
+        if (count < 1)
+            throw new IllegalArgumentException("number of event loops must be positive: " + count);
+        loops = new ScheduledThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            String name = namePrefix + i;
+            loops[i] = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r);
+                thread.setName(name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            // cancelled timers of finished processors should not stay in the queue until they are due
+            loops[i].setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * @param id to get the loop of
+     * @return the loop the id is pinned to
+     */
+    public ScheduledExecutorService loopOf(HashId id) {
+        int h = id.hashCode();
+        return loops[((h ^ (h >>> 16)) & 0x7FFFFFFF) % loops.length];
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    public void shutdown() {
+        for (ScheduledThreadPoolExecutor loop : loops)
+            loop.shutdown();
+    }
+
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ScheduledThreadPoolExecutor loop : loops)
+            loop.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public Binder getStats() {
+        List<Integer> queued = new ArrayList<>(loops.length);
+        long completed = 0;
+        for (ScheduledThreadPoolExecutor loop : loops) {
+            queued.add(loop.getQueue().size());
+            completed += loop.getCompletedTaskCount();
+        }
+        return Binder.of(
+                "loops", loops.length,
+                "queued", queued,
+                "completed", completed
+        );
+    }
+}
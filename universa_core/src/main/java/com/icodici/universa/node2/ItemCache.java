@@ -9,87 +9,55 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
-import net.sergeych.utils.Base64;
+import com.icodici.universa.contract.Contract;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
-public class ItemCache {
-
-    private final Thread cleaner;
-    private final Duration maxAge;
+/**
+ * Cache of the recently processed items, bounded by age and by the total size of packed transactions, see {@link
+ * BoundedCache}.
+ */
+public class ItemCache extends BoundedCache<Approvable> {
 
     public ItemCache(Duration maxAge) {
-        this.maxAge = maxAge;
-        cleaner = new Thread( ()-> {
-            try {
-                Thread.sleep(5000);
-                cleanUp();
-            } catch (InterruptedException e) {
-            }
-        });
-        cleaner.setName("item-cache-cleaner");
-        cleaner.setDaemon(true);
-        cleaner.setPriority(Thread.MIN_PRIORITY);
-        cleaner.start();
-    }
-
-    final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        this(maxAge, DEFAULT_MAX_BYTES);
     }
 
-    public void shutdown() {
-        cleaner.interrupt();
+    public ItemCache(Duration maxAge, long maxBytes) {
+        super("item-cache-cleaner", maxAge, maxBytes);
     }
 
     public @Nullable Approvable get(HashId itemId) {
-        Record i = records.get(itemId);
-        if( i != null && i.item == null )
-            throw new RuntimeException("cache: record with empty item");
-        return i != null ? i.item : null;
+        return getObject(itemId);
     }
 
     public void put(Approvable item) {
-        // this will plainly override current if any
-        new Record(item);
+        putObject(item);
     }
 
-    private ConcurrentHashMap<HashId,Record> records = new ConcurrentHashMap();
-
-    public void idsCheck(HashId itemId) {
-        for(HashId x: records.keySet()) {
-            System.out.println(" checking "+itemId+" eq "+x+ ": "+itemId.equals(x) + " / " + x.equals(itemId) );
-            System.out.println(" codes: "+itemId.hashCode() + " / "+ x.hashCode());
-            System.out.println(" digest check: "+ Base64.encodeString(itemId.getDigest()));
-            System.out.println(" digest data : "+ Base64.encodeString(x.getDigest()));
-        }
+    @Override
+    protected HashId idOf(Approvable item) {
+        return item.getId();
     }
 
-    public int size() {
-        return records.size();
-    }
-
-    private class Record {
-        private Instant expiresAt;
-        private Approvable item;
-
-        private Record(Approvable item) {
-            expiresAt = Instant.now().plus(maxAge);
-            this.item = item;
-            records.put(item.getId(), this);
+    @Override
+    protected long sizeOf(Approvable item) {
+        // approximates the packed transaction length without packing it again
+        if (item instanceof Contract) {
+            Contract c = (Contract) item;
+            long size = sealedSize(c);
+            for (Contract x : c.getNew())
+                size += sealedSize(x);
+            for (Contract x : c.getRevoking())
+                size += sealedSize(x);
+            return size;
         }
+        return 0;
+    }
 
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-//                System.out.println("cache expired "+item.getId());
-                records.remove(item.getId());
-            }
-        }
+    private static long sealedSize(Contract c) {
+        byte[] sealed = c.getLastSealedBinary();
+        return sealed != null ? sealed.length : 0;
     }
 }
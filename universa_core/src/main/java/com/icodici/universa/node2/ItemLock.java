@@ -8,13 +8,18 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
 
-import java.util.WeakHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TreeSet;
 import java.util.function.Function;
 
 /**
  * The smart lock, allow global synchronize on per-hashId operation. Just call {@link #synchronize(HashId, Function)}
- * and execute your code in a callable argument.
+ * and execute your code in a callable argument. Locks are kept in the {@link KeyedLock} table, so callers with
+ * different ids do not wait for each other.
  */
 public final class ItemLock {
 
@@ -34,23 +39,41 @@ public final class ItemLock {
      * @throws Exception whatever callable throws
      */
     public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
-        ItemLock lock = null;
+        return monitors.synchronize(id, callable);
+    }
 
-        // short exclusive mutex: obtaning a lock
-        synchronized (monitors) {
-            lock = monitors.get(id);
-            if (lock == null) {
-                lock = new ItemLock();
-                monitors.put(id, lock);
+    /**
+     * Execute a callable acquiring locks for all the given ids, like {@link #synchronize(HashId, Function)} does for
+     * one id. Locks are acquired in the order of ids, so concurrent callers with intersecting sets of ids do not
+     * deadlock.
+     *
+     * @param ids      to get locks to
+     * @param callable lamda to execute exclusively for all the ids
+     * @param <T> is type
+     *
+     * @return whatever the callable returns
+     *
+     * @throws Exception whatever callable throws
+     */
+    public <T> T synchronize(Collection<HashId> ids, Function<Object, T> callable) throws Exception {
+        return synchronizeAll(new ArrayList<>(new TreeSet<>(ids)).iterator(), callable);
+    }
+
+    private <T> T synchronizeAll(Iterator<HashId> ids, Function<Object, T> callable) throws Exception {
+        if (!ids.hasNext())
+            return callable.apply(this);
+        return synchronize(ids.next(), lock -> {
+            try {
+                return synchronizeAll(ids, callable);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
-        }
-        // now we only lock the item:
-        synchronized (lock) {
-            return (T) callable.apply(lock);
-        }
+        });
     }
 
-    private WeakHashMap<HashId, ItemLock> monitors = new WeakHashMap<>();
+    private final KeyedLock<HashId> monitors = new KeyedLock<>();
 
     /**
      * Niber of cached locks. Not all of them are acquired. Locks are cached as long as corresponding {@link HashId} is
@@ -62,4 +85,11 @@ public final class ItemLock {
     public int size() {
         return monitors.size();
     }
+
+    /**
+     * @return contention statistics, see {@link KeyedLock#getStats()}
+     */
+    public Binder getStats() {
+        return monitors.getStats();
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.LatencyHistogram;
+
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Table of per-key monitors: {@link #synchronize(Object, Function)} runs the code exclusively for the key. The
+ * monitor of the key is kept as long as the key object is alive, so the code that keeps the key could keep
+ * synchronizing on the monitor it got. Monitors are found in one of the power-of-two number of weak maps chosen by the
+ * hash of the key, each guarded by its own short lock, so callers with different keys rarely wait for each other.
+ * <p>
+ * Counts acquisitions, the ones that waited for the monitor held by another caller with the wait time, and the ones
+ * that waited for the lock of the map, see {@link #getStats()}.
+ *
+ * @param <K> type of the keys, should have good hash codes
+ */
+public final class KeyedLock<K> {
+
+    /**
+     * Default number of the maps, must be a power of two.
+     */
+    static public final int DEFAULT_STRIPES = 64;
+
+    /**
+     * Monitor of one key, callers synchronize on it.
+     */
+    static final class Monitor {
+        // callers inside synchronize(), to tell contended acquisitions
+        volatile int holders;
+    }
+
+    private static final AtomicIntegerFieldUpdater<Monitor> holdersUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Monitor.class, "holders");
+
+    private final int mask;
+    private final ReentrantLock[] stripeLocks;
+    private final WeakHashMap<K, Monitor>[] stripes;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder stripeContended = new LongAdder();
+    private final LatencyHistogram waitLatency = new LatencyHistogram();
+
+    public KeyedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of the maps of monitors, a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public KeyedLock(int stripes) {
+        if (stripes < 1 || Integer.bitCount(stripes) != 1)
+            throw new IllegalArgumentException("number of stripes must be a power of two: " + stripes);
+        mask = stripes - 1;
+        stripeLocks = new ReentrantLock[stripes];
+        this.stripes = new WeakHashMap[stripes];
+        for (int i = 0; i < stripes; i++) {
+            stripeLocks[i] = new ReentrantLock();
+            this.stripes[i] = new WeakHashMap<>();
+        }
+    }
+
+    /**
+     * Execute a callable holding the monitor of the key. The monitor is released upon callable return.
+     *
+     * @param key      to get the monitor of
+     * @param callable lamda to execute exclusively for the key, gets the monitor
+     * @param <T>      is type
+     *
+     * @return whatever the callable returns
+     */
+    public <T> T synchronize(K key, Function<Object, T> callable) {
+        Monitor monitor = monitorOf(key);
+        acquired.increment();
+        // the nested call of the same thread does not wait
+        if (holdersUpdater.getAndIncrement(monitor) > 0 && !Thread.holdsLock(monitor)) {
+            contended.increment();
+            long started = System.nanoTime();
+            try {
+                synchronized (monitor) {
+                    waitLatency.record(System.nanoTime() - started);
+                    return callable.apply(monitor);
+                }
+            } finally {
+                holdersUpdater.decrementAndGet(monitor);
+            }
+        }
+        try {
+            synchronized (monitor) {
+                return callable.apply(monitor);
+            }
+        } finally {
+            holdersUpdater.decrementAndGet(monitor);
+        }
+    }
+
+    private Monitor monitorOf(K key) {
+        int h = key.hashCode();
+        int stripe = (h ^ (h >>> 16)) & mask;
+        ReentrantLock lock = stripeLocks[stripe];
+        if (!lock.tryLock()) {
+            stripeContended.increment();
+            lock.lock();
+        }
+        try {
+            return stripes[stripe].computeIfAbsent(key, k -> new Monitor());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of cached monitors. Not all of them are acquired. Monitors are cached as long as corresponding keys are
+     * alive.
+     *
+     * @return number of cached monitors
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            stripeLocks[i].lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                stripeLocks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "monitors", size(),
+                "acquired", acquired.sum(),
+                "contended", contended.sum(),
+                "stripeContended", stripeContended.sum(),
+                "waitLatency", waitLatency.getStats()
+        );
+    }
+}
@@ -12,6 +12,9 @@ import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Core;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
+import com.icodici.universa.node.EmbeddedLedger;
+import com.icodici.universa.node.FileItemBlobStore;
+import com.icodici.universa.node.Ledger;
 import com.icodici.universa.node.PostgresLedger;
 import com.icodici.universa.node.StateRecord;
 import com.icodici.universa.node2.network.ClientHTTPServer;
@@ -27,6 +30,7 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.time.Duration;
 
@@ -34,7 +38,7 @@ import static java.util.Arrays.asList;
 
 public class Main {
     public static final String NODE_VERSION = Core.VERSION;
-    private PostgresLedger ledger;
+    private Ledger ledger;
     private OptionParser parser;
     private OptionSet options;
     public final Reporter reporter = new Reporter();
@@ -65,7 +69,7 @@ public class Main {
                 acceptsAll(asList("c", "config"), "configuration file for the network")
                         .withRequiredArg().ofType(String.class)
                         .describedAs("config_file");
-                acceptsAll(asList("d", "database"), "database connection url")
+                acceptsAll(asList("d", "database"), "database connection url, or embedded:<directory> for the embedded ledger")
                         .withRequiredArg().ofType(String.class)
                         .describedAs("db_url");
                 accepts("test", "intended to be used in integration tests");
@@ -75,6 +79,26 @@ public class Main {
                         .ofType(String.class)
                         .describedAs("level");
                 accepts("restart-socket", "restarts UDPAdapter: shutdown it and create new");
+                accepts("nio-udp", "use NIO DatagramChannel transport for the node-to-node UDP");
+                accepts("record-index", "keep an off-heap index of the ledger records for fast state lookups");
+                accepts("item-store", "keep packed items in files in the given directory instead of the database")
+                        .withRequiredArg()
+                        .ofType(String.class)
+                        .describedAs("directory");
+                accepts("pending-journal", "keep changes of the pending ledger records in the given file instead of the database")
+                        .withRequiredArg()
+                        .ofType(String.class)
+                        .describedAs("file");
+                accepts("event-loops", "pin item and parcel processors to the given number of single-threaded loops")
+                        .withRequiredArg()
+                        .ofType(Integer.class)
+                        .describedAs("count");
+                accepts("virtual-threads", "run blocking node tasks on virtual threads if the JVM supports them");
+                accepts("parallel-signatures", "verify signatures of all contracts of a transaction in parallel");
+                accepts("poll-aggregation", "send votes to each node together every given number of milliseconds")
+                        .withRequiredArg()
+                        .ofType(Integer.class)
+                        .describedAs("millis");
                 accepts("shutdown", "delicate shutdown with rollback current processing contracts");
             }
         };
@@ -98,8 +122,11 @@ public class Main {
 
                 ledger.saveConfig(myInfo,netConfig,nodeKey);
             } else if(options.has("database")) {
-                ledger = new PostgresLedger((String) options.valueOf("database"));
+                ledger = openLedger((String) options.valueOf("database"));
                 log("ledger constructed");
+                enablePendingJournal();
+        enableRecordIndex();
+        enableItemStore();
                 Object[] result = ledger.loadConfig();
                 myInfo = (NodeInfo) result[0];
                 netConfig = (NetConfig) result[1];
@@ -195,7 +222,15 @@ public class Main {
             config.setResyncBreakConsensus(resyncBreak);
         });
 
-        network = new NetworkV2(netConfig, myInfo, nodeKey);
+        if (options.has("event-loops"))
+            config.setProcessorEventLoops((Integer) options.valueOf("event-loops"));
+        config.setVirtualThreads(options.has("virtual-threads"));
+        // contracts are unpacked from the network and client threads, so the setting is process-wide
+        Contract.setParallelSignatureVerification(options.has("parallel-signatures"));
+        if (options.has("poll-aggregation"))
+            config.setPollAggregationPeriod(Duration.ofMillis((Integer) options.valueOf("poll-aggregation")));
+
+        network = new NetworkV2(netConfig, myInfo, nodeKey, options.has("nio-udp"));
         node = new Node(config, myInfo, ledger, network);
         cache = node.getCache();
         parcelCache = node.getParcelCache();
@@ -296,6 +331,39 @@ public class Main {
 
     public NodeInfo myInfo;
 
+    /**
+     * Open the ledger with a connection string: if it starts with {@link EmbeddedLedger#URL_PREFIX}, it is the
+     * embedded ledger in the directory that follows the prefix, otherwise it is {@link PostgresLedger} connection
+     * string.
+     */
+    private static Ledger openLedger(String connectionString) throws IOException, SQLException {
+        if (connectionString.startsWith(EmbeddedLedger.URL_PREFIX))
+            return new EmbeddedLedger(connectionString.substring(EmbeddedLedger.URL_PREFIX.length()));
+        return new PostgresLedger(connectionString);
+    }
+
+    private void enableRecordIndex() throws SQLException {
+        if (options.has("record-index") && ledger instanceof PostgresLedger) {
+            ((PostgresLedger) ledger).enableRecordIndex();
+            log("record index: " + ((PostgresLedger) ledger).getRecordIndexStats());
+        }
+    }
+
+    private void enablePendingJournal() throws IOException, SQLException {
+        if (options.has("pending-journal") && ledger instanceof PostgresLedger) {
+            ((PostgresLedger) ledger).enablePendingJournal(Paths.get((String) options.valueOf("pending-journal")));
+            log("pending records journal: " + ((PostgresLedger) ledger).getPendingJournalStats());
+        }
+    }
+
+    private void enableItemStore() throws IOException {
+        if (options.has("item-store") && ledger instanceof PostgresLedger) {
+            String dir = (String) options.valueOf("item-store");
+            ((PostgresLedger) ledger).setItemBlobStore(new FileItemBlobStore(Paths.get(dir)));
+            log("items are stored in " + dir);
+        }
+    }
+
     private void loadNodeConfig() throws IOException, SQLException {
         Yaml yaml = new Yaml();
         configRoot = (String) options.valueOf("config");
@@ -317,8 +385,11 @@ public class Main {
                               settings.getIntOrThrow("http_server_port")
         );
 
-        ledger = new PostgresLedger(settings.getStringOrThrow("database"));
+        ledger = openLedger(settings.getStringOrThrow("database"));
         log("ledger constructed");
+        enablePendingJournal();
+        enableRecordIndex();
+        enableItemStore();
 
         log("key loaded: " + nodeKey.info());
         log("node local URL: " + myInfo.publicUrlString());
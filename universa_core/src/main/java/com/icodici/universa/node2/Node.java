@@ -10,6 +10,7 @@ package com.icodici.universa.node2;
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.*;
 import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.ExtendedSignature;
 import com.icodici.universa.contract.Parcel;
 import com.icodici.universa.contract.permissions.ChangeOwnerPermission;
 import com.icodici.universa.contract.permissions.ModifyDataPermission;
@@ -36,6 +37,7 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
@@ -47,14 +49,26 @@ public class Node {
 
     private static final int MAX_SANITATING_RECORDS = 64;
 
+    /**
+     * Number of unfinished records loaded from the ledger at once on start.
+     */
+    private static final int SANITATION_PAGE_SIZE = 1000;
+
     NodeStats nodeStats = new NodeStats();
 
-    private ScheduledFuture<?> sanitator;
+    // set by the thread loading unfinished records
+    private volatile ScheduledFuture<?> sanitator;
 
     public boolean isSanitating() {
-        return !recordsToSanitate.isEmpty();
+        return sanitationLoading || !recordsToSanitate.isEmpty();
     }
 
+    // unfinished records are still being loaded from the ledger
+    private volatile boolean sanitationLoading = false;
+    private final AtomicInteger sanitationTotal = new AtomicInteger();
+    private volatile long sanitationStartedAt;
+    private volatile long sanitationFinishedAt;
+
     private Map<HashId,StateRecord> recordsToSanitate;
 
     public Map<HashId, StateRecord> getRecordsToSanitate() {
@@ -107,45 +121,108 @@ public class Node {
         }
     });
 
+    // processors pinned to single-threaded loops by their ids, null when processors run on executorService
+    private final EventLoops eventLoops;
+
+    // steps waiting for the network or other processors, executorService unless virtual threads are used; the steps
+    // writing to the ledger under the item lock stay on executorService, as a virtual thread blocked inside a
+    // synchronized block keeps its carrier thread
+    private final ExecutorService blockingExecutor;
+
+    // polling, consensus and resync timers of the processors
+    private final HashedTimerWheel timers;
+
+    // votes to each peer sent together, null when each vote is sent separately
+    private final PollAggregator pollAggregator;
+
     public Node(Config config, NodeInfo myInfo, Ledger ledger, Network network) {
 
         this.config = config;
         this.myInfo = myInfo;
         this.ledger = ledger;
         this.network = network;
-        cache = new ItemCache(config.getMaxCacheAge());
-        parcelCache = new ParcelCache(config.getMaxCacheAge());
+        cache = new ItemCache(config.getMaxCacheAge(), config.getMaxCacheSize());
+        parcelCache = new ParcelCache(config.getMaxCacheAge(), config.getMaxCacheSize());
         config.updateConsensusConfig(network.getNodesCount());
 
         label = "Node(" + myInfo.getNumber() + ") ";
 
-        network.subscribe(myInfo, notification -> onNotification(notification));
+        eventLoops = config.getProcessorEventLoops() > 0 ?
+                new EventLoops(config.getProcessorEventLoops(), "node-" + myInfo.getNumber() + "-loop-") : null;
 
-        recordsToSanitate = ledger.findUnfinished();
+        ExecutorService virtual = config.isVirtualThreads() ?
+                VirtualThreads.newExecutor("node-" + myInfo.getNumber() + "-blocking-") : null;
+        if (config.isVirtualThreads() && virtual == null)
+            log.w(label + "virtual threads are not supported by this JVM, using the thread pool");
+        blockingExecutor = virtual != null ? virtual : executorService;
 
-        System.out.println(label + " " + recordsToSanitate.size());
+        timers = new HashedTimerWheel(config.getTimerTick().toMillis(), TimeUnit.MILLISECONDS,
+                "node-" + myInfo.getNumber() + "-timers");
 
-        if(!recordsToSanitate.isEmpty()) {
-            pulseStartSanitation();
-//            try {
-//                sanitationFinished.await();
-//            } catch (InterruptedException e) {
-//                e.printStackTrace();
-//            }
-        } else {
-            dbSanitationFinished();
+        pollAggregator = config.getPollAggregationPeriod() != null ? new PollAggregator(myInfo, network) : null;
+        if (pollAggregator != null) {
+            long period = config.getPollAggregationPeriod().toMillis();
+            executorService.scheduleAtFixedRate(pollAggregator::flush, period, period, TimeUnit.MILLISECONDS);
         }
 
+        network.subscribe(myInfo, notification -> onNotification(notification));
+
+        // the node starts without waiting for the unfinished records, they are loaded in the background
+        recordsToSanitate = Collections.synchronizedMap(new LinkedHashMap<>());
+        sanitationStartedAt = System.currentTimeMillis();
+        sanitationLoading = true;
+        lowPrioExecutorService.execute(this::loadUnfinishedRecords);
+
         pulseStartCleanup();
 
     }
 
+    // records come in pages and sanitation starts with the first one, while the rest are loading
+    private void loadUnfinishedRecords() {
+        try {
+            ledger.findUnfinished(SANITATION_PAGE_SIZE, page -> {
+                synchronized (recordsToSanitate) {
+                    page.forEach(r -> recordsToSanitate.put(r.getId(), r));
+                }
+                sanitationTotal.addAndGet(page.size());
+                if (sanitator == null)
+                    pulseStartSanitation();
+            });
+        } catch (Exception e) {
+            log.e(label + "failed to load unfinished records: " + e);
+            e.printStackTrace();
+        } finally {
+            sanitationLoading = false;
+        }
+
+        report(label, "unfinished records to sanitate: " + sanitationTotal.get(), DatagramAdapter.VerboseLevel.BASE);
+
+        if (sanitator == null) {
+            dbSanitationFinished();
+        }
+    }
+
+    /**
+     * Executor for the processor of the id. With {@link Config#getProcessorEventLoops()} set it is the event loop the
+     * id is pinned to, so the processor steps and the notifications for it run in order in one thread, otherwise the
+     * shared pool. Only the steps that do not wait for the network or for other processors run there.
+     *
+     * @param id of the item or parcel
+     * @return executor to run the processor steps
+     */
+    private ScheduledExecutorService executorFor(HashId id) {
+        return eventLoops != null ? eventLoops.loopOf(id) : executorService;
+    }
+
     private void pulseStartCleanup() {
+        ledger.setCleanupLimits(config.getLedgerCleanupBatchSize(), config.getLedgerCleanupRate(),
+                config.getLedgerCleanupMaxRunTime());
         lowPrioExecutorService.scheduleAtFixedRate(() -> ledger.cleanup(),1,config.getMaxDiskCacheAge().getSeconds(),TimeUnit.SECONDS);
     }
 
     private void dbSanitationFinished() {
 
+        sanitationFinishedAt = System.currentTimeMillis();
         sanitationFinished.fire();
 
         nodeStats.init(ledger);
@@ -164,53 +241,53 @@ public class Node {
         );
     }
 
-    ArrayList<HashId> sanitatingIds = new ArrayList<>();
+    private final Set<HashId> sanitatingIds = new HashSet<>();
+    private boolean sanitationDone = false;
 
+    // concurrent runs, scheduled and started by finished items, share sanitatingIds
     private void startSanitation() {
-        if(recordsToSanitate.isEmpty()) {
-            sanitator.cancel(false);
-            dbSanitationFinished();
-            return;
-        }
-
-        for (int i = 0; i < sanitatingIds.size(); i++) {
-            if (!recordsToSanitate.containsKey(sanitatingIds.get(i))) {
-                sanitatingIds.remove(i);
-                --i;
+        synchronized (sanitatingIds) {
+            if (sanitationDone)
+                return;
+            if(recordsToSanitate.isEmpty() && !sanitationLoading) {
+                sanitationDone = true;
+                sanitator.cancel(false);
+                dbSanitationFinished();
+                return;
             }
-        }
 
-        if (sanitatingIds.size() < MAX_SANITATING_RECORDS) {
-            synchronized (recordsToSanitate) {
-                for (StateRecord r : recordsToSanitate.values()) {
-                    if (r.getState() != ItemState.LOCKED && r.getState() != ItemState.LOCKED_FOR_CREATION && !sanitatingIds.contains(r.getId())) {
-                        sanitateRecord(r);
-                        sanitatingIds.add(r.getId());
-                        if (sanitatingIds.size() == MAX_SANITATING_RECORDS) {
-                            break;
+            sanitatingIds.removeIf(id -> !recordsToSanitate.containsKey(id));
+
+            if (sanitatingIds.size() < MAX_SANITATING_RECORDS) {
+                synchronized (recordsToSanitate) {
+                    for (StateRecord r : recordsToSanitate.values()) {
+                        if (r.getState() != ItemState.LOCKED && r.getState() != ItemState.LOCKED_FOR_CREATION && !sanitatingIds.contains(r.getId())) {
+                            sanitateRecord(r);
+                            sanitatingIds.add(r.getId());
+                            if (sanitatingIds.size() == MAX_SANITATING_RECORDS) {
+                                break;
+                            }
                         }
                     }
                 }
-            }
-            if (sanitatingIds.size() == 0 && recordsToSanitate.size() > 0) {
-                //ONLY LOCKED LEFT -> RESYNC THEM
-                synchronized (recordsToSanitate) {
-                    for (StateRecord r : recordsToSanitate.values()) {
-                        r.setState(ItemState.PENDING);
-                        try {
-                            itemLock.synchronize(r.getId(), lock -> {
-                                r.save();
-                                return null;
-                            });
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                if (sanitatingIds.size() == 0 && recordsToSanitate.size() > 0 && !sanitationLoading) {
+                    //ONLY LOCKED LEFT -> RESYNC THEM
+                    synchronized (recordsToSanitate) {
+                        for (StateRecord r : recordsToSanitate.values()) {
+                            r.setState(ItemState.PENDING);
+                            try {
+                                itemLock.synchronize(r.getId(), lock -> {
+                                    r.save();
+                                    return null;
+                                });
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
                         }
                     }
                 }
             }
         }
-
-
     }
 
     private void sanitateRecord(StateRecord r) {
@@ -438,6 +515,31 @@ public class Node {
      */
     private final void onNotification(Notification notification) {
 
+        if (notification instanceof PollNotification) {
+            // votes for many items, each is handled as if it came separately
+            for (ParcelNotification vote : ((PollNotification) notification).getVotes())
+                onNotification(vote);
+        } else if (eventLoops != null && notification instanceof ItemNotification) {
+            // finding or creating the processor takes the item lock and can read the ledger, so it is done in the
+            // shared pool, and only the vote is passed to the loop of the processor, see runVoteStep()
+            try {
+                executorService.execute(() -> {
+                    try {
+                        obtainNotification(notification);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        } else {
+            obtainNotification(notification);
+        }
+    }
+
+    private final void obtainNotification(Notification notification) {
+
         if (notification instanceof ItemResyncNotification) {
             obtainResyncNotification((ItemResyncNotification) notification);
         }
@@ -505,13 +607,13 @@ public class Node {
         if (itemObject instanceof ItemProcessor) {
             ItemProcessor ip = (ItemProcessor) itemObject;
             if(ip.processingState.isResyncing()) {
-                ip.lock(() -> {
+                runVoteStep(ip.executor, () -> ip.lock(() -> {
                     for (HashId hid : itemsToResync.keySet()) {
                         ip.resyncVote(hid, from, itemsToResync.get(hid));
                     }
 
                     return null;
-                });
+                }));
             }
         }
     }
@@ -542,7 +644,7 @@ public class Node {
             ItemResult r = (ItemResult) x;
             // we have solution and need not answer, we answer if requested:
             if (notification.answerIsRequested()) {
-                network.deliver(
+                deliverVote(
                         from,
                         new ParcelNotification(myInfo,
                                 notification.getItemId(),
@@ -555,7 +657,7 @@ public class Node {
         } else if (x instanceof ItemProcessor) {
             ItemProcessor ip = (ItemProcessor) x;
             ItemResult result = notification.getItemResult();
-            ip.lock(() -> {
+            runVoteStep(ip.executor, () -> ip.lock(() -> {
 
                 // we might still need to download and process it
                 if (result.haveCopy) {
@@ -568,7 +670,7 @@ public class Node {
 
                 // We answer only if (1) answer is requested and (2) we have position on the subject:
                 if (notification.answerIsRequested() && ip.record.getState() != ItemState.PENDING) {
-                    network.deliver(
+                    deliverVote(
                             from,
                             new ParcelNotification(myInfo,
                                     notification.getItemId(),
@@ -579,7 +681,7 @@ public class Node {
                     );
                 }
                 return null;
-            });
+            }));
         }
     }
 
@@ -605,7 +707,7 @@ public class Node {
                 ItemResult r = (ItemResult) item_x;
                 // we have solution and need not answer, we answer if requested:
                 if (notification.answerIsRequested()) {
-                    network.deliver(
+                    deliverVote(
                             from,
                             new ParcelNotification(myInfo,
                                     notification.getItemId(),
@@ -623,7 +725,7 @@ public class Node {
                 if (x instanceof ParcelProcessor) {
                     ParcelProcessor pp = (ParcelProcessor) x;
                     ItemResult resultVote = notification.getItemResult();
-                    pp.lock(() -> {
+                    runVoteStep(pp.executor, () -> pp.lock(() -> {
 
                         // we might still need to download and process it
                         if (resultVote.haveCopy) {
@@ -641,7 +743,7 @@ public class Node {
                             if (notification.getType().isTU()) {
                                 // parcel for payment
                                 if (pp.getPaymentState() != ItemState.PENDING) {
-                                    network.deliver(
+                                    deliverVote(
                                             from,
                                             new ParcelNotification(myInfo,
                                                     notification.getItemId(),
@@ -654,7 +756,7 @@ public class Node {
                             } else {
                                 // parcel for payload
                                 if (pp.getPayloadState() != ItemState.PENDING) {
-                                    network.deliver(
+                                    deliverVote(
                                             from,
                                             new ParcelNotification(myInfo,
                                                     notification.getItemId(),
@@ -667,12 +769,46 @@ public class Node {
                             }
                         }
                         return null;
-                    });
+                    }));
                 }
             }
         }
     }
 
+    /**
+     * Run the step that passes the vote to the processor: in its event loop if processors are pinned to the loops
+     * (see {@link Config#getProcessorEventLoops()}), so it runs in order with the other steps of the processor, or
+     * in the calling thread otherwise.
+     */
+    private void runVoteStep(ScheduledExecutorService executor, Runnable step) {
+        if (eventLoops == null) {
+            step.run();
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    step.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Send the vote or the poll request to the node, with the other ones to the node if votes are aggregated (see
+     * {@link Config#getPollAggregationPeriod()}).
+     */
+    private void deliverVote(NodeInfo to, ParcelNotification vote) {
+        if (pollAggregator != null)
+            pollAggregator.add(to, vote);
+        else
+            network.deliver(to, vote);
+    }
+
     private Object checkItemInternal(@NonNull HashId itemId) {
         return checkItemInternal(itemId, null, null, false, false);
     }
@@ -884,8 +1020,19 @@ public class Node {
             }
         }
         System.out.println(toString() + "please wait, executorService is shutting down");
+        timers.shutdown();
         executorService.shutdown();
         lowPrioExecutorService.shutdown();
+        if (blockingExecutor != executorService)
+            blockingExecutor.shutdown();
+        if (eventLoops != null) {
+            eventLoops.shutdown();
+            try {
+                eventLoops.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                System.out.println("eventLoops.awaitTermination... timeout");
+            }
+        }
         try {
             executorService.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
@@ -979,7 +1126,23 @@ public class Node {
                 "lastMonthPaidAmount", nodeStats.lastMonthPaidAmount,
                 "thisMonthPaidAmount", nodeStats.thisMonthPaidAmount,
                 "yesterdayPaidAmount", nodeStats.yesterdayPaidAmount,
-                "todayPaidAmount", nodeStats.todayPaidAmount
+                "todayPaidAmount", nodeStats.todayPaidAmount,
+                "signatureCacheHits", ExtendedSignature.getVerifyCacheHits(),
+                "signatureCacheMisses", ExtendedSignature.getVerifyCacheMisses(),
+                "itemCache", cache.getStats(),
+                "parcelCache", parcelCache.getStats(),
+                "sanitation", getSanitationStats(),
+                "ledgerCommits", ledger.getCommitStats(),
+                "ledgerCleanup", ledger.getCleanupStats(),
+                "ledgerPool", ledger instanceof PostgresLedger ? ((PostgresLedger) ledger).getDbPoolStats() : new Binder(),
+                "ledgerIo", ledger instanceof PostgresLedger ? ((PostgresLedger) ledger).getIoStats() : new Binder(),
+                "itemLocks", itemLock.getStats(),
+                "parcelLocks", parcelLock.getStats(),
+                "eventLoops", eventLoops != null ? eventLoops.getStats() : new Binder(),
+                "virtualThreads", blockingExecutor != executorService,
+                "timers", timers.getStats(),
+                "pollAggregator", pollAggregator != null ? pollAggregator.getStats() : new Binder(),
+                "network", network.getStats()
         );
     }
 
@@ -1002,9 +1165,11 @@ public class Node {
         private ParcelProcessingState processingState;
 
         private final Object mutex;
+        // runs the non-blocking steps, see executorFor()
+        private final ScheduledExecutorService executor;
 
-        private ScheduledFuture<?> downloader;
-        private ScheduledFuture<?> processSchedule;
+        private Future<?> downloader;
+        private Future<?> processSchedule;
 
         private final AsyncEvent<Void> downloadedEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> doneEvent = new AsyncEvent<>();
@@ -1029,6 +1194,7 @@ public class Node {
          */
         public ParcelProcessor(HashId parcelId, Parcel parcel, Object lock) {
             mutex = lock;
+            executor = executorFor(parcelId);
 
             this.parcelId = parcelId;
             this.parcel = parcel;
@@ -1046,7 +1212,7 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
 
             if (this.parcel != null)
-                 executorService.submit(() -> parcelDownloaded(),
+                 executor.submit(() -> parcelDownloaded(),
                          Node.this.toString() + " pp > parcel " + parcelId + " :: ParcelProcessor -> parcelDownloaded");
         }
 
@@ -1059,7 +1225,7 @@ public class Node {
             if(processingState.canContinue()) {
                 synchronized (mutex) {
                     if (processSchedule == null || processSchedule.isDone()) {
-                        processSchedule = (ScheduledFuture<?>) executorService.submit(() -> process(),
+                        processSchedule = blockingExecutor.submit(() -> process(),
                                 Node.this.toString() + " pp > parcel " + parcelId + " :: pulseProcessing -> process");
                     }
                 }
@@ -1189,7 +1355,7 @@ public class Node {
 
                     synchronized (mutex) {
                         if (parcel == null && (downloader == null || downloader.isDone())) {
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
+                            downloader = blockingExecutor.submit(() -> download(),
                                     Node.this.toString() + " > parcel " + parcelId + " :: parcel pulseDownload -> download");
                         }
                     }
@@ -1447,6 +1613,20 @@ public class Node {
         }
     }
 
+    /**
+     * Wait for a record looked up with {@link Ledger#getRecordAsync(HashId)} or {@link Ledger#findOrCreateAsync(HashId)}.
+     * Ledger failures are rethrown as is, like the blocking lookups do.
+     */
+    private static StateRecord awaitRecord(CompletableFuture<StateRecord> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
     /// ItemProcessor ///
 
     private class ItemProcessor {
@@ -1488,8 +1668,10 @@ public class Node {
 
         private final Object mutex;
         private final Object resyncMutex;
+        // runs the non-blocking steps and the timers, see executorFor()
+        private final ScheduledExecutorService executor;
 
-        private ScheduledFuture<?> downloader;
+        private Future<?> downloader;
         private RunnableWithDynamicPeriod poller;
         private RunnableWithDynamicPeriod consensusReceivedChecker;
         private RunnableWithDynamicPeriod resyncer;
@@ -1548,6 +1730,7 @@ public class Node {
 
             mutex = lock;
             resyncMutex = new Object();
+            executor = executorFor(itemId);
             this.isCheckingForce = isCheckingForce;
 
             processingState = ItemProcessingState.INIT;
@@ -1583,7 +1766,7 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
 
             if (this.item != null) {
-                executorService.submit(() -> itemDownloaded(),
+                executor.submit(() -> itemDownloaded(),
                         Node.this.toString() + toString() + " :: ItemProcessor -> itemDownloaded");
             } else {
                 int a = 0;
@@ -1604,7 +1787,7 @@ public class Node {
                     synchronized (mutex) {
                         if (item == null && (downloader == null || downloader.isDone())) {
 //                            debug("submitting download");
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
+                            downloader = blockingExecutor.submit(() -> download(),
                                     Node.this.toString() + toString() + " :: item pulseDownload -> download");
                         }
                     }
@@ -1652,23 +1835,28 @@ public class Node {
                 }
 
 
-                synchronized (mutex) {
-                    //save item in disk cache
-                    ledger.putItem(record, item, Instant.now().plus(config.getMaxDiskCacheAge()));
-                }
-
-                if(item instanceof Contract) {
-                    if(((Contract)item).isLimitedForTestnet()) {
-                        markContractTest((Contract) item);
-                    }
-                }
+                //save item in disk cache, processing goes on without waiting for it as the item is in the memory cache
+                ledger.putItemAsync(record, item, Instant.now().plus(config.getMaxDiskCacheAge()))
+                        .exceptionally(e -> {
+                            log.e("failed to save item " + itemId + " in disk cache: " + e.getMessage());
+                            return null;
+                        });
 
                 if(!processingState.isProcessedToConsensus()) {
                     processingState = ItemProcessingState.DOWNLOADED;
                 }
-                if(isCheckingForce) {
-                    checkItem();
-                }
+                // the check goes to the ledger and waits for the processor lock, so it runs in the shared pool
+                // rather than in the event loop or the downloader
+                executorService.submit(() -> {
+                    if(item instanceof Contract) {
+                        if(((Contract)item).isLimitedForTestnet()) {
+                            markContractTest((Contract) item);
+                        }
+                    }
+                    if(isCheckingForce) {
+                        checkItem();
+                    }
+                }, Node.this.toString() + toString() + " :: itemDownloaded -> checkItem");
                 downloadedEvent.fire();
             }
         }
@@ -1810,16 +1998,25 @@ public class Node {
                         for (ErrorRecord er : a.getErrors()) {
                             checkingItem.addError(Errors.BAD_REVOKE, a.getId().toString(), "can't revoke: " + er);
                         }
+                    }
 
+                    // lock all revoking items with one ledger request
+                    Set<HashId> revokingIds = new LinkedHashSet<>();
+                    for (Approvable a : checkingItem.getRevokingItems())
+                        revokingIds.add(a.getId());
+                    if (!revokingIds.isEmpty()) {
                         synchronized (mutex) {
                             try {
-                                itemLock.synchronize(a.getId(), lock -> {
-                                    StateRecord r = record.lockToRevoke(a.getId());
-                                    if (r == null) {
-                                        checkingItem.addError(Errors.BAD_REVOKE, a.getId().toString(), "can't revoke");
-                                    } else {
-                                        if (!lockedToRevoke.contains(r))
-                                            lockedToRevoke.add(r);
+                                itemLock.synchronize(revokingIds, lock -> {
+                                    Map<HashId, StateRecord> locked = ledger.lockToRevoke(record, revokingIds);
+                                    for (HashId id : revokingIds) {
+                                        StateRecord r = locked.get(id);
+                                        if (r == null) {
+                                            checkingItem.addError(Errors.BAD_REVOKE, id.toString(), "can't revoke");
+                                        } else {
+                                            if (!lockedToRevoke.contains(r))
+                                                lockedToRevoke.add(r);
+                                        }
                                     }
                                     return null;
                                 });
@@ -1837,6 +2034,7 @@ public class Node {
             if(processingState.canContinue()) {
                 if (!processingState.isProcessedToConsensus()) {
                     // check new items
+                    Set<HashId> newIds = new LinkedHashSet<>();
                     for (Approvable newItem : checkingItem.getNewItems()) {
 
                         checkSubItemsOf(newItem);
@@ -1844,21 +2042,29 @@ public class Node {
                         if (!newItem.getErrors().isEmpty()) {
                             checkingItem.addError(Errors.BAD_NEW_ITEM, newItem.getId().toString(), "bad new item: not passed check");
                         } else {
-                            synchronized (mutex) {
-                                try {
-                                    itemLock.synchronize(newItem.getId(), lock -> {
-                                        StateRecord r = record.createOutputLockRecord(newItem.getId());
+                            newIds.add(newItem.getId());
+                        }
+                    }
+
+                    // and create output lock records of the good ones with one ledger request
+                    if (!newIds.isEmpty()) {
+                        synchronized (mutex) {
+                            try {
+                                itemLock.synchronize(newIds, lock -> {
+                                    Map<HashId, StateRecord> locked = ledger.createOutputLockRecords(record, newIds);
+                                    for (HashId id : newIds) {
+                                        StateRecord r = locked.get(id);
                                         if (r == null) {
-                                            checkingItem.addError(Errors.NEW_ITEM_EXISTS, newItem.getId().toString(), "new item exists in ledger");
+                                            checkingItem.addError(Errors.NEW_ITEM_EXISTS, id.toString(), "new item exists in ledger");
                                         } else {
                                             if (!lockedToCreate.contains(r))
                                                 lockedToCreate.add(r);
                                         }
-                                        return null;
-                                    });
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
+                                    }
+                                    return null;
+                                });
+                            } catch (Exception e) {
+                                e.printStackTrace();
                             }
                         }
                     }
@@ -1914,28 +2120,20 @@ public class Node {
                 HashMap<HashId, StateRecord> unknownParts = new HashMap<>();
                 HashMap<HashId, StateRecord> knownParts = new HashMap<>();
                 if (baseCheckPassed) {
-                    // check the referenced items
-                    for (Approvable ref : item.getReferencedItems()) {
-                        HashId id = ref.getId();
-//                        if(refModel.type == Reference.TYPE_EXISTING && id != null) {
-                        StateRecord r = ledger.getRecord(id);
-
-                        if (r == null || !r.getState().isConsensusFound()) {
-                            unknownParts.put(id, r);
-                        } else {
-                            knownParts.put(id, r);
-                        }
-//                        }
-                    }
+                    // look up the referenced and the revoking items all at once
+                    Map<HashId, CompletableFuture<StateRecord>> lookups = new LinkedHashMap<>();
+                    for (Approvable ref : item.getReferencedItems())
+                        lookups.put(ref.getId(), ledger.getRecordAsync(ref.getId()));
+                    for (Approvable a : item.getRevokingItems())
+                        lookups.put(a.getId(), ledger.getRecordAsync(a.getId()));
 
-                    // check revoking items
-                    for (Approvable a : item.getRevokingItems()) {
-                        StateRecord r = ledger.getRecord(a.getId());
+                    for (Map.Entry<HashId, CompletableFuture<StateRecord>> lookup : lookups.entrySet()) {
+                        StateRecord r = awaitRecord(lookup.getValue());
 
                         if (r == null || !r.getState().isConsensusFound()) {
-                            unknownParts.put(a.getId(), r);
+                            unknownParts.put(lookup.getKey(), r);
                         } else {
-                            knownParts.put(a.getId(), r);
+                            knownParts.put(lookup.getKey(), r);
                         }
                     }
                 }
@@ -1991,7 +2189,8 @@ public class Node {
                                 List<Integer> pollTimes = config.getPollTime();
                                 poller = new RunnableWithDynamicPeriod(() -> sendStartPollingNotification(),
                                         pollTimes,
-                                        executorService
+                                        timers,
+                                        executor
                                 );
                                 poller.run();
                             }
@@ -2018,7 +2217,7 @@ public class Node {
                         }
                     }
                     // at this point we should requery the nodes that did not yet answered us
-                    Notification notification;
+                    ParcelNotification notification;
                     ParcelNotification.ParcelNotificationType notificationType;
                     if(item.shouldBeTU()) {
                         notificationType = ParcelNotification.ParcelNotificationType.PAYMENT;
@@ -2029,7 +2228,7 @@ public class Node {
                     List<NodeInfo> nodes = network.allNodes();
                     for(NodeInfo node : nodes) {
                         if (!positiveNodes.contains(node) && !negativeNodes.contains(node))
-                            network.deliver(node, notification);
+                            deliverVote(node, notification);
                     }
                 }
             }
@@ -2106,52 +2305,20 @@ public class Node {
             }
         }
 
-        // commit subitems of given item to the ledger (recursively)
-        private void downloadAndCommitSubItemsOf(Approvable commitingItem) {
+        // collect subitems of given item to commit to the ledger with it (recursively)
+        private void downloadAndCommitSubItemsOf(Approvable commitingItem, Map<HashId, Approvable> revokingItems,
+                                                 Map<HashId, Approvable> newItems) {
             if(processingState.canContinue()) {
-                for (Approvable revokingItem : commitingItem.getRevokingItems()) {
-                    // The record may not exist due to ledger desync, so we create it if need
-                    try {
-                        itemLock.synchronize(revokingItem.getId(), lock -> {
-                            StateRecord r = ledger.findOrCreate(revokingItem.getId());
-                            r.setState(ItemState.REVOKED);
-                            r.setExpiresAt(ZonedDateTime.now().plus(config.getRevokedItemExpiration()));
-                            try {
-                                r.save();
-                            } catch (Ledger.Failure failure) {
-                                emergencyBreak();
-                                return null;
-                            }
-                            return null;
-                        });
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
+                for (Approvable revokingItem : commitingItem.getRevokingItems())
+                    revokingItems.put(revokingItem.getId(), revokingItem);
 
                 for (Approvable newItem : commitingItem.getNewItems()) {
-                    // The record may not exist due to ledger desync too, so we create it if need
-                    try {
-                        itemLock.synchronize(newItem.getId(), lock -> {
-                            StateRecord r = ledger.findOrCreate(newItem.getId());
-                            r.setState(ItemState.APPROVED);
-                            r.setExpiresAt(newItem.getExpiresAt());
-                            try {
-                                r.save();
-                            } catch (Ledger.Failure failure) {
-                                emergencyBreak();
-                                return null;
-                            }
-                            return null;
-                        });
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    newItems.put(newItem.getId(), newItem);
 
                     lowPrioExecutorService.schedule(() -> checkSpecialItem(newItem),100,TimeUnit.MILLISECONDS);
 
 
-                    downloadAndCommitSubItemsOf(newItem);
+                    downloadAndCommitSubItemsOf(newItem, revokingItems, newItems);
                 }
             }
         }
@@ -2171,24 +2338,72 @@ public class Node {
                     // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
                     // yields. We just clean them up afterwards:
 
-                    // first, commit all subitems of our item
-                    downloadAndCommitSubItemsOf(item);
+                    // commit all subitems of our item together with it, in one group commit
+                    Map<HashId, Approvable> revokingItems = new LinkedHashMap<>();
+                    Map<HashId, Approvable> newItems = new LinkedHashMap<>();
+                    downloadAndCommitSubItemsOf(item, revokingItems, newItems);
+
+                    // records are changed and stored holding the locks of all of them, so nobody sees the changes
+                    // before they are in the ledger
+                    Set<HashId> lockedIds = new HashSet<>(revokingItems.keySet());
+                    lockedIds.addAll(newItems.keySet());
+                    lockedIds.add(itemId);
+                    boolean committed;
+                    try {
+                        committed = itemLock.synchronize(lockedIds, lock -> {
+                            List<StateRecord> commitBatch = new ArrayList<>();
+                            // The record may not exist due to ledger desync, so we create it if need. All lookups
+                            // are started before waiting for any of them
+                            Map<HashId, CompletableFuture<StateRecord>> lookups = new HashMap<>();
+                            for (HashId id : lockedIds)
+                                if (!id.equals(itemId))
+                                    lookups.put(id, ledger.findOrCreateAsync(id));
+                            for (Approvable revokingItem : revokingItems.values()) {
+                                try {
+                                    StateRecord r = awaitRecord(lookups.get(revokingItem.getId()));
+                                    r.setState(ItemState.REVOKED);
+                                    r.setExpiresAt(ZonedDateTime.now().plus(config.getRevokedItemExpiration()));
+                                    commitBatch.add(r);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                            for (Approvable newItem : newItems.values()) {
+                                try {
+                                    StateRecord r = awaitRecord(lookups.get(newItem.getId()));
+                                    r.setState(ItemState.APPROVED);
+                                    r.setExpiresAt(newItem.getExpiresAt());
+                                    commitBatch.add(r);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }
 
-                    synchronized (mutex) {
-                        lockedToCreate.clear();
-                        lockedToRevoke.clear();
+                            synchronized (mutex) {
+                                lockedToCreate.clear();
+                                lockedToRevoke.clear();
 
-                        try {
-                            record.save();
-                        } catch (Ledger.Failure failure) {
-                            emergencyBreak();
-                            return;
-                        }
+                                commitBatch.add(record);
+                                try {
+                                    ledger.saveAll(commitBatch);
+                                } catch (Ledger.Failure failure) {
+                                    emergencyBreak();
+                                    return false;
+                                }
 
-                        if (record.getState() != ItemState.APPROVED) {
-                            log.e("record is not approved " + record.getState());
-                        }
+                                if (record.getState() != ItemState.APPROVED) {
+                                    log.e("record is not approved " + record.getState());
+                                }
+                            }
+                            return true;
+                        });
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        emergencyBreak();
+                        return;
                     }
+                    if (!committed)
+                        return;
                     lowPrioExecutorService.schedule(() -> checkSpecialItem(item),100,TimeUnit.MILLISECONDS);
 
                 } catch (TimeoutException | InterruptedException e) {
@@ -2213,10 +2428,16 @@ public class Node {
                     DatagramAdapter.VerboseLevel.BASE);
             synchronized (ledgerRollbackLock) {
                 ledger.transaction(() -> {
-                        for (StateRecord r : lockedToRevoke) {
+                        // release locked and created records, we touch only these that we have actually locked
+                        // or created, all of them with one ledger request
+                        List<StateRecord> unlocking = new ArrayList<>(lockedToRevoke);
+                        unlocking.addAll(lockedToCreate);
+                        if (!unlocking.isEmpty()) {
+                            Set<HashId> unlockingIds = new HashSet<>();
+                            unlocking.forEach(r -> unlockingIds.add(r.getId()));
                             try {
-                                itemLock.synchronize(r.getId(), lock -> {
-                                    r.unlock().save();
+                                itemLock.synchronize(unlockingIds, lock -> {
+                                    ledger.unlockAll(unlocking);
                                     return null;
                                 });
                             } catch (Exception e) {
@@ -2224,18 +2445,6 @@ public class Node {
                             }
                         }
                         lockedToRevoke.clear();
-
-                        // form created records, we touch only these that we have actually created
-                        for (StateRecord r : lockedToCreate) {
-                            try {
-                                itemLock.synchronize(r.getId(), lock -> {
-                                    r.unlock().save();
-                                    return null;
-                                });
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
                         // todo: concurrent modification can happen here!
                         lockedToCreate.clear();
 
@@ -2245,8 +2454,9 @@ public class Node {
                                         config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
                         record.setExpiresAt(expiration);
                         try {
+                            // saved with the transaction, the group commit writer would use other connection
                             synchronized (mutex) {
-                                record.save(); // TODO: current implementation will cause an inner dbPool.db() invocation
+                                record.save();
                             }
                         } catch (Ledger.Failure failure) {
                             failure.printStackTrace();
@@ -2283,7 +2493,8 @@ public class Node {
                         List<Integer> periodsMillis = config.getConsensusReceivedCheckTime();
                         consensusReceivedChecker = new RunnableWithDynamicPeriod(() -> sendNewConsensusNotification(),
                                 periodsMillis,
-                                executorService
+                                timers,
+                                executor
                         );
                         consensusReceivedChecker.run();
                     }
@@ -2307,7 +2518,7 @@ public class Node {
                     }
                 }
                 // at this point we should requery the nodes that did not yet answered us
-                Notification notification;
+                ParcelNotification notification;
                 ParcelNotification.ParcelNotificationType notificationType;
                 if(item.shouldBeTU()) {
                     notificationType = ParcelNotification.ParcelNotificationType.PAYMENT;
@@ -2320,7 +2531,7 @@ public class Node {
                     if (!positiveNodes.contains(node) && !negativeNodes.contains(node)) {
                         // if node do not know own vote we do not send notification, just looking for own state
                         if(!myInfo.equals(node)) {
-                            network.deliver(node, notification);
+                            deliverVote(node, notification);
                         } else {
                             if(processingState.isProcessedToConsensus()) {
                                 vote(myInfo, record.getState());
@@ -2397,7 +2608,8 @@ public class Node {
                         if(resyncer == null) {
                             resyncer = new RunnableWithDynamicPeriod(() -> sendResyncNotification(),
                                     periodsMillis,
-                                    executorService
+                                    timers,
+                                    executor
                             );
                             resyncer.run();
                         }
@@ -2784,6 +2996,31 @@ public class Node {
             }
 
         }
+        // start the next records without waiting for the scheduled run
+        if (sanitator != null && !isShuttingDown && !lowPrioExecutorService.isShutdown())
+            lowPrioExecutorService.execute(this::startSanitation);
+    }
+
+    /**
+     * @return progress of the sanitation of the records that were unfinished on start, with the estimate of the
+     * remaining time based on the rate so far
+     */
+    public Binder getSanitationStats() {
+        int total = sanitationTotal.get();
+        int left = recordsToSanitate.size();
+        int done = total - left;
+        long finishedAt = sanitationFinishedAt;
+        long elapsed = (finishedAt != 0 ? finishedAt : System.currentTimeMillis()) - sanitationStartedAt;
+        long remaining = done > 0 ? elapsed * left / done : -1;
+        return Binder.of(
+                "sanitating", isSanitating(),
+                "loading", sanitationLoading,
+                "total", total,
+                "done", done,
+                "left", left,
+                "elapsedSeconds", elapsed / 1000,
+                "remainingSeconds", left == 0 ? 0 : remaining < 0 ? -1 : remaining / 1000
+        );
     }
 
     private void itemSanitationFailed(StateRecord record) {
@@ -7,13 +7,14 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
 
-import java.util.WeakHashMap;
 import java.util.function.Function;
 
 /**
  * The smart lock, allow global synchronize on per-hashId operation. Just call {@link #synchronize(HashId, Function)}
- * and execute your code in a callable argument.
+ * and execute your code in a callable argument. Locks are kept in the {@link KeyedLock} table, so callers with
+ * different ids do not wait for each other.
  */
 public final class ParcelLock {
 
@@ -33,23 +34,10 @@ public final class ParcelLock {
      * @throws Exception whatever callable throws
      */
     public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
-        ParcelLock lock = null;
-
-        // short exclusive mutex: obtaning a lock
-        synchronized (monitors) {
-            lock = monitors.get(id);
-            if (lock == null) {
-                lock = new ParcelLock();
-                monitors.put(id, lock);
-            }
-        }
-        // now we only lock the item:
-        synchronized (lock) {
-            return (T) callable.apply(lock);
-        }
+        return monitors.synchronize(id, callable);
     }
 
-    private WeakHashMap<HashId, ParcelLock> monitors = new WeakHashMap<>();
+    private final KeyedLock<HashId> monitors = new KeyedLock<>();
 
     /**
      * Niber of cached locks. Not all of them are acquired. Locks are cached as long as corresponding {@link HashId} is
@@ -61,4 +49,11 @@ public final class ParcelLock {
     public int size() {
         return monitors.size();
     }
+
+    /**
+     * @return contention statistics, see {@link KeyedLock#getStats()}
+     */
+    public Binder getStats() {
+        return monitors.getStats();
+    }
 }
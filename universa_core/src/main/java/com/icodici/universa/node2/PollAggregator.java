@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.network.Network;
+import net.sergeych.tools.Binder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the votes and poll requests the node sends to each peer and sends them together with {@link #flush()},
+ * in one {@link PollNotification} per peer (or several, for more than {@link PollNotification#MAX_VOTES} items).
+ * Only the last vote for the item is sent, with the answer requested if any of the collected votes requested it.
+ */
+class PollAggregator {
+
+    private final NodeInfo myInfo;
+    private final Network network;
+    private final ConcurrentHashMap<NodeInfo, Map<HashId, ParcelNotification>> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder votesQueued = new LongAdder();
+    private final LongAdder votesSent = new LongAdder();
+    private final LongAdder notificationsSent = new LongAdder();
+
+    PollAggregator(NodeInfo myInfo, Network network) {
+        this.myInfo = myInfo;
+        this.network = network;
+    }
+
+    /**
+     * Queue the vote till the next {@link #flush()}.
+     *
+     * @param to   node to send to
+     * @param vote to send
+     */
+    void add(NodeInfo to, ParcelNotification vote) {
+        Map<HashId, ParcelNotification> votes = pending.computeIfAbsent(to, k -> new LinkedHashMap<>());
+        synchronized (votes) {
+            ParcelNotification old = votes.put(vote.getItemId(), vote);
+            if (old != null && old.answerIsRequested() && !vote.answerIsRequested())
+                votes.put(vote.getItemId(), new ParcelNotification(vote.getFrom(), vote.getItemId(),
+                        vote.getParcelId(), vote.getItemResult(), true, vote.getType()));
+        }
+        votesQueued.increment();
+    }
+
+    /**
+     * Send the queued votes, one notification per peer.
+     */
+    void flush() {
+        for (Map.Entry<NodeInfo, Map<HashId, ParcelNotification>> e : pending.entrySet()) {
+            Map<HashId, ParcelNotification> votes = e.getValue();
+            List<ParcelNotification> toSend;
+            synchronized (votes) {
+                if (votes.isEmpty())
+                    continue;
+                toSend = new ArrayList<>(votes.values());
+                votes.clear();
+            }
+            for (int from = 0; from < toSend.size(); from += PollNotification.MAX_VOTES) {
+                List<ParcelNotification> chunk =
+                        toSend.subList(from, Math.min(toSend.size(), from + PollNotification.MAX_VOTES));
+                try {
+                    network.deliver(e.getKey(), new PollNotification(myInfo, chunk));
+                    notificationsSent.increment();
+                } catch (Exception x) {
+                    // lost votes are repeated by the pollers
+                    x.printStackTrace();
+                }
+            }
+            votesSent.add(toSend.size());
+        }
+    }
+
+    Binder getStats() {
+        return Binder.of(
+                "votesQueued", votesQueued.sum(),
+                "votesSent", votesSent.sum(),
+                "notificationsSent", notificationsSent.sum()
+        );
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import net.sergeych.boss.Boss;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Votes of the sending node for many items at once, sent instead of the separate {@link ParcelNotification} for each
+ * item. Each vote keeps only what the receiver uses: item and parcel ids, the state, whether the sender has a copy,
+ * dates and whether the answer is requested. The receiver handles the votes as if they came in separate notifications,
+ * see {@link #getVotes()}.
+ */
+public class PollNotification extends Notification {
+
+    private static final int CODE_POLL_NOTIFICATION = 3;
+
+    /**
+     * Max number of votes in one notification, the rest goes in the next ones.
+     */
+    static public final int MAX_VOTES = 256;
+
+    private static final ItemState[] states = ItemState.values();
+    private static final ParcelNotification.ParcelNotificationType[] types =
+            ParcelNotification.ParcelNotificationType.values();
+
+    private List<ParcelNotification> votes;
+
+    /**
+     * @param from  is this node
+     * @param votes to send, not more than {@link #MAX_VOTES}
+     */
+    public PollNotification(NodeInfo from, Collection<ParcelNotification> votes) {
+        super(from);
+        this.votes = new ArrayList<>(votes);
+    }
+
+    protected PollNotification() {
+        votes = new ArrayList<>();
+    }
+
+    /**
+     * @return votes as separate notifications from the sender of this one
+     */
+    public List<ParcelNotification> getVotes() {
+        // votes are read before the sender is known
+        List<ParcelNotification> result = new ArrayList<>(votes.size());
+        for (ParcelNotification n : votes)
+            result.add(new ParcelNotification(getFrom(), n.getItemId(), n.getParcelId(), n.getItemResult(),
+                    n.answerIsRequested(), n.getType()));
+        return result;
+    }
+
+    @Override
+    protected void writeTo(Boss.Writer bw) throws IOException {
+        bw.writeObject(votes.size());
+        for (ParcelNotification n : votes) {
+            ItemResult r = n.getItemResult();
+            bw.writeObject(n.getItemId().getDigest());
+            bw.writeObject(n.getParcelId() != null ? n.getParcelId().getDigest() : null);
+            bw.writeObject(r.state.ordinal() << 3 | n.getType().ordinal() << 2 | (r.haveCopy ? 2 : 0) |
+                    (n.answerIsRequested() ? 1 : 0));
+            bw.writeObject(r.createdAt.toEpochSecond());
+            bw.writeObject(r.expiresAt.toEpochSecond());
+        }
+    }
+
+    @Override
+    protected void readFrom(Boss.Reader br) throws IOException {
+        int count = br.readInt();
+        if (count < 0 || count > MAX_VOTES)
+            throw new IOException("bad number of votes: " + count);
+        for (int i = 0; i < count; i++) {
+            HashId itemId = HashId.withDigest(br.readBinary());
+            byte[] parcelDigest = br.readBinary();
+            int flags = br.readInt();
+            int state = flags >>> 3;
+            if (state >= states.length)
+                throw new IOException("bad item state: " + state);
+            ItemResult r = new ItemResult(states[state], (flags & 2) != 0, time(br.readLong()), time(br.readLong()));
+            votes.add(new ParcelNotification(null, itemId, parcelDigest != null ? HashId.withDigest(parcelDigest) : null,
+                    r, (flags & 1) != 0, types[(flags >> 2) & 1]));
+        }
+    }
+
+    private static ZonedDateTime time(long epochSecond) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault());
+    }
+
+    @Override
+    protected int getTypeCode() {
+        return CODE_POLL_NOTIFICATION;
+    }
+
+    @Override
+    public String toString() {
+        return "[PollNotification from: " + getFrom() + ", votes: " + votes.size() + "]";
+    }
+
+    static public void init() {
+        registerClass(CODE_POLL_NOTIFICATION, PollNotification.class);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors running each task in its own virtual thread, for the tasks that mostly wait: for the network, for the
+ * ledger connection or for other processors. The node is built for Java 8, so virtual threads are found by reflection
+ * and used only when the JVM running the node has them (Java 21+), otherwise callers keep their thread pools.
+ * <p>
+ * Virtual threads waiting inside a synchronized block keep their carrier thread, so the tasks that wait holding
+ * monitors, like ledger writes under the item lock, should stay on the thread pools.
+ */
+public final class VirtualThreads {
+
+    private static volatile Boolean supported;
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running JVM has virtual threads
+     */
+    public static boolean isSupported() {
+        if (supported == null)
+            supported = factory("virtual-thread-probe-") != null;
+        return supported;
+    }
+
+    /**
+     * Create the executor starting a new virtual thread for each task.
+     *
+     * @param namePrefix of the threads, the number of the thread is added to it
+     * @return the executor or null if virtual threads are not supported by the JVM
+     */
+    public static ExecutorService newExecutor(String namePrefix) {
+        ThreadFactory factory = factory(namePrefix);
+        if (factory == null)
+            return null;
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    // Thread.ofVirtual().name(namePrefix, 0).factory() or null
+    private static ThreadFactory factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException |
+                InvocationTargetException e) {
+            // preview JVMs throw UnsupportedOperationException unless --enable-preview is set
+            return null;
+        }
+    }
+}
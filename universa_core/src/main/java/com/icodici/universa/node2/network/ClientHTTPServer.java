@@ -22,6 +22,7 @@ import net.sergeych.tools.BufferedLogger;
 import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -63,6 +64,7 @@ public class ClientHTTPServer extends BasicHttpServer {
             encodedString = encodedString.replace(' ', '+');
 
             byte[] data = null;
+            InputStream stored = null;
             if (encodedString.equals("cache_test")) {
                 data = "the cache test data".getBytes();
             } else {
@@ -73,13 +75,24 @@ public class ClientHTTPServer extends BasicHttpServer {
                         data = c.getPackedTransaction();
                     }
                 }
+                // items that left the cache are streamed from the ledger
+                if (data == null && node != null) {
+                    try {
+                        stored = node.getLedger().openItem(id);
+                    } catch (IOException e) {
+                        log.e("failed to read the stored item " + id + ": " + e);
+                    }
+                }
             }
-            if (data != null) {
+            if (data != null || stored != null) {
                 // contracts are immutable: cache forever
                 Binder hh = response.getHeaders();
                 hh.put("Expires", "Thu, 31 Dec 2037 23:55:55 GMT");
                 hh.put("Cache-Control", "max-age=315360000");
-                response.setBody(data);
+                if (data != null)
+                    response.setBody(data);
+                else
+                    response.setBody(stored);
             } else
                 response.setResponseCode(404);
         });
@@ -335,6 +348,14 @@ public class ClientHTTPServer extends BasicHttpServer {
 
     public void setConfig(Config config) {
         this.config = config;
+        if (config.isVirtualThreads()) {
+            // registrations mostly wait for the node, no need to bound them by the pool
+            ExecutorService virtual = VirtualThreads.newExecutor("client-http-registration-");
+            if (virtual != null) {
+                es.shutdown();
+                es = virtual;
+            }
+        }
     }
 
     //    @Override
@@ -14,6 +14,7 @@ import com.icodici.universa.node.ItemResult;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
+import net.sergeych.tools.Binder;
 
 import java.io.IOException;
 import java.time.Duration;
@@ -104,6 +105,13 @@ public abstract class Network {
 
     public void shutdown() {}
 
+    /**
+     * @return transport statistics to report with the node stats, empty if the implementation has none
+     */
+    public Binder getStats() {
+        return new Binder();
+    }
+
     public ItemResult getItemState(NodeInfo nodeInfo, HashId id) throws IOException {
         return null;
     }
@@ -18,6 +18,7 @@ import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
 import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import net.sergeych.utils.LogPrinter;
 
@@ -26,12 +27,29 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 public class NetworkV2 extends Network {
 
+    /**
+     * Maximum number of notifications packed into one frame. When the outbox for some node collects that many
+     * notifications, they are sent immediately without waiting for {@link #MAX_FRAME_DELAY_MICROS}.
+     */
+    static public final int MAX_NOTIFICATIONS_PER_FRAME = 64;
+
+    /**
+     * Maximum time, in microseconds, a notification can wait in the outbox for other notifications to the same node.
+     */
+    static public final long MAX_FRAME_DELAY_MICROS = 500;
+
     private final NodeInfo myInfo;
     private final PrivateKey myKey;
+    private final boolean nioTransport;
     private UDPAdapter adapter;
 
 //    private Map<NodeInfo, Node> nodes = new HashMap<>();
@@ -40,17 +58,50 @@ public class NetworkV2 extends Network {
     protected int verboseLevel = DatagramAdapter.VerboseLevel.NOTHING;
     private Consumer<Notification> consumer;
 
+    private final ConcurrentHashMap<Integer, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService outboxExecutor;
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong notificationsSent = new AtomicLong();
+
     public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey) throws IOException {
+        this(netConfig, myInfo, myKey, false);
+    }
+
+    /**
+     * Create network working over {@link NioUDPAdapter} if nioTransport is true, or over {@link UDPAdapter} otherwise.
+     *
+     * @param netConfig is {@link NetConfig} where all nodes data is stored
+     * @param myInfo is {@link NodeInfo} of this node
+     * @param myKey is this node private key
+     * @param nioTransport is true to use NIO DatagramChannel transport
+     * @throws IOException if something went wrong
+     */
+    public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey, boolean nioTransport) throws IOException {
         super(netConfig);
         this.myInfo = myInfo;
         this.myKey = myKey;
+        this.nioTransport = nioTransport;
+
+        outboxExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setName("network-" + myInfo.getNumber() + "-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig);
+        adapter = createAdapter();
 //        adapter.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
     }
 
+    private UDPAdapter createAdapter() throws IOException {
+        if (nioTransport)
+            return new NioUDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig);
+        return new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig);
+    }
+
     private final void onReceived(byte[] packedNotifications) {
         try {
             if (consumer != null) {
@@ -118,12 +169,36 @@ public class NetworkV2 extends Network {
         }
     }
 
+    /**
+     * Put the notification to the outbox of the destination node. Notifications collected in the outbox are packed
+     * together and sent as one frame either when there are {@link #MAX_NOTIFICATIONS_PER_FRAME} of them or when the
+     * first one has waited for {@link #MAX_FRAME_DELAY_MICROS}, whatever happens first.
+     *
+     * @param toNode is {@link NodeInfo} of node for sending
+     * @param notification is sending {@link Notification}
+     */
     @Override
     public void deliver(NodeInfo toNode, Notification notification) {
+        Outbox outbox = outboxes.computeIfAbsent(toNode.getNumber(), n -> new Outbox(toNode));
+        outbox.add(notification);
+    }
+
+    private void sendFrame(NodeInfo toNode, List<Notification> notifications) {
         try {
-            byte[] data = packNotifications(myInfo, Do.listOf(notification));
+            byte[] data;
+            try {
+                data = packNotifications(myInfo, notifications);
+            } catch (RuntimeException e) {
+                // one broken notification should not drop the others collected with it
+                notifications = packableNotifications(notifications);
+                if(notifications.isEmpty())
+                    return;
+                data = packNotifications(myInfo, notifications);
+            }
             if(adapter != null) {
                 adapter.send(toNode, data);
+                framesSent.incrementAndGet();
+                notificationsSent.addAndGet(notifications.size());
             } else {
                 report(getLabel(), "UDPAdapter is null");
             }
@@ -135,6 +210,49 @@ public class NetworkV2 extends Network {
         }
     }
 
+    private List<Notification> packableNotifications(List<Notification> notifications) {
+        List<Notification> packable = new ArrayList<>(notifications.size());
+        for (Notification n : notifications) {
+            try {
+                Notification.write(new Boss.Writer(), n);
+                packable.add(n);
+            } catch (Exception e) {
+                report(getLabel(), "notification pack failure, skipped: " + n + ": " + e);
+            }
+        }
+        return packable;
+    }
+
+    /**
+     * Send all notifications waiting in the outboxes right now.
+     */
+    public void flush() {
+        outboxes.values().forEach(Outbox::flush);
+    }
+
+    /**
+     * @return number of frames (packed groups of notifications) passed to the {@link UDPAdapter}
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * @return number of notifications carried by all frames sent, see {@link #getFramesSent()}
+     */
+    public long getNotificationsSent() {
+        return notificationsSent.get();
+    }
+
+    @Override
+    public Binder getStats() {
+        return Binder.of(
+                "framesSent", getFramesSent(),
+                "notificationsSent", getNotificationsSent(),
+                "receive", adapter != null ? adapter.getReceiveStats() : new Binder()
+        );
+    }
+
     @Override
     public void subscribe(NodeInfo _info, Consumer<Notification> notificationConsumer) {
         consumer = notificationConsumer;
@@ -208,6 +326,8 @@ public class NetworkV2 extends Network {
     }
 
     public void shutdown() {
+        flush();
+        outboxExecutor.shutdown();
         if(adapter != null)
             adapter.shutdown();
     }
@@ -221,7 +341,7 @@ public class NetworkV2 extends Network {
         if(adapter != null)
             adapter.shutdown();
 
-        adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo, netConfig);
+        adapter = createAdapter();
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
     }
@@ -268,4 +388,45 @@ public class NetworkV2 extends Network {
     {
         report(label, message, DatagramAdapter.VerboseLevel.DETAILED);
     }
+
+
+    /**
+     * Notifications waiting to be sent to one node. Keeps the order of notifications, so they are delivered to the
+     * node in the same order as {@link #deliver(NodeInfo, Notification)} was called.
+     */
+    private class Outbox {
+
+        private final NodeInfo toNode;
+        private List<Notification> pending = new ArrayList<>();
+        private boolean flushScheduled = false;
+
+        private Outbox(NodeInfo toNode) {
+            this.toNode = toNode;
+        }
+
+        private synchronized void add(Notification notification) {
+            pending.add(notification);
+            if (pending.size() >= MAX_NOTIFICATIONS_PER_FRAME) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                try {
+                    outboxExecutor.schedule(this::flush, MAX_FRAME_DELAY_MICROS, TimeUnit.MICROSECONDS);
+                } catch (Exception e) {
+                    // executor is shut down, nobody will flush later
+                    flush();
+                }
+            }
+        }
+
+        private synchronized void flush() {
+            flushScheduled = false;
+            if (pending.isEmpty())
+                return;
+            List<Notification> frame = pending;
+            pending = new ArrayList<>();
+            // we send under the outbox lock so frames to the same node can't overtake each other
+            sendFrame(toNode, frame);
+        }
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Stepan Mamontov <micromillioner@yahoo.com>
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.SymmetricKey;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@link UDPAdapter} working over the NIO {@link DatagramChannel} instead of {@link java.net.DatagramSocket}. Datagrams
+ * are read and written through a pool of direct buffers, so the channel does not allocate temporary direct buffers for
+ * every packet, and received packets are decoded right from the buffer. Protocol and wire format are the same as of
+ * {@link UDPAdapter}, so both can work in one network.
+ */
+public class NioUDPAdapter extends UDPAdapter {
+
+    /**
+     * Max number of direct buffers kept in the pool, extra buffers are released to the GC.
+     */
+    static public final int BUFFER_POOL_SIZE = 64;
+
+    // not initialized in place: openTransport() is called from the super constructor
+    private DatagramChannel channel;
+    private ConcurrentLinkedQueue<ByteBuffer> bufferPool;
+
+    /**
+     * Create an instance that listens for the incoming datagrams using the specified configurations. The adapter should
+     * start serving incoming datagrams immediately upon creation.
+     *
+     * @param ownPrivateKey is {@link PrivateKey} for signing requests
+     * @param sessionKey is {@link SymmetricKey} with session
+     * @param myNodeInfo is {@link NodeInfo} object described node this UDPAdapter work with
+     * @param netConfig is {@link NetConfig} where all nodes data is stored
+     * @throws IOException if something went wrong
+     */
+    public NioUDPAdapter(PrivateKey ownPrivateKey, SymmetricKey sessionKey, NodeInfo myNodeInfo, NetConfig netConfig) throws IOException {
+        super(ownPrivateKey, sessionKey, myNodeInfo, netConfig);
+    }
+
+
+    @Override
+    protected void openTransport(int port) throws IOException {
+        bufferPool = new ConcurrentLinkedQueue<>();
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+    }
+
+
+    @Override
+    protected void sendDatagram(DatagramPacket datagram) throws IOException {
+        ByteBuffer buffer = acquireBuffer(datagram.getLength());
+        try {
+            buffer.put(datagram.getData(), datagram.getOffset(), datagram.getLength());
+            buffer.flip();
+            channel.send(buffer, datagram.getSocketAddress());
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+
+    @Override
+    public DatagramSocket getSocket() {
+        return channel.socket();
+    }
+
+
+    @Override
+    protected InetSocketAddress receivePacket(DatagramPacket datagram, Packet packet) throws IOException {
+        ByteBuffer buffer = acquireBuffer(MAX_PACKET_SIZE);
+        try {
+            InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+            buffer.flip();
+            packet.parseFrom(new BufferInputStream(buffer));
+            return from;
+        } catch (ClosedChannelException e) {
+            // the listener treats it like a closed DatagramSocket
+            throw new SocketException("channel is closed");
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+
+    @Override
+    protected boolean isTransportClosed() {
+        return !channel.isOpen();
+    }
+
+
+    @Override
+    protected void closeTransport() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    private ByteBuffer acquireBuffer(int size) {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null || buffer.capacity() < size)
+            buffer = ByteBuffer.allocateDirect(Math.max(size, MAX_PACKET_SIZE));
+        buffer.clear();
+        return buffer;
+    }
+
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        // size() is O(n) but the pool is small
+        if (bufferPool.size() < BUFFER_POOL_SIZE)
+            bufferPool.offer(buffer);
+    }
+
+
+    /**
+     * Stream reading the remaining bytes of the buffer and advancing its position.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import static com.icodici.universa.node2.network.DatagramAdapter.RETRANSMIT_TIME;
+import static com.icodici.universa.node2.network.UDPAdapter.*;
+
+/**
+ * Flow control state of one {@link UDPAdapter} session: round trip time estimation and retransmit time (RFC 6298),
+ * the window of packets in flight and the pacing of new data. All times are passed in as {@link System#nanoTime()}
+ * values.
+ */
+class SendWindow {
+
+    // round trip time estimation, in milliseconds
+    private double smoothedRtt = -1;
+    private double rttVariation = 0;
+    private long retransmitTime = RETRANSMIT_TIME;
+
+    // send window, in packets
+    private int size = INITIAL_SEND_WINDOW;
+    private int slowStartThreshold = MAX_SEND_WINDOW;
+    private int windowAcks = 0;
+    private long shrunkAt;
+    private boolean shrunk = false;
+
+    // pacing: packets that can be sent now, refilled at size per smoothed round trip time
+    private double pacingTokens = 0;
+    private long pacedAt;
+
+    /**
+     * @return retransmit time, in milliseconds
+     */
+    synchronized long getRetransmitTime() {
+        return retransmitTime;
+    }
+
+    /**
+     * @return max number of packets in flight
+     */
+    synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return smoothed round trip time in milliseconds, negative before the first estimation
+     */
+    synchronized double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * @param inFlight number of packets sent and not acknowledged yet
+     * @return true if new data can be sent: there is room in the window and pacing allows it
+     */
+    synchronized boolean isOpen(int inFlight, long now) {
+        if (inFlight >= size)
+            return false;
+        // no pacing till the round trip time is known
+        if (smoothedRtt < 0)
+            return true;
+        refill(now);
+        return pacingTokens > 0;
+    }
+
+    /**
+     * Count the packets just sent against the pacing budget.
+     */
+    synchronized void onSent(int packets, long now) {
+        if (smoothedRtt < 0)
+            return;
+        refill(now);
+        pacingTokens -= packets;
+    }
+
+    private void refill(long now) {
+        // bursts up to a quarter of the window, the rest is spread over the round trip time
+        double burst = Math.max(MIN_SEND_WINDOW, size / 4);
+        double rate = size / Math.max(smoothedRtt, 1.0);
+        pacingTokens = Math.min(burst, pacingTokens + rate * (now - pacedAt) / 1000000.0);
+        pacedAt = now;
+    }
+
+    /**
+     * Update round trip time estimation and grow the window: by one packet per ack up to the slow start threshold,
+     * then by one packet per window of acknowledged packets.
+     *
+     * @param sentAt    when the packet was sent last time
+     * @param sendCount how many times the packet was sent
+     */
+    synchronized void onAcknowledged(long sentAt, int sendCount, long now) {
+        // Karn's algorithm: resent packets can't tell which copy was acknowledged
+        if (sendCount == 1 && sentAt != 0) {
+            double rtt = (now - sentAt) / 1000000.0;
+            if (smoothedRtt < 0) {
+                smoothedRtt = rtt;
+                rttVariation = rtt / 2;
+                pacingTokens = Math.max(MIN_SEND_WINDOW, size / 4);
+                pacedAt = now;
+            } else {
+                rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - rtt);
+                smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+            }
+            long time = (long) Math.ceil(smoothedRtt + Math.max(RETRANSMIT_CHECK_TIME, 4 * rttVariation));
+            retransmitTime = Math.min(Math.max(time, MIN_RETRANSMIT_TIME), MAX_RETRANSMIT_TIME);
+        }
+        if (size < slowStartThreshold) {
+            size++;
+        } else if (++windowAcks >= size) {
+            windowAcks = 0;
+            size++;
+        }
+        if (size > MAX_SEND_WINDOW)
+            size = MAX_SEND_WINDOW;
+    }
+
+    /**
+     * Some blocks were not acknowledged in time: back off retransmit time and shrink the window.
+     */
+    synchronized void onRetransmitTimeout(long now) {
+        retransmitTime = Math.min(retransmitTime * 2, MAX_RETRANSMIT_TIME);
+        onPacketsLost(now);
+    }
+
+    /**
+     * Shrink the window twice, but not more often than once per retransmit time, as one loss usually hits several
+     * packets sent together.
+     */
+    synchronized void onPacketsLost(long now) {
+        if (!shrunk || now - shrunkAt >= retransmitTime * 1000000L) {
+            shrunk = true;
+            shrunkAt = now;
+            slowStartThreshold = Math.max(size / 2, MIN_SEND_WINDOW);
+            size = slowStartThreshold;
+            windowAcks = 0;
+        }
+    }
+}
@@ -21,11 +21,13 @@ import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import static java.util.Arrays.asList;
@@ -57,6 +59,63 @@ public class UDPAdapter extends DatagramAdapter {
      */
     static public final int CLEANUP_TIME = 15000;
 
+    /**
+     * Period of checking sessions for blocks to retransmit, in milliseconds. The retransmit time itself is estimated
+     * for each session from the packets round trip time and lies between {@link #MIN_RETRANSMIT_TIME} and
+     * {@link #MAX_RETRANSMIT_TIME}, until first estimation {@link #RETRANSMIT_TIME} is used.
+     */
+    static public final int RETRANSMIT_CHECK_TIME = 50;
+
+    /**
+     * Time to retransmit a block before giving up, in milliseconds: {@link #RETRANSMIT_MAX_ATTEMPTS} attempts at
+     * {@link #RETRANSMIT_TIME}. It does not depend on the estimated retransmit time, so a short estimate on a fast link
+     * does not make the adapter give up sooner.
+     */
+    static public final int DELIVERY_TIMEOUT = RETRANSMIT_MAX_ATTEMPTS * RETRANSMIT_TIME;
+
+    /**
+     * Lower bound of the estimated retransmit time, in milliseconds.
+     */
+    static public final int MIN_RETRANSMIT_TIME = 50;
+
+    /**
+     * Upper bound of the retransmit time, in milliseconds. Retransmit time grows twice on each timeout up to it.
+     */
+    static public final int MAX_RETRANSMIT_TIME = 2000;
+
+    /**
+     * Number of not acknowledged packets a new session may have in flight. The send window grows while packets are
+     * acknowledged and shrinks twice on losses, new data blocks wait in the session waiting queue while it is full.
+     */
+    static public final int INITIAL_SEND_WINDOW = 64;
+
+    /**
+     * Send window never shrinks below this number of packets.
+     */
+    static public final int MIN_SEND_WINDOW = 4;
+
+    /**
+     * Send window never grows above this number of packets.
+     */
+    static public final int MAX_SEND_WINDOW = 4096;
+
+    /**
+     * Number of threads reassembling and decrypting incoming packets. Packets are spread between them by the sender node
+     * number, so all packets of one session are processed by the same thread in the order they came.
+     */
+    static public final int RECEIVE_WORKERS = 4;
+
+    /**
+     * Max number of packets waiting for each reassembling thread. Packets that come when it is full are dropped and
+     * counted, the sender retransmits them.
+     */
+    static public final int RECEIVE_WORKER_QUEUE_SIZE = 4096;
+
+    /**
+     * Max number of decrypted payloads waiting for the receiver. Reassembling threads wait when it is full.
+     */
+    static public final int RECEIVE_QUEUE_SIZE = 1024;
+
     private boolean isShuttingDown = false;
 
     protected String label = null;
@@ -76,10 +135,9 @@ public class UDPAdapter extends DatagramAdapter {
 
         label = myNodeInfo.getNumber() + "-0: ";
 
-        socket = new DatagramSocket(myNodeInfo.getNodeAddress().getPort());
-        socket.setReuseAddress(true);
+        openTransport(myNodeInfo.getNodeAddress().getPort());
 
-        socketListenThread = new SocketListenThread(socket);
+        socketListenThread = new SocketListenThread();
         socketListenThread.start();
 
         timer.scheduleAtFixedRate(new TimerTask() {
@@ -87,7 +145,7 @@ public class UDPAdapter extends DatagramAdapter {
             public void run() {
                 checkUnsent();
             }
-        }, RETRANSMIT_TIME, RETRANSMIT_TIME);
+        }, RETRANSMIT_CHECK_TIME, RETRANSMIT_CHECK_TIME);
         timerCleanup.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
@@ -123,7 +181,11 @@ public class UDPAdapter extends DatagramAdapter {
                         report(getLabel(), "session is ok", VerboseLevel.BASE);
 
                         session.addBlockToWaitingQueue(rawBlock);
-                        sendAsDataBlock(rawBlock, session);
+                        if (session.isSendWindowOpen()) {
+                            sendAsDataBlock(rawBlock, session);
+                        } else {
+                            report(getLabel(), "send window is full, block will wait", VerboseLevel.BASE);
+                        }
                     } else {
                         report(getLabel(), "session is handshaking", VerboseLevel.BASE);
                         session.addBlockToWaitingQueue(rawBlock);
@@ -166,8 +228,7 @@ public class UDPAdapter extends DatagramAdapter {
 
         report(getLabel(), "shutting down...", VerboseLevel.BASE);
         socketListenThread.shutdownThread();
-        socket.close();
-        socket.disconnect();
+        closeTransport();
         closeSessions();
         timer.cancel();
         timer.purge();
@@ -177,7 +238,7 @@ public class UDPAdapter extends DatagramAdapter {
         timerCleanup.purge();
 
         try {
-            while (socket.isConnected()) {
+            while (socket != null && socket.isConnected()) {
                 report(getLabel(), () -> concatReportMessage("shutting down... ",
                         socket.isClosed(), " ", socket.isConnected()), VerboseLevel.BASE);
                 Thread.sleep(100);
@@ -209,12 +270,77 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Get counters of the receiving pipeline: packets got from the socket and dropped on full reassembling queues,
+     * reassembling queue depth, blocks being reassembled and recently obtained ones (summed over the workers) and
+     * average time from socket to the processed packet, delivered payloads, delivery queue depth and average time a
+     * payload spent waiting for and inside the receiver.
+     *
+     * @return {@link Binder} with counters
+     */
+    public Binder getReceiveStats()
+    {
+        return socketListenThread.getStats();
+    }
+
+
     public DatagramSocket getSocket()
     {
         return socket;
     }
 
 
+    /**
+     * Open the transport listening the given port. Called once from the constructor, so implementations should not
+     * rely on own fields initializers.
+     *
+     * @param port is port to listen
+     * @throws IOException if the port can't be bound
+     */
+    protected void openTransport(int port) throws IOException {
+        socket = new DatagramSocket(port);
+        socket.setReuseAddress(true);
+    }
+
+
+    /**
+     * Send single datagram to its address.
+     *
+     * @param datagram is packet with data and destination
+     * @throws IOException if transport is closed
+     */
+    protected void sendDatagram(DatagramPacket datagram) throws IOException {
+        socket.send(datagram);
+    }
+
+
+    /**
+     * Block until a datagram comes and decode it to the given packet. The datagram is the buffer the listener reuses
+     * for every packet, implementations could receive to own buffers instead.
+     *
+     * @param datagram is buffer to receive to
+     * @param packet is packet to decode to
+     * @return address the datagram came from
+     * @throws IOException if transport is closed or the datagram is not a packet
+     */
+    protected InetSocketAddress receivePacket(DatagramPacket datagram, Packet packet) throws IOException {
+        socket.receive(datagram);
+        packet.parseFrom(new ByteArrayInputStream(datagram.getData(), datagram.getOffset(), datagram.getLength()));
+        return (InetSocketAddress) datagram.getSocketAddress();
+    }
+
+
+    protected boolean isTransportClosed() {
+        return socket.isClosed();
+    }
+
+
+    protected void closeTransport() {
+        socket.close();
+        socket.disconnect();
+    }
+
+
     public void report(String label, String message, int level)
     {
         if(level <= verboseLevel)
@@ -251,9 +377,12 @@ public class UDPAdapter extends DatagramAdapter {
             block.prepareToSend(MAX_PACKET_SIZE);
         }
 
-        List<DatagramPacket> outs = new ArrayList(block.datagrams.values());
+        List<Integer> outs = new ArrayList<>(block.datagrams.keySet());
 
         block.sendAttempts++;
+        block.lastSentAt = System.nanoTime();
+        if(block.firstSentAt == 0)
+            block.firstSentAt = block.lastSentAt;
         if(block.type != PacketTypes.PACKET_ACK &&
                 block.type != PacketTypes.ACK &&
                 block.type != PacketTypes.NACK) {
@@ -265,16 +394,29 @@ public class UDPAdapter extends DatagramAdapter {
             }
 
             report(getLabel(), () -> concatReportMessage("for block: ", block.blockId, " sending packets num:  ", outs.size()));
-            for (DatagramPacket d : outs) {
+            for (Integer packetId : outs) {
+                DatagramPacket d = block.datagrams.get(packetId);
+                Packet packet = block.packets.get(packetId);
+                if(d == null) {
+                    // acknowledged meanwhile
+                    continue;
+                }
+                if(packet != null) {
+                    packet.sentAt = block.lastSentAt;
+                    packet.sendCount++;
+                }
                 if(testMode == TestModes.LOST_PACKETS || testMode == TestModes.LOST_AND_SHUFFLE_PACKETS) {
                     if (new Random().nextInt(100) < lostPacketsPercent) {
                         report(getLabel(), () -> concatReportMessage("Lost packet in block: ", block.blockId));
                         continue;
                     }
                 }
-                socket.send(d);
+                sendDatagram(d);
                 report(getLabel(), () -> concatReportMessage("for block: ", block.blockId, " sent packets num:  ", outs.size()));
             }
+            if(block.type == PacketTypes.DATA) {
+                session.onPacketsSent(outs.size());
+            }
         } catch (IOException e) {
             report(getLabel(), "send block error, socket already closed");
 //            e.printStackTrace();
@@ -283,6 +425,11 @@ public class UDPAdapter extends DatagramAdapter {
 
 
     synchronized protected void sendAsDataBlock(Block rawDataBlock, Session session) throws InterruptedException {
+        if(!session.markDataBlockInFlight(rawDataBlock.blockId)) {
+            report(getLabel(), () -> concatReportMessage("block ", rawDataBlock.blockId, " is already sent"));
+            return;
+        }
+
         report(getLabel(), () -> concatReportMessage("send data to ", session.remoteNodeId), VerboseLevel.BASE);
         report(getLabel(), () -> concatReportMessage("sessionKey is ", session.sessionKey.hashCode(),
                 " for ", session.remoteNodeId));
@@ -501,16 +648,20 @@ public class UDPAdapter extends DatagramAdapter {
         List<Session> brokenSessions = new ArrayList<>();
         for(Session session : sessionsById.values()) {
             blocksToRemove = new ArrayList();
+            final long retransmitNanos = session.getRetransmitTime() * 1000000L;
+            final long now = System.nanoTime();
+            boolean timedOut = false;
             for (Block block : session.sendingBlocksQueue) {
-                if(!block.isDelivered()) {
+                if(!block.isDelivered() && now - block.lastSentAt >= retransmitNanos) {
                     report(getLabel(), () -> concatReportMessage("block: ", block.blockId,
                             " type: ", block.type, " sendAttempts: ", block.sendAttempts, " not delivered"));
                     try {
-                        if(block.sendAttempts >= RETRANSMIT_MAX_ATTEMPTS) {
+                        if(now - block.firstSentAt >= DELIVERY_TIMEOUT * 1000000L) {
                             report(getLabel(), () -> concatReportMessage("block ", block.blockId,
                                     " type ", block.type, " will be removed"));
                             blocksToRemove.add(block);
                         } else {
+                            timedOut = true;
                             sendBlock(block, session);
                         }
                     } catch (InterruptedException e) {
@@ -519,6 +670,10 @@ public class UDPAdapter extends DatagramAdapter {
                 }
             }
 
+            if(timedOut) {
+                session.onRetransmitTimeout();
+            }
+
             for(Block rb : blocksToRemove) {
                 try {
 //                    if(rb.type == PacketTypes.DATA && session.sendingBlocksQueue.contains(rb)) {
@@ -559,6 +714,10 @@ public class UDPAdapter extends DatagramAdapter {
                 sessionsById.remove(session.remoteNodeId);
             }
         }
+
+        for(Session session : sessionsById.values()) {
+            sendWindowedBlocks(session);
+        }
     }
 
 
@@ -571,8 +730,13 @@ public class UDPAdapter extends DatagramAdapter {
             if(!block.isDelivered()) {
                 blocksToResend.add(block);
                 for(Packet packet : block.packets.values()) {
-                    if(packet.sendWaitIndex >= 3) {
+                    if(packet.sendWaitIndex >= 3 && !packet.delivered) {
 //                            packetsToResend.add(packet);
+                        // resend once per three later acks, not on every ack
+                        packet.sendWaitIndex = 0;
+                        packet.sendCount++;
+                        packet.sentAt = System.nanoTime();
+                        packetsToResend.add(packet);
                         datagramsToResend.add(block.datagrams.get(packet.packetId));
                         report(getLabel(), () -> concatReportMessage("packet will be resend, blockId: ",
                                 packet.blockId, " packetId: ", packet.packetId, " type: ", packet.type,
@@ -583,10 +747,14 @@ public class UDPAdapter extends DatagramAdapter {
         }
 //        }
 
+        if(!packetsToResend.isEmpty()) {
+            session.onPacketsLost();
+        }
+
         for(DatagramPacket datagram : datagramsToResend) {
             try {
                 if(datagram != null) {
-                    socket.send(datagram);
+                    sendDatagram(datagram);
                     report(getLabel(), " datagram was resent");
                 } else {
                     report(getLabel(), " datagram unexpected became null");
@@ -607,7 +775,8 @@ public class UDPAdapter extends DatagramAdapter {
                     report(getLabel(), () -> concatReportMessage("waitingBlock ", waitingBlock.blockId,
                             " type ", waitingBlock.type));
                     if (waitingBlock.type == PacketTypes.RAW_DATA) {
-                        sendAsDataBlock(waitingBlock, session);
+                        if (!session.isDataBlockInFlight(waitingBlock.blockId) && session.isSendWindowOpen())
+                            sendAsDataBlock(waitingBlock, session);
                     } else {
                         sendBlock(waitingBlock, session);
                     }
@@ -620,6 +789,26 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Send data blocks held in the waiting queue while the session send window was full, as long as it has room now.
+     */
+    protected void sendWindowedBlocks(Session session) {
+        if (session.hasHeldDataBlocks() && session.state == Session.EXCHANGING && session.isValid()) {
+            try {
+                for (Block waitingBlock : session.waitingBlocksQueue) {
+                    if (!session.isSendWindowOpen())
+                        break;
+                    if (waitingBlock.type == PacketTypes.RAW_DATA && !session.isDataBlockInFlight(waitingBlock.blockId))
+                        sendAsDataBlock(waitingBlock, session);
+                }
+            } catch (InterruptedException e) {
+                report(getLabel(), () -> concatReportMessage("sending windowed blocks interrupted, ", e.getMessage()),
+                        VerboseLevel.BASE);
+            }
+        }
+    }
+
+
 
     protected void callErrorCallbacks(String message) {
         for(Function<String, String> fn : errorCallbacks) {
@@ -670,45 +859,113 @@ public class UDPAdapter extends DatagramAdapter {
     {
         private Boolean active = false;
 
-        private final DatagramSocket threadSocket;
         private DatagramPacket receivedDatagram;
 
-        private ConcurrentHashMap<Integer, Block> waitingBlocks = new ConcurrentHashMap<>();
-
-        private ConcurrentHashMap<Integer, Instant> obtainedBlocks = new ConcurrentHashMap<>();
-        private ConcurrentLinkedQueue<BlockTime> obtainedBlocksQueue = new ConcurrentLinkedQueue<>();
         private Duration maxObtainedBlockAge = Duration.ofMinutes(5);
 
         protected String label = null;
 
+        private final ExecutorService[] workers = new ExecutorService[RECEIVE_WORKERS];
+        private final WorkerBlocks[] workerBlocks = new WorkerBlocks[RECEIVE_WORKERS];
+        private final BlockingQueue<ReceivedPayload> receivedPayloads = new ArrayBlockingQueue<>(RECEIVE_QUEUE_SIZE);
+        private final Thread deliveryThread;
+
+        private final AtomicLong receivedPackets = new AtomicLong();
+        private final AtomicLong droppedPackets = new AtomicLong();
+        private final AtomicLong processNanos = new AtomicLong();
+        private final AtomicLong deliveredPayloads = new AtomicLong();
+        private final AtomicLong deliveryNanos = new AtomicLong();
+
         private class BlockTime {
             Integer blockId;
             Instant expiresAt;
             public BlockTime(Integer blockId, Instant expiresAt) {this.blockId=blockId; this.expiresAt=expiresAt;}
         };
 
-        public SocketListenThread(DatagramSocket socket){
+        /**
+         * Blocks being reassembled and recently obtained ones of the senders served by one worker.
+         */
+        private class WorkerBlocks {
+            final ConcurrentHashMap<Integer, Block> waitingBlocks = new ConcurrentHashMap<>();
+            final ConcurrentHashMap<Integer, Instant> obtainedBlocks = new ConcurrentHashMap<>();
+            final ConcurrentLinkedQueue<BlockTime> obtainedBlocksQueue = new ConcurrentLinkedQueue<>();
+        };
+
+        private class ReceivedPayload {
+            byte[] data;
+            long enqueuedAt = System.nanoTime();
+            public ReceivedPayload(byte[] data) {this.data=data;}
+        };
+
+        public SocketListenThread(){
 
             byte[] buf = new byte[DatagramAdapter.MAX_PACKET_SIZE];
             receivedDatagram = new DatagramPacket(buf, buf.length);
-            this.threadSocket = socket;
+
+            for (int i = 0; i < workers.length; i++) {
+                workerBlocks[i] = new WorkerBlocks();
+                final String workerName = "UDP-" + myNodeInfo.getNumber() + "-receive-worker-" + i;
+                workers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(RECEIVE_WORKER_QUEUE_SIZE), r -> {
+                            Thread thread = new Thread(r, workerName);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+            }
+            deliveryThread = new Thread(this::deliverPayloads, "UDP-" + myNodeInfo.getNumber() + "-delivery");
+            deliveryThread.setDaemon(true);
+        }
+
+        public Binder getStats() {
+            int workersQueueSize = 0;
+            for (ExecutorService worker : workers)
+                workersQueueSize += ((ThreadPoolExecutor) worker).getQueue().size();
+            int waitingBlocksCount = 0;
+            int obtainedBlocksCount = 0;
+            for (WorkerBlocks blocks : workerBlocks) {
+                waitingBlocksCount += blocks.waitingBlocks.size();
+                obtainedBlocksCount += blocks.obtainedBlocks.size();
+            }
+            long received = receivedPackets.get();
+            long delivered = deliveredPayloads.get();
+            return Binder.of(
+                    "receivedPackets", received,
+                    "droppedPackets", droppedPackets.get(),
+                    "workersQueueSize", workersQueueSize,
+                    "waitingBlocks", waitingBlocksCount,
+                    "obtainedBlocks", obtainedBlocksCount,
+                    "avgProcessMicros", received > 0 ? processNanos.get() / received / 1000 : 0,
+                    "deliveredPayloads", delivered,
+                    "deliveryQueueSize", receivedPayloads.size(),
+                    "avgDeliveryMicros", delivered > 0 ? deliveryNanos.get() / delivered / 1000 : 0
+            );
         }
 
         public void cleanObtainedBlocks() {
             // important: makes poll from obtainedBlocksQueue only here
             final Instant now = Instant.now();
-            BlockTime blockTime = obtainedBlocksQueue.peek();
-            while(blockTime != null) {
-                if (blockTime.expiresAt.isBefore(now)) {
-                    obtainedBlocks.remove(blockTime.blockId);
-                    obtainedBlocksQueue.poll();
-                    blockTime = obtainedBlocksQueue.peek();
-                } else {
-                    break;
+            for (WorkerBlocks blocks : workerBlocks) {
+                BlockTime blockTime = blocks.obtainedBlocksQueue.peek();
+                while(blockTime != null) {
+                    if (blockTime.expiresAt.isBefore(now)) {
+                        blocks.obtainedBlocks.remove(blockTime.blockId);
+                        blocks.obtainedBlocksQueue.poll();
+                        blockTime = blocks.obtainedBlocksQueue.peek();
+                    } else {
+                        break;
+                    }
                 }
             }
         }
 
+        /**
+         * @param senderNodeId is number of the node sent the block
+         * @return blocks of the worker serving the sender
+         */
+        private WorkerBlocks blocksOf(int senderNodeId) {
+            return workerBlocks[Math.floorMod(senderNodeId, workerBlocks.length)];
+        }
+
         @Override
         public void run()
         {
@@ -718,131 +975,178 @@ public class UDPAdapter extends DatagramAdapter {
             report(getLabel(), () -> concatReportMessage(" UDPAdapter listen socket at ",
                     myNodeInfo.getNodeAddress().getAddress(), ":", myNodeInfo.getNodeAddress().getPort()));
             active = true;
+            deliveryThread.start();
             while(active) {
+                Packet packet = new Packet();
+                InetSocketAddress from = null;
                 try {
-                    if(!threadSocket.isClosed()) {
+                    if(!isTransportClosed()) {
                         if(active) {
-                            threadSocket.receive(receivedDatagram);
+                            from = receivePacket(receivedDatagram, packet);
 
                             report(getLabel(), () -> concatReportMessage(">>>> got data"));
                         }
                     }
                 } catch (SocketException e) {
 //                    e.printStackTrace();
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
 
                 if(active) {
+                    // nothing is received if the transport is closed or the datagram is broken
+                    if (from == null)
+                        continue;
+                    final long receivedAt = System.nanoTime();
+                    final InetAddress address = from.getAddress();
+                    final int port = from.getPort();
 
-                    byte[] data = Arrays.copyOfRange(receivedDatagram.getData(), 0, receivedDatagram.getLength());
-
-                    Packet packet = new Packet();
-                    Block waitingBlock = null;
+                    receivedPackets.incrementAndGet();
+                    // all packets from one node go to the same worker to keep session ordering
+                    ExecutorService worker = workers[Math.floorMod(packet.senderNodeId, workers.length)];
                     try {
-                        packet.parseFromByteArray(data);
-
-                        report(getLabel(), () -> concatReportMessage("got packet with blockId: ",
-                                packet.blockId, " packetId: ", packet.packetId, " type: ", packet.type));
-
-                        if (waitingBlocks.containsKey(packet.blockId)) {
-                            waitingBlock = waitingBlocks.get(packet.blockId);
+                        worker.execute(() -> {
+                            processPacket(packet, address, port);
+                            processNanos.addAndGet(System.nanoTime() - receivedAt);
+                        });
+                    } catch (RejectedExecutionException e) {
+                        if (worker.isShutdown()) {
+                            report(getLabel(), "packet skipped, workers are shut down");
                         } else {
-                            if (obtainedBlocks.containsKey(packet.blockId)) {
-                                // Do nothing, cause we got and obtained this block already
-                                report(getLabel(), () -> concatReportMessage(" warning: repeated block given, with id ", packet.blockId));
-                            } else {
-                                waitingBlock = new Block(packet.senderNodeId, packet.receiverNodeId,
-                                        packet.blockId, packet.type,
-                                        receivedDatagram.getAddress(), receivedDatagram.getPort());
-                                waitingBlocks.put(waitingBlock.blockId, waitingBlock);
-                            }
-//                        waitingBlock = new Block(packet.senderNodeId, packet.receiverNodeId, packet.blockId, packet.type);
-//                        waitingBlocks.put(waitingBlock.blockId, waitingBlock);
+                            droppedPackets.incrementAndGet();
+                            report(getLabel(), () -> concatReportMessage("packet dropped, worker queue is full, blockId: ",
+                                    packet.blockId));
                         }
+                    }
+                } else {
+                    report(getLabel(), "socket will be closed");
+                    shutdownThread();
+                }
+            }
+        }
 
-                        if (waitingBlock != null) {
-                            waitingBlock.addToPackets(packet);
 
-                            if (waitingBlock.isSolid()) {
-                                moveWaitingBlockToObtained(waitingBlock);
-                                waitingBlock.reconstruct();
-                                obtainSolidBlock(waitingBlock);
-                            } else {
-                                if (packet.type != PacketTypes.PACKET_ACK) {
-//                                    Session session = sessionsById.get(packet.senderNodeId);
-//                                    if (session == null) {
-//                                        session = getOrCreateSession(packet.senderNodeId, receivedDatagram.getAddress(), receivedDatagram.getPort());
-//                                    }
-                                    report(getLabel(), () -> concatReportMessage("got packet type: ",
-                                            packet.type, " brotherPacketsNum: ", packet.brotherPacketsNum,
-                                            " from ", packet.senderNodeId), VerboseLevel.BASE);
-                                    Session session = getOrCreateSession(packet.senderNodeId, receivedDatagram.getAddress(), receivedDatagram.getPort());
-                                    sendPacketAck(session, packet.blockId, packet.packetId);
-                                    switch (packet.type) {
-                                        case PacketTypes.HELLO:
-                                            session.makeBlockDeliveredByType(PacketTypes.HELLO);
-                                            break;
-                                        case PacketTypes.WELCOME:
-                                            session.makeBlockDeliveredByType(PacketTypes.HELLO);
-                                            session.makeBlockDeliveredByType(PacketTypes.WELCOME);
-                                            break;
-                                        case PacketTypes.KEY_REQ:
-                                            session.makeBlockDeliveredByType(PacketTypes.HELLO);
-                                            session.makeBlockDeliveredByType(PacketTypes.WELCOME);
-                                            session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
-                                            break;
-                                        case PacketTypes.SESSION:
-                                            session.makeBlockDeliveredByType(PacketTypes.HELLO);
-                                            session.makeBlockDeliveredByType(PacketTypes.WELCOME);
-                                            session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
-                                            session.makeBlockDeliveredByType(PacketTypes.SESSION);
-                                        case PacketTypes.DATA:
-                                            if(session.isValid() && (session.state == Session.EXCHANGING || session.state == Session.SESSION)) {
-                                                session.makeBlockDeliveredByType(PacketTypes.HELLO);
-                                                session.makeBlockDeliveredByType(PacketTypes.WELCOME);
-                                                session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
-                                                session.makeBlockDeliveredByType(PacketTypes.SESSION);
-                                            }
-                                            break;
+        /**
+         * Reassemble the packet into its block and process the block if it is solid. Called from the worker
+         * thread owning the packet sender.
+         */
+        private void processPacket(Packet packet, InetAddress address, int port) {
+            Block waitingBlock = null;
+            try {
+                report(getLabel(), () -> concatReportMessage("got packet with blockId: ",
+                        packet.blockId, " packetId: ", packet.packetId, " type: ", packet.type));
+
+                WorkerBlocks blocks = blocksOf(packet.senderNodeId);
+                if (blocks.waitingBlocks.containsKey(packet.blockId)) {
+                    waitingBlock = blocks.waitingBlocks.get(packet.blockId);
+                } else {
+                    if (blocks.obtainedBlocks.containsKey(packet.blockId)) {
+                        // Do nothing, cause we got and obtained this block already
+                        report(getLabel(), () -> concatReportMessage(" warning: repeated block given, with id ", packet.blockId));
+                    } else {
+                        waitingBlock = new Block(packet.senderNodeId, packet.receiverNodeId,
+                                packet.blockId, packet.type,
+                                address, port);
+                        blocks.waitingBlocks.put(waitingBlock.blockId, waitingBlock);
+                    }
+                }
+
+                if (waitingBlock != null) {
+                    waitingBlock.addToPackets(packet);
+
+                    if (waitingBlock.isSolid()) {
+                        moveWaitingBlockToObtained(waitingBlock);
+                        waitingBlock.reconstruct();
+                        obtainSolidBlock(waitingBlock);
+                    } else {
+                        if (packet.type != PacketTypes.PACKET_ACK) {
+                            report(getLabel(), () -> concatReportMessage("got packet type: ",
+                                    packet.type, " brotherPacketsNum: ", packet.brotherPacketsNum,
+                                    " from ", packet.senderNodeId), VerboseLevel.BASE);
+                            Session session = getOrCreateSession(packet.senderNodeId, address, port);
+                            sendPacketAck(session, packet.blockId, packet.packetId);
+                            switch (packet.type) {
+                                case PacketTypes.HELLO:
+                                    session.makeBlockDeliveredByType(PacketTypes.HELLO);
+                                    break;
+                                case PacketTypes.WELCOME:
+                                    session.makeBlockDeliveredByType(PacketTypes.HELLO);
+                                    session.makeBlockDeliveredByType(PacketTypes.WELCOME);
+                                    break;
+                                case PacketTypes.KEY_REQ:
+                                    session.makeBlockDeliveredByType(PacketTypes.HELLO);
+                                    session.makeBlockDeliveredByType(PacketTypes.WELCOME);
+                                    session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
+                                    break;
+                                case PacketTypes.SESSION:
+                                    session.makeBlockDeliveredByType(PacketTypes.HELLO);
+                                    session.makeBlockDeliveredByType(PacketTypes.WELCOME);
+                                    session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
+                                    session.makeBlockDeliveredByType(PacketTypes.SESSION);
+                                case PacketTypes.DATA:
+                                    if(session.isValid() && (session.state == Session.EXCHANGING || session.state == Session.SESSION)) {
+                                        session.makeBlockDeliveredByType(PacketTypes.HELLO);
+                                        session.makeBlockDeliveredByType(PacketTypes.WELCOME);
+                                        session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
+                                        session.makeBlockDeliveredByType(PacketTypes.SESSION);
                                     }
-                                }
+                                    break;
                             }
                         }
+                    }
+                }
 
-                    } catch (IllegalArgumentException e) {
-                        e.printStackTrace();
-                    } catch (InterruptedException e) {
-                        report(getLabel(), "expected interrupted exception");
-//                        e.printStackTrace();
-                    } catch (SymmetricKey.AuthenticationFailed e) {
-                        callErrorCallbacks("SymmetricKey.AuthenticationFailed in node " + myNodeInfo.getNumber() + ": " + e.getMessage());
-                        e.printStackTrace();
-                    } catch (EncryptionError e) {
-                        callErrorCallbacks(getLabel() + " EncryptionError in node " + myNodeInfo.getNumber() + ": " + e.getMessage());
-
-                        report(getLabel(), () -> concatReportMessage("EncryptionError in node ",
-                                myNodeInfo.getNumber(), ": ", e.getMessage()), VerboseLevel.BASE);
-                        for (Session s : sessionsById.values()) {
-                            report(getLabel(), ">>---", VerboseLevel.BASE);
-                            report(getLabel(), () -> concatReportMessage(">>local node: ",
-                                    myNodeInfo.getNumber(), " remote node: ", s.remoteNodeId), VerboseLevel.BASE);
-                            report(getLabel(), () -> concatReportMessage(">>local nonce: ",
-                                    s.localNonce, " remote nonce: ", s.remoteNonce), VerboseLevel.BASE);
-                            report(getLabel(), () -> concatReportMessage(">>state: ", s.state), VerboseLevel.BASE);
-                            report(getLabel(), () -> concatReportMessage(">>session key: ",
-                                    s.sessionKey.hashCode()), VerboseLevel.BASE);
-                        }
-//                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } catch (IllegalStateException e) {
-                        callErrorCallbacks("IllegalStateException in node " + myNodeInfo.getNumber() + ": " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                report(getLabel(), "expected interrupted exception");
+//                e.printStackTrace();
+            } catch (SymmetricKey.AuthenticationFailed e) {
+                callErrorCallbacks("SymmetricKey.AuthenticationFailed in node " + myNodeInfo.getNumber() + ": " + e.getMessage());
+                e.printStackTrace();
+            } catch (EncryptionError e) {
+                callErrorCallbacks(getLabel() + " EncryptionError in node " + myNodeInfo.getNumber() + ": " + e.getMessage());
+
+                report(getLabel(), () -> concatReportMessage("EncryptionError in node ",
+                        myNodeInfo.getNumber(), ": ", e.getMessage()), VerboseLevel.BASE);
+                for (Session s : sessionsById.values()) {
+                    report(getLabel(), ">>---", VerboseLevel.BASE);
+                    report(getLabel(), () -> concatReportMessage(">>local node: ",
+                            myNodeInfo.getNumber(), " remote node: ", s.remoteNodeId), VerboseLevel.BASE);
+                    report(getLabel(), () -> concatReportMessage(">>local nonce: ",
+                            s.localNonce, " remote nonce: ", s.remoteNonce), VerboseLevel.BASE);
+                    report(getLabel(), () -> concatReportMessage(">>state: ", s.state), VerboseLevel.BASE);
+                    report(getLabel(), () -> concatReportMessage(">>session key: ",
+                            s.sessionKey.hashCode()), VerboseLevel.BASE);
+                }
+//                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (IllegalStateException e) {
+                callErrorCallbacks("IllegalStateException in node " + myNodeInfo.getNumber() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+
+        /**
+         * Pass decrypted payloads to the {@link #receiver} one by one, so slow receiver does not block reassembling.
+         */
+        private void deliverPayloads() {
+            while(active) {
+                try {
+                    ReceivedPayload payload = receivedPayloads.take();
+                    try {
+                        if(receiver != null) receiver.accept(payload.data);
+                    } catch (Exception e) {
                         e.printStackTrace();
                     }
-                } else {
-                    report(getLabel(), "socket will be closed");
-                    shutdownThread();
+                    deliveredPayloads.incrementAndGet();
+                    deliveryNanos.addAndGet(System.nanoTime() - payload.enqueuedAt);
+                } catch (InterruptedException e) {
+                    report(getLabel(), "expected interrupted exception");
                 }
             }
         }
@@ -852,7 +1156,10 @@ public class UDPAdapter extends DatagramAdapter {
         {
             active = false;
             interrupt();
-            threadSocket.close();
+            closeTransport();
+            for (ExecutorService worker : workers)
+                worker.shutdownNow();
+            deliveryThread.interrupt();
         }
 
 
@@ -912,9 +1219,7 @@ public class UDPAdapter extends DatagramAdapter {
                     } else {
                         report(getLabel(), () -> concatReportMessage("Block from unknown node ",
                                 block.senderNodeId, " was already obtained, will remove from obtained"));
-                        if(obtainedBlocks.containsKey(block.blockId)) {
-                            obtainedBlocks.remove(block.blockId);
-                        }
+                        blocksOf(block.senderNodeId).obtainedBlocks.remove(block.blockId);
                         throw new EncryptionError(Errors.BAD_VALUE + ": block got from unknown node " + block.senderNodeId);
                     }
                     break;
@@ -1049,7 +1354,7 @@ public class UDPAdapter extends DatagramAdapter {
                                             sessionIsValid));
 
                                     // Tell remote nonce we got session or send own and no need to resend it.
-                                    answerAckOrNack(session, block, receivedDatagram.getAddress(), receivedDatagram.getPort());
+                                    answerAckOrNack(session, block, block.address, block.port);
 
                                     sendWaitingBlocks(session);
                                 } else {
@@ -1094,7 +1399,7 @@ public class UDPAdapter extends DatagramAdapter {
 
                             if(Arrays.equals(crc32Remote, crc32Local)) {
                                 report(getLabel(), "Crc32 id ok", VerboseLevel.BASE);
-                                if(receiver != null) receiver.accept(decrypted);
+                                if(receiver != null) receivedPayloads.put(new ReceivedPayload(decrypted));
                             } else {
                                 final int sessionKeyHashCodeError = session.sessionKey.hashCode();
                                 final int sessionRemoteNodeIdError = session.remoteNodeId;
@@ -1112,7 +1417,7 @@ public class UDPAdapter extends DatagramAdapter {
                             }
 
                         }
-                        answerAckOrNack(session, block, receivedDatagram.getAddress(), receivedDatagram.getPort());
+                        answerAckOrNack(session, block, block.address, block.port);
                     } catch (SymmetricKey.AuthenticationFailed e) {
                         final int sessionKeyHashCodeError = session.sessionKey.hashCode();
                         final int sessionRemoteNodeIdError = session.remoteNodeId;
@@ -1143,6 +1448,8 @@ public class UDPAdapter extends DatagramAdapter {
                         if (session.state == Session.SESSION) {
                             session.state = Session.EXCHANGING;
                             sendWaitingBlocks(session);
+                        } else {
+                            sendWindowedBlocks(session);
                         }
                     }
                     break;
@@ -1188,6 +1495,7 @@ public class UDPAdapter extends DatagramAdapter {
                         report(getLabel(), () -> concatReportMessage("num packets in queue: ",
                                 sendingPacketsQueueSize2));
                         checkUnsentPackets(session);
+                        sendWindowedBlocks(session);
                     }
                     break;
             }
@@ -1195,10 +1503,11 @@ public class UDPAdapter extends DatagramAdapter {
 
 
         public void moveWaitingBlockToObtained(Block block) {
-            waitingBlocks.remove(block.blockId);
+            WorkerBlocks blocks = blocksOf(block.senderNodeId);
+            blocks.waitingBlocks.remove(block.blockId);
             Instant blockExpiresAt = Instant.now().plus(maxObtainedBlockAge);
-            obtainedBlocks.put(block.blockId, blockExpiresAt);
-            obtainedBlocksQueue.add(new BlockTime(block.blockId, blockExpiresAt));
+            blocks.obtainedBlocks.put(block.blockId, blockExpiresAt);
+            blocks.obtainedBlocksQueue.add(new BlockTime(block.blockId, blockExpiresAt));
         }
 
 
@@ -1209,7 +1518,7 @@ public class UDPAdapter extends DatagramAdapter {
                 final String sessionToString = session != null ? session.toString() : "null";
                 report(getLabel(), () -> concatReportMessage("answerAckOrNack ", sessionToString), VerboseLevel.BASE);
                 // we remove block from obtained because it broken and will can be regiven with correct data
-                obtainedBlocks.remove(block.blockId);
+                blocksOf(block.senderNodeId).obtainedBlocks.remove(block.blockId);
                 if(session != null) {
                     if (session.state == Session.EXCHANGING || session.state == Session.SESSION) {
                         sendNack(session, block.blockId);
@@ -1269,6 +1578,9 @@ public class UDPAdapter extends DatagramAdapter {
         private byte[] payload;
         // How long packet wait in queue (in got other packets times)
         private int sendWaitIndex = 0;
+        // When packet was sent last time (System.nanoTime()) and how many times it was sent
+        private long sentAt = 0;
+        private int sendCount = 0;
 
         private Boolean delivered = false;
 
@@ -1292,8 +1604,18 @@ public class UDPAdapter extends DatagramAdapter {
         }
 
         public void parseFromByteArray(byte[] byteArray) throws IOException {
+            parseFrom(new ByteArrayInputStream(byteArray));
+        }
 
-            List data = Boss.load(byteArray);
+        /**
+         * Decode the packet reading it from the stream, so it could be decoded from the receive buffer without
+         * copying it.
+         *
+         * @param in is stream with the packed packet
+         * @throws IOException if the packet could not be read
+         */
+        public void parseFrom(InputStream in) throws IOException {
+            List data = new Boss.Reader(in).read();
             brotherPacketsNum = (int) data.get(0);
             packetId = (int) data.get(1);
             senderNodeId = (int) data.get(2);
@@ -1314,6 +1636,8 @@ public class UDPAdapter extends DatagramAdapter {
         private byte[] payload;
         private byte[] crc32;
         private int sendAttempts;
+        private long firstSentAt = 0;
+        private long lastSentAt = 0;
         private InetAddress address;
         private int port;
 
@@ -1404,11 +1728,17 @@ public class UDPAdapter extends DatagramAdapter {
         }
 
         public void reconstruct() throws IOException {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
+            // copy packets payloads right into the result, without intermediate buffers
+            int size = 0;
+            for (Packet packet : packets.values()) {
+                size += packet.payload.length;
+            }
+            payload = new byte[size];
+            int offset = 0;
             for (Packet packet : packets.values()) {
-                outputStream.write(packet.payload);
+                System.arraycopy(packet.payload, 0, payload, offset, packet.payload.length);
+                offset += packet.payload.length;
             }
-            payload = outputStream.toByteArray();
         }
 
         public void addToPackets(Packet packet) {
@@ -1492,6 +1822,13 @@ public class UDPAdapter extends DatagramAdapter {
          */
         private BlockingQueue<Packet> sendingPacketsQueue = new LinkedBlockingQueue<>();
 
+        /**
+         * Ids of raw blocks from the waiting queue that are sent as DATA blocks and not acknowledged yet.
+         */
+        private Set<Integer> dataBlocksInFlight = ConcurrentHashMap.newKeySet();
+
+        private final SendWindow sendWindow = new SendWindow();
+
 
         Session(InetAddress address, int port) {
             this.address = address;
@@ -1561,6 +1898,7 @@ public class UDPAdapter extends DatagramAdapter {
         public void removeBlockFromWaitingQueue(Block block) throws InterruptedException {
             if(waitingBlocksQueue.contains(block))
                 waitingBlocksQueue.remove(block);
+            dataBlocksInFlight.remove(block.blockId);
         }
 
         public void removeBlockFromWaitingQueue(int blockId) throws InterruptedException {
@@ -1622,6 +1960,8 @@ public class UDPAdapter extends DatagramAdapter {
                 if (sendingBlock.blockId == blockId) {
                     for (Packet p : sendingBlock.packets.values()) {
                         if(p.packetId == packetId) {
+                            if(!p.delivered)
+                                onPacketAcknowledged(p);
                             removePacketFromSendingQueue(p);
                         }
                     }
@@ -1632,6 +1972,10 @@ public class UDPAdapter extends DatagramAdapter {
         public void makeBlockDelivered(int blockId) throws InterruptedException {
             for (Block sendingBlock : sendingBlocksQueue) {
                 if (sendingBlock.blockId == blockId) {
+                    for (Packet p : sendingBlock.packets.values()) {
+                        if(!p.delivered)
+                            onPacketAcknowledged(p);
+                    }
                     removeBlockFromSendingQueue(sendingBlock);
                     sendingBlock.delivered = true;
                     report(getLabel(), "block " + sendingBlock.blockId + " delivered");
@@ -1645,6 +1989,50 @@ public class UDPAdapter extends DatagramAdapter {
                 removeBlockFromSendingQueue(sendingBlock);
                 addBlockToWaitingQueue(sendingBlock);
             }
+            // raw blocks will be encrypted and sent again with the new session key
+            dataBlocksInFlight.clear();
+        }
+
+        public boolean markDataBlockInFlight(int blockId) {
+            return dataBlocksInFlight.add(blockId);
+        }
+
+        public boolean isDataBlockInFlight(int blockId) {
+            return dataBlocksInFlight.contains(blockId);
+        }
+
+        /**
+         * @return true if some raw data blocks wait in the waiting queue to be sent
+         */
+        public boolean hasHeldDataBlocks() {
+            return waitingBlocksQueue.size() > dataBlocksInFlight.size();
+        }
+
+        /**
+         * @return true if a new data block can be sent: the send window has room and pacing allows it
+         */
+        public boolean isSendWindowOpen() {
+            return sendWindow.isOpen(sendingPacketsQueue.size(), System.nanoTime());
+        }
+
+        public long getRetransmitTime() {
+            return sendWindow.getRetransmitTime();
+        }
+
+        private void onPacketAcknowledged(Packet packet) {
+            sendWindow.onAcknowledged(packet.sentAt, packet.sendCount, System.nanoTime());
+        }
+
+        public void onRetransmitTimeout() {
+            sendWindow.onRetransmitTimeout(System.nanoTime());
+        }
+
+        public void onPacketsLost() {
+            sendWindow.onPacketsLost(System.nanoTime());
+        }
+
+        public void onPacketsSent(int packets) {
+            sendWindow.onSent(packets, System.nanoTime());
         }
 
         public void removeDataBlocksFromWaiting() throws InterruptedException {
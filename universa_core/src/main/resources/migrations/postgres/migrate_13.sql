@@ -0,0 +1,2 @@
+-- cleanup removes items past keepTill in batches
+create index ix_items_keeptill on items(keeptill);
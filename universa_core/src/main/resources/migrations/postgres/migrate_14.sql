@@ -0,0 +1,16 @@
+-- items are kept for a short time, so on PostgreSQL 11+ they are partitioned by keepTill: PostgresLedger creates
+-- partitions ahead and cleanup drops expired ones as a whole. Older servers keep the plain table.
+do $$
+begin
+    if current_setting('server_version_num')::int >= 110000 then
+        execute 'alter table items rename to items_plain';
+        execute 'create table items (id integer not null references ledger(id), packed bytea, keepTill bigint) partition by range (keepTill)';
+        execute 'create table items_default partition of items default';
+        execute 'insert into items select id, packed, keepTill from items_plain';
+        execute 'drop table items_plain';
+        execute 'create index ix_items_id on items(id)';
+        execute 'create index ix_items_keeptill on items(keepTill)';
+    end if;
+end
+$$
+language plpgsql;
@@ -16,6 +16,7 @@ import com.icodici.universa.Errors;
 import com.icodici.universa.contract.permissions.ModifyDataPermission;
 import com.icodici.universa.contract.permissions.Permission;
 import com.icodici.universa.contract.roles.RoleLink;
+import com.icodici.universa.node.network.TestKeys;
 import com.icodici.universa.node2.Config;
 import com.icodici.universa.node2.Quantiser;
 import net.sergeych.biserializer.BiSerializationException;
@@ -1156,6 +1157,60 @@ public class ContractTest extends ContractTestBase {
         return processContractAsItWillBeOnTheNode(contract, -1);
     }
 
+    @Test
+    public void parallelSignatureVerification() throws Exception {
+        Contract c = new Contract(TestKeys.privateKey(0));
+        c.setOwnerKey(TestKeys.publicKey(1));
+        c.setCreatorKeys(TestKeys.publicKey(2));
+        c.addSignerKey(TestKeys.privateKey(1));
+        c.addSignerKey(TestKeys.privateKey(2));
+        byte[] sealed = c.seal();
+
+        Contract sequential = new Contract(sealed);
+        assertEquals(3, sequential.getSealedByKeys().size());
+
+        boolean wasParallel = Contract.isParallelSignatureVerification();
+        Contract.setParallelSignatureVerification(true);
+        try {
+            Contract parallel = new Contract(sealed);
+            assertEquals(sequential.getSealedByKeys(), parallel.getSealedByKeys());
+            assertEquals(sequential.getQuantiser().getQuantaSum(), parallel.getQuantiser().getQuantaSum());
+            assertEquals(0, parallel.getErrors().size());
+        } finally {
+            Contract.setParallelSignatureVerification(wasParallel);
+        }
+    }
+
+    @Test
+    public void parallelSignatureVerificationOfPack() throws Exception {
+        Contract root = new Contract(TestKeys.privateKey(0));
+        root.setOwnerKey(TestKeys.publicKey(1));
+        root.seal();
+        Contract revision = root.createRevision(TestKeys.privateKey(1));
+        revision.setOwnerKey(TestKeys.publicKey(2));
+        revision.seal();
+        byte[] packed = revision.getPackedTransaction();
+
+        TransactionPack sequential = TransactionPack.unpack(packed);
+        assertEquals(1, sequential.getSubItems().size());
+
+        boolean wasParallel = Contract.isParallelSignatureVerification();
+        Contract.setParallelSignatureVerification(true);
+        try {
+            TransactionPack parallel = TransactionPack.unpack(packed);
+            assertEquals(sequential.getContract().getSealedByKeys(), parallel.getContract().getSealedByKeys());
+            assertEquals(0, parallel.getContract().getErrors().size());
+            for (Contract c : sequential.getSubItems().values()) {
+                Contract p = parallel.getSubItem(c.getId());
+                assertEquals(c.getSealedByKeys(), p.getSealedByKeys());
+                assertEquals(1, p.getSealedByKeys().size());
+                assertEquals(0, p.getErrors().size());
+            }
+        } finally {
+            Contract.setParallelSignatureVerification(wasParallel);
+        }
+    }
+
     /**
      * Check serialization and deserialization contract with references
      * @throws Exception
@@ -27,6 +27,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 
 public class ExtendedSignatureTest extends TestCase{
@@ -83,17 +84,51 @@ public class ExtendedSignatureTest extends TestCase{
         for(int i=0; i<200; i++)
             ExtendedSignature.sign(k, data);
 
-        double t1 = parallelize(single, 1, ()-> {
-            for(int i=0; i<1000; i++)
-                ExtendedSignature.verify(key, signature, data);
-        });
-        System.out.println(t1);
-        double t2 = parallelize(multiple, 4, ()-> {
-            for(int i=0; i<1000; i++)
-                ExtendedSignature.verify(key, signature, data);
-        });
-        System.out.println(t2);
-        assertThat(Math.abs(t1-t2), is(lessThan(0.15)));
+        // measure actual RSA work, not the verification cache
+        int cacheSize = ExtendedSignature.getVerifyCacheSize();
+        ExtendedSignature.setVerifyCacheSize(0);
+        try {
+            double t1 = parallelize(single, 1, () -> {
+                for (int i = 0; i < 1000; i++)
+                    ExtendedSignature.verify(key, signature, data);
+            });
+            System.out.println(t1);
+            double t2 = parallelize(multiple, 4, () -> {
+                for (int i = 0; i < 1000; i++)
+                    ExtendedSignature.verify(key, signature, data);
+            });
+            System.out.println(t2);
+            assertThat(Math.abs(t1 - t2), is(lessThan(0.15)));
+        } finally {
+            ExtendedSignature.setVerifyCacheSize(cacheSize);
+        }
+    }
+
+    @Test
+    public void verifyCache() throws Exception {
+        byte[] data = "Hello world".getBytes();
+        PrivateKey k = TestKeys.privateKey(3);
+        PublicKey pubKey = k.getPublicKey();
+        byte[] signature = ExtendedSignature.sign(k, data);
+
+        long misses = ExtendedSignature.getVerifyCacheMisses();
+        long hits = ExtendedSignature.getVerifyCacheHits();
+        ExtendedSignature es1 = ExtendedSignature.verify(pubKey, signature, data);
+        ExtendedSignature es2 = ExtendedSignature.verify(pubKey, signature, data);
+        assertNotNull(es1);
+        assertNotNull(es2);
+        assertEquals(es1.getCreatedAt(), es2.getCreatedAt());
+        assertEquals(misses + 1, ExtendedSignature.getVerifyCacheMisses());
+        assertEquals(hits + 1, ExtendedSignature.getVerifyCacheHits());
+
+        // other data or other key must not hit the cached verification
+        assertNull(ExtendedSignature.verify(pubKey, signature, "Hello world!".getBytes()));
+        assertNull(ExtendedSignature.verify(TestKeys.publicKey(1), signature, data));
+        assertEquals(hits + 1, ExtendedSignature.getVerifyCacheHits());
+
+        // failures are not cached
+        assertNull(ExtendedSignature.verify(pubKey, signature, "Hello world!".getBytes()));
+        assertEquals(hits + 1, ExtendedSignature.getVerifyCacheHits());
     }
 
     @Test
@@ -0,0 +1,620 @@
+package com.icodici.universa.node;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.Config;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.NodeStats;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class EmbeddedLedgerTest extends TestCase {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private Path dir;
+    private EmbeddedLedger ledger;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("embedded_ledger");
+        ledger = new EmbeddedLedger(dir, SEGMENT_SIZE);
+        ledger.enableCache(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ledger.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    private EmbeddedLedger reopen() throws IOException {
+        ledger.close();
+        ledger = new EmbeddedLedger(dir, SEGMENT_SIZE);
+        return ledger;
+    }
+
+    @Test
+    public void create() throws Exception {
+        HashId id = HashId.createRandom();
+        assertNull(ledger.getRecord(id));
+        StateRecord r = ledger.findOrCreate(id);
+        assertNotNull(r);
+        assertEquals(1, ledger.countRecords());
+    }
+
+    @Test
+    public void checkNegativeBytesInId() throws Exception {
+        HashId id = HashId.withDigest(Do.randomNegativeBytes(64));
+        StateRecord r1 = ledger.findOrCreate(id);
+        r1.setState(ItemState.DECLINED);
+        r1.save();
+        StateRecord r2 = ledger.getRecord(id);
+        assertNotNull(r2);
+        assertNotSame(r1, r2);
+        assertEquals(r1.getState(), r2.getState());
+
+        ledger.enableCache(true);
+        StateRecord r3 = ledger.getRecord(id);
+        StateRecord r4 = ledger.getRecord(id);
+        assertSame(r3, r4);
+    }
+
+    @Test
+    public void createOutputLockRecord() throws Exception {
+        ledger.enableCache(true);
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        StateRecord other = ledger.findOrCreate(HashId.createRandom());
+
+        HashId id = HashId.createRandom();
+        StateRecord r1 = owner.createOutputLockRecord(id);
+        r1.reload();
+        assertEquals(id, r1.getId());
+        assertEquals(ItemState.LOCKED_FOR_CREATION, r1.getState());
+        assertEquals(owner.getRecordId(), r1.getLockedByRecordId());
+        StateRecord r2 = owner.createOutputLockRecord(id);
+        assertSame(r2, r1);
+        assertNull(owner.createOutputLockRecord(other.getId()));
+        // And hacked low level operation must fail too
+        assertNull(ledger.createOutputLockRecord(owner.getRecordId(), other.getId()));
+    }
+
+    @Test
+    public void findOrCreateAndGet() throws Exception {
+        HashId id = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(id);
+        assertNotNull(r);
+        assertEquals(id, r.getId());
+        assertEquals(ItemState.PENDING, r.getState());
+        assertAlmostSame(ZonedDateTime.now(), r.getCreatedAt());
+
+        StateRecord r1 = ledger.findOrCreate(id);
+        assertSameRecords(r, r1);
+
+        StateRecord r2 = ledger.getRecord(id);
+        assertSameRecords(r, r2);
+
+        assertNull(ledger.getRecord(HashId.createRandom()));
+    }
+
+    @Test
+    public void saveAndTransaction() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        int x = ledger.transaction(() -> {
+            r1.setState(ItemState.APPROVED);
+            r2.setState(ItemState.DECLINED);
+            r1.save();
+            r2.save();
+            return 5;
+        });
+        assertEquals(5, x);
+        r1.reload();
+        StateRecord r3 = ledger.getRecord(r1.getId());
+        assertEquals(ItemState.APPROVED, r1.getState());
+        assertEquals(ItemState.APPROVED, r3.getState());
+        assert (r1.isApproved());
+        assertThrows(IllegalStateException.class, () -> {
+            r1.approve();
+            return null;
+        });
+    }
+
+    @Test
+    public void transactionRollback() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        HashId newId = HashId.createRandom();
+
+        assertNull(ledger.transaction(() -> {
+            r1.setState(ItemState.APPROVED);
+            r1.save();
+            ledger.findOrCreate(newId);
+            throw new Ledger.Rollback();
+        }));
+        assertEquals(ItemState.PENDING, ledger.getRecord(r1.getId()).getState());
+        assertNull(ledger.getRecord(newId));
+
+        assertThrows(Ledger.Failure.class, () -> ledger.transaction(() -> {
+            r1.setState(ItemState.DECLINED);
+            r1.save();
+            r1.destroy();
+            throw new IllegalStateException("test");
+        }));
+        assertEquals(ItemState.PENDING, ledger.getRecord(r1.getId()).getState());
+
+        // rolled back state is durable too
+        reopen();
+        assertEquals(ItemState.PENDING, ledger.getRecord(r1.getId()).getState());
+        assertNull(ledger.getRecord(newId));
+    }
+
+    @Test
+    public void uncommittedTransactionIsNotReplayed() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        HashId newId = HashId.createRandom();
+
+        ledger.transaction(() -> {
+            r1.setState(ItemState.APPROVED);
+            r1.save();
+            ledger.findOrCreate(newId);
+            // the log as it would be found after a crash at this point
+            EmbeddedLedger crashed = new EmbeddedLedger(dir, SEGMENT_SIZE);
+            assertEquals(ItemState.PENDING, crashed.getRecord(r1.getId()).getState());
+            assertNull(crashed.getRecord(newId));
+            return null;
+        });
+
+        reopen();
+        assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+        assertNotNull(ledger.getRecord(newId));
+    }
+
+    @Test
+    public void rollbackKeepsConcurrentChanges() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+
+        assertNull(ledger.transaction(() -> {
+            r1.setState(ItemState.APPROVED);
+            r1.save();
+            Thread other = new Thread(() -> {
+                StateRecord r = ledger.getRecord(r1.getId());
+                r.setState(ItemState.DECLINED);
+                r.save();
+            });
+            other.start();
+            other.join();
+            throw new Ledger.Rollback();
+        }));
+        assertEquals(ItemState.DECLINED, ledger.getRecord(r1.getId()).getState());
+
+        reopen();
+        assertEquals(ItemState.DECLINED, ledger.getRecord(r1.getId()).getState());
+    }
+
+    @Test
+    public void lockForRevoking() throws Exception {
+        ledger.enableCache(true);
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.approve();
+
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r1 = r.lockToRevoke(existing.getId());
+
+        existing.reload();
+        r.reload();
+
+        assertSameRecords(existing, r1);
+        assertEquals(ItemState.LOCKED, existing.getState());
+        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
+
+        StateRecord r2 = r.lockToRevoke(existing.getId());
+        assertSame(r1, r2);
+
+        assertSameRecords(r, ledger.getLockOwnerOf(existing));
+    }
+
+    @Test
+    public void bulkLockAndUnlock() throws Exception {
+        ledger.enableCache(true);
+        StateRecord locker = ledger.findOrCreate(HashId.createRandom());
+        List<HashId> revoking = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.approve();
+            revoking.add(r.getId());
+        }
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        HashId missing = HashId.createRandom();
+
+        List<HashId> toLock = new ArrayList<>(revoking);
+        toLock.add(pending.getId());
+        toLock.add(missing);
+        Map<HashId, StateRecord> locked = ledger.lockToRevoke(locker, toLock);
+        assertEquals(revoking.size(), locked.size());
+        for (HashId id : revoking) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.LOCKED, r.getState());
+            assertEquals(locker.getRecordId(), r.getLockedByRecordId());
+            assertEquals(ItemState.LOCKED, locked.get(id).getState());
+        }
+        // locking again by the same locker is allowed
+        assertEquals(revoking.size(), ledger.lockToRevoke(locker, revoking).size());
+
+        List<HashId> newIds = Arrays.asList(HashId.createRandom(), HashId.createRandom());
+        List<HashId> toCreate = new ArrayList<>(newIds);
+        toCreate.add(pending.getId());
+        Map<HashId, StateRecord> created = ledger.createOutputLockRecords(locker, toCreate);
+        assertEquals(newIds.size(), created.size());
+        for (HashId id : newIds) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.LOCKED_FOR_CREATION, r.getState());
+            assertEquals(locker.getRecordId(), r.getLockedByRecordId());
+        }
+        // the records locked for creation by the same creator are returned again
+        assertEquals(newIds.size(), ledger.createOutputLockRecords(locker, newIds).size());
+
+        List<StateRecord> all = new ArrayList<>(locked.values());
+        all.addAll(created.values());
+        ledger.unlockAll(all);
+        for (HashId id : revoking) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.APPROVED, r.getState());
+            assertEquals(0, r.getLockedByRecordId());
+        }
+        for (HashId id : newIds)
+            assertNull(ledger.getRecord(id));
+        assertEquals(ItemState.PENDING, ledger.getRecord(pending.getId()).getState());
+    }
+
+    @Test
+    public void asyncCalls() throws Exception {
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        HashId id = contract.getId();
+        assertNull(ledger.getRecordAsync(id).get());
+
+        StateRecord r = ledger.findOrCreateAsync(id).get();
+        assertEquals(ItemState.PENDING, r.getState());
+        r.setState(ItemState.APPROVED);
+        ledger.saveAsync(r).get();
+        ledger.putItemAsync(r, contract, Instant.now().plusSeconds(300)).get();
+
+        StateRecord r1 = ledger.getRecordAsync(id).get();
+        assertEquals(ItemState.APPROVED, r1.getState());
+        assertEquals(r.getRecordId(), r1.getRecordId());
+        assertEquals(id, ledger.getItem(r1).getId());
+    }
+
+    @Test
+    public void findUnfinishedInPages() throws Exception {
+        Set<HashId> pending = new HashSet<>();
+        for (int i = 0; i < 5; i++)
+            pending.add(ledger.findOrCreate(HashId.createRandom()).getId());
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.approve();
+        StateRecord expired = ledger.findOrCreate(HashId.createRandom());
+        expired.setExpiresAt(ZonedDateTime.now().minusSeconds(1));
+        expired.save();
+
+        List<Integer> sizes = new ArrayList<>();
+        Set<HashId> found = new HashSet<>();
+        ledger.findUnfinished(2, page -> {
+            sizes.add(page.size());
+            page.forEach(r -> found.add(r.getId()));
+        });
+        assertTrue(found.containsAll(pending));
+        assertFalse(found.contains(approved.getId()));
+        assertFalse(found.contains(expired.getId()));
+        sizes.forEach(size -> assertTrue(size <= 2));
+        assertEquals(found.size(), (int) sizes.stream().mapToInt(x -> x).sum());
+        assertNull(ledger.getRecord(expired.getId()));
+    }
+
+    @Test
+    public void revoke() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        assertTrue(r1.isPending());
+        r1.approve();
+        r1.reload();
+        assertTrue(r1.isApproved());
+        r1.setState(ItemState.LOCKED);
+        r1.revoke();
+        assertTrue(r1.isArchived());
+        r1.reload();
+        assertTrue(r1.isArchived());
+    }
+
+    @Test
+    public void destroy() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.destroy();
+        assertNull(ledger.getRecord(r1.getId()));
+        assertEquals(0, ledger.countRecords());
+    }
+
+    @Test
+    public void recordExpiration() throws Exception {
+        HashId hashId = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(hashId);
+        assert (r.getExpiresAt().isAfter(ZonedDateTime.now()));
+
+        ZonedDateTime inFuture = ZonedDateTime.now().plusHours(2);
+        r.setExpiresAt(inFuture);
+
+        StateRecord r1 = ledger.getRecord(hashId);
+        assertNotEquals(r1.getExpiresAt(), inFuture);
+
+        r.save();
+        r1 = ledger.getRecord(hashId);
+        assertAlmostSame(r.getExpiresAt(), r1.getExpiresAt());
+
+        r.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        r.save();
+
+        assertNull(ledger.getRecord(hashId));
+    }
+
+    @Test
+    public void itemsAndUnfinished() throws Exception {
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        StateRecord r = ledger.findOrCreate(contract.getId());
+        ledger.putItem(r, contract, Instant.now().plusSeconds(300));
+
+        StateRecord locked = ledger.findOrCreate(HashId.createRandom());
+        locked.setState(ItemState.LOCKED);
+        locked.setLockedByRecordId(r.getRecordId());
+        locked.save();
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.approve();
+
+        reopen();
+
+        assertEquals(contract.getId(), ledger.getItem(ledger.getRecord(contract.getId())).getId());
+        assertNull(ledger.getItem(ledger.getRecord(approved.getId())));
+
+        Map<HashId, StateRecord> unfinished = ledger.findUnfinished();
+        assertEquals(2, unfinished.size());
+        assertEquals(ItemState.PENDING, unfinished.get(r.getId()).getState());
+        assertEquals(ItemState.LOCKED, unfinished.get(locked.getId()).getState());
+
+        Map<ItemState, Integer> size = ledger.getLedgerSize(ZonedDateTime.now().minusMinutes(1));
+        assertEquals(1, (int) size.get(ItemState.PENDING));
+        assertEquals(1, (int) size.get(ItemState.LOCKED));
+        assertEquals(1, (int) size.get(ItemState.APPROVED));
+        assertTrue(ledger.getLedgerSize(ZonedDateTime.now().plusMinutes(1)).isEmpty());
+    }
+
+    @Test
+    public void moveToTestnet() throws Exception {
+        HashId hashId = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(hashId);
+        assertFalse(ledger.isTestnet(hashId));
+        r.markTestRecord();
+        r.markTestRecord();
+        assertTrue(ledger.isTestnet(hashId));
+        reopen();
+        assertTrue(ledger.isTestnet(hashId));
+    }
+
+    @Test
+    public void ledgerCleanupTest() throws Exception {
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        StateRecord r = ledger.findOrCreate(contract.getId());
+        r.setExpiresAt(ZonedDateTime.now().minusSeconds(1));
+        r.save();
+        ledger.putItem(r, contract, Instant.now().plusSeconds(300));
+        HashId hash1 = contract.getId();
+
+        contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        r = ledger.findOrCreate(contract.getId());
+        r.setExpiresAt(ZonedDateTime.now().plusMonths(1));
+        r.save();
+        ledger.putItem(r, contract, Instant.now().minusSeconds(1));
+        HashId hash2 = contract.getId();
+
+        ledger.cleanup();
+
+        assertEquals(1, ledger.countRecords());
+        assertNotNull(ledger.getRecord(hash2));
+        assertNull(ledger.getItem(ledger.getRecord(hash2)));
+        assertEquals(0, ledger.getStats().getIntOrThrow("items"));
+
+        Binder stats = ledger.getCleanupStats();
+        assertEquals(1, stats.getLongOrThrow("lastRecords"));
+        assertEquals(1, stats.getLongOrThrow("lastItems"));
+        assertTrue(stats.getBooleanOrThrow("lastCompleted"));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        // spans several segments
+        List<HashId> alive = new ArrayList<>();
+        List<HashId> expired = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setState(ItemState.APPROVED);
+            if (i % 3 == 0) {
+                r.setExpiresAt(ZonedDateTime.now().plusDays(1));
+                alive.add(r.getId());
+            } else {
+                r.setExpiresAt(ZonedDateTime.now().minusSeconds(1));
+                expired.add(r.getId());
+            }
+            r.save();
+        }
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        StateRecord cr = ledger.findOrCreate(contract.getId());
+        cr.setExpiresAt(ZonedDateTime.now().plusDays(1));
+        cr.save();
+        ledger.putItem(cr, contract, Instant.now().plusSeconds(300));
+        ledger.savePayment(100, ZonedDateTime.now());
+        ledger.savePayment(100, ZonedDateTime.now());
+        long lastRecordId = cr.getRecordId();
+
+        Binder before = ledger.getStats();
+        ledger.cleanup();
+        Binder after = ledger.getStats();
+        assertEquals(1, after.getIntOrThrow("compactions"));
+        assertEquals(before.getIntOrThrow("generation") + 1, after.getIntOrThrow("generation"));
+        assertTrue(after.getLongOrThrow("logBytes") < before.getLongOrThrow("logBytes") / 2);
+        assertEquals(0, after.getLongOrThrow("garbageBytes"));
+        // old generation is deleted
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.noneMatch(f -> f.getFileName().toString().startsWith("ledger.0.")));
+        }
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(alive.size() + 1, ledger.countRecords());
+            for (HashId id : alive)
+                assertEquals(ItemState.APPROVED, ledger.getRecord(id).getState());
+            for (HashId id : expired)
+                assertNull(ledger.getRecord(id));
+            assertEquals(contract.getId(), ledger.getItem(ledger.getRecord(contract.getId())).getId());
+            assertEquals(200, (int) ledger.getPayments(ZonedDateTime.now()).values().iterator().next());
+            // record ids are never reused
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            assertTrue(r.getRecordId() > lastRecordId);
+            r.setState(ItemState.APPROVED);
+            r.setExpiresAt(ZonedDateTime.now().plusDays(1));
+            r.save();
+            alive.add(r.getId());
+            lastRecordId = r.getRecordId();
+            reopen();
+        }
+    }
+
+    @Test
+    public void compactionKeepsGarbageAccounting() throws Exception {
+        // records saved in a transaction take more space in the log than they do after the compaction
+        List<StateRecord> alive = new ArrayList<>();
+        ledger.transaction(() -> {
+            for (int i = 0; i < 100; i++) {
+                StateRecord r = ledger.findOrCreate(HashId.createRandom());
+                r.setState(ItemState.APPROVED);
+                r.setExpiresAt(ZonedDateTime.now().plusDays(1));
+                r.save();
+                alive.add(r);
+            }
+            return null;
+        });
+        for (int i = 0; i < 1000; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setExpiresAt(ZonedDateTime.now().minusSeconds(1));
+            r.save();
+        }
+        ledger.cleanup();
+        assertEquals(1, ledger.getStats().getIntOrThrow("compactions"));
+
+        for (StateRecord r : alive)
+            r.destroy();
+        long garbage = ledger.getStats().getLongOrThrow("garbageBytes");
+        assertTrue(garbage > 0);
+        assertEquals(garbage, reopen().getStats().getLongOrThrow("garbageBytes"));
+    }
+
+    @Test
+    public void damagedTail() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        r1.approve();
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        ledger.close();
+
+        // damage the last entry as a torn write would do
+        Path segment = dir.resolve("ledger.0.00000.log");
+        try (RandomAccessFile f = new RandomAccessFile(segment.toFile(), "rw")) {
+            long end = 0;
+            f.seek(end);
+            int length;
+            long last = 0;
+            while ((length = f.readInt()) != 0) {
+                last = end;
+                end += length + 8;
+                f.seek(end);
+            }
+            f.seek(last + 6);
+            f.write(0xFF);
+        }
+
+        ledger = new EmbeddedLedger(dir, SEGMENT_SIZE);
+        assertTrue(ledger.getRecord(r1.getId()).isApproved());
+        assertNull(ledger.getRecord(r2.getId()));
+        // and it keeps working after the damaged entry
+        StateRecord r3 = ledger.findOrCreate(HashId.createRandom());
+        reopen();
+        assertNotNull(ledger.getRecord(r3.getId()));
+    }
+
+    @Test
+    public void config() throws Exception {
+        PrivateKey myKey = TestKeys.privateKey(0);
+        NodeInfo myInfo = new NodeInfo(myKey.getPublicKey(), 1, "node1", "localhost", "node1.host", 17101, 17102, 17104);
+        NodeInfo other = new NodeInfo(TestKeys.publicKey(1), 2, "node2", "localhost", 17201, 17202, 17204);
+        ledger.saveConfig(myInfo, new NetConfig(Arrays.asList(myInfo, other)), myKey);
+
+        NodeInfo third = new NodeInfo(TestKeys.publicKey(2), 3, "node3", "localhost", 17301, 17302, 17304);
+        ledger.addNode(third);
+        ledger.removeNode(other);
+
+        reopen();
+        Object[] result = ledger.loadConfig();
+        NodeInfo loaded = (NodeInfo) result[0];
+        assertEquals(1, loaded.getNumber());
+        assertEquals("node1.host", loaded.getPublicHost());
+        assertEquals(17102, loaded.getClientAddress().getPort());
+        assertEquals(myKey.getPublicKey(), loaded.getPublicKey());
+        NetConfig netConfig = (NetConfig) result[1];
+        assertEquals(2, netConfig.size());
+        assertNotNull(netConfig.getInfo(3));
+        assertNull(netConfig.getInfo(2));
+        assertEquals(myKey.getPublicKey(), ((PrivateKey) result[2]).getPublicKey());
+    }
+
+    @Test
+    public void paymentSaveTest() throws Exception {
+        NodeStats stats = new NodeStats();
+        stats.init(ledger);
+        ZonedDateTime now = ZonedDateTime.now();
+        ZonedDateTime dateTime = now.minusDays(now.getDayOfMonth() - 1).minusMonths(1);
+        while (dateTime.isBefore(ZonedDateTime.now().plusSeconds(1))) {
+            ledger.savePayment(100, dateTime);
+            ledger.savePayment(100, dateTime);
+            dateTime = dateTime.plusDays(1);
+        }
+
+        Config config = new Config();
+        stats.collect(ledger, config);
+
+        assertEquals(stats.todayPaidAmount, 200);
+        assertEquals(stats.yesterdayPaidAmount, 200);
+        assertEquals(stats.thisMonthPaidAmount, 200 * now.getDayOfMonth());
+    }
+}
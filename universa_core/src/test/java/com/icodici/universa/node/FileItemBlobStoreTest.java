@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+public class FileItemBlobStoreTest {
+
+    private Path dir;
+    private FileItemBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("items");
+        store = new FileItemBlobStore(dir);
+    }
+
+    private static HashId itemId() {
+        return HashId.of(Do.randomBytes(64));
+    }
+
+    private byte[] read(HashId id) throws IOException {
+        try (InputStream in = store.open(id)) {
+            return in == null ? null : Do.read(in);
+        }
+    }
+
+    @Test
+    public void putOpenRemove() throws Exception {
+        HashId id = itemId();
+        assertNull(store.open(id));
+        assertEquals(-1, store.size(id));
+
+        byte[] packed = Do.randomBytes(100000);
+        store.put(id, new ByteArrayInputStream(packed), Instant.now().plusSeconds(300));
+        assertArrayEquals(packed, read(id));
+        assertEquals(packed.length, store.size(id));
+        assertNull(store.open(itemId()));
+
+        // items are immutable, the second write does not change the data
+        store.put(id, new ByteArrayInputStream(new byte[10]), Instant.now().plusSeconds(300));
+        assertArrayEquals(packed, read(id));
+
+        store.remove(id);
+        assertNull(store.open(id));
+        store.remove(id);
+    }
+
+    @Test
+    public void removeExpired() throws Exception {
+        Instant now = Instant.now();
+        HashId expired = itemId();
+        HashId alive = itemId();
+        HashId extended = itemId();
+        store.put(expired, new ByteArrayInputStream(Do.randomBytes(100)), now.minusSeconds(10));
+        store.put(alive, new ByteArrayInputStream(Do.randomBytes(100)), now.plusSeconds(3600));
+        store.put(extended, new ByteArrayInputStream(Do.randomBytes(100)), now.minusSeconds(10));
+        store.put(extended, new ByteArrayInputStream(Do.randomBytes(100)), now.plusSeconds(3600));
+
+        assertEquals(1, store.removeExpired(now));
+        assertNull(store.open(expired));
+        assertNotNull(read(alive));
+        assertNotNull(read(extended));
+        assertEquals(0, store.removeExpired(now));
+
+        // the store reopened on the same directory sees the same items
+        FileItemBlobStore reopened = new FileItemBlobStore(dir);
+        assertEquals(100, reopened.size(alive));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
+import net.sergeych.tools.StopWatch;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OffHeapRecordIndexTest {
+
+    private static HashId itemId() {
+        return HashId.of(Do.randomBytes(64));
+    }
+
+    private static long inFuture() {
+        return Instant.now().getEpochSecond() + 3600;
+    }
+
+    @Test
+    public void putGetRemove() throws Exception {
+        OffHeapRecordIndex index = new OffHeapRecordIndex();
+        HashId id = itemId();
+        assertTrue(index.covers(id));
+        assertFalse(index.covers(HashId.createRandom()));
+        assertNull(index.getState(id));
+
+        index.put(id, 10, ItemState.PENDING, inFuture());
+        assertEquals(ItemState.PENDING, index.getState(id));
+        assertEquals(10, index.getRecordId(id));
+        assertEquals(1, index.size());
+
+        index.put(id, 10, ItemState.APPROVED, inFuture());
+        assertEquals(ItemState.APPROVED, index.getState(HashId.withDigest(id.getDigest().clone())));
+        assertEquals(1, index.size());
+
+        index.remove(id);
+        assertNull(index.getState(id));
+        assertEquals(0, index.getRecordId(id));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void expiration() throws Exception {
+        OffHeapRecordIndex index = new OffHeapRecordIndex();
+        long now = Instant.now().getEpochSecond();
+        HashId expired = itemId();
+        HashId alive = itemId();
+        HashId eternal = itemId();
+        index.put(expired, 1, ItemState.APPROVED, now - 10);
+        index.put(alive, 2, ItemState.APPROVED, now + 3600);
+        index.put(eternal, 3, ItemState.APPROVED, 0);
+
+        assertNull(index.getState(expired));
+        assertEquals(1, index.getRecordId(expired));
+        // the ledger removes expired records from the index as it deletes them
+        index.remove(expired);
+        assertEquals(0, index.getRecordId(expired));
+        assertEquals(ItemState.APPROVED, index.getState(alive));
+        assertEquals(ItemState.APPROVED, index.getState(eternal));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void growAndReuseDeleted() throws Exception {
+        OffHeapRecordIndex index = new OffHeapRecordIndex(10);
+        long initialBytes = index.getMemoryBytes();
+        Map<HashId, Long> ids = new HashMap<>();
+        for (long i = 1; i <= 5000; i++) {
+            HashId id = itemId();
+            ids.put(id, i);
+            index.put(id, i, ItemState.values()[(int) (i % ItemState.values().length)], inFuture());
+        }
+        assertEquals(5000, index.size());
+        assertTrue(index.getMemoryBytes() > initialBytes);
+        ids.forEach((id, recordId) -> {
+            assertEquals((long) recordId, index.getRecordId(id));
+            assertEquals(ItemState.values()[(int) (recordId % ItemState.values().length)], index.getState(id));
+        });
+
+        // deleted slots are reused, so the table does not grow with the same number of records
+        long bytes = 0;
+        for (int round = 0; round < 5; round++) {
+            if (round == 1)
+                bytes = index.getMemoryBytes();
+            List<HashId> added = new ArrayList<>();
+            for (HashId id : new ArrayList<>(ids.keySet())) {
+                index.remove(id);
+                ids.remove(id);
+                HashId other = itemId();
+                index.put(other, 1, ItemState.APPROVED, inFuture());
+                added.add(other);
+            }
+            added.forEach(id -> ids.put(id, 1L));
+        }
+        assertEquals(5000, index.size());
+        assertEquals(bytes, index.getMemoryBytes());
+        ids.keySet().forEach(id -> assertEquals(ItemState.APPROVED, index.getState(id)));
+
+        index.clear();
+        assertEquals(0, index.size());
+        ids.keySet().forEach(id -> assertNull(index.getState(id)));
+    }
+
+    @Ignore("benchmark, run it explicitly")
+    @Test
+    public void lookupBenchmark() throws Exception {
+        int n = 1000000;
+        OffHeapRecordIndex index = new OffHeapRecordIndex(n);
+        HashId[] ids = new HashId[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = itemId();
+            index.put(ids[i], i + 1, ItemState.APPROVED, inFuture());
+        }
+        int lookups = 10000000;
+        long t = StopWatch.measure(() -> {
+            for (int i = 0; i < lookups; i++)
+                assertEquals(ItemState.APPROVED, index.getState(ids[i % n]));
+        });
+        System.out.println("index of " + n + " records: " + index.getMemoryBytes() / 1024 / 1024 + " MB off heap");
+        System.out.println("lookups/s: " + lookups * 1000L / Math.max(t, 1));
+    }
+}
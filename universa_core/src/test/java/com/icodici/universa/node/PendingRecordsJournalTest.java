@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PendingRecordsJournalTest {
+
+    // records are not saved, only the record id needs the ledger
+    private static final Ledger noLedger = (Ledger) Proxy.newProxyInstance(Ledger.class.getClassLoader(),
+            new Class[]{Ledger.class}, (proxy, method, args) -> {
+                throw new UnsupportedOperationException();
+            });
+
+    private Path path;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Files.createTempDirectory("journal").resolve("pending.journal");
+    }
+
+    private static StateRecord record(long recordId, ItemState state) {
+        StateRecord r = new StateRecord(noLedger);
+        r.setId(HashId.createRandom());
+        r.setRecordId(recordId);
+        r.setState(state);
+        r.setExpiresAt(ZonedDateTime.now().plusMinutes(5).withNano(0));
+        return r;
+    }
+
+    private static Map<Long, PendingRecordsJournal.Entry> byId(Collection<PendingRecordsJournal.Entry> entries) {
+        Map<Long, PendingRecordsJournal.Entry> map = new HashMap<>();
+        entries.forEach(e -> map.put(e.recordId, e));
+        return map;
+    }
+
+    @Test
+    public void acceptsPendingOnly() throws Exception {
+        assertTrue(PendingRecordsJournal.accepts(record(1, ItemState.PENDING_POSITIVE)));
+        assertFalse(PendingRecordsJournal.accepts(record(1, ItemState.APPROVED)));
+        assertFalse(PendingRecordsJournal.accepts(record(1, ItemState.LOCKED)));
+        assertFalse(PendingRecordsJournal.accepts(record(0, ItemState.PENDING)));
+    }
+
+    @Test
+    public void putApplyRemove() throws Exception {
+        try (PendingRecordsJournal journal = new PendingRecordsJournal(path)) {
+            assertTrue(journal.recovered().isEmpty());
+            StateRecord r = record(10, ItemState.PENDING_POSITIVE);
+            journal.put(r);
+
+            // the same record read from the database with the old state
+            StateRecord stored = record(10, ItemState.PENDING);
+            journal.apply(stored);
+            assertEquals(ItemState.PENDING_POSITIVE, stored.getState());
+            assertEquals(r.getExpiresAt().toEpochSecond(), stored.getExpiresAt().toEpochSecond());
+            assertFalse(stored.isDirty());
+
+            journal.remove(10);
+            StateRecord other = record(10, ItemState.PENDING);
+            journal.apply(other);
+            assertEquals(ItemState.PENDING, other.getState());
+            assertEquals(0, journal.entries().size());
+            assertEquals(PendingRecordsJournal.ENTRY_SIZE, Files.size(path));
+        }
+    }
+
+    @Test
+    public void recoverAfterCrash() throws Exception {
+        PendingRecordsJournal journal = new PendingRecordsJournal(path);
+        journal.put(record(1, ItemState.PENDING));
+        journal.put(record(1, ItemState.PENDING_NEGATIVE));
+        journal.put(record(2, ItemState.PENDING_POSITIVE));
+        // the process dies without closing it, the last entry is written partially
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(file.length());
+            file.write(new byte[PendingRecordsJournal.ENTRY_SIZE / 2]);
+        }
+
+        try (PendingRecordsJournal reopened = new PendingRecordsJournal(path)) {
+            Map<Long, PendingRecordsJournal.Entry> recovered = byId(reopened.recovered());
+            assertEquals(2, recovered.size());
+            assertEquals(ItemState.PENDING_NEGATIVE, recovered.get(1L).state);
+            assertEquals(ItemState.PENDING_POSITIVE, recovered.get(2L).state);
+            assertEquals(3 * PendingRecordsJournal.ENTRY_SIZE, Files.size(path));
+
+            // appended after the last whole entry
+            reopened.put(record(3, ItemState.PENDING));
+            assertEquals(4 * PendingRecordsJournal.ENTRY_SIZE, Files.size(path));
+        }
+        journal.close();
+    }
+
+    @Test
+    public void compact() throws Exception {
+        try (PendingRecordsJournal journal = new PendingRecordsJournal(path)) {
+            for (int i = 0; i < 100; i++)
+                journal.put(record(1 + i % 10, i % 2 == 0 ? ItemState.PENDING : ItemState.PENDING_POSITIVE));
+            journal.remove(1);
+            journal.compact();
+            assertEquals(9 * PendingRecordsJournal.ENTRY_SIZE, Files.size(path));
+            assertEquals(1L, (long) journal.getStats().getLongOrThrow("compactions"));
+            journal.put(record(11, ItemState.PENDING));
+        }
+        try (PendingRecordsJournal reopened = new PendingRecordsJournal(path)) {
+            Map<Long, PendingRecordsJournal.Entry> recovered = byId(reopened.recovered());
+            assertEquals(10, recovered.size());
+            assertNull(recovered.get(1L));
+            assertEquals(ItemState.PENDING_POSITIVE, recovered.get(2L).state);
+            assertEquals(ItemState.PENDING, recovered.get(11L).state);
+        }
+    }
+}
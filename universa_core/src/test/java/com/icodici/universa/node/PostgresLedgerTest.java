@@ -10,12 +10,17 @@ import com.icodici.universa.node2.ItemLock;
 import com.icodici.universa.node2.Config;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.NodeStats;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import net.sergeych.tools.StopWatch;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.PreparedStatement;
@@ -29,6 +34,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -193,6 +199,112 @@ public class PostgresLedgerTest extends TestCase {
         assertEquals(ItemState.DECLINED, r2.getState());
     }
 
+    @Test
+    public void saveAllGroupCommit() throws Exception {
+        int nThreads = 8;
+        int nRecords = 20;
+        ExecutorService es = Executors.newFixedThreadPool(nThreads);
+        List<Future<List<StateRecord>>> ff = new ArrayList<>();
+        for (int n = 0; n < nThreads; n++) {
+            ff.add(es.submit(() -> {
+                List<StateRecord> records = new ArrayList<>();
+                for (int i = 0; i < nRecords; i++) {
+                    StateRecord r = ledger.findOrCreate(HashId.createRandom());
+                    r.setState(ItemState.APPROVED);
+                    records.add(r);
+                }
+                // new record, without a record id yet
+                StateRecord r = new StateRecord(ledger);
+                r.setId(HashId.createRandom());
+                r.setState(ItemState.REVOKED);
+                records.add(r);
+                ledger.saveAll(records);
+                return records;
+            }));
+        }
+        for (Future<List<StateRecord>> f : ff) {
+            for (StateRecord r : f.get()) {
+                assertFalse(r.isDirty());
+                assertNotEquals(0, r.getRecordId());
+                StateRecord saved = ledger.getRecord(r.getId());
+                assertEquals(r.getState(), saved.getState());
+            }
+        }
+        es.shutdown();
+
+        Binder stats = ledger.getCommitStats();
+        assertEquals(nThreads * (nRecords + 1), stats.getLongOrThrow("records"));
+        assertTrue(stats.getLongOrThrow("groupCommits") <= nThreads);
+    }
+
+    @Test
+    public void changeWhileCommittingIsNotLost() throws Exception {
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        r.setState(ItemState.PENDING_POSITIVE);
+        CompletableFuture<Void> done = ledger.saveAsync(r);
+        // changed after it was enqueued, whenever the group is written
+        r.setState(ItemState.APPROVED);
+        done.get();
+        assertTrue(r.isDirty());
+        r.save();
+        ledger.enableCache(false);
+        assertEquals(ItemState.APPROVED, ledger.getRecord(r.getId()).getState());
+    }
+
+    @Test
+    public void recordIndex() throws Exception {
+        Contract approvedContract = new Contract(TestKeys.privateKey(0));
+        approvedContract.seal();
+        StateRecord approved = ledger.findOrCreate(approvedContract.getId());
+        approved.approve();
+
+        ledger.enableRecordIndex();
+        assertTrue(ledger.getRecordIndexStats().getIntOrThrow("size") > 0);
+        assertTrue(ledger.isApproved(approvedContract.getId()));
+
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        assertFalse(ledger.isConsensusFound(contract.getId()));
+        assertNull(ledger.getRecord(contract.getId()));
+        StateRecord r = ledger.findOrCreate(contract.getId());
+        assertFalse(ledger.isConsensusFound(contract.getId()));
+        r.setState(ItemState.DECLINED);
+        r.save();
+        assertTrue(ledger.isConsensusFound(contract.getId()));
+        assertFalse(ledger.isApproved(contract.getId()));
+
+        // failed transaction leaves the index as the database is
+        assertThrows(Ledger.Failure.class, () -> ledger.transaction(() -> {
+            approved.destroy();
+            throw new IllegalStateException("test");
+        }));
+        assertEquals(ledger.getRecord(approvedContract.getId()) != null, ledger.isApproved(approvedContract.getId()));
+
+        r.destroy();
+        assertFalse(ledger.isConsensusFound(contract.getId()));
+        assertNull(ledger.getRecord(contract.getId()));
+
+        // cleanup removes the deleted records from the index as well
+        Contract expiredContract = new Contract(TestKeys.privateKey(0));
+        expiredContract.seal();
+        StateRecord expired = ledger.findOrCreate(expiredContract.getId());
+        expired.setState(ItemState.APPROVED);
+        expired.setExpiresAt(ZonedDateTime.now().minusMinutes(1));
+        expired.save();
+        int indexed = ledger.getRecordIndexStats().getIntOrThrow("size");
+        ledger.cleanup();
+        assertTrue(ledger.getRecordIndexStats().getIntOrThrow("size") < indexed);
+
+        // an expired record known to the index is destroyed when it is looked up
+        ledger.enableCache(false);
+        StateRecord outdated = ledger.findOrCreate(HashId.createRandom());
+        outdated.setState(ItemState.APPROVED);
+        outdated.setExpiresAt(ZonedDateTime.now().minusMinutes(1));
+        outdated.save();
+        assertNull(ledger.getRecord(outdated.getId()));
+        assertNull(ledger.getDb().queryOne("select id from ledger where id = ?", outdated.getRecordId()));
+    }
+
     @Test
     public void approve() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
@@ -270,6 +382,162 @@ public class PostgresLedgerTest extends TestCase {
         assertSameRecords(r, currentOwner);
     }
 
+    @Test
+    public void bulkLockAndUnlock() throws Exception {
+        ledger.enableCache(true);
+        StateRecord locker = ledger.findOrCreate(HashId.createRandom());
+        List<HashId> revoking = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.approve();
+            revoking.add(r.getId());
+        }
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        HashId missing = HashId.createRandom();
+
+        List<HashId> toLock = new ArrayList<>(revoking);
+        toLock.add(pending.getId());
+        toLock.add(missing);
+        Map<HashId, StateRecord> locked = ledger.lockToRevoke(locker, toLock);
+        assertEquals(revoking.size(), locked.size());
+        for (HashId id : revoking) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.LOCKED, r.getState());
+            assertEquals(locker.getRecordId(), r.getLockedByRecordId());
+            assertEquals(ItemState.LOCKED, locked.get(id).getState());
+        }
+        // locking again by the same locker is allowed
+        assertEquals(revoking.size(), ledger.lockToRevoke(locker, revoking).size());
+
+        List<HashId> newIds = Arrays.asList(HashId.createRandom(), HashId.createRandom());
+        List<HashId> toCreate = new ArrayList<>(newIds);
+        toCreate.add(pending.getId());
+        Map<HashId, StateRecord> created = ledger.createOutputLockRecords(locker, toCreate);
+        assertEquals(newIds.size(), created.size());
+        for (HashId id : newIds) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.LOCKED_FOR_CREATION, r.getState());
+            assertEquals(locker.getRecordId(), r.getLockedByRecordId());
+        }
+        // the records locked for creation by the same creator are returned again
+        assertEquals(newIds.size(), ledger.createOutputLockRecords(locker, newIds).size());
+
+        List<StateRecord> all = new ArrayList<>(locked.values());
+        all.addAll(created.values());
+        ledger.unlockAll(all);
+        for (HashId id : revoking) {
+            StateRecord r = ledger.getRecord(id);
+            assertEquals(ItemState.APPROVED, r.getState());
+            assertEquals(0, r.getLockedByRecordId());
+        }
+        for (HashId id : newIds)
+            assertNull(ledger.getRecord(id));
+        assertEquals(ItemState.PENDING, ledger.getRecord(pending.getId()).getState());
+    }
+
+    @Test
+    public void asyncCalls() throws Exception {
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        HashId id = contract.getId();
+        assertNull(ledger.getRecordAsync(id).get());
+
+        StateRecord r = ledger.findOrCreateAsync(id).get();
+        assertEquals(ItemState.PENDING, r.getState());
+        r.setState(ItemState.APPROVED);
+        ledger.saveAsync(r).get();
+        ledger.putItemAsync(r, contract, Instant.now().plusSeconds(300)).get();
+
+        StateRecord r1 = ledger.getRecordAsync(id).get();
+        assertEquals(ItemState.APPROVED, r1.getState());
+        assertEquals(r.getRecordId(), r1.getRecordId());
+        assertEquals(id, ledger.getItem(r1).getId());
+    }
+
+    @Test
+    public void itemBlobStore() throws Exception {
+        Path dir = Files.createTempDirectory("items");
+        ledger.setItemBlobStore(new FileItemBlobStore(dir));
+        try {
+            Contract contract = new Contract(TestKeys.privateKey(0));
+            contract.seal();
+            StateRecord r = ledger.findOrCreate(contract.getId());
+            ledger.putItem(r, contract, Instant.now().plusSeconds(300));
+            assertEquals(contract.getId(), ledger.getItem(r).getId());
+            try (InputStream in = ledger.openItem(contract.getId())) {
+                assertArrayEquals(contract.getPackedTransaction(), Do.read(in));
+            }
+            // the items table is not used
+            try (PooledDb db = (PooledDb) ledger.getDb()) {
+                assertNull(db.queryOne("select id from items where id = ?", r.getRecordId()));
+            }
+            r.destroy();
+            assertNull(ledger.openItem(contract.getId()));
+        } finally {
+            ledger.setItemBlobStore(null);
+        }
+    }
+
+    @Test
+    public void pendingJournal() throws Exception {
+        Path path = Files.createTempDirectory("journal").resolve("pending.journal");
+        ledger.enablePendingJournal(path);
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        r.setState(ItemState.PENDING_POSITIVE);
+        r.save();
+        // the database still has the state the record was created with
+        try (PooledDb db = (PooledDb) ledger.getDb()) {
+            assertEquals(ItemState.PENDING.ordinal(),
+                    (int) db.<Integer>queryOne("select state from ledger where id = ?", r.getRecordId()));
+        }
+        assertEquals(ItemState.PENDING_POSITIVE, ledger.getRecord(r.getId()).getState());
+        assertEquals(1, ledger.getPendingJournalStats().getIntOrThrow("pending"));
+
+        r.setState(ItemState.APPROVED);
+        r.save();
+        try (PooledDb db = (PooledDb) ledger.getDb()) {
+            assertEquals(ItemState.APPROVED.ordinal(),
+                    (int) db.<Integer>queryOne("select state from ledger where id = ?", r.getRecordId()));
+        }
+        assertEquals(0, ledger.getPendingJournalStats().getIntOrThrow("pending"));
+
+        StateRecord other = ledger.findOrCreate(HashId.createRandom());
+        other.setState(ItemState.PENDING_NEGATIVE);
+        other.save();
+        ledger.close();
+
+        // the closed ledger has written the pending changes to the database
+        ledger = new PostgresLedger(CONNECTION_STRING);
+        assertEquals(ItemState.PENDING_NEGATIVE, ledger.getRecord(other.getId()).getState());
+        ledger.enablePendingJournal(path);
+        assertEquals(0, Files.size(path));
+    }
+
+    @Test
+    public void findUnfinishedInPages() throws Exception {
+        Set<HashId> pending = new HashSet<>();
+        for (int i = 0; i < 5; i++)
+            pending.add(ledger.findOrCreate(HashId.createRandom()).getId());
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.approve();
+        StateRecord expired = ledger.findOrCreate(HashId.createRandom());
+        expired.setExpiresAt(ZonedDateTime.now().minusSeconds(1));
+        expired.save();
+
+        List<Integer> sizes = new ArrayList<>();
+        Set<HashId> found = new HashSet<>();
+        ledger.findUnfinished(2, page -> {
+            sizes.add(page.size());
+            page.forEach(r -> found.add(r.getId()));
+        });
+        assertTrue(found.containsAll(pending));
+        assertFalse(found.contains(approved.getId()));
+        assertFalse(found.contains(expired.getId()));
+        sizes.forEach(size -> assertTrue(size <= 2));
+        assertEquals(found.size(), (int) sizes.stream().mapToInt(x -> x).sum());
+        assertNull(ledger.getRecord(expired.getId()));
+    }
+
     @Test
     public void revoke() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
@@ -620,6 +888,65 @@ public class PostgresLedgerTest extends TestCase {
         }
     }
 
+    @Test
+    public void itemsPartitions() throws Exception {
+        Integer version = ledger.getDb().queryOne("select current_setting('server_version_num')::int");
+        Assume.assumeTrue("items are partitioned on PostgreSQL 11+", version >= 110000);
+
+        Contract contract = new Contract(TestKeys.privateKey(0));
+        contract.seal();
+        StateRecord r = ledger.findOrCreate(contract.getId());
+        long keepTill = Instant.now().getEpochSecond() + 60;
+        ledger.putItem(r, contract, Instant.ofEpochSecond(keepTill));
+
+        long from = keepTill - keepTill % PostgresLedger.ITEMS_PARTITION_SECONDS;
+        String partition = ledger.getDb().queryOne("select tableoid::regclass::text from items where id = ?", r.getRecordId());
+        assertEquals("items_" + from + "_" + (from + PostgresLedger.ITEMS_PARTITION_SECONDS), partition);
+
+        // an item beyond the created partitions goes to the default one
+        long later = from + (PostgresLedger.ITEMS_PARTITIONS_AHEAD + 1) * PostgresLedger.ITEMS_PARTITION_SECONDS;
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        ledger.putItem(r2, contract, Instant.ofEpochSecond(later + 10));
+        assertEquals("items_default", ledger.getDb().queryOne("select tableoid::regclass::text from items where id = ?", r2.getRecordId()));
+
+        ledger.cleanup();
+        assertNotNull(ledger.getItem(r));
+        assertNotNull(ledger.getItem(r2));
+    }
+
+    @Test
+    public void ledgerCleanupInBatches() throws Exception {
+        ledger.cleanup();
+        List<HashId> expired = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setExpiresAt(ZonedDateTime.now().minusSeconds(100 - i));
+            r.save();
+            expired.add(r.getId());
+        }
+        StateRecord alive = ledger.findOrCreate(HashId.createRandom());
+        alive.setExpiresAt(ZonedDateTime.now().plusMonths(1));
+        alive.save();
+
+        // the run stops after the first batch and the next one continues
+        ledger.setCleanupLimits(10, 0, Duration.ZERO);
+        ledger.cleanup();
+        Binder stats = ledger.getCleanupStats();
+        assertEquals(10, stats.getLongOrThrow("lastRecords"));
+        assertFalse(stats.getBooleanOrThrow("lastCompleted"));
+        for (int i = 0; i < 10; i++)
+            assertNull(ledger.getRecord(expired.get(i)));
+        assertNotNull(ledger.getRecord(expired.get(10)));
+
+        ledger.setCleanupLimits(10, 1000, Duration.ofMinutes(1));
+        ledger.cleanup();
+        stats = ledger.getCleanupStats();
+        assertEquals(15, stats.getLongOrThrow("lastRecords"));
+        assertTrue(stats.getBooleanOrThrow("lastCompleted"));
+        expired.forEach(id -> assertNull(ledger.getRecord(id)));
+        assertNotNull(ledger.getRecord(alive.getId()));
+    }
+
 
     @Test
     public void paymentSaveTest() throws Exception {
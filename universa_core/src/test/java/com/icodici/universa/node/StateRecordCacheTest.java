@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.StopWatch;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class StateRecordCacheTest {
+
+    // records only need some ledger to get a record id, it is never called here
+    private static final Ledger ledger = (Ledger) Proxy.newProxyInstance(
+            Ledger.class.getClassLoader(), new Class[]{Ledger.class}, (proxy, method, args) -> null);
+
+    private static StateRecord record(long recordId) {
+        return record(HashId.createRandom(), recordId);
+    }
+
+    private static StateRecord record(HashId id, long recordId) {
+        StateRecord r = new StateRecord(ledger);
+        r.setId(id);
+        r.setRecordId(recordId);
+        return r;
+    }
+
+    @Test
+    public void putGetRemove() throws Exception {
+        StateRecordCache cache = new StateRecordCache();
+        StateRecord r = record(1);
+        cache.put(r);
+        assertSame(r, cache.get(r.getId()));
+        assertSame(r, cache.getById(1));
+
+        // other instance of the same record replaces the cached one
+        StateRecord copy = record(r.getId(), 1);
+        cache.put(copy);
+        assertSame(copy, cache.get(r.getId()));
+        assertSame(copy, cache.getById(1));
+        assertEquals(1, cache.size());
+
+        cache.remove(r);
+        assertNull(cache.get(r.getId()));
+        assertNull(cache.getById(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void recordIdAssignedOnSave() throws Exception {
+        StateRecordCache cache = new StateRecordCache();
+        StateRecord r = record(0);
+        cache.put(r);
+        assertNull(cache.getById(0));
+        r.setRecordId(10);
+        cache.put(r);
+        assertSame(r, cache.getById(10));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        StateRecordCache cache = new StateRecordCache(100);
+        StateRecord first = record(1);
+        cache.put(first);
+        StateRecord second = record(2);
+        cache.put(second);
+        for (int i = 3; i <= 100; i++)
+            cache.put(record(i));
+        assertEquals(100, cache.size());
+
+        // recently read record survives, the rest of the old ones are evicted
+        assertNotNull(cache.get(first.getId()));
+        for (int i = 101; i < 200; i++)
+            cache.put(record(i));
+        assertEquals(100, cache.size());
+        assertSame(first, cache.getById(1));
+        assertNotNull(cache.getById(199));
+
+        // the evicted record still in use is found again, the same instance
+        assertSame(second, cache.getById(2));
+        assertSame(second, cache.get(second.getId()));
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void removeById() throws Exception {
+        StateRecordCache cache = new StateRecordCache(10);
+        StateRecord r = record(1);
+        cache.put(r);
+        cache.removeById(1);
+        assertNull(cache.get(r.getId()));
+        assertNull(cache.getById(1));
+
+        // evicted records are removed too
+        StateRecord evicted = record(2);
+        cache.put(evicted);
+        for (int i = 3; i < 30; i++)
+            cache.put(record(i));
+        cache.removeById(2);
+        assertNull(cache.get(evicted.getId()));
+        assertNull(cache.getById(2));
+    }
+
+    /**
+     * Compares lookup throughput of {@link StateRecordCache} with the synchronized {@link WeakHashMap} pair that
+     * PostgresLedger used before, with many threads reading like the node executors do.
+     */
+    @Ignore("benchmark, run it explicitly")
+    @Test
+    public void lookupBenchmark() throws Exception {
+        int nThreads = 32;
+        int nRecords = 10000;
+        int nLookups = 200000;
+
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 1; i <= nRecords; i++)
+            records.add(record(i));
+
+        StateRecordCache cache = new StateRecordCache();
+        records.forEach(cache::put);
+        long t1 = measureLookups(nThreads, nLookups, records, r -> {
+            assertSame(r, cache.get(r.getId()));
+            assertSame(r, cache.getById(r.getRecordId()));
+        });
+
+        Map<HashId, WeakReference<StateRecord>> byHash = new WeakHashMap<>();
+        Map<Long, WeakReference<StateRecord>> byId = new WeakHashMap<>();
+        records.forEach(r -> {
+            byHash.put(r.getId(), new WeakReference<>(r));
+            byId.put(r.getRecordId(), new WeakReference<>(r));
+        });
+        // boxed record ids are weakly reachable only, so these entries vanish on GC and lookups may miss
+        long t2 = measureLookups(nThreads, nLookups, records, r -> {
+            synchronized (byHash) {
+                byHash.get(r.getId());
+            }
+            synchronized (byId) {
+                byId.get(r.getRecordId());
+            }
+        });
+
+        long total = (long) nThreads * nLookups * 1000;
+        System.out.println("StateRecordCache lookups/s: " + total / Math.max(t1, 1));
+        System.out.println("synchronized WeakHashMap lookups/s: " + total / Math.max(t2, 1));
+    }
+
+    private long measureLookups(int nThreads, int nLookups, List<StateRecord> records, Consumer<StateRecord> lookup) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(nThreads);
+        try {
+            return StopWatch.measure(() -> {
+                List<Future<?>> ff = new ArrayList<>();
+                for (int n = 0; n < nThreads; n++) {
+                    final int shift = n;
+                    ff.add(es.submit(() -> {
+                        for (int i = 0; i < nLookups; i++)
+                            lookup.accept(records.get((i + shift) % records.size()));
+                    }));
+                }
+                for (Future<?> f : ff) {
+                    try {
+                        f.get();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        fail(e.getMessage());
+                    }
+                }
+            });
+        } finally {
+            es.shutdown();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventLoopsTest {
+
+    @Test
+    public void sameIdSameLoop() throws Exception {
+        EventLoops loops = new EventLoops(4, "test-loop-");
+        try {
+            HashId id = HashId.createRandom();
+            assertSame(loops.loopOf(id), loops.loopOf(HashId.withDigest(id.getDigest().clone())));
+            Set<ScheduledExecutorService> used = new HashSet<>();
+            for (int i = 0; i < 100; i++)
+                used.add(loops.loopOf(HashId.createRandom()));
+            assertEquals(4, used.size());
+        } finally {
+            loops.shutdown();
+        }
+    }
+
+    @Test
+    public void tasksOfIdRunInOrderInOneThread() throws Exception {
+        EventLoops loops = new EventLoops(2, "test-loop-");
+        try {
+            HashId id = HashId.createRandom();
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+            CountDownLatch done = new CountDownLatch(1000);
+            for (int i = 0; i < 1000; i++) {
+                int n = i;
+                loops.loopOf(id).execute(() -> {
+                    order.add(n);
+                    threads.add(Thread.currentThread().getName());
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i, (int) order.get(i));
+            assertEquals(1, threads.size());
+            assertTrue(threads.iterator().next().startsWith("test-loop-"));
+
+            Binder stats = loops.getStats();
+            assertEquals(2, stats.getIntOrThrow("loops"));
+            assertEquals(2, stats.getListOrThrow("queued").size());
+        } finally {
+            loops.shutdown();
+            loops.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atLeastOneLoop() throws Exception {
+        new EventLoops(0, "test-loop-");
+    }
+}
@@ -7,12 +7,16 @@
 
 package com.icodici.universa.node2;
 
+import com.icodici.universa.HashId;
 import com.icodici.universa.node.TestItem;
 import org.junit.Test;
 
 import java.time.Duration;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ItemCacheTest {
     @Test
@@ -25,4 +29,69 @@ public class ItemCacheTest {
         c.cleanUp();
         assertEquals(null, c.get(i1.getId()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void cleanUpRemovesOnlyExpired() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMillis(200));
+        try {
+            TestItem i1 = new TestItem(true);
+            c.put(i1);
+            Thread.sleep(150);
+            TestItem i2 = new TestItem(true);
+            c.put(i2);
+            Thread.sleep(100);
+            c.cleanUp();
+            assertNull(c.get(i1.getId()));
+            assertEquals(i2, c.get(i2.getId()));
+            assertEquals(1, c.getExpirations());
+            // the cleaner timer keeps sweeping, not just once
+            Thread.sleep(400);
+            assertEquals(0, c.size());
+            assertEquals(0, c.getBytes());
+        } finally {
+            c.shutdown();
+        }
+    }
+
+    @Test
+    public void sizeBudget() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMinutes(5), 10 * ItemCache.RECORD_OVERHEAD);
+        try {
+            TestItem first = new TestItem(true);
+            c.put(first);
+            for (int i = 0; i < 9; i++)
+                c.put(new TestItem(true));
+            assertEquals(10, c.size());
+            assertEquals(0, c.getEvictions());
+
+            // recently read record gets a second chance, the other old ones are evicted
+            assertNotNull(c.get(first.getId()));
+            for (int i = 0; i < 9; i++)
+                c.put(new TestItem(true));
+            assertEquals(10, c.size());
+            assertTrue(c.getBytes() <= 10 * ItemCache.RECORD_OVERHEAD);
+            assertEquals(9, c.getEvictions());
+            assertEquals(first, c.get(first.getId()));
+            assertEquals(2, c.getHits());
+
+            assertNull(c.get(HashId.createRandom()));
+            assertEquals(1, c.getMisses());
+        } finally {
+            c.shutdown();
+        }
+    }
+
+    @Test
+    public void replace() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMinutes(5));
+        try {
+            TestItem i1 = new TestItem(true);
+            c.put(i1);
+            c.put(i1);
+            assertEquals(1, c.size());
+            assertEquals(ItemCache.RECORD_OVERHEAD, c.getBytes());
+        } finally {
+            c.shutdown();
+        }
+    }
+}
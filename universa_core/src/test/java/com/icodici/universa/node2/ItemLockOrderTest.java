@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ItemLock#synchronize(java.util.Collection, java.util.function.Function)} takes the locks in the same order
+ * whatever the order of the ids is, so the sets locked from different threads can't deadlock.
+ */
+public class ItemLockOrderTest {
+
+    @Test
+    public void overlappingSetsInOppositeOrder() throws Exception {
+        ItemLock il = new ItemLock();
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            ids.add(HashId.createRandom());
+        List<HashId> reversed = new ArrayList<>(ids);
+        Collections.reverse(reversed);
+        // overlapping with both of the above, in the opposite order
+        List<HashId> middle = new ArrayList<>(reversed.subList(2, 8));
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<HashId> set : Arrays.asList(ids, reversed, middle)) {
+                futures.add(es.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        il.synchronize(set, (__) -> {
+                            Thread.yield();
+                            return count.incrementAndGet();
+                        });
+                    }
+                    return null;
+                }));
+            }
+            // a deadlock would time out here
+            for (Future<?> f : futures)
+                f.get(20, TimeUnit.SECONDS);
+        } finally {
+            es.shutdownNow();
+        }
+        assertEquals(6000, count.get());
+    }
+}
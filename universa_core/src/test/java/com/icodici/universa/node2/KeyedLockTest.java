@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.StopWatch;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class KeyedLockTest {
+
+    private int count = 0;
+
+    @Test
+    public void exclusiveForKey() throws Exception {
+        KeyedLock<HashId> lock = new KeyedLock<>();
+        HashId id = HashId.createRandom();
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(es.submit(() -> {
+                for (int i = 0; i < 10000; i++)
+                    lock.synchronize(id, (__) -> count++);
+                return null;
+            }));
+        }
+        for (Future<?> f : futures)
+            f.get(10, TimeUnit.SECONDS);
+        es.shutdown();
+        assertEquals(40000, count);
+        Binder stats = lock.getStats();
+        assertEquals(40000, stats.getLongOrThrow("acquired"));
+        assertEquals(1, stats.getIntOrThrow("monitors"));
+    }
+
+    @Test
+    public void sameMonitorWhileKeyIsAlive() throws Exception {
+        KeyedLock<HashId> lock = new KeyedLock<>();
+        HashId id = HashId.createRandom();
+        Object first = lock.synchronize(id, m -> m);
+        // equal key, other instance
+        Object second = lock.synchronize(HashId.withDigest(id.getDigest().clone()), m -> m);
+        assertSame(first, second);
+        assertNotSame(first, lock.synchronize(HashId.createRandom(), m -> m));
+        // nested call of the same thread
+        assertEquals(1, (int) lock.synchronize(id, m -> lock.synchronize(id, m2 -> 1)));
+        assertEquals(0, lock.getStats().getLongOrThrow("contended"));
+    }
+
+    @Test
+    public void otherKeysDoNotWait() throws Exception {
+        KeyedLock<HashId> lock = new KeyedLock<>(1);
+        HashId busy = HashId.createRandom();
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> holder = CompletableFuture.runAsync(() -> lock.synchronize(busy, (__) -> {
+            taken.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        }));
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        // even in the same stripe
+        assertEquals(1, (int) lock.synchronize(HashId.createRandom(), (__) -> 1));
+
+        CompletableFuture<Integer> waiter = CompletableFuture.supplyAsync(() -> lock.synchronize(busy, (__) -> 2));
+        Thread.sleep(100);
+        assertFalse(waiter.isDone());
+        release.countDown();
+        assertEquals(2, (int) waiter.get(5, TimeUnit.SECONDS));
+        holder.get(5, TimeUnit.SECONDS);
+        Binder stats = lock.getStats();
+        assertEquals(1, stats.getLongOrThrow("contended"));
+        assertEquals(1, stats.getBinderOrThrow("waitLatency").getLongOrThrow("count"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stripesArePowerOfTwo() throws Exception {
+        new KeyedLock<HashId>(12);
+    }
+
+    // the way the locks were taken before: one global monitor to find the lock of the key
+    private static class GlobalMonitorLock {
+        private final WeakHashMap<HashId, Object> monitors = new WeakHashMap<>();
+
+        <T> T synchronize(HashId id, Function<Object, T> callable) {
+            Object lock;
+            synchronized (monitors) {
+                lock = monitors.computeIfAbsent(id, k -> new Object());
+            }
+            synchronized (lock) {
+                return callable.apply(lock);
+            }
+        }
+    }
+
+    @Ignore("benchmark, run it explicitly")
+    @Test
+    public void concurrentCallersBenchmark() throws Exception {
+        int threads = 16;
+        int calls = 200000;
+        HashId[] ids = new HashId[10000];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.createRandom();
+        // like checkItemInternal of the item being processed: find the processor and return
+        Function<Object, Object> body = lock -> lock.hashCode();
+
+        GlobalMonitorLock global = new GlobalMonitorLock();
+        KeyedLock<HashId> striped = new KeyedLock<>();
+        for (int round = 0; round < 3; round++) {
+            long tGlobal = runCallers(threads, calls, i -> global.synchronize(ids[i % ids.length], body));
+            long tStriped = runCallers(threads, calls, i -> striped.synchronize(ids[i % ids.length], body));
+            System.out.println("calls/s, global monitor: " + threads * calls * 1000L / Math.max(tGlobal, 1) +
+                    ", striped: " + threads * calls * 1000L / Math.max(tStriped, 1));
+        }
+        System.out.println(striped.getStats());
+    }
+
+    private long runCallers(int threads, int calls, Function<Integer, Object> call) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            return StopWatch.measure(() -> {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int offset = t * 7919;
+                    futures.add(es.submit(() -> {
+                        for (int i = 0; i < calls; i++)
+                            call.apply(offset + i);
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } finally {
+            es.shutdown();
+        }
+    }
+}
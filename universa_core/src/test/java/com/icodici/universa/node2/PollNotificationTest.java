@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.Parcel;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.network.Network;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class PollNotificationTest {
+
+    private NodeInfo ni;
+    private final ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+
+    @Before
+    public void setUp() throws Exception {
+        ni = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+    }
+
+    private ParcelNotification vote(HashId itemId, HashId parcelId, ItemState state, boolean requestResult) {
+        return new ParcelNotification(ni, itemId, parcelId, new ItemResult(state, true, now, now.plusDays(30)),
+                requestResult, ParcelNotification.ParcelNotificationType.PAYMENT);
+    }
+
+    @Test
+    public void packUnpack() throws Exception {
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.createRandom();
+        HashId parcelId = HashId.createRandom();
+        PollNotification poll = new PollNotification(ni, asList(
+                vote(id1, null, ItemState.PENDING_POSITIVE, true),
+                new ParcelNotification(ni, id2, parcelId, new ItemResult(ItemState.DECLINED, false, now, now),
+                        false, ParcelNotification.ParcelNotificationType.PAYLOAD)));
+        ItemNotification other = new ItemNotification(ni, id1, new ItemResult(ItemState.APPROVED, false, now, now),
+                true);
+
+        List<Notification> l = Notification.unpack(ni, Notification.pack(asList(poll, other)));
+        assertEquals(2, l.size());
+        List<ParcelNotification> votes = ((PollNotification) l.get(0)).getVotes();
+        assertEquals(2, votes.size());
+        assertEquals(poll.getVotes().get(0), votes.get(0));
+        assertNull(votes.get(0).getParcelId());
+        ParcelNotification v = votes.get(1);
+        assertSame(ni, v.getFrom());
+        assertEquals(id2, v.getItemId());
+        assertEquals(parcelId, v.getParcelId());
+        assertEquals(ItemState.DECLINED, v.getItemResult().state);
+        assertFalse(v.getItemResult().haveCopy);
+        assertFalse(v.answerIsRequested());
+        assertEquals(ParcelNotification.ParcelNotificationType.PAYLOAD, v.getType());
+        assertEquals(other, l.get(1));
+    }
+
+    @Test
+    public void aggregator() throws Exception {
+        NodeInfo peer = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17111, 17112, 17114);
+        List<Notification> sent = new ArrayList<>();
+        Network network = new Network(new NetConfig()) {
+            @Override
+            public void deliver(NodeInfo toNode, Notification notification) {
+                assertEquals(peer, toNode);
+                sent.add(notification);
+            }
+
+            @Override
+            public void subscribe(NodeInfo forNode, Consumer<Notification> notificationConsumer) {
+            }
+
+            @Override
+            public Approvable getItem(HashId itemId, NodeInfo node, Duration maxTimeout) {
+                return null;
+            }
+
+            @Override
+            public Parcel getParcel(HashId itemId, NodeInfo node, Duration maxTimeout) {
+                return null;
+            }
+        };
+        PollAggregator aggregator = new PollAggregator(ni, network);
+        aggregator.flush();
+        assertEquals(0, sent.size());
+
+        HashId id = HashId.createRandom();
+        aggregator.add(peer, vote(id, null, ItemState.PENDING_POSITIVE, true));
+        // the answer for the same item does not drop the request
+        aggregator.add(peer, vote(id, null, ItemState.APPROVED, false));
+        for (int i = 0; i < PollNotification.MAX_VOTES; i++)
+            aggregator.add(peer, vote(HashId.createRandom(), null, ItemState.PENDING_POSITIVE, true));
+        aggregator.flush();
+
+        assertEquals(2, sent.size());
+        List<ParcelNotification> first = ((PollNotification) sent.get(0)).getVotes();
+        assertEquals(PollNotification.MAX_VOTES, first.size());
+        assertEquals(id, first.get(0).getItemId());
+        assertEquals(ItemState.APPROVED, first.get(0).getItemResult().state);
+        assertTrue(first.get(0).answerIsRequested());
+        assertEquals(1, ((PollNotification) sent.get(1)).getVotes().size());
+
+        aggregator.flush();
+        assertEquals(2, sent.size());
+        assertEquals(PollNotification.MAX_VOTES + 1, aggregator.getStats().getLongOrThrow("votesSent"));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.StopWatch;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void executorOnAnyJvm() throws Exception {
+        ExecutorService virtual = VirtualThreads.newExecutor("test-virtual-");
+        // callers keep their pools on the JVMs without virtual threads
+        if (!VirtualThreads.isSupported()) {
+            assertNull(virtual);
+            return;
+        }
+        try {
+            Future<String> f = virtual.submit(() -> Thread.currentThread().getName());
+            assertEquals("test-virtual-0", f.get(5, TimeUnit.SECONDS));
+            f = virtual.submit(() -> Thread.currentThread().getName());
+            assertEquals("test-virtual-1", f.get(5, TimeUnit.SECONDS));
+        } finally {
+            virtual.shutdown();
+        }
+    }
+
+    /**
+     * 10k pending items, each waiting for its download, like the item processors of the node under load. Run it on
+     * Java 21+ to compare with virtual threads.
+     */
+    @Ignore("benchmark, run it explicitly")
+    @Test
+    public void pendingItemsBenchmark() throws Exception {
+        int items = 10000;
+        long downloadMillis = 50;
+        System.out.println("virtual threads supported: " + VirtualThreads.isSupported());
+        for (int round = 0; round < 2; round++) {
+            for (boolean virtual : new boolean[]{false, true}) {
+                ExecutorService es = virtual ? VirtualThreads.newExecutor("bench-") : Executors.newFixedThreadPool(128);
+                if (es == null)
+                    continue;
+                CountDownLatch done = new CountDownLatch(items);
+                long millis = StopWatch.measure(() -> {
+                    for (int i = 0; i < items; i++) {
+                        es.execute(() -> {
+                            try {
+                                Thread.sleep(downloadMillis);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            done.countDown();
+                        });
+                    }
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                es.shutdown();
+                System.out.println((virtual ? "virtual threads" : "pool of 128") + ": " + items + " items in " +
+                        millis + "ms, " + items * 1000L / Math.max(millis, 1) + " items/s");
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@
 
 package com.icodici.universa.node2.network;
 
+import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.SymmetricKey;
 import com.icodici.universa.node.network.TestKeys;
 import com.icodici.universa.node2.NetConfig;
@@ -15,6 +16,7 @@ import net.sergeych.tools.AsyncEvent;
 import net.sergeych.tools.Do;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -28,6 +30,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class DatagramAdapterTest {
+
+    /**
+     * Create adapter under test, subclasses override it to run the same suite over other transports.
+     */
+    protected UDPAdapter createAdapter(PrivateKey key, SymmetricKey sessionKey, NodeInfo nodeInfo, NetConfig netConfig) throws IOException {
+        return new UDPAdapter(key, sessionKey, nodeInfo, netConfig);
+    }
+
     @Test
     public void sendAndReceive() throws Exception {
 
@@ -42,9 +52,9 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -98,8 +108,8 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
 
         d1.setTestMode(DatagramAdapter.TestModes.SHUFFLE_PACKETS);
         d2.setTestMode(DatagramAdapter.TestModes.SHUFFLE_PACKETS);
@@ -157,9 +167,9 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -253,11 +263,11 @@ public class DatagramAdapterTest {
         SymmetricKey symmetricKey3 = new SymmetricKey();
         SymmetricKey symmetricKey4 = new SymmetricKey();
         SymmetricKey symmetricKey5 = new SymmetricKey();
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), symmetricKey2, node2, nc); // create implemented class with node1
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), symmetricKey3, node3, nc); // create implemented class with node1
-        DatagramAdapter d4 = new UDPAdapter(TestKeys.privateKey(0), symmetricKey4, node4, nc); // create implemented class with node1
-        DatagramAdapter d5 = new UDPAdapter(TestKeys.privateKey(1), symmetricKey5, node5, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), symmetricKey2, node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(2), symmetricKey3, node3, nc); // create implemented class with node1
+        DatagramAdapter d4 = createAdapter(TestKeys.privateKey(0), symmetricKey4, node4, nc); // create implemented class with node1
+        DatagramAdapter d5 = createAdapter(TestKeys.privateKey(1), symmetricKey5, node5, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -440,11 +450,11 @@ public class DatagramAdapterTest {
         SymmetricKey symmetricKey3 = new SymmetricKey();
         SymmetricKey symmetricKey4 = new SymmetricKey();
         SymmetricKey symmetricKey5 = new SymmetricKey();
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), symmetricKey2, node2, nc); // create implemented class with node1
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), symmetricKey3, node3, nc); // create implemented class with node1
-        DatagramAdapter d4 = new UDPAdapter(TestKeys.privateKey(0), symmetricKey4, node4, nc); // create implemented class with node1
-        DatagramAdapter d5 = new UDPAdapter(TestKeys.privateKey(1), symmetricKey5, node5, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), symmetricKey2, node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(2), symmetricKey3, node3, nc); // create implemented class with node1
+        DatagramAdapter d4 = createAdapter(TestKeys.privateKey(0), symmetricKey4, node4, nc); // create implemented class with node1
+        DatagramAdapter d5 = createAdapter(TestKeys.privateKey(1), symmetricKey5, node5, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -625,7 +635,7 @@ public class DatagramAdapterTest {
         NetConfig nc = new NetConfig(nodeInfos);
 
         SymmetricKey symmetricKey1 = new SymmetricKey();
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
 
         List symmetricKeyErrors = new ArrayList();
         d1.addErrorsCallback(m -> {
@@ -661,7 +671,7 @@ public class DatagramAdapterTest {
             nodes.add(n);
 
             SymmetricKey sk = new SymmetricKey();
-            DatagramAdapter d = new UDPAdapter(TestKeys.privateKey(keyIndex), sk, n, nc); // create implemented class with node1
+            DatagramAdapter d = createAdapter(TestKeys.privateKey(keyIndex), sk, n, nc); // create implemented class with node1
 
             adapters.add(d);
 
@@ -726,7 +736,7 @@ public class DatagramAdapterTest {
         NetConfig nc = new NetConfig(asList(node1));
 
         SymmetricKey symmetricKey1 = new SymmetricKey();
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), symmetricKey1, node1, nc); // create implemented class with node1
 
         List symmetricKeyErrors = new ArrayList();
         d1.addErrorsCallback(m -> {
@@ -762,7 +772,7 @@ public class DatagramAdapterTest {
             nodes.add(n);
 
             SymmetricKey sk = new SymmetricKey();
-            DatagramAdapter d = new UDPAdapter(TestKeys.privateKey(keyIndex), sk, n, nc); // create implemented class with node1
+            DatagramAdapter d = createAdapter(TestKeys.privateKey(keyIndex), sk, n, nc); // create implemented class with node1
 
             adapters.add(d);
 
@@ -831,9 +841,9 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -919,8 +929,8 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.DETAILED);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.DETAILED);
@@ -990,7 +1000,7 @@ public class DatagramAdapterTest {
         d2.shutdown();
 
         // create new adapter with d2 credentials
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
         ArrayList<byte[]> receviedFor3 = new ArrayList<>();
 
         d3.receive(d-> {
@@ -1038,8 +1048,8 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -1123,8 +1133,8 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -1180,8 +1190,8 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
 
         d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
         d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
@@ -1266,7 +1276,7 @@ public class DatagramAdapterTest {
         d2.shutdown();
 
         // create new adapter with d2 credentials
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
         ArrayList<byte[]> receviedFor3 = new ArrayList<>();
 
         d3.setTestMode(DatagramAdapter.TestModes.LOST_AND_SHUFFLE_PACKETS);
@@ -1321,9 +1331,9 @@ public class DatagramAdapterTest {
 
         NetConfig nc = new NetConfig(nodes);
 
-        DatagramAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
-        DatagramAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
-        DatagramAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
+        DatagramAdapter d1 = createAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1, nc); // create implemented class with node1
+        DatagramAdapter d2 = createAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2, nc); // create implemented class with node1
+        DatagramAdapter d3 = createAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3, nc); // create implemented class with node1
 
 //        d1.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
 //        d2.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
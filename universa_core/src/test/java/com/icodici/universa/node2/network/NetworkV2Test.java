@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkV2Test {
+
+    @Test
+    public void deliverCoalescesNotifications() throws Exception {
+
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16401, 16402, 16403);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16404, 16405, 16406);
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        nodes.add(node1);
+        nodes.add(node2);
+        NetConfig nc = new NetConfig(nodes);
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+
+        try {
+            int count = 300;
+            CountDownLatch latch = new CountDownLatch(count);
+            Set<HashId> received = ConcurrentHashMap.newKeySet();
+            n2.subscribe(node2, (Notification n) -> {
+                if (received.add(((ItemNotification) n).getItemId()))
+                    latch.countDown();
+            });
+
+            ItemResult result = new ItemResult(ItemState.PENDING, false, ZonedDateTime.now(), ZonedDateTime.now().plusDays(1));
+            for (int i = 0; i < count; i++)
+                n1.deliver(node2, new ItemNotification(node1, HashId.createRandom(), result, false));
+
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            assertEquals(count, received.size());
+            assertEquals(count, n1.getNotificationsSent());
+            // notifications must travel packed, not one datagram each
+            assertTrue(n1.getFramesSent() < count);
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+
+    @Test
+    public void brokenNotificationDoesNotDropFrame() throws Exception {
+
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16411, 16412, 16413);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16414, 16415, 16416);
+
+        List<NodeInfo> nodes = new ArrayList<>();
+        nodes.add(node1);
+        nodes.add(node2);
+        NetConfig nc = new NetConfig(nodes);
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+
+        try {
+            int count = 10;
+            CountDownLatch latch = new CountDownLatch(count);
+            Set<HashId> received = ConcurrentHashMap.newKeySet();
+            n2.subscribe(node2, (Notification n) -> {
+                if (received.add(((ItemNotification) n).getItemId()))
+                    latch.countDown();
+            });
+
+            ItemResult result = new ItemResult(ItemState.PENDING, false, ZonedDateTime.now(), ZonedDateTime.now().plusDays(1));
+            for (int i = 0; i < count; i++) {
+                n1.deliver(node2, new ItemNotification(node1, HashId.createRandom(), result, false));
+                // can't be packed without the result
+                if (i == count / 2)
+                    n1.deliver(node2, new ItemNotification(node1, HashId.createRandom(), null, false));
+            }
+
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            assertEquals(count, received.size());
+            assertEquals(count, n1.getNotificationsSent());
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.SymmetricKey;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+
+import java.io.IOException;
+
+/**
+ * Runs the whole {@link DatagramAdapterTest} suite over {@link NioUDPAdapter}.
+ */
+public class NioDatagramAdapterTest extends DatagramAdapterTest {
+
+    @Override
+    protected UDPAdapter createAdapter(PrivateKey key, SymmetricKey sessionKey, NodeInfo nodeInfo, NetConfig netConfig) throws IOException {
+        return new NioUDPAdapter(key, sessionKey, nodeInfo, netConfig);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import org.junit.Test;
+
+import static com.icodici.universa.node2.network.UDPAdapter.*;
+import static org.junit.Assert.*;
+
+public class SendWindowTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void retransmitTimeFromRtt() throws Exception {
+        SendWindow w = new SendWindow();
+        assertEquals(RETRANSMIT_TIME, w.getRetransmitTime());
+        assertTrue(w.getSmoothedRtt() < 0);
+
+        long now = 1000 * MS;
+        // first sample: srtt = 100, rttvar = 50, rto = 100 + 4 * 50
+        w.onAcknowledged(now - 100 * MS, 1, now);
+        assertEquals(100.0, w.getSmoothedRtt(), 1e-9);
+        assertEquals(300, w.getRetransmitTime());
+
+        // next sample: rttvar = 0.75 * 50 + 0.25 * 100 = 62.5, srtt = 0.875 * 100 + 0.125 * 200 = 112.5
+        w.onAcknowledged(now - 200 * MS, 1, now);
+        assertEquals(112.5, w.getSmoothedRtt(), 1e-9);
+        assertEquals(363, w.getRetransmitTime());
+
+        // resent packets are not sampled
+        w.onAcknowledged(now - 1500 * MS, 2, now);
+        assertEquals(112.5, w.getSmoothedRtt(), 1e-9);
+        assertEquals(363, w.getRetransmitTime());
+    }
+
+    @Test
+    public void retransmitTimeBounds() throws Exception {
+        SendWindow w = new SendWindow();
+        long now = 1000 * MS;
+        // fast link: variation term is at least the check period, and the result not less than the minimum
+        w.onAcknowledged(now, 1, now);
+        assertEquals(Math.max(MIN_RETRANSMIT_TIME, RETRANSMIT_CHECK_TIME), w.getRetransmitTime());
+
+        // backs off twice on each timeout, up to the maximum
+        long rto = w.getRetransmitTime();
+        w.onRetransmitTimeout(now);
+        assertEquals(rto * 2, w.getRetransmitTime());
+        for (int i = 0; i < 10; i++)
+            w.onRetransmitTimeout(now);
+        assertEquals(MAX_RETRANSMIT_TIME, w.getRetransmitTime());
+
+        w = new SendWindow();
+        w.onAcknowledged(now - 10000 * MS, 1, now);
+        assertEquals(MAX_RETRANSMIT_TIME, w.getRetransmitTime());
+    }
+
+    @Test
+    public void windowGrowsAndShrinks() throws Exception {
+        SendWindow w = new SendWindow();
+        assertEquals(INITIAL_SEND_WINDOW, w.getSize());
+        long now = 1000 * MS;
+
+        // slow start: one packet per ack
+        for (int i = 0; i < 10; i++)
+            w.onAcknowledged(now - 10 * MS, 1, now);
+        assertEquals(INITIAL_SEND_WINDOW + 10, w.getSize());
+
+        // loss halves it, the repeated loss within the retransmit time does not
+        w.onPacketsLost(now);
+        int size = (INITIAL_SEND_WINDOW + 10) / 2;
+        assertEquals(size, w.getSize());
+        w.onPacketsLost(now + MS);
+        assertEquals(size, w.getSize());
+        w.onPacketsLost(now + w.getRetransmitTime() * MS);
+        assertEquals(size / 2, w.getSize());
+        size /= 2;
+
+        // congestion avoidance: one packet per window of acks
+        for (int i = 0; i < size - 1; i++)
+            w.onAcknowledged(now, 2, now);
+        assertEquals(size, w.getSize());
+        w.onAcknowledged(now, 2, now);
+        assertEquals(size + 1, w.getSize());
+
+        // never below the minimum
+        for (int i = 1; i < 20; i++)
+            w.onPacketsLost(now + i * (long) MAX_RETRANSMIT_TIME * MS);
+        assertEquals(MIN_SEND_WINDOW, w.getSize());
+    }
+
+    @Test
+    public void windowLimitsPacketsInFlight() throws Exception {
+        SendWindow w = new SendWindow();
+        long now = 1000 * MS;
+        assertTrue(w.isOpen(INITIAL_SEND_WINDOW - 1, now));
+        assertFalse(w.isOpen(INITIAL_SEND_WINDOW, now));
+        // not paced before the round trip time is known
+        w.onSent(10000, now);
+        assertTrue(w.isOpen(0, now));
+    }
+
+    @Test
+    public void pacing() throws Exception {
+        SendWindow w = new SendWindow();
+        long now = 1000 * MS;
+        // srtt = 100ms, window 65 packets: about 0.65 packet per ms, bursts up to 16 packets
+        w.onAcknowledged(now - 100 * MS, 1, now);
+        int burst = Math.max(MIN_SEND_WINDOW, w.getSize() / 4);
+        assertTrue(w.isOpen(0, now));
+        w.onSent(burst, now);
+        assertFalse(w.isOpen(0, now));
+
+        // refilled with time
+        now += 10 * MS;
+        assertTrue(w.isOpen(0, now));
+        w.onSent(6, now);
+        assertTrue(w.isOpen(0, now));
+        w.onSent(1, now);
+        assertFalse(w.isOpen(0, now));
+
+        // but not above the burst
+        now += 10000 * MS;
+        w.onSent(burst, now);
+        assertFalse(w.isOpen(0, now));
+    }
+}